@@ -83,7 +83,7 @@ public class M3daTcpClient implements M3daClient {
         encoder = codec.createEnvelopeEncoder();
         decoder = codec.createEnvelopeDecoder();
 
-        bysantEncoder = codec.createBodyEncoder();
+        bysantEncoder = codec.createCompactBodyEncoder();
         bysantDecoder = codec.createBodyDecoder();
     }
 
@@ -41,4 +41,9 @@ public interface BysantDecoder {
 	 */
 	void finishDecode() throws DecoderException;
 
+	/**
+	 * Drop the accumulated bytes and the partially decoded objects, so the decoder can be reused for a new stream.
+	 */
+	void reset();
+
 }
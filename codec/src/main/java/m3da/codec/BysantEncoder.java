@@ -27,4 +27,15 @@ public interface BysantEncoder {
 	 */
 	ByteBuffer encode(M3daPdu... toEncode);
 
+	/**
+	 * Encodes a bunch of message in the bysant format, writing the result to an output in fixed size chunks while
+	 * encoding : the whole encoded message is never held in memory.
+	 * 
+	 * @param output
+	 *            receives the encoded chunks, in order. Each chunk is a new buffer owned by the output.
+	 * @param toEncode
+	 *            the list of AwtDa3 pdu to be encoded
+	 */
+	void encode(EncoderOutput output, M3daPdu... toEncode);
+
 }
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+
+/**
+ * Streaming transcoder between bysant and JSON : the tokens read on one side are written to the other side one by one,
+ * without building the decoded objects (no DTO, no map, no list).
+ * <p>
+ * Bysant to JSON :
+ * <ul>
+ * <li>the values of the stream are written as the elements of a JSON array</li>
+ * <li>the maps are written as JSON objects, the integer keys as their decimal string</li>
+ * <li>the strings are decoded as UTF-8</li>
+ * <li>a message is written as <code>{"path":..,"ticketId":..,"body":{..}}</code>, a response as
+ * <code>{"ticketId":..,"status":..,"message":..}</code> and an envelope as
+ * <code>{"header":{..},"payload":[..],"footer":{..}}</code>, the payload being transcoded as a stream (it must not be
+ * ciphered)</li>
+ * <li>the deltas vectors and the quasi periodic vectors are expanded while they are read, as JSON arrays of numbers.
+ * The vectors with floating point values are written as floating point numbers from the first floating point delta or
+ * shift.</li>
+ * </ul>
+ * <p>
+ * JSON to bysant : the elements of a top level JSON array are written as the values of the stream, any other JSON
+ * value is written as a single value. The objects and arrays are encoded as null terminated maps and lists, so nothing
+ * is buffered for computing their size : the arrays can't contain null elements, the null value being the end of a
+ * null terminated list.
+ */
+public interface BysantJsonTranscoder {
+
+	/**
+	 * Transcode a bysant stream to JSON.
+	 *
+	 * @param bysant
+	 *            the bysant stream, not consumed
+	 * @param json
+	 *            where the JSON array of the values of the stream is written, not flushed
+	 * @throws DecoderException
+	 *             if the bysant stream is malformed or exceeds the decoder limits
+	 * @throws IOException
+	 *             if the JSON can't be written
+	 */
+	void toJson(ByteBuffer bysant, JsonGenerator json) throws DecoderException, IOException;
+
+	/**
+	 * Transcode a bysant stream to JSON text.
+	 *
+	 * @param bysant
+	 *            the bysant stream, not consumed
+	 * @param json
+	 *            where the JSON text is written, flushed but not closed
+	 * @throws DecoderException
+	 *             if the bysant stream is malformed or exceeds the decoder limits
+	 * @throws IOException
+	 *             if the JSON can't be written
+	 */
+	void toJson(ByteBuffer bysant, Writer json) throws DecoderException, IOException;
+
+	/**
+	 * Transcode the next JSON value of a parser to bysant.
+	 *
+	 * @param json
+	 *            the JSON parser, positioned before the value
+	 * @param output
+	 *            receives the bysant stream, in chunks
+	 * @throws IOException
+	 *             if the JSON is malformed or can't be read
+	 */
+	void toBysant(JsonParser json, EncoderOutput output) throws IOException;
+
+	/**
+	 * Transcode a JSON text to bysant.
+	 *
+	 * @param json
+	 *            the JSON text, not closed
+	 * @return the bysant stream
+	 * @throws IOException
+	 *             if the JSON is malformed or can't be read
+	 */
+	ByteBuffer toBysant(Reader json) throws IOException;
+
+	/**
+	 * Transcode a JSON object to a bysant M3DA message, for instance the data of a write request.
+	 *
+	 * @param path
+	 *            the path of the message
+	 * @param ticketId
+	 *            the ticket of the message, <code>null</code> if no acknowledgement is expected
+	 * @param body
+	 *            the JSON parser, positioned before the JSON object written as the body of the message
+	 * @param output
+	 *            receives the bysant message, in chunks
+	 * @throws IOException
+	 *             if the JSON is malformed, is not an object, or can't be read
+	 */
+	void toBysantMessage(String path, Long ticketId, JsonParser body, EncoderOutput output) throws IOException;
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A state-full pull parser for bysant streams. Instead of building the decoded objects like a {@link BysantDecoder},
+ * the reader walks the stream one token at a time, so a caller interested in a few values of a message body can read
+ * them as primitives and skip the rest without allocating anything.
+ * <p>
+ * The input is pushed with {@link #setInput(ByteBuffer)}, and {@link #nextToken()} returns
+ * {@link Token#NEED_MORE_INPUT} when the input is exhausted before the end of the current token : the parsing will
+ * continue when the next buffer is pushed.
+ * <p>
+ * Inside a map the tokens alternate between the key (a {@link Token#STRING} or an {@link Token#INTEGER}) and the
+ * value. The M3DA objects are read as their three fields, in the order of the M3DA specification, between a
+ * <code>START_xxx</code> token and an {@link Token#END_OBJECT} token.
+ */
+public interface BysantReader {
+
+	/** The tokens of a bysant stream */
+	public enum Token {
+		NULL, BOOLEAN, INTEGER, FLOAT, STRING, START_LIST, END_LIST, START_MAP, END_MAP, START_ENVELOPE, START_MESSAGE,
+		START_RESPONSE, START_DELTAS_VECTOR, START_QUASI_PERIODIC_VECTOR, END_OBJECT,
+		/** the input is exhausted, push the next bytes using {@link BysantReader#setInput(ByteBuffer)} */
+		NEED_MORE_INPUT
+	}
+
+	/**
+	 * Push the next bytes of the stream. The buffer is consumed by the following calls to {@link #nextToken()}.
+	 *
+	 * @param buffer
+	 *            the next bytes of the stream
+	 */
+	void setInput(ByteBuffer buffer);
+
+	/**
+	 * Read the next token of the stream.
+	 *
+	 * @return the token, or {@link Token#NEED_MORE_INPUT} if the input is exhausted
+	 * @throws DecoderException
+	 *             if the stream is malformed
+	 */
+	Token nextToken() throws DecoderException;
+
+	/**
+	 * @return the last token returned by {@link #nextToken()}
+	 */
+	Token currentToken();
+
+	/**
+	 * @return the value of the current {@link Token#INTEGER} (or truncated {@link Token#FLOAT}) token
+	 */
+	long readLong();
+
+	/**
+	 * @return the value of the current {@link Token#FLOAT} (or {@link Token#INTEGER}) token
+	 */
+	double readDouble();
+
+	/**
+	 * @return the value of the current {@link Token#INTEGER} or {@link Token#FLOAT} token, boxed in the type used on
+	 *         the wire (Integer, Long, Float or Double)
+	 */
+	Number readNumber();
+
+	/**
+	 * @return the value of the current {@link Token#BOOLEAN} token
+	 */
+	boolean readBoolean();
+
+	/**
+	 * The content of the current {@link Token#STRING} token, <code>null</code> if it was streamed (see
+	 * {@link #isStreamedString()}). For a slicing reader it's a read-only view of the input
+	 * buffer when the string is contiguous in it : the input buffer must not be modified while the slice is used, copy
+	 * it to keep it.
+	 *
+	 * @return the string content
+	 */
+	ByteBuffer readStringSlice();
+
+	/**
+	 * @return the current {@link Token#STRING} token decoded as an UTF-8 string
+	 */
+	String readString();
+
+	/**
+	 * @return <code>true</code> if the current {@link Token#STRING} token is a chunked string written to the
+	 *         {@link ChunkedStringSink} : its content is not available, only the value returned by the sink
+	 */
+	boolean isStreamedString();
+
+	/**
+	 * @return the value returned by {@link ChunkedStringSink#end()} for the current {@link Token#STRING} token, if it
+	 *         was streamed
+	 */
+	Object readStreamedString();
+
+	/**
+	 * Write the content of the chunked strings to a sink while it's received, instead of accumulating it for building
+	 * the {@link Token#STRING} token.
+	 *
+	 * @param sink
+	 *            the sink, <code>null</code> for accumulating the chunked strings
+	 */
+	void setChunkedStringSink(ChunkedStringSink sink);
+
+	/**
+	 * Enter the map started by the current {@link Token#START_MAP} token : the next tokens are its keys and values.
+	 *
+	 * @return the number of entries of the map, or -1 for a null terminated map
+	 */
+	int enterMap();
+
+	/**
+	 * Enter the list started by the current {@link Token#START_LIST} token : the next tokens are its elements.
+	 *
+	 * @return the number of elements of the list, or -1 for a null terminated list
+	 */
+	int enterList();
+
+	/**
+	 * Skip the value started by the current token : if the current token starts a list, a map or a M3DA object, all its
+	 * content is skipped up to the matching end token, without decoding strings or numbers.
+	 *
+	 * @return <code>true</code> if the value was skipped, <code>false</code> if the input is exhausted : the skipping
+	 *         will be finished by the next call to {@link #nextToken()}
+	 * @throws DecoderException
+	 *             if the stream is malformed
+	 */
+	boolean skipValue() throws DecoderException;
+
+	/**
+	 * To be called once all the bytes where pushed.
+	 *
+	 * @throws DecoderException
+	 *             If the stream ends in the middle of a value.
+	 */
+	void finish() throws DecoderException;
+
+	/**
+	 * Drop the pushed input and the opened containers, so the reader can be reused for a new stream.
+	 */
+	void reset();
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Access to the content of the decoded strings and binaries, whatever the kind of {@link ByteBuffer} : heap, direct,
+ * read-only or slice of a larger buffer. Never use {@link ByteBuffer#array()} on a decoded value : only the bytes
+ * between the position and the limit belong to the value.
+ * <p>
+ * The position of the given buffers is never modified.
+ */
+public final class ByteBuffers {
+
+    private ByteBuffers() {
+    }
+
+    /**
+     * The remaining bytes of a buffer. The backing array is returned without copy when it holds exactly the remaining
+     * bytes, so the result must not be modified.
+     *
+     * @param buffer the buffer, can be <code>null</code>
+     * @return the remaining bytes, or <code>null</code> for a <code>null</code> buffer
+     */
+    public static byte[] toBytes(final ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode the remaining bytes of a buffer as an UTF-8 string.
+     *
+     * @param buffer the buffer, can be <code>null</code>
+     * @return the string, or <code>null</code> for a <code>null</code> buffer
+     */
+    public static String toUtf8String(final ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        try {
+            if (buffer.hasArray()) {
+                return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), "UTF-8");
+            }
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return new String(bytes, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the content of the bysant chunked strings as it's decoded, instead of accumulating the whole value in
+ * memory. Used for large binaries (e.g. files uploaded by a device).
+ */
+public interface ChunkedStringSink {
+
+	/**
+	 * A chunked string starts.
+	 */
+	void start();
+
+	/**
+	 * Some bytes of the current chunked string, in order. The buffer is a read-only view of the decoder input : it's
+	 * only valid during the call, copy it to keep it.
+	 *
+	 * @param bytes
+	 *            the next bytes of the string
+	 */
+	void write(ByteBuffer bytes);
+
+	/**
+	 * The current chunked string is complete.
+	 *
+	 * @return the object decoded in place of the string (e.g. the file where the content was written), can be
+	 *         <code>null</code>
+	 */
+	Object end();
+}
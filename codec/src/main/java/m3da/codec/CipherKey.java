@@ -0,0 +1,27 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import m3da.codec.dto.CipherAlgorithm;
+
+/**
+ * The cipher key and initial vector derived from a password and a nonce by
+ * {@link M3daCodecService#createCipherKey(CipherAlgorithm, byte[], byte[])}, reused for each content ciphered with
+ * this password and nonce. Immutable and thread safe : it should be cached as long as the password and the nonce don't
+ * change.
+ */
+public interface CipherKey {
+
+	/**
+	 * @return the cipher algorithm of the key
+	 */
+	CipherAlgorithm getAlgorithm();
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+/**
+ * The limits applied when decoding the data received from a device, so a malformed or malicious stream can't make the
+ * decoder allocate without limit. A stream exceeding a limit is rejected with a {@link DecoderException}.
+ */
+public final class DecoderPolicy {
+
+	/** the default limits : large enough for any legitimate device */
+	public static final DecoderPolicy DEFAULT = new DecoderPolicy(16 * 1024 * 1024, 32, 1024 * 1024, 16 * 1024 * 1024);
+
+	/** no limit, for the trusted streams */
+	public static final DecoderPolicy UNLIMITED = new DecoderPolicy(Integer.MAX_VALUE, Integer.MAX_VALUE,
+			Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+	private final int maxEnvelopeSize;
+
+	private final int maxDepth;
+
+	private final int maxCollectionLength;
+
+	private final int maxAccumulatedBytes;
+
+	/**
+	 * @param maxEnvelopeSize
+	 *            maximum size in bytes of an envelope (or of any top level object of a bysant stream)
+	 * @param maxDepth
+	 *            maximum nesting of the lists, maps and M3DA objects
+	 * @param maxCollectionLength
+	 *            maximum number of elements of a list, or of entries of a map
+	 * @param maxAccumulatedBytes
+	 *            maximum number of bytes of an incomplete envelope kept for a session while waiting for the rest
+	 */
+	public DecoderPolicy(final int maxEnvelopeSize, final int maxDepth, final int maxCollectionLength,
+			final int maxAccumulatedBytes) {
+		if (maxEnvelopeSize <= 0 || maxDepth <= 0 || maxCollectionLength <= 0 || maxAccumulatedBytes <= 0) {
+			throw new IllegalArgumentException("the decoder limits must be positive");
+		}
+		this.maxEnvelopeSize = maxEnvelopeSize;
+		this.maxDepth = maxDepth;
+		this.maxCollectionLength = maxCollectionLength;
+		this.maxAccumulatedBytes = maxAccumulatedBytes;
+	}
+
+	public int getMaxEnvelopeSize() {
+		return maxEnvelopeSize;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getMaxCollectionLength() {
+		return maxCollectionLength;
+	}
+
+	public int getMaxAccumulatedBytes() {
+		return maxAccumulatedBytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "DecoderPolicy [maxEnvelopeSize=" + maxEnvelopeSize + ", maxDepth=" + maxDepth + ", maxCollectionLength="
+				+ maxCollectionLength + ", maxAccumulatedBytes=" + maxAccumulatedBytes + "]";
+	}
+}
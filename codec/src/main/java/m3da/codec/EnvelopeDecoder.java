@@ -35,4 +35,9 @@ public interface EnvelopeDecoder {
 	 * finish decode, if some bytes are remaining undecodable some exception will be thrown
 	 */
 	void finishDecode() throws DecoderException;
+
+	/**
+	 * Drop the accumulated bytes and the partially decoded envelope, so the decoder can be reused for a new stream.
+	 */
+	void reset();
 }
@@ -28,4 +28,14 @@ public interface EnvelopeEncoder {
 	 */
 	ByteBuffer encode(M3daEnvelope message);
 
+	/**
+	 * Encode your M3DA envelope, writing the result to an output in fixed size chunks while encoding.
+	 * 
+	 * @param message
+	 *            the envelope to encode
+	 * @param output
+	 *            receives the encoded chunks, in order. Each chunk is a new buffer owned by the output.
+	 */
+	void encode(M3daEnvelope message, EncoderOutput output);
+
 }
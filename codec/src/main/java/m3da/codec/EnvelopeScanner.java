@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * State-full scanner finding the boundaries of the M3DA envelopes in a byte stream, without decoding them : it only
+ * reads the OPCODEs and the length prefixes, and doesn't allocate anything. Use it for knowing when a complete
+ * envelope was received, then decode this envelope with an {@link EnvelopeDecoder}.
+ */
+public interface EnvelopeScanner {
+
+	/**
+	 * Scan the envelope starting at the position of the buffer. The buffer is not modified.
+	 * <p>
+	 * The scanner remembers how far it went : when more bytes are needed, call it again with the same envelope start
+	 * once more bytes were appended to the buffer. Once a complete envelope is found the scanner is ready for the next
+	 * one.
+	 *
+	 * @param buffer
+	 *            the received bytes, from the start of the envelope
+	 * @return the length of the complete envelope, or 0 if more bytes are needed
+	 * @throws DecoderException
+	 *             if the bytes are not an envelope, or if the envelope is too large
+	 */
+	int scan(ByteBuffer buffer) throws DecoderException;
+
+	/**
+	 * Forget the envelope being scanned, so the scanner can be reused for a new stream.
+	 */
+	void reset();
+}
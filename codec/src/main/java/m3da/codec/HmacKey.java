@@ -0,0 +1,26 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import m3da.codec.dto.HmacType;
+
+/**
+ * The HMAC key of a user, derived once from its credential by {@link M3daCodecService#createHmacKey(HmacType, byte[], byte[])}
+ * and reused for each message signed or checked with this credential. Immutable and thread safe : it should be cached
+ * as long as the credential doesn't change.
+ */
+public interface HmacKey {
+
+	/**
+	 * @return the HMAC algorithm of the key
+	 */
+	HmacType getAlgorithm();
+}
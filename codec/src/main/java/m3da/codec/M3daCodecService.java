@@ -12,13 +12,15 @@ package m3da.codec;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import m3da.codec.dto.CipherAlgorithm;
 import m3da.codec.dto.HmacType;
 
 /**
  * A service for encoding, decoding M3DA messages.
- * 
+ * <p>
+ * The service is thread safe, one instance can be shared by a whole application.
  */
 public interface M3daCodecService {
 
@@ -31,25 +33,69 @@ public interface M3daCodecService {
     public static final String SERVER_NAME = "AIRVANTAGE";
 
     /**
-     * Create a decoder for the M3DA envelope
+     * Create a decoder for the M3DA envelope, for accumulating the bytes of a session
      */
     EnvelopeDecoder createEnvelopeDecoder();
 
     /**
-     * Create an encoder for the M3DA envelope
+     * Get a decoder for the M3DA envelope owned by the calling thread, reset and ready to decode a new stream. Use it for
+     * decoding an envelope already received in memory (e.g. a protected envelope), not for accumulating the bytes of a
+     * session : the same decoder is returned by the next call on this thread.
+     */
+    EnvelopeDecoder borrowEnvelopeDecoder();
+
+    /**
+     * Create a scanner finding the boundaries of the envelopes received by a session, without decoding them. The
+     * envelopes exceeding the {@link #getDecoderPolicy()} limits are rejected.
+     */
+    EnvelopeScanner createEnvelopeScanner();
+
+    /**
+     * @return the limits applied by the decoders and the scanners of this service
+     */
+    DecoderPolicy getDecoderPolicy();
+
+    /**
+     * Get an encoder for the M3DA envelope. The encoder is stateless and thread safe, so the same instance is returned
+     * each time.
      */
     EnvelopeEncoder createEnvelopeEncoder();
 
     /**
-     * Create decoder the envelope body
+     * Create decoder the envelope body, for accumulating the bytes of a session
      */
     BysantDecoder createBodyDecoder();
 
     /**
-     * Create encoder the envelope body
+     * Get a decoder for the envelope body owned by the calling thread, reset and ready to decode a new stream (see
+     * {@link #borrowEnvelopeDecoder()}).
+     */
+    BysantDecoder borrowBodyDecoder();
+
+    /**
+     * Get an encoder the envelope body. The encoder is stateless and thread safe, so the same instance is returned each
+     * time.
      */
     BysantEncoder createBodyEncoder();
 
+    /**
+     * Get an encoder the envelope body producing the smallest payloads : the lists of integers are encoded as deltas or
+     * quasi periodic vectors when it's smaller, and the doubles as 32 bits floats when it's exact. Stateless and thread
+     * safe, the same instance is returned each time.
+     */
+    BysantEncoder createCompactBodyEncoder();
+
+    /**
+     * Create a pull parser for walking an envelope body without building the decoded objects
+     */
+    BysantReader createBodyReader();
+
+    /**
+     * Create a streaming transcoder between the bysant bodies and JSON, applying the decoder limits. Stateless and
+     * thread safe.
+     */
+    BysantJsonTranscoder createJsonTranscoder();
+
     /**
      * Compute the HMAC of a body using the M3DA RFC-2104 like algorithm
      * 
@@ -63,6 +109,43 @@ public interface M3daCodecService {
     byte[] hmac(final HmacType algorithm, final byte[] username, final byte[] password, final byte[] salt,
             final byte[] messageBody);
 
+    /**
+     * Compute the HMAC of a body using the M3DA RFC-2104 like algorithm, without copying the body.
+     * 
+     * @param algorithm the checksum algorithm to use (sha1,md5) for the HMAC
+     * @param username the username
+     * @param password the password
+     * @param salt the salt (e.g. nonce)
+     * @param messageBody the body to checksum, not consumed
+     * @return the HMAC checksum value
+     */
+    byte[] hmac(final HmacType algorithm, final byte[] username, final byte[] password, final byte[] salt,
+            final ByteBuffer messageBody);
+
+    /**
+     * Derive the HMAC key K = HMD5(username | HMD5(password)) of a user, and prepare the HMAC digests with it. The key
+     * should be cached while the credential doesn't change : the HMAC computed by
+     * {@link #hmac(HmacKey, byte[], ByteBuffer)} only hashes the message.
+     * 
+     * @param algorithm the checksum algorithm to use (sha1,md5) for the HMAC
+     * @param username the username
+     * @param password the password
+     * @return the key, immutable and thread safe
+     */
+    HmacKey createHmacKey(final HmacType algorithm, final byte[] username, final byte[] password);
+
+    /**
+     * Compute the HMAC of a body using the M3DA RFC-2104 like algorithm, with a key created by
+     * {@link #createHmacKey(HmacType, byte[], byte[])}. Same result as
+     * {@link #hmac(HmacType, byte[], byte[], byte[], ByteBuffer)} with the credential of the key.
+     * 
+     * @param key the HMAC key of the user
+     * @param salt the salt (e.g. nonce)
+     * @param messageBody the body to checksum, not consumed
+     * @return the HMAC checksum value
+     */
+    byte[] hmac(final HmacKey key, final byte[] salt, final ByteBuffer messageBody);
+
     /**
      * Perform encryption or decryption on the data from a stream to another one.
      * <p>
@@ -78,4 +161,47 @@ public interface M3daCodecService {
     void cipher(final CipherMode cipherMode, final CipherAlgorithm algorithm, final byte[] password,
             final byte[] nonce, final InputStream content, final OutputStream result);
 
+    /**
+     * Perform encryption or decryption on the data of a buffer.
+     * <p>
+     * The given password and nonce are used to compute the cipher key.
+     * 
+     * @param cipherMode encryption or decryption
+     * @param algorithm the cryptographic algorithm to be used
+     * @param password the password
+     * @param nonce the nonce to use
+     * @param content the content to be ciphered/deciphered, not consumed
+     * @return the resulting content
+     */
+    ByteBuffer cipher(final CipherMode cipherMode, final CipherAlgorithm algorithm, final byte[] password,
+            final byte[] nonce, final ByteBuffer content);
+
+    /**
+     * Derive the cipher key of a password and a nonce, and the initial vector (the MD5 of the nonce). The key should be
+     * cached while the password and the nonce don't change : the ciphering by
+     * {@link #cipher(CipherMode, CipherKey, ByteBuffer, boolean)} doesn't compute any hash.
+     * 
+     * @param algorithm the cryptographic algorithm to be used
+     * @param password the password
+     * @param nonce the nonce to use
+     * @return the key, immutable and thread safe
+     */
+    CipherKey createCipherKey(final CipherAlgorithm algorithm, final byte[] password, final byte[] nonce);
+
+    /**
+     * Perform encryption or decryption on the data of a buffer, with a key created by
+     * {@link #createCipherKey(CipherAlgorithm, byte[], byte[])}.
+     * <p>
+     * With <code>inPlace</code>, the result is written over the content when the buffer is writable and the result is
+     * not longer than the content (decryption, or encryption without padding like AES-CTR) : the content is lost, even
+     * if the ciphering fails. Else the result is written in a new buffer.
+     * 
+     * @param cipherMode encryption or decryption
+     * @param key the cipher key
+     * @param content the content to be ciphered/deciphered, not consumed
+     * @param inPlace <code>true</code> if the content may be overwritten by the result
+     * @return the resulting content, a view of the content buffer if ciphered in place
+     */
+    ByteBuffer cipher(final CipherMode cipherMode, final CipherKey key, final ByteBuffer content, final boolean inPlace);
+
 }
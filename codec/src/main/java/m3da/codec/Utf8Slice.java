@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An immutable UTF-8 string, as received in a M3DA stream. The bytes are compared directly, the hash is cached, and the
+ * bytes are decoded to a {@link String} at most once, when {@link #toString()} is first called.
+ * <p>
+ * Thread safe : the cached values are only computed from the immutable bytes.
+ */
+public final class Utf8Slice {
+
+	private final byte[] bytes;
+
+	/** cached hash, 0 if not computed */
+	private int hash;
+
+	/** cached decoded string */
+	private String string;
+
+	private Utf8Slice(final byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Create an UTF-8 string from the remaining bytes of a buffer. The content is not copied when the buffer owns its
+	 * whole backing array (see {@link ByteBuffers#toBytes(ByteBuffer)}) : the buffer must not be modified afterwards.
+	 *
+	 * @param buffer the UTF-8 bytes, not consumed, can be <code>null</code>
+	 * @return the UTF-8 string, or <code>null</code> for a <code>null</code> buffer
+	 */
+	public static Utf8Slice of(final ByteBuffer buffer) {
+		return buffer == null ? null : new Utf8Slice(ByteBuffers.toBytes(buffer));
+	}
+
+	/**
+	 * @param string the string to encode, can be <code>null</code>
+	 * @return the UTF-8 string, or <code>null</code> for a <code>null</code> string
+	 */
+	public static Utf8Slice of(final String string) {
+		if (string == null) {
+			return null;
+		}
+		try {
+			final Utf8Slice slice = new Utf8Slice(string.getBytes("UTF-8"));
+			slice.string = string;
+			return slice;
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the number of bytes
+	 */
+	public int size() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return a read-only view of the bytes
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = Arrays.hashCode(bytes);
+			hash = h;
+		}
+		return h;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Utf8Slice)) {
+			return false;
+		}
+		final Utf8Slice other = (Utf8Slice) obj;
+		if (hash != 0 && other.hash != 0 && hash != other.hash) {
+			return false;
+		}
+		return Arrays.equals(bytes, other.bytes);
+	}
+
+	/**
+	 * The decoded string, decoded on the first call only.
+	 */
+	@Override
+	public String toString() {
+		String s = string;
+		if (s == null) {
+			s = decode(bytes);
+			string = s;
+		}
+		return s;
+	}
+
+	/** decode the bytes, without going through the charset decoder for the ASCII strings */
+	private static String decode(final byte[] bytes) {
+		final char[] chars = new char[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			final byte b = bytes[i];
+			if (b < 0) {
+				// not ASCII
+				return ByteBuffers.toUtf8String(ByteBuffer.wrap(bytes));
+			}
+			chars[i] = (char) b;
+		}
+		return new String(chars);
+	}
+}
@@ -10,25 +10,76 @@
  ******************************************************************************/
 package m3da.codec.dto;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * The M3DA::DeltasVector allows improving data compression for data that are similar (data are transmitted as deltas instead of absolute values).
  * This object may be used when a vector of values is quasi periodic, meaning they are periodic plus small deltas (due to sampling errors for
  * instance).
+ * <p>
+ * The deltas are stored in a <code>long</code> array, or in a <code>double</code> array if one of them is a floating point number. The
+ * uncompressed values can be computed without boxing with {@link #toLongArray()}, {@link #toDoubleArray()} or {@link #flatIterator()}.
  */
 public class M3daDeltasVector {
 
 	private final Number factor;
 	private final Number start;
-	private final List<Number> deltas;
+
+	/** the deltas, <code>null</code> if they are floating point numbers */
+	private final long[] longDeltas;
+
+	/** the floating point deltas, <code>null</code> if they are integers */
+	private final double[] doubleDeltas;
 
 	public M3daDeltasVector(Number factor, Number start, List<Number> deltas) {
 		super();
 		this.factor = factor;
 		this.start = start;
-		this.deltas = deltas;
+		if (deltas != null && PrimitiveNumbers.hasFloating(deltas)) {
+			this.longDeltas = null;
+			this.doubleDeltas = PrimitiveNumbers.toDoubles(deltas);
+		} else {
+			this.longDeltas = deltas == null ? new long[0] : PrimitiveNumbers.toLongs(deltas);
+			this.doubleDeltas = null;
+		}
+	}
+
+	/**
+	 * Create a vector of integer deltas.
+	 * 
+	 * @param factor
+	 *            the factor applied to the start value and to the deltas
+	 * @param start
+	 *            the start value
+	 * @param deltas
+	 *            the deltas between each value, the array is not copied
+	 */
+	public M3daDeltasVector(Number factor, Number start, long[] deltas) {
+		super();
+		this.factor = factor;
+		this.start = start;
+		this.longDeltas = deltas;
+		this.doubleDeltas = null;
+	}
+
+	/**
+	 * Create a vector of floating point deltas.
+	 * 
+	 * @param factor
+	 *            the factor applied to the start value and to the deltas
+	 * @param start
+	 *            the start value
+	 * @param deltas
+	 *            the deltas between each value, the array is not copied
+	 */
+	public M3daDeltasVector(Number factor, Number start, double[] deltas) {
+		super();
+		this.factor = factor;
+		this.start = start;
+		this.longDeltas = null;
+		this.doubleDeltas = deltas;
 	}
 
 	public Number getFactor() {
@@ -39,8 +90,60 @@ public class M3daDeltasVector {
 		return start;
 	}
 
+	/**
+	 * @return a read-only view of the deltas, as Long or Double
+	 */
 	public List<Number> getDeltas() {
-		return deltas;
+		if (doubleDeltas != null) {
+			return new PrimitiveNumbers.DoubleList(doubleDeltas);
+		} else {
+			return new PrimitiveNumbers.LongList(longDeltas);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the uncompressed values are floating point numbers
+	 */
+	public boolean isFloating() {
+		return doubleDeltas != null || PrimitiveNumbers.isFloating(start);
+	}
+
+	/**
+	 * @return the number of uncompressed values
+	 */
+	public int flatSize() {
+		return (doubleDeltas != null ? doubleDeltas.length : longDeltas.length) + 1;
+	}
+
+	/**
+	 * @return the uncompressed values, truncated if they are floating point numbers
+	 */
+	public long[] toLongArray() {
+		final long[] res = new long[flatSize()];
+		final NumberIterator it = flatIterator();
+		for (int i = 0; i < res.length; i++) {
+			res[i] = it.nextLong();
+		}
+		return res;
+	}
+
+	/**
+	 * @return the uncompressed values
+	 */
+	public double[] toDoubleArray() {
+		final double[] res = new double[flatSize()];
+		final NumberIterator it = flatIterator();
+		for (int i = 0; i < res.length; i++) {
+			res[i] = it.nextDouble();
+		}
+		return res;
+	}
+
+	/**
+	 * @return an iterator computing the uncompressed values one by one
+	 */
+	public NumberIterator flatIterator() {
+		return new FlatIterator();
 	}
 
 	/**
@@ -50,7 +153,8 @@ public class M3daDeltasVector {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((deltas == null) ? 0 : deltas.hashCode());
+		result = prime * result + Arrays.hashCode(longDeltas);
+		result = prime * result + Arrays.hashCode(doubleDeltas);
 		result = prime * result + ((factor == null) ? 0 : factor.hashCode());
 		result = prime * result + ((start == null) ? 0 : start.hashCode());
 		return result;
@@ -60,42 +164,11 @@ public class M3daDeltasVector {
 	 * @return the list of value (Long or Double) for this delta vector
 	 */
 	public List<? extends Number> asFlatList() {
-
-		boolean haveDouble = false;
-
-		if ((start instanceof Float) || (start instanceof Double)) {
-			haveDouble = true;
+		if (isFloating()) {
+			return new PrimitiveNumbers.DoubleList(toDoubleArray());
 		} else {
-			for (Number n : deltas) {
-				if ((n instanceof Float) || (n instanceof Double)) {
-					haveDouble = true;
-					break;
-				}
-			}
+			return new PrimitiveNumbers.LongList(toLongArray());
 		}
-
-		if (haveDouble) {
-			List<Double> res = new ArrayList<Double>(deltas.size() + 1);
-			res.add(factor.doubleValue() * start.doubleValue());
-			double last = res.get(0);
-			for (int i = 0; i < deltas.size(); i++) {
-				double value = deltas.get(i).doubleValue() * factor.doubleValue() + last;
-				res.add(value);
-				last = value;
-			}
-			return res;
-		} else {
-			List<Long> res = new ArrayList<Long>(deltas.size() + 1);
-			res.add(factor.longValue() * start.longValue());
-			long last = res.get(0);
-			for (int i = 0; i < deltas.size(); i++) {
-				long value = deltas.get(i).longValue() * factor.longValue() + last;
-				res.add(value);
-				last = value;
-			}
-			return res;
-		}
-
 	}
 
 	/**
@@ -113,11 +186,10 @@ public class M3daDeltasVector {
 			return false;
 		}
 		M3daDeltasVector other = (M3daDeltasVector) obj;
-		if (deltas == null) {
-			if (other.deltas != null) {
-				return false;
-			}
-		} else if (!deltas.equals(other.deltas)) {
+		if (!Arrays.equals(longDeltas, other.longDeltas)) {
+			return false;
+		}
+		if (!Arrays.equals(doubleDeltas, other.doubleDeltas)) {
 			return false;
 		}
 		if (factor == null) {
@@ -142,7 +214,59 @@ public class M3daDeltasVector {
 	 */
 	@Override
 	public String toString() {
-		return "AwtDa3DeltasVector [factor=" + factor + ", start=" + start + ", deltas=" + deltas + "]";
+		return "AwtDa3DeltasVector [factor=" + factor + ", start=" + start + ", deltas="
+				+ (doubleDeltas != null ? Arrays.toString(doubleDeltas) : Arrays.toString(longDeltas)) + "]";
 	}
 
+	/**
+	 * Compute the values using long arithmetic, or double arithmetic for floating point vectors.
+	 */
+	private final class FlatIterator implements NumberIterator {
+		private final boolean floating = isFloating();
+		private final int size = flatSize();
+		private int index = 0;
+		private long lastLong;
+		private double lastDouble;
+
+		/** {@inheritDoc} */
+		@Override
+		public boolean hasNext() {
+			return index < size;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public long nextLong() {
+			next();
+			return floating ? (long) lastDouble : lastLong;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double nextDouble() {
+			next();
+			return floating ? lastDouble : lastLong;
+		}
+
+		private void next() {
+			if (index >= size) {
+				throw new NoSuchElementException();
+			}
+			if (floating) {
+				if (index == 0) {
+					lastDouble = factor.doubleValue() * start.doubleValue();
+				} else {
+					final double delta = doubleDeltas != null ? doubleDeltas[index - 1] : longDeltas[index - 1];
+					lastDouble = delta * factor.doubleValue() + lastDouble;
+				}
+			} else {
+				if (index == 0) {
+					lastLong = factor.longValue() * start.longValue();
+				} else {
+					lastLong = longDeltas[index - 1] * factor.longValue() + lastLong;
+				}
+			}
+			index++;
+		}
+	}
 }
@@ -11,9 +11,9 @@
 package m3da.codec.dto;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Map;
 
+import m3da.codec.ByteBuffers;
 import m3da.codec.Hex;
 
 import org.apache.commons.lang3.StringUtils;
@@ -27,14 +27,26 @@ import com.google.common.base.Charsets;
 public class M3daEnvelope implements M3daPdu {
 
     private Map<Object, Object> header;
-    private byte[] payload;
+    private ByteBuffer payload;
     private Map<Object, Object> footer;
 
+    /** the payload as an array, created only if asked */
+    private byte[] payloadBytes;
+
     public M3daEnvelope() {
 
     }
 
     public M3daEnvelope(final Map<Object, Object> header, final byte[] payload, final Map<Object, Object> footer) {
+        this(header, payload == null ? null : ByteBuffer.wrap(payload), footer);
+        this.payloadBytes = payload;
+    }
+
+    /**
+     * @param payload the payload, between the position and the limit of the buffer. The buffer is not copied : it can
+     *        be a slice of the received bytes.
+     */
+    public M3daEnvelope(final Map<Object, Object> header, final ByteBuffer payload, final Map<Object, Object> footer) {
         super();
         this.header = header;
         this.payload = payload;
@@ -45,8 +57,28 @@ public class M3daEnvelope implements M3daPdu {
         return header;
     }
 
+    /**
+     * The payload as an array, copied from the payload buffer on the first call. Prefer {@link #getPayloadBuffer()}.
+     */
     public byte[] getPayload() {
-        return payload;
+        if (payloadBytes == null && payload != null) {
+            payloadBytes = ByteBuffers.toBytes(payload);
+        }
+        return payloadBytes;
+    }
+
+    /**
+     * @return the payload, without copy : a new view of the payload bytes, which can be consumed by the caller
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return payload == null ? null : payload.duplicate();
+    }
+
+    /**
+     * @return the size of the payload in bytes
+     */
+    public int getPayloadSize() {
+        return payload == null ? 0 : payload.remaining();
     }
 
     public Map<Object, Object> getFooter() {
@@ -62,7 +94,7 @@ public class M3daEnvelope implements M3daPdu {
         builder.append("AwtDa3Envelope [header=");
         mapToStr(header, builder);
         builder.append(", payload=");
-        builder.append(Hex.encodeHexString(payload));
+        builder.append(payload == null ? null : Hex.encodeHexString(getPayload()));
         builder.append(", footer=");
         mapToStr(footer, builder);
         builder.append("]");
@@ -77,7 +109,7 @@ public class M3daEnvelope implements M3daPdu {
 
     private String valuetoStr(final Object value) {
         if (value instanceof ByteBuffer) {
-            byte[] v = ((ByteBuffer) value).array();
+            byte[] v = ByteBuffers.toBytes((ByteBuffer) value);
             String str = new String(v, Charsets.UTF_8);
             if (!StringUtils.isAsciiPrintable(str)) {
                 str = Hex.encodeHexString(v);
@@ -97,7 +129,7 @@ public class M3daEnvelope implements M3daPdu {
         int result = 1;
         result = prime * result + ((footer == null) ? 0 : footer.hashCode());
         result = prime * result + ((header == null) ? 0 : header.hashCode());
-        result = prime * result + Arrays.hashCode(payload);
+        result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
 
@@ -130,7 +162,11 @@ public class M3daEnvelope implements M3daPdu {
         } else if (!header.equals(other.header)) {
             return false;
         }
-        if (!Arrays.equals(payload, other.payload)) {
+        if (payload == null) {
+            if (other.payload != null) {
+                return false;
+            }
+        } else if (!payload.equals(other.payload)) {
             return false;
         }
         return true;
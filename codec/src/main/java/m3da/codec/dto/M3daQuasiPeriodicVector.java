@@ -10,16 +10,25 @@
  ******************************************************************************/
 package m3da.codec.dto;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * The M3DA::QuasiPeriodicVector allows improving data compression for data that are quasi periodic (only shifts from a period are sent).
+ * <p>
+ * The shifts are stored in a <code>long</code> array, or in a <code>double</code> array if one of them is a floating point number. The
+ * uncompressed values can be computed without boxing with {@link #toLongArray()}, {@link #toDoubleArray()} or {@link #flatIterator()}.
  */
 public class M3daQuasiPeriodicVector {
 	private final Number period;
 	private final Number start;
-	private final List<Number> shifts;
+
+	/** the shifts, <code>null</code> if they are floating point numbers */
+	private final long[] longShifts;
+
+	/** the floating point shifts, <code>null</code> if they are integers */
+	private final double[] doubleShifts;
 
 	/**
 	 * Create a Quasi periodic vector.
@@ -35,7 +44,49 @@ public class M3daQuasiPeriodicVector {
 		super();
 		this.period = period;
 		this.start = start;
-		this.shifts = shifts;
+		if (shifts != null && PrimitiveNumbers.hasFloating(shifts)) {
+			this.longShifts = null;
+			this.doubleShifts = PrimitiveNumbers.toDoubles(shifts);
+		} else {
+			this.longShifts = shifts == null ? new long[0] : PrimitiveNumbers.toLongs(shifts);
+			this.doubleShifts = null;
+		}
+	}
+
+	/**
+	 * Create a Quasi periodic vector with integer shifts.
+	 * 
+	 * @param period
+	 *            the period between the elements
+	 * @param start
+	 *            the start values
+	 * @param shifts
+	 *            the shift between the periodic value and the real sample, the array is not copied
+	 */
+	public M3daQuasiPeriodicVector(Number period, Number start, long[] shifts) {
+		super();
+		this.period = period;
+		this.start = start;
+		this.longShifts = shifts;
+		this.doubleShifts = null;
+	}
+
+	/**
+	 * Create a Quasi periodic vector with floating point shifts.
+	 * 
+	 * @param period
+	 *            the period between the elements
+	 * @param start
+	 *            the start values
+	 * @param shifts
+	 *            the shift between the periodic value and the real sample, the array is not copied
+	 */
+	public M3daQuasiPeriodicVector(Number period, Number start, double[] shifts) {
+		super();
+		this.period = period;
+		this.start = start;
+		this.longShifts = null;
+		this.doubleShifts = shifts;
 	}
 
 	public Number getPeriod() {
@@ -46,75 +97,93 @@ public class M3daQuasiPeriodicVector {
 		return start;
 	}
 
+	/**
+	 * @return a read-only view of the shifts, as Long or Double
+	 */
 	public List<Number> getShifts() {
-		return shifts;
+		if (doubleShifts != null) {
+			return new PrimitiveNumbers.DoubleList(doubleShifts);
+		} else {
+			return new PrimitiveNumbers.LongList(longShifts);
+		}
 	}
 
 	/**
-	 * @return the uncompressed list of number of the vector, can be a list of Double or Long depending of the vector content
+	 * @return <code>true</code> if the uncompressed values are floating point numbers
 	 */
-	public List<? extends Number> asFlatList() {
-		boolean haveDouble = false;
+	public boolean isFloating() {
+		return doubleShifts != null || PrimitiveNumbers.isFloating(start);
+	}
 
-		if ((start instanceof Float) || (start instanceof Double)) {
-			haveDouble = true;
-		} else {
-			for (Number n : shifts) {
-				if ((n instanceof Float) || (n instanceof Double)) {
-					haveDouble = true;
-					break;
-				}
-			}
+	/**
+	 * @return the number of uncompressed values
+	 */
+	public int flatSize() {
+		final int nbShifts = shiftCount();
+		long size = 1;
+		for (int i = 0; i < nbShifts / 2; i++) {
+			size += Math.max(0, shift(i * 2)) + 1;
 		}
-		if (haveDouble) {
-			List<Double> res = new ArrayList<Double>();
-			double last = start.doubleValue();
-			res.add(last);
-			for (int i = 0; i < shifts.size() / 2; i++) {
-				long nbRepeat = shifts.get(i * 2).longValue();
-				double shift = shifts.get(i * 2 + 1).doubleValue();
-				for (int j = 0; j < nbRepeat; j++) {
-					double newValue = last + period.doubleValue();
-					res.add(newValue);
-					last = newValue;
-				}
-				double newValue = last + period.doubleValue() + shift;
-				res.add(newValue);
-				last = newValue;
-			}
-			long lastRepeat = shifts.get(shifts.size() - 1).longValue();
-			for (int i = 0; i < lastRepeat; i++) {
-				double newValue = last + period.doubleValue();
-				res.add(newValue);
-				last = newValue;
-			}
-			return res;
+		if (nbShifts > 0) {
+			size += Math.max(0, shift(nbShifts - 1));
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("too many values in the vector : " + size);
+		}
+		return (int) size;
+	}
+
+	/**
+	 * @return the uncompressed values, truncated if they are floating point numbers
+	 */
+	public long[] toLongArray() {
+		final long[] res = new long[flatSize()];
+		final NumberIterator it = flatIterator();
+		for (int i = 0; i < res.length; i++) {
+			res[i] = it.nextLong();
+		}
+		return res;
+	}
+
+	/**
+	 * @return the uncompressed values
+	 */
+	public double[] toDoubleArray() {
+		final double[] res = new double[flatSize()];
+		final NumberIterator it = flatIterator();
+		for (int i = 0; i < res.length; i++) {
+			res[i] = it.nextDouble();
+		}
+		return res;
+	}
+
+	/**
+	 * @return an iterator computing the uncompressed values one by one
+	 */
+	public NumberIterator flatIterator() {
+		return new FlatIterator();
+	}
+
+	/**
+	 * @return the uncompressed list of number of the vector, can be a list of Double or Long depending of the vector content
+	 */
+	public List<? extends Number> asFlatList() {
+		if (isFloating()) {
+			return new PrimitiveNumbers.DoubleList(toDoubleArray());
 		} else {
-			List<Long> res = new ArrayList<Long>();
-			long last = start.longValue();
-			res.add(last);
-			for (int i = 0; i < shifts.size() / 2; i++) {
-				long nbRepeat = shifts.get(i * 2).longValue();
-				long shift = shifts.get(i * 2 + 1).longValue();
-				for (int j = 0; j < nbRepeat; j++) {
-					long newValue = last + period.longValue();
-					res.add(newValue);
-					last = newValue;
-				}
-				long newValue = last + period.longValue() + shift;
-				res.add(newValue);
-				last = newValue;
-			}
-			long lastRepeat = shifts.get(shifts.size() - 1).longValue();
-			for (int i = 0; i < lastRepeat; i++) {
-				long newValue = last + period.longValue();
-				res.add(newValue);
-				last = newValue;
-			}
-			return res;
+			return new PrimitiveNumbers.LongList(toLongArray());
 		}
 	}
 
+	private int shiftCount() {
+		return doubleShifts != null ? doubleShifts.length : longShifts.length;
+	}
+
+	/** a shift, or a repeat count, as an integer */
+	private long shift(final int index) {
+		return doubleShifts != null ? (long) doubleShifts[index] : longShifts[index];
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -126,8 +195,86 @@ public class M3daQuasiPeriodicVector {
 		builder.append(", start=");
 		builder.append(start);
 		builder.append(", shifts=");
-		builder.append(shifts);
+		builder.append(doubleShifts != null ? Arrays.toString(doubleShifts) : Arrays.toString(longShifts));
 		builder.append("]");
 		return builder.toString();
 	}
+
+	/**
+	 * Compute the values using long arithmetic, or double arithmetic for floating point vectors. The shifts are read
+	 * as (repeat count, shift) pairs followed by a last repeat count.
+	 */
+	private final class FlatIterator implements NumberIterator {
+		private final boolean floating = isFloating();
+		private final int nbPairs = shiftCount() / 2;
+		private boolean started = false;
+		/** the current pair */
+		private int pair = 0;
+		/** periods to add before the shift of the current pair (or before the end) */
+		private long repeat;
+		private long lastLong;
+		private double lastDouble;
+
+		/** {@inheritDoc} */
+		@Override
+		public boolean hasNext() {
+			return !started || repeat > 0 || pair < nbPairs;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public long nextLong() {
+			next();
+			return floating ? (long) lastDouble : lastLong;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public double nextDouble() {
+			next();
+			return floating ? lastDouble : lastLong;
+		}
+
+		private void next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (!started) {
+				started = true;
+				lastLong = start.longValue();
+				lastDouble = start.doubleValue();
+				loadRepeat();
+			} else if (repeat > 0) {
+				repeat--;
+				addPeriod(-1);
+			} else {
+				addPeriod(pair * 2 + 1);
+				pair++;
+				loadRepeat();
+			}
+		}
+
+		private void loadRepeat() {
+			if (pair < nbPairs) {
+				repeat = shift(pair * 2);
+			} else {
+				final int nbShifts = shiftCount();
+				repeat = nbShifts > 0 ? shift(nbShifts - 1) : 0;
+			}
+		}
+
+		/** add the period and the shift at the given index (none if negative) to the last value */
+		private void addPeriod(final int shiftIndex) {
+			if (floating) {
+				double shift = 0d;
+				if (shiftIndex >= 0) {
+					shift = doubleShifts != null ? doubleShifts[shiftIndex] : longShifts[shiftIndex];
+				}
+				lastDouble = lastDouble + period.doubleValue() + shift;
+			} else {
+				final long shift = shiftIndex >= 0 ? longShifts[shiftIndex] : 0L;
+				lastLong = lastLong + period.longValue() + shift;
+			}
+		}
+	}
 }
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.dto;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over primitive numbers, used to walk the uncompressed values of a {@link M3daDeltasVector} or a
+ * {@link M3daQuasiPeriodicVector} without boxing them.
+ * <p>
+ * Both {@link #nextLong()} and {@link #nextDouble()} move to the next value : call only one of them for each value.
+ */
+public interface NumberIterator {
+
+	/**
+	 * @return <code>true</code> if there is more values
+	 */
+	boolean hasNext();
+
+	/**
+	 * @return the next value, truncated if the values are floating point numbers
+	 * @throws NoSuchElementException
+	 *             if there is no more values
+	 */
+	long nextLong();
+
+	/**
+	 * @return the next value
+	 * @throws NoSuchElementException
+	 *             if there is no more values
+	 */
+	double nextDouble();
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.dto;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Helpers for the objects storing their numbers in primitive arrays : the vectors, and the lists decoded in the
+ * fixed width contexts.
+ */
+public final class PrimitiveNumbers {
+
+	private PrimitiveNumbers() {
+	}
+
+	/**
+	 * @return a read-only list view of the array, the values are boxed as Integer when accessed
+	 */
+	public static List<Number> asList(final int[] values) {
+		return new IntList(values);
+	}
+
+	/**
+	 * @return a read-only list view of the array, the values are boxed as Long when accessed
+	 */
+	public static List<Number> asList(final long[] values) {
+		return new LongList(values);
+	}
+
+	/**
+	 * @return a read-only list view of the array, the values are boxed as Float when accessed
+	 */
+	public static List<Number> asList(final float[] values) {
+		return new FloatList(values);
+	}
+
+	/**
+	 * @return a read-only list view of the array, the values are boxed as Double when accessed
+	 */
+	public static List<Number> asList(final double[] values) {
+		return new DoubleList(values);
+	}
+
+	/**
+	 * @return <code>true</code> if the number is a floating point number
+	 */
+	static boolean isFloating(final Number n) {
+		return (n instanceof Float) || (n instanceof Double);
+	}
+
+	/**
+	 * @return <code>true</code> if one of the numbers of the list is a floating point number
+	 */
+	static boolean hasFloating(final List<? extends Number> numbers) {
+		for (final Number n : numbers) {
+			if (isFloating(n)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static long[] toLongs(final List<? extends Number> numbers) {
+		final long[] res = new long[numbers.size()];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = numbers.get(i).longValue();
+		}
+		return res;
+	}
+
+	static double[] toDoubles(final List<? extends Number> numbers) {
+		final double[] res = new double[numbers.size()];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = numbers.get(i).doubleValue();
+		}
+		return res;
+	}
+
+	static double[] toDoubles(final long[] numbers) {
+		final double[] res = new double[numbers.length];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = numbers[i];
+		}
+		return res;
+	}
+
+	static long[] toLongs(final double[] numbers) {
+		final long[] res = new long[numbers.length];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = (long) numbers[i];
+		}
+		return res;
+	}
+
+	/**
+	 * A read-only list view of an <code>int</code> array, the values are boxed when accessed.
+	 */
+	static final class IntList extends AbstractList<Number> implements RandomAccess {
+		private final int[] values;
+
+		IntList(final int[] values) {
+			this.values = values;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Number get(final int index) {
+			return Integer.valueOf(values[index]);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public int size() {
+			return values.length;
+		}
+	}
+
+	/**
+	 * A read-only list view of a <code>float</code> array, the values are boxed when accessed.
+	 */
+	static final class FloatList extends AbstractList<Number> implements RandomAccess {
+		private final float[] values;
+
+		FloatList(final float[] values) {
+			this.values = values;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Number get(final int index) {
+			return Float.valueOf(values[index]);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public int size() {
+			return values.length;
+		}
+	}
+
+	/**
+	 * A read-only list view of a <code>long</code> array, the values are boxed when accessed.
+	 */
+	static final class LongList extends AbstractList<Number> implements RandomAccess {
+		private final long[] values;
+
+		LongList(final long[] values) {
+			this.values = values;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Number get(final int index) {
+			return Long.valueOf(values[index]);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public int size() {
+			return values.length;
+		}
+	}
+
+	/**
+	 * A read-only list view of a <code>double</code> array, the values are boxed when accessed.
+	 */
+	static final class DoubleList extends AbstractList<Number> implements RandomAccess {
+		private final double[] values;
+
+		DoubleList(final double[] values) {
+			this.values = values;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Number get(final int index) {
+			return Double.valueOf(values[index]);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public int size() {
+			return values.length;
+		}
+	}
+}
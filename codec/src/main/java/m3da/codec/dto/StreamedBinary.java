@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.dto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A binary value read while it's encoded, for values too large to be put in one array (configuration bundles, log
+ * files...). It's encoded as a bysant chunked string, in chunks of at most 65535 bytes.
+ * <p>
+ * A streamed binary is consumed by the encoding : it can be encoded only once. The underlying stream or channel is
+ * not closed by the encoder.
+ */
+public abstract class StreamedBinary {
+
+	/**
+	 * Read the next bytes of the value.
+	 *
+	 * @param dst
+	 *            the destination array
+	 * @param offset
+	 *            where to write in the destination array
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @return the number of bytes read, or -1 at the end of the value
+	 * @throws IOException
+	 *             if the underlying stream fails
+	 */
+	public abstract int read(byte[] dst, int offset, int length) throws IOException;
+
+	/**
+	 * @return a value read from a stream, up to its end
+	 */
+	public static StreamedBinary of(final InputStream in) {
+		return new StreamedBinary() {
+			@Override
+			public int read(final byte[] dst, final int offset, final int length) throws IOException {
+				return in.read(dst, offset, length);
+			}
+		};
+	}
+
+	/**
+	 * @return a value read from a file channel, from its current position up to the end of the file
+	 */
+	public static StreamedBinary of(final FileChannel channel) {
+		return new StreamedBinary() {
+			@Override
+			public int read(final byte[] dst, final int offset, final int length) throws IOException {
+				return channel.read(ByteBuffer.wrap(dst, offset, length));
+			}
+		};
+	}
+
+	/**
+	 * @return a value made of the remaining bytes of the given buffers, which are not consumed
+	 */
+	public static StreamedBinary of(final ByteBuffer... buffers) {
+		final ByteBuffer[] copies = new ByteBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			copies[i] = buffers[i].duplicate();
+		}
+		return new StreamedBinary() {
+			private int current = 0;
+
+			@Override
+			public int read(final byte[] dst, final int offset, final int length) {
+				while (current < copies.length && !copies[current].hasRemaining()) {
+					current++;
+				}
+				if (current == copies.length) {
+					return -1;
+				}
+				final int count = Math.min(length, copies[current].remaining());
+				copies[current].get(dst, offset, count);
+				return count;
+			}
+		};
+	}
+}
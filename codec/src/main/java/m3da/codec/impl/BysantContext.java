@@ -10,8 +10,12 @@
  ******************************************************************************/
 package m3da.codec.impl;
 
+import m3da.codec.impl.encoding.Double64CtxEncoding;
 import m3da.codec.impl.encoding.Encoding;
+import m3da.codec.impl.encoding.FixedWidthEncoding;
+import m3da.codec.impl.encoding.Float32CtxEncoding;
 import m3da.codec.impl.encoding.GlobalCtxEncoding;
+import m3da.codec.impl.encoding.Int32CtxEncoding;
 import m3da.codec.impl.encoding.ListMapCtxEncoding;
 import m3da.codec.impl.encoding.NumbersCtxEncoding;
 import m3da.codec.impl.encoding.UintStrCtxEncoding;
@@ -20,11 +24,14 @@ import m3da.codec.impl.encoding.UintStrCtxEncoding;
  * The Bysant encoding context. During the bysant stream the encoding can change so the OPECODE rules changes
  */
 public enum BysantContext {
-	GLOBAL(new GlobalCtxEncoding(), 0), UINTS_AND_STRS(new UintStrCtxEncoding(), 1), NUMBERS(new NumbersCtxEncoding(), 2), SIGNED_INTS32(null, 3), FLOATS32(
-			null, 4), DOUBLES64(null, 5), LIST_AND_MAPS(new ListMapCtxEncoding(), 6);
+	GLOBAL(new GlobalCtxEncoding(), 0), UINTS_AND_STRS(new UintStrCtxEncoding(), 1), NUMBERS(new NumbersCtxEncoding(), 2), SIGNED_INTS32(
+			new Int32CtxEncoding(), 3), FLOATS32(new Float32CtxEncoding(), 4), DOUBLES64(new Double64CtxEncoding(), 5), LIST_AND_MAPS(new ListMapCtxEncoding(), 6);
 
 	private final Encoding encoding;
 
+	/** the decoding table, built once */
+	private final OpCodeTable opCodes;
+
 	// context identifier in bysant lingua
 	private final int id;
 
@@ -34,12 +41,27 @@ public enum BysantContext {
 	private BysantContext(Encoding encoding, int id) {
 		this.encoding = encoding;
 		this.id = id;
+		this.opCodes = encoding instanceof FixedWidthEncoding ? null : new OpCodeTable(encoding);
 	}
 
 	public Encoding getEncoding() {
 		return encoding;
 	}
 
+	/**
+	 * @return the context identifier, written after the OPCODE of the typed lists and maps
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the table for decoding the OPCODEs of this context, or <code>null</code> if this context has no OPCODE
+	 */
+	OpCodeTable getOpCodes() {
+		return opCodes;
+	}
+
 	public static BysantContext findById(int id) {
 		for (BysantContext ctx : BysantContext.values()) {
 			if (ctx.id == id) {
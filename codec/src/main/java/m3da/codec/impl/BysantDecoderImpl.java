@@ -4,23 +4,25 @@
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
  * http://www.eclipse.org/legal/epl-v10.html
- * 
+ *
  * Contributors:
  *     Sierra Wireless - initial API and implementation
  ******************************************************************************/
 package m3da.codec.impl;
 
-import java.io.UnsupportedEncodingException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import m3da.codec.BysantDecoder;
+import m3da.codec.BysantReader.Token;
+import m3da.codec.ChunkedStringSink;
 import m3da.codec.DecoderException;
+import m3da.codec.DecoderPolicy;
 import m3da.codec.DecoderOutput;
 import m3da.codec.Hex;
 import m3da.codec.dto.M3daDeltasVector;
@@ -29,17 +31,7 @@ import m3da.codec.dto.M3daMessage;
 import m3da.codec.dto.M3daPdu;
 import m3da.codec.dto.M3daQuasiPeriodicVector;
 import m3da.codec.dto.M3daResponse;
-import m3da.codec.impl.encoding.BooleanEncoding;
-import m3da.codec.impl.encoding.Encoding;
-import m3da.codec.impl.encoding.GlobalCtxEncoding;
-import m3da.codec.impl.encoding.ListEncoding;
-import m3da.codec.impl.encoding.M3daEncoding;
-import m3da.codec.impl.encoding.MapEncoding;
-import m3da.codec.impl.encoding.NumberEncoding;
-import m3da.codec.impl.encoding.NumbersCtxEncoding;
-import m3da.codec.impl.encoding.StringEncoding;
-import m3da.codec.impl.encoding.UintEncoding;
-import m3da.codec.impl.encoding.UintStrCtxEncoding;
+import m3da.codec.dto.PrimitiveNumbers;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,24 +39,125 @@ import org.slf4j.LoggerFactory;
 /**
  * A Bysant byte stream decoder. <br>
  * WARNING : NOT THREAD SAFE.<br>
- * Will decode a stream of byte and output decoded object to the given callback. Remaining undecoded bytes will be
- * accumulated. Call {@link #finishDecode()} once the
+ * Will decode a stream of byte and output decoded object to the given callback. The decoder builds the objects from
+ * the tokens of a {@link BysantReaderImpl}, which keeps its parsing state between the calls : when an object is split
+ * across several buffers, each received byte is decoded only once and the received buffers are never concatenated.
+ * Call {@link #finishDecode()} once the stream is complete.
+ * <p>
+ * By default the decoded strings and binaries are heap buffers owning their content. When created with
+ * <code>sliceStrings</code> the decoder returns read-only slices of the input buffers instead, avoiding any copy. The
+ * slices are views of the buffers given to {@link #decodeAndAccumulate(ByteBuffer, DecoderOutput)} : the caller must
+ * not modify or reuse an input buffer until the {@link DecoderOutput} callback receiving the last object decoded from
+ * it has returned, and the callback must copy the strings it wants to keep after returning. Only the strings split
+ * between two input buffers (and the chunked strings made of several chunks) are copied.
+ * <p>
+ * The map keys and the message paths are decoded through a {@link SymbolTable} : the keys received in every message are
+ * decoded once, and share the same String instance.
+ * <p>
+ * The maps of up to {@link #DEFAULT_COMPACT_MAP_MAX_SIZE} entries (see {@link #setCompactMapMaxSize(int)}) are decoded
+ * as immutable maps backed by arrays, the larger ones as {@link HashMap}s.
  */
 public class BysantDecoderImpl implements BysantDecoder {
 
-    private static final long FOUR_BYTES_MASK = 0xFFFFFFFFL;
-
-    private static final int TWO_BYTES_MASK = 0xFFFF;
-
-    private static final int ONE_BYTE_MASK = 0xFF;
-
     private static final Logger LOG = LoggerFactory.getLogger(BysantDecoderImpl.class);
 
     /** the null value opecode */
     public static final short NULL = (short) 0x00;
 
-    /** buffer for accumulating undecoded remaining bytes */
-    private ByteBuffer remainingBuffer = null;
+    /** default maximum number of entries of the maps decoded as compact maps */
+    public static final int DEFAULT_COMPACT_MAP_MAX_SIZE = 8;
+
+    /** return slices of the input buffers instead of copying the strings */
+    private final boolean sliceStrings;
+
+    /** the already decoded map keys and message paths, <code>null</code> if disabled */
+    private final SymbolTable symbols;
+
+    /** the tokenizer */
+    private final BysantReaderImpl reader;
+
+    /** stack of the objects currently built, the builders are reused between objects */
+    private Builder[] stack = new Builder[8];
+
+    /** number of objects currently built */
+    private int depth = 0;
+
+    /** the maps up to this number of entries are decoded as compact immutable maps */
+    private int compactMapMaxSize = DEFAULT_COMPACT_MAP_MAX_SIZE;
+
+    /**
+     * Create a decoder copying the decoded strings and binaries.
+     */
+    public BysantDecoderImpl() {
+        this(false);
+    }
+
+    /**
+     * Create a decoder.
+     *
+     * @param sliceStrings if <code>true</code> the decoded strings and binaries are read-only slices of the input
+     *        buffers, valid until the {@link DecoderOutput} callback returns.
+     */
+    public BysantDecoderImpl(final boolean sliceStrings) {
+        this(sliceStrings, new SymbolTable());
+    }
+
+    /**
+     * Create a decoder.
+     *
+     * @param sliceStrings if <code>true</code> the decoded strings and binaries are read-only slices of the input
+     *        buffers, valid until the {@link DecoderOutput} callback returns.
+     * @param symbols the table used for decoding the map keys and the message paths, <code>null</code> for decoding
+     *        each of them in a new String
+     */
+    public BysantDecoderImpl(final boolean sliceStrings, final SymbolTable symbols) {
+        this(sliceStrings, symbols, DecoderPolicy.DEFAULT);
+    }
+
+    /**
+     * Create a decoder.
+     *
+     * @param sliceStrings if <code>true</code> the decoded strings and binaries are read-only slices of the input
+     *        buffers, valid until the {@link DecoderOutput} callback returns.
+     * @param symbols the table used for decoding the map keys and the message paths, <code>null</code> for decoding
+     *        each of them in a new String
+     * @param policy the limits of the decoded stream, a {@link DecoderException} is thrown when one is exceeded
+     */
+    public BysantDecoderImpl(final boolean sliceStrings, final SymbolTable symbols, final DecoderPolicy policy) {
+        this.sliceStrings = sliceStrings;
+        this.symbols = symbols;
+        this.reader = new BysantReaderImpl(BysantContext.GLOBAL, sliceStrings, policy);
+    }
+
+    /**
+     * Write the content of the chunked strings to a sink while it's received, instead of accumulating it. The value
+     * returned by {@link ChunkedStringSink#end()} is decoded in place of the string.
+     *
+     * @param sink the sink, <code>null</code> for accumulating the chunked strings
+     */
+    public void setChunkedStringSink(final ChunkedStringSink sink) {
+        reader.setChunkedStringSink(sink);
+    }
+
+    /**
+     * Decode the small maps as immutable maps backed by arrays of keys and values, instead of {@link HashMap}s. The
+     * larger maps are decoded as {@link HashMap}s.
+     *
+     * @param maxSize the maximum number of entries of a compact map, 0 for decoding all the maps as {@link HashMap}s
+     */
+    public void setCompactMapMaxSize(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("invalid compact map size : " + maxSize);
+        }
+        this.compactMapMaxSize = maxSize;
+    }
+
+    /**
+     * @return the table used for decoding the map keys and the message paths, <code>null</code> if disabled
+     */
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
 
     /**
      * {@inheritDoc}
@@ -76,12 +169,12 @@ public class BysantDecoderImpl implements BysantDecoder {
     }
 
     /**
-     * Decode some buffer and output the decoded object in a {@link DecoderOutput}. If some bytes are remaining
-     * undecoded, we accumulate them and decode them during the next call to decode.
-     * 
+     * Decode some buffer and output the decoded object in a {@link DecoderOutput}. If the last object is not complete,
+     * the decoding state is kept and the decoding will continue during the next call to decode.
+     *
      * @param buffer the input buffer to consume for decoding
      * @param output the output callback , called each time an object is successfully decoded
-     * @param context the context to be used for starting decoding this stream
+     * @param context the context to be used for decoding the top level objects of this stream
      * @throws DecoderException
      */
     @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -94,52 +187,72 @@ public class BysantDecoderImpl implements BysantDecoder {
         if (buffer.remaining() <= 0) {
             throw new IllegalArgumentException("buffer need at least one byte remaining");
         }
-
-        // decode in a loop until we reach a buffer exception
-
-        if (remainingBuffer == null) {
-            remainingBuffer = ByteBuffer.allocate(buffer.capacity());
-            remainingBuffer.put(buffer).flip();
-        } else {
-            // concatenate the remaining part of the buffers in a new one
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("some bytes remaining : {}", dumpBuffer(remainingBuffer));
-            }
-            final int size = remainingBuffer.remaining() + buffer.remaining();
-            final ByteBuffer newRemaining = ByteBuffer.allocate(size);
-            newRemaining.put(remainingBuffer).put(buffer).flip();
-            remainingBuffer = newRemaining;
-        }
-        LOG.trace("buffer position : {}, remaining {}", remainingBuffer.position(), remainingBuffer.remaining());
-
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("buffer concatenated with remaining : {}", dumpBuffer(remainingBuffer));
-        }
-
-        // we decode until all bytes are consumed (or if we reach an underflow)
-        do {
-            final int position = remainingBuffer.position();
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("save current position : {} in buffer {}", position, dumpBuffer(remainingBuffer));
-            }
-
-            try {
-                final Object pdu = decodeOne(context.getEncoding(), remainingBuffer);
-                output.decoded(pdu);
-            } catch (final BufferUnderflowException ex) {
-                LOG.trace("buffer underflow ! we need more bytes !");
-                // we need to accumulate more bytes !
-                // so we rollback to the previous buffer position
-                remainingBuffer.position(position);
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("rewind buffer {}", dumpBuffer(remainingBuffer));
-                    LOG.trace("we keep {} bytes", remainingBuffer.remaining());
+        reader.setRootContext(context);
+        reader.setInput(buffer);
+        try {
+            for (;;) {
+                final Object decoded;
+                final Token token = reader.nextToken();
+                switch (token) {
+                case NEED_MORE_INPUT:
+                    LOG.trace("buffer consumed, {} objects opened", depth);
+                    return;
+                case NULL:
+                    decoded = null;
+                    break;
+                case BOOLEAN:
+                    decoded = Boolean.valueOf(reader.readBoolean());
+                    break;
+                case INTEGER:
+                case FLOAT:
+                    if (depth > 0 && stack[depth - 1].primitive != Builder.BOXED) {
+                        // deltas or shifts of a vector, or fixed width list : no boxing
+                        stack[depth - 1].addNumber(token, reader);
+                        continue;
+                    }
+                    decoded = reader.readNumber();
+                    break;
+                case STRING:
+                    decoded = reader.isStreamedString() ? reader.readStreamedString() : reader.stringValue();
+                    break;
+                case START_LIST:
+                    if (depth > 0 && stack[depth - 1].expectsNumbers()) {
+                        push().startNumbers(reader.enterList());
+                    } else if (reader.containerContext().getOpCodes() == null) {
+                        push().startFixedWidth(reader.enterList(), reader.containerContext());
+                    } else {
+                        push().startList(reader.enterList());
+                    }
+                    continue;
+                case START_MAP:
+                    push().startMap(reader.enterMap(), compactMapMaxSize);
+                    continue;
+                case START_ENVELOPE:
+                case START_MESSAGE:
+                case START_RESPONSE:
+                case START_DELTAS_VECTOR:
+                case START_QUASI_PERIODIC_VECTOR:
+                    push().startObject(token);
+                    continue;
+                case END_LIST:
+                case END_MAP:
+                case END_OBJECT:
+                    depth--;
+                    decoded = stack[depth].build();
+                    LOG.trace("container decoded : {}", decoded);
+                    break;
+                default:
+                    throw new IllegalStateException("unexpected token : " + token);
+                }
+                if (depth == 0) {
+                    output.decoded(sliceStrings ? Builder.readOnly(decoded) : decoded);
+                } else {
+                    stack[depth - 1].add(decoded);
                 }
-                // and we escape
-                break;
             }
-
-        } while (remainingBuffer.hasRemaining());
+        } finally {
+            reader.setInput(null);
+        }
     }
 
     /**
@@ -147,540 +260,487 @@ public class BysantDecoderImpl implements BysantDecoder {
      */
     @Override
     public void finishDecode() throws DecoderException {
-        if (remainingBuffer.hasRemaining()) {
-            throw new DecoderException("trailling bytes in the bysant accumulator : uncomplete transmition ?");
-        }
+        reader.finish();
     }
 
     /**
-     * Decode one object from the buffer
-     * 
-     * @return the decoded object
+     * {@inheritDoc}
      */
-    private Object decodeOne(final Encoding encoding, final ByteBuffer buffer) throws DecoderException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("decodeOne( encoding = {}, buffer = {}", encoding, dumpBuffer(buffer));
+    @Override
+    public void reset() {
+        reader.reset();
+        for (int i = 0; i < depth; i++) {
+            stack[i].release();
         }
-        if (buffer.remaining() == 0) {
-            throw new BufferUnderflowException();
+        depth = 0;
+    }
+
+    /** start building a new object, reusing a previously allocated builder if possible */
+    private Builder push() {
+        if (depth == stack.length) {
+            final Builder[] newStack = new Builder[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = newStack;
+        }
+        Builder builder = stack[depth];
+        if (builder == null) {
+            builder = new Builder(sliceStrings, symbols);
+            stack[depth] = builder;
         }
-        final int opcode = buffer.get(buffer.position()) & ONE_BYTE_MASK;
-        LOG.trace("OPCODE : 0x{}", Integer.toHexString(opcode));
+        depth++;
+        return builder;
+    }
+
+    /**
+     * Builds a list, a map or a M3DA object from the decoded values.
+     */
+    private static final class Builder {
+
+        /**
+         * the containers are pre-sized up to this number of elements : a size read from the stream can't make us
+         * allocate more before the elements are actually received
+         */
+        private static final int MAX_PRESIZE = 1024;
+
+        /** the object built, identified by its start token */
+        private Token type;
+
+        private List<Object> list;
+
+        /** for maps : the decoded map, <code>null</code> while the entries fit in a compact map */
+        private Map<Object, Object> map;
+
+        /** for compact maps : the decoded keys and values, reused between maps */
+        private Object[] mapKeys;
+        private Object[] mapValues;
+
+        /** for compact maps : number of decoded entries */
+        private int entries;
+
+        /** for compact maps : maximum number of entries */
+        private int compactMaxSize;
+
+        /** for maps : is the next value a key */
+        private boolean waitingKey;
+
+        /** for maps : the last decoded key */
+        private Object key;
+
+        /** for M3DA objects : the decoded fields */
+        private final Object[] fields = new Object[3];
+
+        /** for M3DA objects : index of the next field */
+        private int field;
+
+        // how the numbers of a list are stored
+        /** boxed in a list */
+        static final int BOXED = 0;
+        /** the deltas or shifts of a vector, in {@link #longs} or {@link #doubles} */
+        static final int VECTOR = 1;
+        /** SIGNED_INTS32 list, in {@link #ints} */
+        static final int INT_ARRAY = 2;
+        /** FLOATS32 list, in {@link #floats} */
+        static final int FLOAT_ARRAY = 3;
+        /** DOUBLES64 list, in {@link #doubles} */
+        static final int DOUBLE_ARRAY = 4;
+
+        /** for lists : how the numbers are stored */
+        private int primitive;
+
+        /** for vectors : the integer values, until a floating point number is decoded */
+        private long[] longs;
 
-        if (opcode == NULL) {
-            // consume the OPCODE
-            buffer.get();
-            return null;
+        /** for vectors : the values, once a floating point number is decoded. For DOUBLES64 lists : the values */
+        private double[] doubles;
+
+        /** for SIGNED_INTS32 lists : the values */
+        private int[] ints;
+
+        /** for FLOATS32 lists : the values */
+        private float[] floats;
+
+        /** for primitive numbers : number of decoded values */
+        private int count;
+
+        /** are the decoded strings slices of the input buffers */
+        private final boolean sliceStrings;
+
+        /** the already decoded map keys and message paths, can be <code>null</code> */
+        private final SymbolTable symbols;
+
+        Builder(final boolean sliceStrings, final SymbolTable symbols) {
+            this.sliceStrings = sliceStrings;
+            this.symbols = symbols;
         }
 
-        if (encoding instanceof StringEncoding) {
-            final StringEncoding strEnc = (StringEncoding) encoding;
-            // string opcode ?
-            if (strEnc.tinyStrOpeCode() <= opcode && opcode <= strEnc.chunkedStrOpeCode()) {
-                // decode a string !
-                return decodeStringAsBytes(strEnc, buffer);
+        void startList(final int size) {
+            type = Token.START_LIST;
+            primitive = BOXED;
+            if (size == 0) {
+                list = Collections.emptyList();
+            } else {
+                list = size == -1 ? new ArrayList<Object>() : new ArrayList<Object>(Math.min(size, MAX_PRESIZE));
             }
         }
-        if (encoding instanceof NumberEncoding) {
-            final NumberEncoding numEnc = (NumberEncoding) encoding;
-            // number op code ?
-            if ((numEnc instanceof GlobalCtxEncoding) && numEnc.tinyOpCode() <= opcode
-                    && opcode <= numEnc.float64opCode()) {
-                // decode a number
-                return decodeNumber(numEnc, buffer);
-            } else if ((numEnc instanceof NumbersCtxEncoding)) {
-                // number contain op code only for numbers
-                // decode a number
-                return decodeNumber(numEnc, buffer);
+
+        void startMap(final int size, final int compactMaxSize) {
+            type = Token.START_MAP;
+            primitive = BOXED;
+            waitingKey = true;
+            this.compactMaxSize = compactMaxSize;
+            entries = 0;
+            if (size == 0) {
+                map = Collections.emptyMap();
+            } else if (size > compactMaxSize || compactMaxSize == 0) {
+                map = size == -1 ? new HashMap<Object, Object>()
+                        : new HashMap<Object, Object>(Math.min(size, MAX_PRESIZE));
+            } else {
+                // the size is unknown (null terminated map) or small : start as a compact map
+                map = null;
+                if (mapKeys == null || mapKeys.length < compactMaxSize) {
+                    mapKeys = new Object[compactMaxSize];
+                    mapValues = new Object[compactMaxSize];
+                }
             }
         }
-        if (encoding instanceof UintEncoding) {
-            final UintEncoding uintEncoding = (UintEncoding) encoding;
-            // unsigned int op code ?
-            if (uintEncoding.tinyOpeCode() <= opcode && opcode <= uintEncoding.uint32OpeCode()) {
-                return decodeUint(uintEncoding, buffer);
+
+        /** add an entry to the map being built, the compact map is replaced by a HashMap once it's full */
+        private void putEntry(final Object key, final Object value) {
+            if (map != null) {
+                map.put(key, value);
+                return;
             }
-        }
-        if (encoding instanceof MapEncoding) {
-            final MapEncoding mapEnc = (MapEncoding) encoding;
-            // map op code ?
-            if (mapEnc.emptyMapOpCode() <= opcode && opcode <= mapEnc.nullTerminatedTypedMapOpCode()) {
-                return decodeMap(mapEnc, buffer);
+            for (int i = 0; i < entries; i++) {
+                if (key == null ? mapKeys[i] == null : key.equals(mapKeys[i])) {
+                    mapValues[i] = value;
+                    return;
+                }
             }
-        }
-        if (encoding instanceof ListEncoding) {
-            final ListEncoding listEnc = (ListEncoding) encoding;
-            // list opcode ?
-            if (listEnc.emptyListOpCode() <= opcode && opcode <= listEnc.nullTerminatedTypedListOpCode()) {
-                return decodeList(listEnc, buffer);
+            if (entries < compactMaxSize) {
+                mapKeys[entries] = key;
+                mapValues[entries] = value;
+                entries++;
+                return;
             }
-        }
-        if (encoding instanceof M3daEncoding) {
-            final M3daEncoding awtEnc = (M3daEncoding) encoding;
-            // some AWTDA class opcode ?
-            if (opcode == awtEnc.getDeltaVectorOpCode() || opcode == awtEnc.getEnvelopeOpCode()
-                    || opcode == awtEnc.getMessageOpCode() || opcode == awtEnc.getQuasiPeriodicVectorOpCode()
-                    || opcode == awtEnc.getResponseOpCode()) {
-                return decodeAwt(awtEnc, buffer);
+            map = new HashMap<Object, Object>(entries * 2);
+            for (int i = 0; i < entries; i++) {
+                map.put(mapKeys[i], mapValues[i]);
             }
+            clearEntries();
+            map.put(key, value);
         }
-        if (encoding instanceof BooleanEncoding) {
-            final BooleanEncoding boolEnc = (BooleanEncoding) encoding;
-            // consume the OPCODE
-            buffer.get();
-            if (opcode == boolEnc.getFalseOpCode()) {
-                return Boolean.FALSE;
-            } else if (opcode == boolEnc.getTrueOpCode()) {
-                return Boolean.TRUE;
+
+        /** the decoded map, a compact one if all the entries fit */
+        private Map<Object, Object> buildMap() {
+            if (map != null) {
+                final Map<Object, Object> decodedMap = map;
+                map = null;
+                return decodedMap;
             }
+            final Map<Object, Object> decodedMap = new CompactMap(Arrays.copyOf(mapKeys, entries), Arrays.copyOf(
+                    mapValues, entries));
+            clearEntries();
+            return decodedMap;
         }
-        throw new DecoderException("can't decode, no suitable encoding found for OPECODE : " + opcode);
-    }
 
-    /** copy 'size' byte of a buffer into a new one */
-    private ByteBuffer deepRangeCopy(final ByteBuffer src, final int size) {
-        final ByteBuffer res = ByteBuffer.allocate(size);
-        for (int i = 0; i < size; i++) {
-            res.put(src.get());
+        /** don't retain the entries of the last compact map */
+        private void clearEntries() {
+            for (int i = 0; i < entries; i++) {
+                mapKeys[i] = null;
+                mapValues[i] = null;
+            }
+            entries = 0;
         }
-        res.flip();
-        return res;
-    }
 
-    /** decode a string as an buffer of raw bytes following the bysant spec */
-    private ByteBuffer decodeStringAsBytes(final StringEncoding encoding, final ByteBuffer buffer)
-            throws DecoderException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("decodeStringAsBytes( encoding = {}, buffer = {}", encoding, dumpBuffer(buffer));
+        void startObject(final Token objectType) {
+            type = objectType;
+            primitive = BOXED;
+            field = 0;
         }
-        final int opCode = buffer.get() & ONE_BYTE_MASK;
-        LOG.trace("OPCODE : 0x{}", Integer.toHexString(opCode));
-        if (opCode == NULL) {
-            return null;
-        } else if (encoding.tinyStrOpeCode() <= opCode && opCode < encoding.smallStrOpeCode()) {
-            LOG.trace("tinyString");
-            final int size = opCode - encoding.tinyStrOpeCode();
-            return deepRangeCopy(buffer, size);
-        } else if (encoding.smallStrOpeCode() <= opCode && opCode < encoding.largeStrOpeCode()) {
-            LOG.trace("smallString");
-            final int byte0 = buffer.get() & ONE_BYTE_MASK;
-            final int size = encoding.tinyStrLimit() + 1 + (opCode - encoding.smallStrOpeCode()) * 256 + byte0;
-            return deepRangeCopy(buffer, size);
-        } else if (opCode == encoding.largeStrOpeCode()) {
-            LOG.trace("largeString");
-            final int byte1byte0 = buffer.getShort() & TWO_BYTES_MASK;
-            final int size = encoding.smallStrLimit() + 1 + byte1byte0;
-            return deepRangeCopy(buffer, size);
-        } else if (opCode == encoding.chunkedStrOpeCode()) {
-            LOG.trace("chunkedString");
-            // chunked string : be careful this one can eat babies and all your memory
-            final List<byte[]> chunks = new ArrayList<byte[]>();
-            for (;;) {
-                final int chunkSize = buffer.getShort() & 0XFFFF;
-                LOG.trace("chunk size : {}", chunkSize);
-                if (chunkSize == 0) {
-                    break;
-                }
 
-                final byte[] chunk = new byte[chunkSize];
-                buffer.get(chunk);
-                chunks.add(chunk);
-            }
-            int totalSize = 0;
-            for (final byte[] chunk : chunks) {
-                totalSize += chunk.length;
-            }
-            LOG.trace("total size : {}", totalSize);
-            // concatenate the chunks into a big one
-            final ByteBuffer res = ByteBuffer.allocate(totalSize);
-            for (final byte[] chunk : chunks) {
-                res.put(chunk);
-            }
-            res.flip();
-            return res;
-        } else {
-            throw new DecoderException("this is not a string OPCODE : " + opCode);
+        /** start a list of numbers, decoded in a primitive array */
+        void startNumbers(final int size) {
+            type = Token.START_LIST;
+            primitive = VECTOR;
+            longs = new long[size == -1 ? 8 : Math.min(size, MAX_PRESIZE)];
+            doubles = null;
+            count = 0;
         }
-    }
 
-    /** decode a unsigned integer following the bysant spec */
-    private Number decodeUint(final UintEncoding encoding, final ByteBuffer buffer) throws DecoderException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("decodeUint( encoding = {}, buffer = {} )", encoding, dumpBuffer(buffer));
-        }
-        final int opCode = buffer.get() & ONE_BYTE_MASK;
-        LOG.trace("OPCODE : 0x{}", Integer.toHexString(opCode));
-        if (opCode == NULL) {
-            return null;
-        } else if (encoding.tinyOpeCode() <= opCode && opCode < encoding.smallOpeCode()) {
-            return Integer.valueOf(opCode - encoding.tinyOpeCode());
-        } else if (encoding.smallOpeCode() <= opCode && opCode < encoding.mediumOpeCode()) {
-            final int byte0 = buffer.get() & ONE_BYTE_MASK;
-            final int value = encoding.tinyMax() + 1 + (opCode - encoding.smallOpeCode()) * 256 + byte0;
-            return Integer.valueOf(value);
-        } else if (encoding.mediumOpeCode() <= opCode && opCode < encoding.largeOpeCode()) {
-            final int byte1byte0 = buffer.getShort() & TWO_BYTES_MASK;
-            final int value = encoding.smallMax() + 1 + (opCode - encoding.mediumOpeCode()) * 65536 + byte1byte0;
-            return Integer.valueOf(value);
-        } else if (encoding.largeOpeCode() <= opCode && opCode < encoding.uint32OpeCode()) {
-            final int byte2byte1byte0 = (buffer.getShort() & TWO_BYTES_MASK) << 8 | (buffer.get() & ONE_BYTE_MASK);
-            final int value = encoding.mediumMax() + 1 + (opCode - encoding.largeOpeCode()) * (1 << 24)
-                    + byte2byte1byte0;
-            return Integer.valueOf(value);
-        } else if (opCode == encoding.uint32OpeCode()) {
-            return Long.valueOf(buffer.getInt() & FOUR_BYTES_MASK);
-        } else {
-            throw new DecoderException("this is not a unsigned int OPCODE : " + opCode);
+        /** start a list of a fixed width context, decoded in a primitive array */
+        void startFixedWidth(final int size, final BysantContext context) {
+            type = Token.START_LIST;
+            count = 0;
+            // the fixed width lists can't be null terminated, the arrays grow as the elements are received
+            final int presize = Math.min(size, MAX_PRESIZE);
+            switch (context) {
+            case SIGNED_INTS32:
+                primitive = INT_ARRAY;
+                ints = new int[presize];
+                break;
+            case FLOATS32:
+                primitive = FLOAT_ARRAY;
+                floats = new float[presize];
+                break;
+            case DOUBLES64:
+                primitive = DOUBLE_ARRAY;
+                doubles = new double[presize];
+                break;
+            default:
+                throw new IllegalStateException("not a fixed width context : " + context);
+            }
         }
-    }
 
-    /** decode a number (int,long,float,double) following the bysant spec */
-    private Number decodeNumber(final NumberEncoding encoding, final ByteBuffer buffer) throws DecoderException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("decodeNumber( encoding = {}, buffer = {}", encoding, dumpBuffer(buffer));
+        /** is the next field the list of numbers of a vector */
+        boolean expectsNumbers() {
+            return (type == Token.START_DELTAS_VECTOR || type == Token.START_QUASI_PERIODIC_VECTOR) && field == 2;
         }
-        final int opCode = buffer.get() & ONE_BYTE_MASK;
-        LOG.trace("OPCODE : 0x{}", Integer.toHexString(opCode));
-        if (opCode == NULL) {
-            return null;
-        } else if (encoding.tinyOpCode() <= opCode && opCode < encoding.smallPositiveOpCode()) {
-            LOG.trace("tiny number");
-            return Integer.valueOf(opCode - encoding.tinyOpCode() + encoding.tinyMin());
-        } else if (encoding.smallPositiveOpCode() <= opCode && opCode < encoding.smallNegativeOpCode()) {
-            // positive small
-            LOG.trace("small positive number");
-            final int byte0 = buffer.get() & ONE_BYTE_MASK;
-            return Integer.valueOf(((opCode - encoding.smallPositiveOpCode()) << 8) + byte0 + encoding.tinyMax() + 1);
-        } else if (encoding.smallNegativeOpCode() <= opCode && opCode < encoding.mediumPositiveOpCode()) {
-            // negative small
-            LOG.trace("small negative number");
-            final int byte0 = buffer.get() & ONE_BYTE_MASK;
-            return Integer.valueOf(-1 * (((opCode - encoding.smallNegativeOpCode()) << 8) + byte0) + encoding.tinyMin()
-                    - 1);
-        } else if (encoding.mediumPositiveOpCode() <= opCode && opCode < encoding.mediumNegativeOpCode()) {
-            // positive medium
-            LOG.trace("medium positive number");
-            final int byte1byte0 = buffer.getShort() & TWO_BYTES_MASK;
-            return Integer.valueOf(((opCode - encoding.mediumPositiveOpCode()) << 16) + byte1byte0
-                    + encoding.smallMax() + 1);
-        } else if (encoding.mediumNegativeOpCode() <= opCode && opCode < encoding.largePositiveOpCode()) {
-            // negative medium
-            LOG.trace("medium negative number");
-            final int byte1byte0 = buffer.getShort() & TWO_BYTES_MASK;
-            return Integer.valueOf(-1 * (((opCode - encoding.mediumNegativeOpCode()) << 16) + byte1byte0)
-                    + encoding.smallMin() - 1);
-        } else if (encoding.largePositiveOpCode() <= opCode && opCode < encoding.largeNegativeOpCode()) {
-            // positive large
-            LOG.trace("large positive number");
-            final int byte2byte1byte0 = ((buffer.getShort() & TWO_BYTES_MASK) << 8) + (buffer.get() & ONE_BYTE_MASK);
-            return Integer.valueOf(((opCode - encoding.largePositiveOpCode()) << 24) + byte2byte1byte0
-                    + encoding.mediumMax() + 1);
-        } else if (opCode == encoding.int32OpCode()) {
-            LOG.trace("INT32 number");
-            return buffer.getInt();
-        } else if (opCode == encoding.int64OpCode()) {
-            LOG.trace("INT64 number");
-            return buffer.getLong();
-        } else if (opCode == encoding.float32opCode()) {
-            LOG.trace("FLOAT32 number");
-            return buffer.getFloat();
-        } else if (opCode == encoding.float64opCode()) {
-            LOG.trace("FLOAT64 number");
-            return buffer.getDouble();
-        } else if (((encoding instanceof GlobalCtxEncoding) && encoding.largeNegativeOpCode() <= opCode && opCode < encoding
-                .int32OpCode())
-                || ((encoding instanceof NumbersCtxEncoding) && encoding.largeNegativeOpCode() <= opCode)) {
-            // negative large
-            LOG.trace("large negative number");
-            final int byte2byte1byte0 = ((buffer.getShort() & TWO_BYTES_MASK) << 8) + (buffer.get() & ONE_BYTE_MASK);
-            return Integer.valueOf(-1 * (((opCode - encoding.largeNegativeOpCode()) << 24) + byte2byte1byte0)
-                    + encoding.mediumMin() - 1);
-        } else {
-            throw new DecoderException("this is not a number OPCODE : " + opCode);
-        }
-    }
 
-    /** decode a list following the bysant spec */
-    private List<Object> decodeList(final ListEncoding encoding, final ByteBuffer buffer) throws DecoderException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("decodeList( encoding = {}, buffer = {}", encoding, dumpBuffer(buffer));
-        }
-        // read the OPCODE
-        final int opCode = buffer.get() & ONE_BYTE_MASK;
-        LOG.trace("OPCODE : 0x{}", Integer.toHexString(opCode));
-        if (opCode == NULL) {
-            LOG.trace("decodeList done");
-            return null;
-        } else if (opCode == encoding.emptyListOpCode()) {
-            LOG.trace("decodeList done");
-            return Collections.emptyList();
-        } else if (encoding.tinyUntypedListOpCode() <= opCode && opCode < encoding.largeUntypedListOpCode()) {
-            final int listSize = opCode - encoding.tinyUntypedListOpCode() + 1;
-            LOG.trace("tiny list of {} elements", listSize);
-            final List<Object> list = new ArrayList<Object>(listSize);
-            for (int i = 0; i < listSize; i++) {
-                list.add(decodeOne(BysantContext.GLOBAL.getEncoding(), buffer));
-            }
-            LOG.trace("decodeList done");
-            return list;
-        } else if (opCode == encoding.largeUntypedListOpCode()) {
-            final int listSize = decodeUint((UintEncoding) BysantContext.UINTS_AND_STRS.getEncoding(), buffer)
-                    .intValue() + encoding.tinyListLimit() + 1;
-            LOG.trace("large untyped list of {} elements", listSize);
-            final List<Object> list = new ArrayList<Object>(listSize);
-            for (int i = 0; i < listSize; i++) {
-                list.add(decodeOne(BysantContext.GLOBAL.getEncoding(), buffer));
+        /** add a decoded number to a list of numbers */
+        void addNumber(final Token token, final BysantReaderImpl reader) {
+            switch (primitive) {
+            case INT_ARRAY:
+                if (count == ints.length) {
+                    final int[] grown = new int[Math.max(count * 2, 8)];
+                    System.arraycopy(ints, 0, grown, 0, count);
+                    ints = grown;
+                }
+                ints[count++] = (int) reader.readLong();
+                return;
+            case FLOAT_ARRAY:
+                if (count == floats.length) {
+                    final float[] grown = new float[Math.max(count * 2, 8)];
+                    System.arraycopy(floats, 0, grown, 0, count);
+                    floats = grown;
+                }
+                floats[count++] = (float) reader.readDouble();
+                return;
+            case DOUBLE_ARRAY:
+                if (count == doubles.length) {
+                    final double[] grown = new double[Math.max(count * 2, 8)];
+                    System.arraycopy(doubles, 0, grown, 0, count);
+                    doubles = grown;
+                }
+                doubles[count++] = reader.readDouble();
+                return;
+            default:
+                break;
             }
-            LOG.trace("decodeList done");
-            return list;
-        } else if (opCode == encoding.nullTerminatedUntypedListOpCode()) {
-            LOG.trace("null terminated untyped list");
-            final List<Object> list = new ArrayList<Object>();
-            for (;;) {
-                final Object obj = decodeOne(BysantContext.GLOBAL.getEncoding(), buffer);
-                if (obj == null) {
-                    break;
+            if (doubles == null && token == Token.FLOAT) {
+                // switch to floating point values
+                doubles = new double[longs.length];
+                for (int i = 0; i < count; i++) {
+                    doubles[i] = longs[i];
                 }
-                list.add(obj);
+                longs = null;
             }
-            LOG.trace("decodeList done");
-            return list;
-        } else if (encoding.tinyTypedListOpCode() <= opCode && opCode < encoding.largeTypedListOpCode()) {
-            final int listSize = opCode - encoding.tinyTypedListOpCode() + 1;
-            LOG.trace("typed tiny list of {} elements", listSize);
-            final List<Object> list = new ArrayList<Object>();
-            BysantContext subCtx = getEncodedContext(buffer);
-            for (int i = 0; i < listSize; i++) {
-                list.add(decodeOne(subCtx.getEncoding(), buffer));
+            if (doubles != null) {
+                if (count == doubles.length) {
+                    final double[] grown = new double[Math.max(count * 2, 8)];
+                    System.arraycopy(doubles, 0, grown, 0, count);
+                    doubles = grown;
+                }
+                doubles[count++] = reader.readDouble();
+            } else {
+                if (count == longs.length) {
+                    final long[] grown = new long[Math.max(count * 2, 8)];
+                    System.arraycopy(longs, 0, grown, 0, count);
+                    longs = grown;
+                }
+                longs[count++] = reader.readLong();
             }
-            LOG.trace("decodeList done");
-            return list;
-        } else if (opCode == encoding.largeTypedListOpCode()) {
-            final int listSize = decodeUint((UintEncoding) BysantContext.UINTS_AND_STRS.getEncoding(), buffer)
-                    .intValue() + encoding.tinyListLimit() + 1;
-            LOG.trace("typed large list of {} elements", listSize);
-            final List<Object> list = new ArrayList<Object>();
-            BysantContext subCtx = getEncodedContext(buffer);
-            for (int i = 0; i < listSize; i++) {
-                list.add(decodeOne(subCtx.getEncoding(), buffer));
+        }
+
+        /** add a decoded value to the object */
+        void add(final Object value) throws DecoderException {
+            if (primitive != BOXED) {
+                throw new DecoderException("vectors should contain only Number, not "
+                        + (value == null ? null : value.getClass().getCanonicalName()));
             }
-            LOG.trace("decodeList done");
-            return list;
-        } else if (opCode == encoding.nullTerminatedTypedListOpCode()) {
-            LOG.trace("null terminated typed list");
-            final List<Object> list = new ArrayList<Object>();
-            BysantContext subCtx = getEncodedContext(buffer);
-            for (;;) {
-                final Object obj = decodeOne(subCtx.getEncoding(), buffer);
-                if (obj == null) {
-                    break;
+            switch (type) {
+            case START_LIST:
+                list.add(sliceStrings ? readOnly(value) : value);
+                break;
+            case START_MAP:
+                if (waitingKey) {
+                    key = toKey(value);
+                    waitingKey = false;
+                } else {
+                    LOG.trace("KEY '{}' => VALUE '{}'", key, value);
+                    putEntry(key, sliceStrings ? readOnly(value) : value);
+                    key = null;
+                    waitingKey = true;
                 }
-                list.add(obj);
+                break;
+            default:
+                fields[field++] = value;
+                break;
             }
-            LOG.trace("decodeList done");
-            return list;
-        } else {
-            throw new DecoderException("this is not a list OPCODE : " + opCode);
         }
-    }
 
-    private BysantContext getEncodedContext(final ByteBuffer buffer) throws DecoderException {
-        int ctxId = buffer.get() & ONE_BYTE_MASK;
-        BysantContext subCtx = BysantContext.findById(ctxId);
-
-        if (subCtx == null) {
-            throw new DecoderException("unsupported context id : " + ctxId);
+        /** drop the partially built object */
+        void release() {
+            list = null;
+            map = null;
+            if (mapKeys != null) {
+                clearEntries();
+            }
+            key = null;
+            fields[0] = null;
+            fields[1] = null;
+            fields[2] = null;
+            longs = null;
+            doubles = null;
+            ints = null;
+            floats = null;
         }
-        return subCtx;
-    }
 
-    /** decode a map following the bysant spec */
-    private Map<Object, Object> decodeMap(final MapEncoding encoding, final ByteBuffer buffer) throws DecoderException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("decodeMap( encoding = {}, buffer = {}", encoding, dumpBuffer(buffer));
+        /** build the decoded object, and release the references kept by this builder */
+        Object build() throws DecoderException {
+            switch (type) {
+            case START_LIST:
+                if (primitive != BOXED) {
+                    return buildNumbers();
+                }
+                final List<Object> decodedList = list;
+                list = null;
+                return decodedList;
+            case START_MAP:
+                return buildMap();
+            default:
+                final Object res = buildObject();
+                fields[0] = null;
+                fields[1] = null;
+                fields[2] = null;
+                return res;
+            }
         }
-        // read the OPCODE
-        final int opCode = buffer.get() & ONE_BYTE_MASK;
-        LOG.trace("OPCODE : 0x{}", Integer.toHexString(opCode));
-        if (opCode == NULL) {
-            return null;
-        } else if (opCode >= encoding.tinyUntypedMapOpCode()
-                && opCode < (encoding.tinyUntypedMapOpCode() + encoding.tinyMapLimit())) {
-            // untyped tiny map
-
-            final int mapSize = opCode - encoding.tinyUntypedMapOpCode() + 1;
-            LOG.trace("untyped tiny map size = {}", mapSize);
-            return decodeUntypedMapBody(buffer, mapSize);
-        } else if (opCode == encoding.largeUntypedMapOpCode()) {
-            // untyped large map
-            final int mapSize = decodeUint((UintEncoding) BysantContext.UINTS_AND_STRS.getEncoding(), buffer)
-                    .intValue() + encoding.tinyMapLimit() + 1;
-            LOG.trace("untyped large map size = {}", mapSize);
-            return decodeUntypedMapBody(buffer, mapSize);
-        } else if (opCode == encoding.nullTerminatedUntypedMapOpCode()) {
-            LOG.trace("null terminated untyped map");
-            final Map<Object, Object> map = new HashMap<Object, Object>();
-            for (;;) {
-                // read key
-                Object key = decodeOne(BysantContext.UINTS_AND_STRS.getEncoding(), buffer);
-                if (key == null) {
-                    break;
+
+        /**
+         * the decoded numbers : a list view of the primitive array for the fixed width lists, a <code>long[]</code> or
+         * a <code>double[]</code> of the exact size for the vectors.
+         */
+        private Object buildNumbers() {
+            final Object res;
+            if (primitive == INT_ARRAY) {
+                if (count != ints.length) {
+                    final int[] values = new int[count];
+                    System.arraycopy(ints, 0, values, 0, count);
+                    ints = values;
                 }
-                if (key instanceof ByteBuffer) {
-                    // convert as string, we don't give a shit about binary map key
-                    try {
-                        key = new String(((ByteBuffer) key).array(), "UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        throw new IllegalStateException(e);
-                    }
+                res = PrimitiveNumbers.asList(ints);
+                ints = null;
+                return res;
+            } else if (primitive == FLOAT_ARRAY) {
+                if (count != floats.length) {
+                    final float[] values = new float[count];
+                    System.arraycopy(floats, 0, values, 0, count);
+                    floats = values;
                 }
-
-                // read object
-                final Object obj = decodeOne(BysantContext.GLOBAL.getEncoding(), buffer);
-
-                map.put(key, obj);
+                res = PrimitiveNumbers.asList(floats);
+                floats = null;
+                return res;
+            } else if (primitive == DOUBLE_ARRAY) {
+                if (count != doubles.length) {
+                    final double[] values = new double[count];
+                    System.arraycopy(doubles, 0, values, 0, count);
+                    doubles = values;
+                }
+                res = PrimitiveNumbers.asList(doubles);
+                doubles = null;
+                return res;
+            } else if (doubles != null) {
+                final double[] values = new double[count];
+                System.arraycopy(doubles, 0, values, 0, count);
+                res = values;
+            } else if (count == longs.length) {
+                res = longs;
+            } else {
+                final long[] values = new long[count];
+                System.arraycopy(longs, 0, values, 0, count);
+                res = values;
             }
-            return map;
-        } else if (opCode == encoding.largeTypedMapOpCode()) {
-            // typed map (TODO)
-            throw new IllegalStateException("not implemented : large typed map");
-        } else if (opCode >= encoding.tinyTypedMapOpCode()
-                && opCode < (encoding.tinyTypedMapOpCode() + encoding.tinyMapLimit())) {
-            // typed tiny map (TODO)
-            throw new IllegalStateException("not implemented : tiny typed map");
-        } else if (opCode == encoding.nullTerminatedTypedMapOpCode()) {
-            // null terminated typed map (TODO)
-            throw new IllegalStateException("not implemented : null terminated typed map");
-        } else if (opCode == encoding.emptyMapOpCode()) {
-            LOG.trace("empty map");
-            // an empty map
-            return Collections.emptyMap();
-        } else if (opCode == NULL) {
-            LOG.trace("NULL map");
-            // a null map
-            return null;
-        } else {
-            throw new DecoderException("this is not a map OPCODE : " + opCode);
+            longs = null;
+            doubles = null;
+            return res;
         }
-    }
 
-    /** decode a map body of untyped pair following the bysant spec */
-    private Map<Object, Object> decodeUntypedMapBody(final ByteBuffer buffer, final int mapSize)
-            throws DecoderException {
-        final Map<Object, Object> map = new HashMap<Object, Object>(mapSize);
-        for (int i = 0; i < mapSize; i++) {
-            // read key
-            LOG.trace("decode key");
-            Object key = decodeOne(BysantContext.UINTS_AND_STRS.getEncoding(), buffer);
-            if (key instanceof ByteBuffer) {
-                // convert as string, we don't give a shit about binary map key
-                try {
-                    key = new String(((ByteBuffer) key).array(), "UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    throw new IllegalStateException(e);
+        /** build a M3DA object from its decoded fields */
+        @SuppressWarnings("unchecked")
+        private Object buildObject() throws DecoderException {
+            switch (type) {
+            case START_ENVELOPE:
+                final Map<Object, Object> header = (Map<Object, Object>) fields[0];
+                final ByteBuffer payload = (ByteBuffer) fields[1];
+                final Map<Object, Object> footer = (Map<Object, Object>) fields[2];
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("payload of {} bytes found : {} ", payload == null ? null : payload.remaining(), payload);
+                }
+                // the payload is kept as decoded, without copy
+                final ByteBuffer content = payload == null ? ByteBuffer.allocate(0) : payload;
+                return new M3daEnvelope(header == null ? Collections.emptyMap() : header,
+                        sliceStrings ? content.asReadOnlyBuffer() : content, footer == null ? Collections.emptyMap()
+                                : footer);
+            case START_MESSAGE:
+                final Number ticket = (Number) fields[1];
+                return new M3daMessage(toSymbol((ByteBuffer) fields[0]), ticket == null ? null
+                        : ticket.longValue(), (Map<Object, Object>) fields[2]);
+            case START_RESPONSE:
+                final Number ticketId = (Number) fields[0];
+                final Number status = (Number) fields[1];
+                return new M3daResponse(ticketId == null ? null : ticketId.longValue(), status == null ? null
+                        : status.longValue(), BysantReaderImpl.toString((ByteBuffer) fields[2]));
+            case START_DELTAS_VECTOR:
+                final Object deltas = checkNumbers(fields[2], "deltas of a deltas vector");
+                if (deltas instanceof double[]) {
+                    return new M3daDeltasVector((Number) fields[0], (Number) fields[1], (double[]) deltas);
+                }
+                return new M3daDeltasVector((Number) fields[0], (Number) fields[1], (long[]) deltas);
+            case START_QUASI_PERIODIC_VECTOR:
+                final Object shifts = checkNumbers(fields[2], "shifts of a quasi periodic vector");
+                if (shifts instanceof double[]) {
+                    return new M3daQuasiPeriodicVector((Number) fields[0], (Number) fields[1], (double[]) shifts);
                 }
+                return new M3daQuasiPeriodicVector((Number) fields[0], (Number) fields[1], (long[]) shifts);
+            default:
+                throw new IllegalStateException("unknown object type : " + type);
             }
-
-            // read object
-            LOG.trace("decode value");
-            final Object obj = decodeOne(BysantContext.GLOBAL.getEncoding(), buffer);
-            LOG.trace("KEY '{}' => VALUE '{}'", key, obj);
-            map.put(key, obj);
         }
-        return map;
-    }
 
-    /** decode a AWTDA object following the bysant spec */
-    private Object decodeAwt(final M3daEncoding encoding, final ByteBuffer buffer) throws DecoderException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("decodeAwt( encoding = {}, buffer = {}", encoding, dumpBuffer(buffer));
-        }
-        // read the OPCODE
-        final int opCode = buffer.get() & ONE_BYTE_MASK;
-        LOG.trace("OPCODE : 0x{}", Integer.toHexString(opCode));
-        if (opCode == NULL) {
-            LOG.trace("null");
-            return null;
-        } else if (opCode == encoding.getDeltaVectorOpCode()) {
-            LOG.trace("delta vector");
-            final Number factor = decodeNumber((NumberEncoding) BysantContext.NUMBERS.getEncoding(), buffer);
-            final Number start = decodeNumber((NumberEncoding) BysantContext.NUMBERS.getEncoding(), buffer);
-            final List<Object> deltas = decodeList((ListEncoding) BysantContext.LIST_AND_MAPS.getEncoding(), buffer);
-            final List<Number> typedDeltas = new ArrayList<Number>(deltas.size());
-            for (int i = 0; i < deltas.size(); i++) {
-                final Object value = deltas.get(i);
-                if (!(value instanceof Number)) {
-                    throw new DecoderException("deltas of a deltas vector should contain only Number, not "
-                            + value.getClass().getCanonicalName());
-                }
-                typedDeltas.add((Number) value);
+        /** check the numbers of a vector were decoded as a list */
+        private static Object checkNumbers(final Object value, final String name) throws DecoderException {
+            if (value == null) {
+                throw new DecoderException(name + " should not be null");
             }
-            return new M3daDeltasVector(factor, start, typedDeltas);
-        } else if (opCode == encoding.getEnvelopeOpCode()) {
-            LOG.trace("envelope");
-            final Map<Object, Object> header = decodeMap((MapEncoding) BysantContext.LIST_AND_MAPS.getEncoding(),
-                    buffer);
-            LOG.trace("extracting payload string");
-            final ByteBuffer payload = decodeStringAsBytes(
-                    (UintStrCtxEncoding) BysantContext.UINTS_AND_STRS.getEncoding(), buffer);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("payload of {} bytes found : {} ", payload == null ? null : payload.remaining(), payload);
+            if (!(value instanceof long[]) && !(value instanceof double[])) {
+                throw new DecoderException(name + " should be a list of Number, not "
+                        + value.getClass().getCanonicalName());
             }
+            return value;
+        }
 
-            final Map<Object, Object> footer = decodeMap((MapEncoding) BysantContext.LIST_AND_MAPS.getEncoding(),
-                    buffer);
-            return new M3daEnvelope(header == null ? Collections.emptyMap() : header, payload == null ? new byte[] {}
-                    : payload.array(), footer == null ? Collections.emptyMap() : footer);
-        } else if (opCode == encoding.getMessageOpCode()) {
-            LOG.trace("message");
-
-            String path;
-            try {
-                path = new String(decodeStringAsBytes((StringEncoding) BysantContext.UINTS_AND_STRS.getEncoding(),
-                        buffer).array(), "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new IllegalStateException(e);
+        /** protect the slices of the input buffers */
+        static Object readOnly(final Object value) {
+            if (value instanceof ByteBuffer) {
+                return ((ByteBuffer) value).asReadOnlyBuffer();
             }
+            return value;
+        }
 
-            final Number ticket = decodeUint((UintEncoding) BysantContext.UINTS_AND_STRS.getEncoding(), buffer);
-            final Map<Object, Object> body = decodeMap((MapEncoding) BysantContext.LIST_AND_MAPS.getEncoding(), buffer);
-            return new M3daMessage(path, ticket == null ? null : ticket.longValue(), body);
-        } else if (opCode == encoding.getQuasiPeriodicVectorOpCode()) {
-            LOG.trace("quasi periodic vector op code");
-            final Number period = decodeNumber((NumberEncoding) BysantContext.NUMBERS.getEncoding(), buffer);
-            final Number start = decodeNumber((NumberEncoding) BysantContext.NUMBERS.getEncoding(), buffer);
-            final List<Object> shifts = decodeList((ListEncoding) BysantContext.LIST_AND_MAPS.getEncoding(), buffer);
-            final List<Number> typedShifts = new ArrayList<Number>(shifts.size());
-            for (int i = 0; i < shifts.size(); i++) {
-                final Object value = shifts.get(i);
-                if (!(value instanceof Number)) {
-                    throw new DecoderException("shifts of a quasi periodic vector should contain only Number, not "
-                            + value.getClass().getCanonicalName());
-                }
-                typedShifts.add((Number) value);
+        /** convert as string, we don't give a shit about binary map key */
+        private Object toKey(final Object key) {
+            if (key instanceof ByteBuffer) {
+                return toSymbol((ByteBuffer) key);
             }
-            return new M3daQuasiPeriodicVector(period, start, typedShifts);
-        } else if (opCode == encoding.getResponseOpCode()) {
-            LOG.trace("response");
-            final Long ticketId = decodeUint((UintEncoding) BysantContext.UINTS_AND_STRS.getEncoding(), buffer)
-                    .longValue();
-            final Long status = decodeNumber((NumberEncoding) BysantContext.NUMBERS.getEncoding(), buffer).longValue();
-
-            String data;
-            try {
-                final ByteBuffer dataBin = decodeStringAsBytes(
-                        (StringEncoding) BysantContext.UINTS_AND_STRS.getEncoding(), buffer);
-                if (dataBin == null) {
-                    data = null;
-                } else {
-                    data = new String(dataBin.array(), "UTF-8");
-                }
-            } catch (final UnsupportedEncodingException e) {
-                throw new IllegalStateException(e);
+            return key;
+        }
+
+        /** decode a string which is probably repeated in each message */
+        private String toSymbol(final ByteBuffer value) {
+            if (value == null || symbols == null) {
+                return BysantReaderImpl.toString(value);
             }
-            return new M3daResponse(ticketId, status, data);
-        } else {
-            throw new DecoderException("this is not a AWT message OPCODE : " + opCode);
+            return symbols.intern(value);
         }
     }
 
@@ -10,21 +10,28 @@
  ******************************************************************************/
 package m3da.codec.impl;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import m3da.codec.BysantEncoder;
+import m3da.codec.EncoderOutput;
 import m3da.codec.M3daCodecServiceRuntimeException;
+import m3da.codec.Utf8Slice;
 import m3da.codec.dto.M3daDeltasVector;
 import m3da.codec.dto.M3daEnvelope;
 import m3da.codec.dto.M3daMessage;
 import m3da.codec.dto.M3daPdu;
 import m3da.codec.dto.M3daQuasiPeriodicVector;
 import m3da.codec.dto.M3daResponse;
+import m3da.codec.dto.StreamedBinary;
 import m3da.codec.impl.encoding.BooleanEncoding;
 import m3da.codec.impl.encoding.Encoding;
+import m3da.codec.impl.encoding.FixedWidthEncoding;
 import m3da.codec.impl.encoding.ListEncoding;
 import m3da.codec.impl.encoding.M3daEncoding;
 import m3da.codec.impl.encoding.MapEncoding;
@@ -45,6 +52,50 @@ public class BysantEncoderImpl implements BysantEncoder {
 
 	public static final short NULL = (short) 0x00;
 
+	/** maximum length of a chunk of a bysant chunked string */
+	private static final int MAX_STRING_CHUNK = 65535;
+
+	/** default size of the chunks written to an {@link EncoderOutput} */
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+	/** the lists of integers shorter than this are never encoded as vectors : the vector header would cost more */
+	private static final int MIN_VECTOR_SIZE = 3;
+
+	/** size of the chunks written to an {@link EncoderOutput} */
+	private final int chunkSize;
+
+	/** choose the smallest encoding of the number lists and the doubles, see {@link #BysantEncoderImpl(int, boolean)} */
+	private final boolean compact;
+
+	public BysantEncoderImpl() {
+		this(DEFAULT_CHUNK_SIZE, false);
+	}
+
+	/**
+	 * @param chunkSize
+	 *            the size of the chunks written to an {@link EncoderOutput}
+	 */
+	public BysantEncoderImpl(final int chunkSize) {
+		this(chunkSize, false);
+	}
+
+	/**
+	 * @param chunkSize
+	 *            the size of the chunks written to an {@link EncoderOutput}
+	 * @param compact
+	 *            if <code>true</code>, the encoder looks for the smallest encoding of the values : the lists of integers
+	 *            are encoded as deltas vectors or quasi periodic vectors when it's smaller, and the doubles are encoded
+	 *            as 32 bits floats when it doesn't lose precision. The decoded values are equal, but the decoder may
+	 *            return vectors and floats.
+	 */
+	public BysantEncoderImpl(final int chunkSize, final boolean compact) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("invalid chunk size : " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		this.compact = compact;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -53,6 +104,14 @@ public class BysantEncoderImpl implements BysantEncoder {
 		return encode(BysantContext.GLOBAL, toEncode);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(final EncoderOutput output, final M3daPdu... toEncode) {
+		encode(BysantContext.GLOBAL, toEncode, output);
+	}
+
 	/**
 	 * encode some object in bysant, in a given context
 	 * 
@@ -64,29 +123,47 @@ public class BysantEncoderImpl implements BysantEncoder {
 
 		LOG.debug("encode({},objects:{})", ctx, toEncode);
 
-		int bufferSize = 0;
-		for (final Object obj : toEncode) {
-			bufferSize += guessSizeObject(ctx, obj);
+		// single pass in the buffer of this thread, the result is copied in a buffer of the exact size
+		final EncoderBuffer buffer = EncoderBuffer.acquire();
+		try {
+			for (final Object obj : toEncode) {
+				encodeObj(ctx, obj, buffer);
+			}
+			return buffer.toByteBuffer();
+		} finally {
+			buffer.release();
 		}
+	}
+
+	/**
+	 * encode some object in bysant, in a given context, writing the encoded bytes to an output in chunks
+	 * 
+	 * @param ctx
+	 * @param toEncode
+	 * @param output
+	 *            receives the encoded chunks, in order
+	 */
+	public void encode(final BysantContext ctx, final Object[] toEncode, final EncoderOutput output) {
 
-		final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-		for (final Object obj : toEncode) {
-			encodeObj(ctx, obj, buffer);
+		LOG.debug("encode({},objects:{},output:{})", new Object[] { ctx, toEncode, output });
+
+		final EncoderBuffer buffer = EncoderBuffer.acquire(output, chunkSize);
+		try {
+			for (final Object obj : toEncode) {
+				encodeObj(ctx, obj, buffer);
+			}
+			buffer.flushAll();
+		} finally {
+			buffer.release();
 		}
-		buffer.flip();
-		return buffer;
 	}
 
 	/**
-	 * Guess the encoding size for any Object in a given context
+	 * Guess the encoding size of a scalar value (number, string, binary, boolean or null) in a given context
 	 */
 	private int guessSizeObject(final BysantContext ctx, final Object data) {
 		if (data == null) {
 			return 1;
-		} else if (data instanceof Map) {
-			return guessSizeMap(ctx, (Map<?, ?>) data);
-		} else if (data instanceof List) {
-			return guessSizeList(ctx, (List<?>) data);
 		} else if (data instanceof String) {
 			return guessSizeString(ctx, (String) data);
 		} else if (data instanceof Boolean) {
@@ -94,143 +171,137 @@ public class BysantEncoderImpl implements BysantEncoder {
 		} else if (data instanceof ByteBuffer[]) {
 			return guessSizeBinary(ctx, (ByteBuffer[]) data);
 		} else if (data instanceof byte[]) {
-			return guessSizeBinary(ctx, (byte[]) data);
+			return guessSizeBinary(ctx, ((byte[]) data).length);
 		} else if (data instanceof ByteBuffer) {
-			return guessSizeBinary(ctx, (ByteBuffer) data);
+			return guessSizeBinary(ctx, ((ByteBuffer) data).remaining());
+		} else if (data instanceof Utf8Slice) {
+			return guessSizeBinary(ctx, ((Utf8Slice) data).size());
 		} else if (data instanceof Number) {
 			return guessSizeNumber(ctx, (Number) data);
-		} else if (data instanceof M3daEnvelope) {
-			return guessSizeEnvelope(ctx, (M3daEnvelope) data);
-		} else if (data instanceof M3daMessage) {
-			return guessSizeMessage(ctx, (M3daMessage) data);
-		} else if (data instanceof M3daResponse) {
-			return guessSizeResponse(ctx, (M3daResponse) data);
-		} else if (data instanceof M3daDeltasVector) {
-			return guessSizeDeltasVector(ctx, (M3daDeltasVector) data);
-		} else if (data instanceof M3daQuasiPeriodicVector) {
-			return guessSizeQuasiPeriodicVector(ctx, (M3daQuasiPeriodicVector) data);
 		} else {
 			throw new IllegalStateException("not implemented " + data.getClass().getCanonicalName());
 		}
 	}
 
-	private int guessSizeEnvelope(final BysantContext ctx, final M3daEnvelope envelope) {
-		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
-			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Envelope in the context " + ctx);
-		}
-		int size = 1; // ope code
-		size += guessSizeMap(BysantContext.LIST_AND_MAPS, envelope.getHeader());
-		size += guessSizeBinary(BysantContext.UINTS_AND_STRS, new ByteBuffer[] { ByteBuffer.wrap(envelope.getPayload()) });
-		size += guessSizeMap(BysantContext.LIST_AND_MAPS, envelope.getFooter());
-		return size;
-	}
-
-	private int guessSizeMessage(final BysantContext ctx, final M3daMessage message) {
-		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
-			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Message in the context " + ctx);
-		}
-		int size = 1; // ope code
-		size += guessSizeString(BysantContext.UINTS_AND_STRS, message.getPath());
-		size += guessSizeNumber(BysantContext.UINTS_AND_STRS, message.getTicketId());
-		size += guessSizeMap(BysantContext.LIST_AND_MAPS, message.getBody());
-		return size;
-	}
-
-	private int guessSizeResponse(final BysantContext ctx, final M3daResponse response) {
-		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
-			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Response in the context " + ctx);
-		}
-		int size = 1; // ope code
-		size += guessSizeNumber(BysantContext.UINTS_AND_STRS, response.getTicketId());
-		size += guessSizeNumber(BysantContext.NUMBERS, response.getStatus());
-		size += guessSizeString(BysantContext.UINTS_AND_STRS, response.getMessage());
-		return size;
-	}
-
-	private int guessSizeQuasiPeriodicVector(final BysantContext ctx, final M3daQuasiPeriodicVector vector) {
-		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
-			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Response in the context " + ctx);
+	/**
+	 * Guess the encoding size of the OPCODE and of the size of a non empty List
+	 */
+	private int guessSizeListHeader(final ListEncoding encodingCtx, final int listSize) {
+		if (listSize > encodingCtx.tinyListLimit()) {
+			// for big list we need to encode the size
+			return 1 + guessSizeNumber(BysantContext.UINTS_AND_STRS, listSize - encodingCtx.tinyListLimit() - 1);
 		}
-		int size = 1; // ope code
-		size += guessSizeNumber(BysantContext.NUMBERS, vector.getPeriod());
-		size += guessSizeNumber(BysantContext.NUMBERS, vector.getStart());
-		size += guessSizeList(BysantContext.LIST_AND_MAPS, vector.getShifts());
-		return size;
+		return 1;
 	}
 
-	private int guessSizeDeltasVector(final BysantContext ctx, final M3daDeltasVector vector) {
-		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
-			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Response in the context " + ctx);
+	/**
+	 * Guess the encoding size of the OPCODE and of the size of a non empty Map
+	 */
+	private int guessSizeMapHeader(final MapEncoding encodingCtx, final int mapSize) {
+		if (mapSize > encodingCtx.tinyMapLimit()) {
+			// for big map we need to encode the size
+			return 1 + guessSizeNumber(BysantContext.UINTS_AND_STRS, mapSize - encodingCtx.tinyMapLimit() - 1);
 		}
-		int size = 1; // ope code
-		size += guessSizeNumber(BysantContext.NUMBERS, vector.getFactor());
-		size += guessSizeNumber(BysantContext.NUMBERS, vector.getStart());
-		size += guessSizeList(BysantContext.LIST_AND_MAPS, vector.getDeltas());
-
-		return size;
+		return 1;
 	}
 
 	/**
-	 * Guess the encoding size for a List in a given context
+	 * Choose the context of the elements of a List (or of the values of a Map). When all the elements can be encoded
+	 * in a specialized context (numbers, strings, containers...) and they are smaller in this context, enough to pay
+	 * for the context identifier, a typed container is used.
+	 *
+	 * @return the context of the elements, {@link BysantContext#GLOBAL} for an untyped container
 	 */
-	private int guessSizeList(final BysantContext ctx, final List<?> list) {
-		LOG.trace("guessSizeInBytes({},list:{})", ctx, list);
-
-		final Encoding enc = ctx.getEncoding();
-		if (!(enc instanceof ListEncoding)) {
-			throw new M3daCodecServiceRuntimeException("cannot encode a list in the context " + ctx);
+	private BysantContext elementContext(final Collection<?> values) {
+		boolean floats = true;
+		boolean doubles = true;
+		boolean narrowableDoubles = true;
+		boolean integers = true;
+		boolean ints32 = true;
+		boolean uints = true;
+		boolean strings = true;
+		boolean containers = true;
+		boolean nulls = false;
+		for (final Object value : values) {
+			if (value == null) {
+				nulls = true;
+				continue;
+			}
+			floats &= value instanceof Float;
+			doubles &= value instanceof Double;
+			narrowableDoubles &= doubles && isNarrowable((Double) value);
+			if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+				final long longValue = ((Number) value).longValue();
+				ints32 &= Integer.MIN_VALUE <= longValue && longValue <= Integer.MAX_VALUE;
+				uints &= 0 <= longValue && longValue <= 0xFFFFFFFFL;
+			} else {
+				integers = false;
+			}
+			strings &= value instanceof String || value instanceof byte[] || value instanceof ByteBuffer || value instanceof ByteBuffer[]
+					|| value instanceof Utf8Slice;
+			containers &= value instanceof List || value instanceof Map;
+			if (!(floats || doubles || integers || strings || containers)) {
+				// heterogeneous
+				return BysantContext.GLOBAL;
+			}
+		}
+		if (floats && doubles) {
+			// only null values
+			return BysantContext.GLOBAL;
 		}
-		final ListEncoding encodingCtx = (ListEncoding) enc;
 
-		if (list == null || list.size() == 0) {
-			return 1;
-		} else {
-			int size = 1; // OPCODE
-			if (list.size() > encodingCtx.tinyListLimit()) {
-				// for big list we need to encode the size
-				size += guessSizeNumber(BysantContext.UINTS_AND_STRS, list.size() - encodingCtx.tinyListLimit() - 1);
+		BysantContext best = BysantContext.GLOBAL;
+		int bestSize = guessSizeElements(BysantContext.GLOBAL, values);
+		final BysantContext[] candidates = new BysantContext[3];
+		if (floats && !nulls) {
+			candidates[0] = BysantContext.FLOATS32;
+		} else if (doubles && !nulls) {
+			candidates[0] = compact && narrowableDoubles ? BysantContext.FLOATS32 : BysantContext.DOUBLES64;
+		} else if (integers) {
+			candidates[0] = BysantContext.NUMBERS;
+			if (ints32 && !nulls) {
+				candidates[1] = BysantContext.SIGNED_INTS32;
 			}
-
-			for (final Object obj : list) {
-				size += guessSizeObject(BysantContext.GLOBAL, obj);
+			if (uints) {
+				candidates[2] = BysantContext.UINTS_AND_STRS;
 			}
-			return size;
+		} else if (strings) {
+			candidates[0] = BysantContext.UINTS_AND_STRS;
+		} else if (containers && !compact) {
+			// in compact mode the containers stay in the global context, where the lists can be encoded as vectors
+			candidates[0] = BysantContext.LIST_AND_MAPS;
 		}
+		for (final BysantContext candidate : candidates) {
+			if (candidate != null) {
+				// one more byte for the context identifier
+				final int size = 1 + guessSizeElements(candidate, values);
+				if (size < bestSize) {
+					best = candidate;
+					bestSize = size;
+				}
+			}
+		}
+		return best;
 	}
 
 	/**
-	 * Guess the encoding size for a Map in a given context
+	 * Guess the encoding size of the elements of a container in a given context. For the List or Map elements, only
+	 * their header is counted : their content doesn't depend on the context.
 	 */
-	private int guessSizeMap(final BysantContext ctx, final Map<?, ?> map) {
-		LOG.trace("guessSizeInBytes({},map:{})", ctx, map);
-		final Encoding enc = ctx.getEncoding();
-		if (!(enc instanceof MapEncoding)) {
-			throw new M3daCodecServiceRuntimeException("cannot encode a map in the context " + ctx);
-		}
-
-		final MapEncoding encodingCtx = (MapEncoding) enc;
-
-		if (map == null || map.size() == 0) {
-			return 1;
-		} else {
-			int size = 1; // OPCODE
-			if (map.size() > encodingCtx.tinyMapLimit()) {
-				// for big list we need to encode the size
-				size += guessSizeNumber(BysantContext.UINTS_AND_STRS, map.size() - encodingCtx.tinyMapLimit() - 1);
-			}
-
-			// encode the map body
-			for (final Map.Entry<?, ?> entry : map.entrySet()) {
-
-				// key size
-				size += guessSizeObject(BysantContext.UINTS_AND_STRS, entry.getKey());
-
-				// value size
-				size += guessSizeObject(BysantContext.GLOBAL, entry.getValue());
+	private int guessSizeElements(final BysantContext ctx, final Collection<?> values) {
+		int size = 0;
+		for (final Object value : values) {
+			if (value instanceof List) {
+				final int listSize = ((List<?>) value).size();
+				size += listSize == 0 ? 1 : guessSizeListHeader((ListEncoding) ctx.getEncoding(), listSize);
+			} else if (value instanceof Map) {
+				final int mapSize = ((Map<?, ?>) value).size();
+				size += mapSize == 0 ? 1 : guessSizeMapHeader((MapEncoding) ctx.getEncoding(), mapSize);
+			} else {
+				size += guessSizeObject(ctx, value);
 			}
-
-			return size;
 		}
+		return size;
 	}
 
 	/**
@@ -275,7 +346,7 @@ public class BysantEncoderImpl implements BysantEncoder {
 				if (value instanceof Float) {
 					return 5;
 				} else if (value instanceof Double) {
-					return 9;
+					return compact && isNarrowable((Double) value) ? 5 : 9;
 				} else {
 					final long longValue = value.longValue();
 					if (Integer.MIN_VALUE <= value.longValue() && value.longValue() <= Integer.MAX_VALUE) {
@@ -296,6 +367,11 @@ public class BysantEncoderImpl implements BysantEncoder {
 					}
 				}
 			}
+		} else if (enc instanceof FixedWidthEncoding) {
+			if (value == null) {
+				throw new M3daCodecServiceRuntimeException("cannot encode a null number in the context " + ctx);
+			}
+			return ((FixedWidthEncoding) enc).width();
 		} else {
 			throw new M3daCodecServiceRuntimeException("cannot encode a number in the context " + ctx);
 		}
@@ -320,13 +396,8 @@ public class BysantEncoderImpl implements BysantEncoder {
 			return 1;
 		}
 
-		int length;
-
-		try {
-			length = value.getBytes("UTF8").length;
-		} catch (final UnsupportedEncodingException e) {
-			throw new M3daCodecServiceRuntimeException("no UTF8 charset", e);
-		}
+		// count the UTF-8 bytes without encoding the string
+		final int length = EncoderBuffer.utf8Length(value);
 
 		if (length <= encodingCtx.tinyStrLimit()) {
 			return 1 + length;
@@ -359,31 +430,22 @@ public class BysantEncoderImpl implements BysantEncoder {
 
 	}
 
-	private int guessSizeBinary(final BysantContext ctx, final byte[] value) {
-		return guessSizeBinary(ctx, new ByteBuffer[] { ByteBuffer.wrap(value) });
-	}
-
-	private int guessSizeBinary(final BysantContext ctx, final ByteBuffer value) {
-		return guessSizeBinary(ctx, new ByteBuffer[] { value });
+	private int guessSizeBinary(final BysantContext ctx, final ByteBuffer[] value) {
+		int byteSize = 0;
+		for (final ByteBuffer buff : value) {
+			byteSize += buff.remaining();
+		}
+		return guessSizeBinary(ctx, byteSize);
 	}
 
 	/**
-	 * Guess the encoding size for a Binary in a given context
+	 * Guess the encoding size for a Binary of the given length in a given context
 	 */
-	private int guessSizeBinary(final BysantContext ctx, final ByteBuffer[] value) {
-		LOG.trace("guessSizeBinary({},string:{})", ctx, value);
-		if (value == null) {
-			return 1;
-		}
+	private int guessSizeBinary(final BysantContext ctx, final int byteSize) {
+		LOG.trace("guessSizeBinary({},length:{})", ctx, byteSize);
 
 		StringEncoding encodingCtx;
 
-		int byteSize = 0;
-
-		for (final ByteBuffer buff : value) {
-			byteSize += buff.remaining();
-		}
-
 		final Encoding enc = ctx.getEncoding();
 		if (enc instanceof StringEncoding) {
 			encodingCtx = (StringEncoding) enc;
@@ -399,14 +461,16 @@ public class BysantEncoderImpl implements BysantEncoder {
 		}
 		if (byteSize <= encodingCtx.largeStrLimit()) {
 			return 3 + byteSize;
-		} else {
-			// TODO : chunked encoding for too large strings
-			throw new IllegalStateException("not implemented chunked-strings");
 		}
+		// chunked string
+		final int size = 1 + (byteSize / MAX_STRING_CHUNK) * 2 + 2 + byteSize;
+		return byteSize % MAX_STRING_CHUNK == 0 ? size : size + 2;
 	}
 
 	/** Encode random object using a given context. The bytes are written in the buffer. */
-	private void encodeObj(final BysantContext ctx, final Object data, final ByteBuffer buffer) {
+	private void encodeObj(final BysantContext ctx, final Object data, final EncoderBuffer buffer) {
+		// between two values : no length prefix to patch
+		buffer.flushChunks();
 		if (data == null) {
 			buffer.put((byte) NULL);
 		} else if (data instanceof Map) {
@@ -421,8 +485,12 @@ public class BysantEncoderImpl implements BysantEncoder {
 			encodeBinary(ctx, (ByteBuffer[]) data, buffer);
 		} else if (data instanceof ByteBuffer) {
 			encodeBinary(ctx, (ByteBuffer) data, buffer);
+		} else if (data instanceof Utf8Slice) {
+			encodeBinary(ctx, ((Utf8Slice) data).toByteBuffer(), buffer);
 		} else if (data instanceof byte[]) {
 			encodeBinary(ctx, (byte[]) data, buffer);
+		} else if (data instanceof StreamedBinary) {
+			encodeStreamedBinary(ctx, (StreamedBinary) data, buffer);
 		} else if (data instanceof Number) {
 			encodeNumber(ctx, (Number) data, buffer);
 		} else if (data instanceof M3daMessage) {
@@ -441,17 +509,39 @@ public class BysantEncoderImpl implements BysantEncoder {
 
 	}
 
-	private void encodeAwtDa3Envelope(final BysantContext ctx, final M3daEnvelope envelope, final ByteBuffer buffer) {
+	/**
+	 * Encode a single value, for the streaming writers of this package writing their own containers (see
+	 * {@link BysantJsonTranscoderImpl}). The bytes are written in the buffer.
+	 */
+	void encodeValue(final BysantContext ctx, final Object data, final EncoderBuffer buffer) {
+		encodeObj(ctx, data, buffer);
+	}
+
+	/**
+	 * Encode the opcode, the path and the ticket of a message : the body map must be written next, in the
+	 * {@link BysantContext#LIST_AND_MAPS} context.
+	 */
+	void encodeMessageHeader(final BysantContext ctx, final String path, final Long ticketId, final EncoderBuffer buffer) {
+		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
+			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Message in the context " + ctx);
+		}
+		buffer.flushChunks();
+		buffer.put((byte) ((M3daEncoding) ctx.getEncoding()).getMessageOpCode());
+		encodeString(BysantContext.UINTS_AND_STRS, path, buffer);
+		encodeNumber(BysantContext.UINTS_AND_STRS, ticketId, buffer);
+	}
+
+	private void encodeAwtDa3Envelope(final BysantContext ctx, final M3daEnvelope envelope, final EncoderBuffer buffer) {
 		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
 			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Envelope in the context " + ctx);
 		}
 		buffer.put((byte) ((M3daEncoding) ctx.getEncoding()).getEnvelopeOpCode());
 		encodeMap(BysantContext.LIST_AND_MAPS, envelope.getHeader(), buffer);
-		encodeBinary(BysantContext.UINTS_AND_STRS, new ByteBuffer[] { ByteBuffer.wrap(envelope.getPayload()) }, buffer);
+		encodeBinary(BysantContext.UINTS_AND_STRS, envelope.getPayloadBuffer(), buffer);
 		encodeMap(BysantContext.LIST_AND_MAPS, envelope.getFooter(), buffer);
 	}
 
-	private void encodeMessage(final BysantContext ctx, final M3daMessage message, final ByteBuffer buffer) {
+	private void encodeMessage(final BysantContext ctx, final M3daMessage message, final EncoderBuffer buffer) {
 		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
 			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Message in the context " + ctx);
 		}
@@ -461,7 +551,7 @@ public class BysantEncoderImpl implements BysantEncoder {
 		encodeMap(BysantContext.LIST_AND_MAPS, message.getBody(), buffer);
 	}
 
-	private void encodeResponse(final BysantContext ctx, final M3daResponse response, final ByteBuffer buffer) {
+	private void encodeResponse(final BysantContext ctx, final M3daResponse response, final EncoderBuffer buffer) {
 		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
 			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Response in the context " + ctx);
 		}
@@ -471,7 +561,7 @@ public class BysantEncoderImpl implements BysantEncoder {
 		encodeString(BysantContext.UINTS_AND_STRS, response.getMessage(), buffer);
 	}
 
-	private void encodeQuasiPeriodicVector(final BysantContext ctx, final M3daQuasiPeriodicVector vector, final ByteBuffer buffer) {
+	private void encodeQuasiPeriodicVector(final BysantContext ctx, final M3daQuasiPeriodicVector vector, final EncoderBuffer buffer) {
 		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
 			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Response in the context " + ctx);
 		}
@@ -481,7 +571,7 @@ public class BysantEncoderImpl implements BysantEncoder {
 		encodeList(BysantContext.LIST_AND_MAPS, vector.getShifts(), buffer);
 	}
 
-	private void encodeDeltasVector(final BysantContext ctx, final M3daDeltasVector vector, final ByteBuffer buffer) {
+	private void encodeDeltasVector(final BysantContext ctx, final M3daDeltasVector vector, final EncoderBuffer buffer) {
 		if (!(ctx.getEncoding() instanceof M3daEncoding)) {
 			throw new M3daCodecServiceRuntimeException("cannot encode a AwtDa3Response in the context " + ctx);
 		}
@@ -494,14 +584,8 @@ public class BysantEncoderImpl implements BysantEncoder {
 	/**
 	 * Encode a List in a given context. The bytes are written in the buffer.
 	 */
-	private void encodeList(final BysantContext ctx, final List<?> list, final ByteBuffer buffer) {
-		int pos = 0;
-		int size = 0;
-		if (LOG.isTraceEnabled()) {
-			LOG.trace("encode({},list:{})", ctx, list);
-			pos = buffer.position();
-			size = guessSizeList(ctx, list);
-		}
+	private void encodeList(final BysantContext ctx, final List<?> list, final EncoderBuffer buffer) {
+		LOG.trace("encode({},list:{})", ctx, list);
 		final Encoding enc = ctx.getEncoding();
 		if (!(enc instanceof ListEncoding)) {
 			throw new M3daCodecServiceRuntimeException("cannot encode a list in the context " + ctx);
@@ -513,41 +597,174 @@ public class BysantEncoderImpl implements BysantEncoder {
 		} else if (list.size() == 0) {
 			buffer.put((byte) encodingCtx.emptyListOpCode());
 		} else {
+			if (compact && enc instanceof M3daEncoding) {
+				final Object vector = smallerVector(ctx, list);
+				if (vector instanceof M3daDeltasVector) {
+					encodeDeltasVector(ctx, (M3daDeltasVector) vector, buffer);
+					return;
+				} else if (vector instanceof M3daQuasiPeriodicVector) {
+					encodeQuasiPeriodicVector(ctx, (M3daQuasiPeriodicVector) vector, buffer);
+					return;
+				}
+			}
+			final BysantContext elementCtx = elementContext(list);
+			final boolean typed = elementCtx != BysantContext.GLOBAL;
 			if (list.size() <= encodingCtx.tinyListLimit()) {
-				final int opCode = encodingCtx.tinyUntypedListOpCode();
+				final int opCode = typed ? encodingCtx.tinyTypedListOpCode() : encodingCtx.tinyUntypedListOpCode();
 				buffer.put((byte) (opCode + list.size() - 1));
 			} else {
-				buffer.put((byte) encodingCtx.largeUntypedListOpCode());
+				buffer.put((byte) (typed ? encodingCtx.largeTypedListOpCode() : encodingCtx.largeUntypedListOpCode()));
 				// encode the list size
 				encodeNumber(BysantContext.UINTS_AND_STRS, (long) (list.size() - encodingCtx.tinyListLimit() - 1), buffer);
 			}
+			if (typed) {
+				buffer.put((byte) elementCtx.getId());
+			}
 
 			// now we encode all the list element, one after each other
 			for (final Object object : list) {
-				encodeObj(BysantContext.GLOBAL, object, buffer);
+				encodeObj(elementCtx, object, buffer);
+			}
+		}
+	}
+
+	/**
+	 * Look for a vector encoding a list of integers in less bytes than the list itself : a deltas vector, with the
+	 * greatest common divisor of the start and the deltas as factor, or a quasi periodic vector, with the most frequent
+	 * delta as period.
+	 *
+	 * @return the smallest vector, <code>null</code> if the list is smaller or is not a list of integers
+	 */
+	private Object smallerVector(final BysantContext ctx, final List<?> list) {
+		final int size = list.size();
+		if (size < MIN_VECTOR_SIZE) {
+			return null;
+		}
+		final long[] values = new long[size];
+		for (int i = 0; i < size; i++) {
+			final Object value = list.get(i);
+			if (!(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)) {
+				return null;
 			}
+			values[i] = ((Number) value).longValue();
 		}
-		if (LOG.isTraceEnabled()) {
-			final int wrote = buffer.position() - pos;
-			if (wrote == size) {
-				LOG.trace("wrote {} bytes", wrote);
+		final long[] deltas = new long[size - 1];
+		for (int i = 0; i < deltas.length; i++) {
+			deltas[i] = values[i + 1] - values[i];
+			if (((values[i + 1] ^ values[i]) & (values[i + 1] ^ deltas[i])) < 0) {
+				// overflow
+				return null;
+			}
+		}
+
+		Object best = null;
+		int bestSize = guessSizeList(ctx, list);
+
+		// deltas vector
+		long factor = Math.abs(values[0]);
+		for (final long delta : deltas) {
+			factor = gcd(factor, Math.abs(delta));
+		}
+		if (factor <= 0) {
+			// only zeros, or a Long.MIN_VALUE we can't divide
+			factor = 1;
+		}
+		final long[] scaledDeltas = new long[deltas.length];
+		for (int i = 0; i < deltas.length; i++) {
+			scaledDeltas[i] = deltas[i] / factor;
+		}
+		final M3daDeltasVector deltasVector = new M3daDeltasVector(factor, values[0] / factor, scaledDeltas);
+		final int deltasSize = 1 + guessSizeNumber(BysantContext.NUMBERS, deltasVector.getFactor())
+				+ guessSizeNumber(BysantContext.NUMBERS, deltasVector.getStart())
+				+ guessSizeList(BysantContext.LIST_AND_MAPS, deltasVector.getDeltas());
+		if (deltasSize < bestSize) {
+			best = deltasVector;
+			bestSize = deltasSize;
+		}
+
+		// quasi periodic vector : the shifts are pairs of (count of exact periods, shift of the next period)
+		final long period = mostFrequent(deltas);
+		final long[] shifts = new long[deltas.length * 2 + 1];
+		int nbShifts = 0;
+		long repeat = 0;
+		for (final long delta : deltas) {
+			if (delta == period) {
+				repeat++;
 			} else {
-				LOG.error("BUG ! wrote {} bytes, on {} supposed", wrote, size);
+				final long shift = delta - period;
+				if (((delta ^ period) & (delta ^ shift)) < 0) {
+					// overflow
+					return best;
+				}
+				shifts[nbShifts++] = repeat;
+				shifts[nbShifts++] = shift;
+				repeat = 0;
 			}
 		}
+		shifts[nbShifts++] = repeat;
+		final M3daQuasiPeriodicVector periodicVector = new M3daQuasiPeriodicVector(period, values[0], Arrays.copyOf(
+				shifts, nbShifts));
+		final int periodicSize = 1 + guessSizeNumber(BysantContext.NUMBERS, periodicVector.getPeriod())
+				+ guessSizeNumber(BysantContext.NUMBERS, periodicVector.getStart())
+				+ guessSizeList(BysantContext.LIST_AND_MAPS, periodicVector.getShifts());
+		if (periodicSize < bestSize) {
+			best = periodicVector;
+		}
+		return best;
 	}
 
 	/**
-	 * Encode a Map in a given context. The bytes are written in the buffer.
+	 * Guess the encoding size of a non empty List in a given context
 	 */
-	private void encodeMap(final BysantContext ctx, final Map<?, ?> map, final ByteBuffer buffer) {
-		int pos = 0;
-		int byteSize = 0;
-		if (LOG.isTraceEnabled()) {
-			LOG.trace("encode({},map:{})", ctx, map);
-			pos = buffer.position();
-			byteSize = guessSizeMap(ctx, map);
+	private int guessSizeList(final BysantContext ctx, final List<?> list) {
+		final BysantContext elementCtx = elementContext(list);
+		int size = guessSizeListHeader((ListEncoding) ctx.getEncoding(), list.size());
+		if (elementCtx != BysantContext.GLOBAL) {
+			size++;
 		}
+		for (final Object element : list) {
+			size += element instanceof List || element instanceof Map ? 1 : guessSizeObject(elementCtx, element);
+		}
+		return size;
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			final long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	/** the most frequent value of a non empty array */
+	private static long mostFrequent(final long[] values) {
+		final long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		long best = sorted[0];
+		int bestCount = 0;
+		int count = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			count = i > 0 && sorted[i] == sorted[i - 1] ? count + 1 : 1;
+			if (count > bestCount) {
+				best = sorted[i];
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	/** a double which can be encoded as a 32 bits float without losing precision */
+	private static boolean isNarrowable(final Double value) {
+		final double d = value.doubleValue();
+		return (float) d == d || Double.isNaN(d);
+	}
+
+	/**
+	 * Encode a Map in a given context. The bytes are written in the buffer.
+	 */
+	private void encodeMap(final BysantContext ctx, final Map<?, ?> map, final EncoderBuffer buffer) {
+		LOG.trace("encode({},map:{})", ctx, map);
 
 		final Encoding enc = ctx.getEncoding();
 		if (!(enc instanceof MapEncoding)) {
@@ -561,17 +778,22 @@ public class BysantEncoderImpl implements BysantEncoder {
 		} else if (map.size() == 0) {
 			buffer.put((byte) encodingCtx.emptyMapOpCode());
 		} else {
+			final BysantContext valueCtx = elementContext(map.values());
+			final boolean typed = valueCtx != BysantContext.GLOBAL;
 			final long size = map.size();
-			if (size < encodingCtx.tinyMapLimit()) {
-				final int opCode = encodingCtx.tinyUntypedMapOpCode();
+			if (size <= encodingCtx.tinyMapLimit()) {
+				final int opCode = typed ? encodingCtx.tinyTypedMapOpCode() : encodingCtx.tinyUntypedMapOpCode();
 
 				// encode the map size with the opcode
 				buffer.put((byte) (opCode + map.size() - 1));
 			} else {
-				buffer.put((byte) encodingCtx.largeUntypedMapOpCode());
+				buffer.put((byte) (typed ? encodingCtx.largeTypedMapOpCode() : encodingCtx.largeUntypedMapOpCode()));
 				// encode the map size
 				encodeNumber(BysantContext.UINTS_AND_STRS, (long) (map.size() - encodingCtx.tinyMapLimit() - 1), buffer);
 			}
+			if (typed) {
+				buffer.put((byte) valueCtx.getId());
+			}
 			// encode the map body
 			for (final Map.Entry<?, ?> entry : map.entrySet()) {
 
@@ -579,7 +801,8 @@ public class BysantEncoderImpl implements BysantEncoder {
 				final Object key = entry.getKey();
 				if (key instanceof Integer) {
 					encodeObj(BysantContext.UINTS_AND_STRS, ((Integer) key).longValue(), buffer);
-				} else if (key instanceof String || key instanceof ByteBuffer[] || key instanceof byte[] || key instanceof ByteBuffer) {
+				} else if (key instanceof String || key instanceof ByteBuffer[] || key instanceof byte[] || key instanceof ByteBuffer
+						|| key instanceof Utf8Slice) {
 					encodeObj(BysantContext.UINTS_AND_STRS, key, buffer);
 				} else {
 					throw new IllegalArgumentException("map key should be a unsigned integer or a string");
@@ -587,16 +810,7 @@ public class BysantEncoderImpl implements BysantEncoder {
 
 				// value
 				final Object value = entry.getValue();
-				encodeObj(BysantContext.GLOBAL, value, buffer);
-			}
-		}
-
-		if (LOG.isTraceEnabled()) {
-			final int wrote = buffer.position() - pos;
-			if (wrote == byteSize) {
-				LOG.trace("wrote {} bytes", wrote);
-			} else {
-				LOG.error("BUG ! wrote {} bytes, on {} supposed", wrote, byteSize);
+				encodeObj(valueCtx, value, buffer);
 			}
 		}
 	}
@@ -604,15 +818,8 @@ public class BysantEncoderImpl implements BysantEncoder {
 	/**
 	 * Encode a Long in a given context. The bytes are written in the buffer.
 	 */
-	private void encodeNumber(final BysantContext ctx, final Number value, final ByteBuffer buffer) {
-		int pos = 0;
-		int byteSize = 0;
-		if (LOG.isTraceEnabled()) {
-			LOG.trace("encodeNumber({},number:{})", ctx, value);
-			pos = buffer.position();
-			byteSize = guessSizeNumber(ctx, value);
-			LOG.trace("byteSize = {}", byteSize);
-		}
+	private void encodeNumber(final BysantContext ctx, final Number value, final EncoderBuffer buffer) {
+		LOG.trace("encodeNumber({},number:{})", ctx, value);
 
 		final Encoding enc = ctx.getEncoding();
 
@@ -665,8 +872,13 @@ public class BysantEncoderImpl implements BysantEncoder {
 					buffer.put((byte) encodingCtx.float32opCode());
 					buffer.putFloat(value.floatValue());
 				} else if (value instanceof Double) {
-					buffer.put((byte) encodingCtx.float64opCode());
-					buffer.putDouble(value.doubleValue());
+					if (compact && isNarrowable((Double) value)) {
+						buffer.put((byte) encodingCtx.float32opCode());
+						buffer.putFloat(value.floatValue());
+					} else {
+						buffer.put((byte) encodingCtx.float64opCode());
+						buffer.putDouble(value.doubleValue());
+					}
 				} else {
 					if (Integer.MIN_VALUE <= value.longValue() && value.longValue() <= Integer.MAX_VALUE) {
 						final int intValue = value.intValue();
@@ -705,17 +917,25 @@ public class BysantEncoderImpl implements BysantEncoder {
 					}
 				}
 			}
-		} else {
-			throw new M3daCodecServiceRuntimeException("cannot encode a number in the context " + ctx);
-		}
-
-		if (LOG.isTraceEnabled()) {
-			final int wrote = buffer.position() - pos;
-			if (wrote == byteSize) {
-				LOG.trace("wrote {} bytes", wrote);
+		} else if (enc instanceof FixedWidthEncoding) {
+			// no OPCODE, only the value
+			final FixedWidthEncoding encodingCtx = (FixedWidthEncoding) enc;
+			if (value == null) {
+				throw new M3daCodecServiceRuntimeException("cannot encode a null number in the context " + ctx);
+			}
+			if (!encodingCtx.isFloatingPoint()) {
+				if (value instanceof Float || value instanceof Double || value.longValue() < Integer.MIN_VALUE
+						|| value.longValue() > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("not a 32 bits integer : " + value + " in " + ctx + " context");
+				}
+				buffer.putInt(value.intValue());
+			} else if (encodingCtx.width() == 4) {
+				buffer.putFloat(value.floatValue());
 			} else {
-				LOG.error("BUG ! wrote {} bytes, on {} supposed", wrote, byteSize);
+				buffer.putDouble(value.doubleValue());
 			}
+		} else {
+			throw new M3daCodecServiceRuntimeException("cannot encode a number in the context " + ctx);
 		}
 	}
 
@@ -728,15 +948,8 @@ public class BysantEncoderImpl implements BysantEncoder {
 	/**
 	 * Encode a String in a given context. The bytes are written in the buffer.
 	 */
-	private void encodeString(final BysantContext ctx, final String value, final ByteBuffer buffer) {
-		int pos = 0;
-		int byteSize = 0;
-		if (LOG.isTraceEnabled()) {
-			LOG.trace("encode({},string:{})", ctx, value);
-			pos = buffer.position();
-			byteSize = guessSizeString(ctx, value);
-			LOG.trace("byteSize : {}", byteSize);
-		}
+	private void encodeString(final BysantContext ctx, final String value, final EncoderBuffer buffer) {
+		LOG.trace("encode({},string:{})", ctx, value);
 
 		StringEncoding encodingCtx;
 
@@ -749,77 +962,92 @@ public class BysantEncoderImpl implements BysantEncoder {
 
 		if (value == null) {
 			buffer.put((byte) NULL);
+		} else if ((long) value.length() * 3 <= encodingCtx.largeStrLimit()) {
+			// the UTF-8 length is between length and 3 x length : reserve the longest header, write the string, and
+			// patch the header once the length is known
+			final int headerSize = stringHeaderSize(encodingCtx, value.length() * 3);
+			final int start = buffer.position();
+			buffer.ensure(headerSize);
+			buffer.position(start + headerSize);
+			final int length = buffer.putUtf8(value);
+			final int end = buffer.position();
+
+			final int actualHeaderSize = stringHeaderSize(encodingCtx, length);
+			if (actualHeaderSize < headerSize) {
+				// rare : mostly non ASCII string, the reserved header was too long
+				buffer.move(start + headerSize, start + actualHeaderSize, length);
+			}
+			buffer.position(start);
+			encodeStringHeader(encodingCtx, length, buffer);
+			buffer.position(end - headerSize + actualHeaderSize);
 		} else {
-			byte[] rawUtf8;
-			int length;
+			final byte[] rawUtf8;
 			try {
 				rawUtf8 = value.getBytes("UTF8");
-				length = rawUtf8.length;
 			} catch (final UnsupportedEncodingException e) {
 				throw new M3daCodecServiceRuntimeException("no UTF8 charset", e);
 			}
-
-			if (length <= encodingCtx.tinyStrLimit()) {
-				// 1 BYTES length
-				buffer.put((byte) (encodingCtx.tinyStrOpeCode() + length));
-				// encode the string
-				buffer.put(rawUtf8);
-			} else if (length <= encodingCtx.smallStrLimit()) {
-				// 2 BYTES length
-				final int len = length - encodingCtx.tinyStrLimit() - 1;
-				buffer.putShort((short) ((len & 0xFF00) + (encodingCtx.smallStrOpeCode() << 8) + (len & 0x00FF)));
-				// encode the string
-				buffer.put(rawUtf8);
-			} else if (length <= encodingCtx.largeStrLimit()) {
-				// 3 BYTES length
-				final int len = length - encodingCtx.smallStrLimit() - 1;
-				buffer.put((byte) encodingCtx.largeStrOpeCode());
-				buffer.put((byte) ((len & 0x00FF00) >> 8));
-				buffer.put((byte) (len & 0x0000FF));
-				// encode the string
-				buffer.put(rawUtf8);
+			if (rawUtf8.length <= encodingCtx.largeStrLimit()) {
+				encodeStringHeader(encodingCtx, rawUtf8.length, buffer);
+				buffer.putStreamed(rawUtf8, 0, rawUtf8.length);
 			} else {
 				buffer.put((byte) encodingCtx.chunkedStrOpeCode());
 
 				int wrote = 0;
-				for (int i = 0; i < rawUtf8.length / 65535; i++) {
+				for (int i = 0; i < rawUtf8.length / MAX_STRING_CHUNK; i++) {
 					LOG.trace("writing chunk number {}", i);
-					buffer.putShort((short) 65535);
-					buffer.put(rawUtf8, wrote, 65535);
-					wrote += 65535;
+					buffer.putShort((short) MAX_STRING_CHUNK);
+					buffer.putStreamed(rawUtf8, wrote, MAX_STRING_CHUNK);
+					wrote += MAX_STRING_CHUNK;
 				}
 				final int remaining = rawUtf8.length - wrote;
-				LOG.trace("remaining : {} vs {}", remaining, buffer.remaining());
 				if (remaining > 0) {
 					buffer.putShort((short) remaining);
-					buffer.put(rawUtf8, wrote, remaining);
+					buffer.putStreamed(rawUtf8, wrote, remaining);
 				}
 				buffer.putShort((short) 0x00);
 			}
 		}
+	}
 
-		if (LOG.isTraceEnabled()) {
-			final int wrote = buffer.position() - pos;
-			if (wrote == byteSize) {
-				LOG.trace("wrote {} bytes", wrote);
-			} else {
-				LOG.error("BUG ! wrote {} bytes, on {} supposed", wrote, byteSize);
-			}
+	/**
+	 * @return the size of the OPCODE and length of a string of the given length, not chunked
+	 */
+	private static int stringHeaderSize(final StringEncoding encodingCtx, final int length) {
+		if (length <= encodingCtx.tinyStrLimit()) {
+			return 1;
+		} else if (length <= encodingCtx.smallStrLimit()) {
+			return 2;
+		} else {
+			return 3;
 		}
 	}
 
 	/**
-	 * Encode a Boolean in a given context. The bytes are written in the buffer.
+	 * Encode the OPCODE and length of a string (or a binary) of the given length, not chunked.
 	 */
-	private void encodeBoolean(final BysantContext ctx, final Boolean value, final ByteBuffer buffer) {
-		int pos = 0;
-		int byteSize = 0;
-		if (LOG.isTraceEnabled()) {
-			LOG.trace("encode({},boolean:{})", ctx, value);
-			pos = buffer.position();
-			byteSize = guessSizeBoolean(ctx, value);
-			LOG.trace("byteSize : {}", byteSize);
+	private static void encodeStringHeader(final StringEncoding encodingCtx, final int length, final EncoderBuffer buffer) {
+		if (length <= encodingCtx.tinyStrLimit()) {
+			// 1 BYTES length
+			buffer.put((byte) (encodingCtx.tinyStrOpeCode() + length));
+		} else if (length <= encodingCtx.smallStrLimit()) {
+			// 2 BYTES length
+			final int len = length - encodingCtx.tinyStrLimit() - 1;
+			buffer.putShort((short) ((len & 0xFF00) + (encodingCtx.smallStrOpeCode() << 8) + (len & 0x00FF)));
+		} else {
+			// 3 BYTES length
+			final int len = length - encodingCtx.smallStrLimit() - 1;
+			buffer.put((byte) encodingCtx.largeStrOpeCode());
+			buffer.put((byte) ((len & 0x00FF00) >> 8));
+			buffer.put((byte) (len & 0x0000FF));
 		}
+	}
+
+	/**
+	 * Encode a Boolean in a given context. The bytes are written in the buffer.
+	 */
+	private void encodeBoolean(final BysantContext ctx, final Boolean value, final EncoderBuffer buffer) {
+		LOG.trace("encode({},boolean:{})", ctx, value);
 
 		BooleanEncoding encodingCtx;
 
@@ -837,36 +1065,33 @@ public class BysantEncoderImpl implements BysantEncoder {
 		} else {
 			buffer.put((byte) encodingCtx.getFalseOpCode());
 		}
-
-		if (LOG.isTraceEnabled()) {
-			final int wrote = buffer.position() - pos;
-			if (wrote == byteSize) {
-				LOG.trace("wrote {} bytes", wrote);
-			} else {
-				LOG.error("BUG ! wrote {} bytes, on {} supposed", wrote, byteSize);
-			}
-		}
 	}
 
-	private void encodeBinary(final BysantContext ctx, final byte[] inputBuffer, final ByteBuffer buffer) {
-		encodeBinary(ctx, new ByteBuffer[] { ByteBuffer.wrap(inputBuffer) }, buffer);
+	private void encodeBinary(final BysantContext ctx, final byte[] inputBuffer, final EncoderBuffer buffer) {
+		LOG.trace("encode({},binary:{})", ctx, inputBuffer);
+
+		final Encoding enc = ctx.getEncoding();
+		if (!(enc instanceof StringEncoding)) {
+			throw new M3daCodecServiceRuntimeException("cannot encode a binary/string in the context " + ctx);
+		}
+		final StringEncoding encodingCtx = (StringEncoding) enc;
+		if (inputBuffer.length > encodingCtx.largeStrLimit()) {
+			encodeStreamedBinary(ctx, StreamedBinary.of(ByteBuffer.wrap(inputBuffer)), buffer);
+			return;
+		}
+		encodeStringHeader(encodingCtx, inputBuffer.length, buffer);
+		buffer.putStreamed(inputBuffer, 0, inputBuffer.length);
 	}
 
-	private void encodeBinary(final BysantContext ctx, final ByteBuffer inputBuffer, final ByteBuffer buffer) {
+	private void encodeBinary(final BysantContext ctx, final ByteBuffer inputBuffer, final EncoderBuffer buffer) {
 		encodeBinary(ctx, new ByteBuffer[] { inputBuffer }, buffer);
 	}
 
 	/**
-	 * Encode a String in a given context. The bytes are written in the buffer.
+	 * Encode a Binary in a given context. The bytes are written in the buffer, the input buffers are not consumed.
 	 */
-	private void encodeBinary(final BysantContext ctx, final ByteBuffer[] inputBuffers, final ByteBuffer buffer) {
-		int pos = 0;
-		int byteSize = 0;
-		if (LOG.isTraceEnabled()) {
-			LOG.trace("encode({},binary:{})", ctx, inputBuffers);
-			pos = buffer.position();
-			byteSize = guessSizeBinary(ctx, inputBuffers);
-		}
+	private void encodeBinary(final BysantContext ctx, final ByteBuffer[] inputBuffers, final EncoderBuffer buffer) {
+		LOG.trace("encode({},binary:{})", ctx, inputBuffers);
 
 		StringEncoding encodingCtx;
 
@@ -886,36 +1111,52 @@ public class BysantEncoderImpl implements BysantEncoder {
 				length += inBuff.remaining();
 			}
 
-			if (length <= encodingCtx.tinyStrLimit()) {
-				// 1 BYTES length
-				buffer.put((byte) (encodingCtx.tinyStrOpeCode() + length));
-			} else if (length <= encodingCtx.smallStrLimit()) {
-				// 2 BYTES length
-				final int len = length - encodingCtx.tinyStrLimit() - 1;
-				buffer.putShort((short) ((len & 0xFF00) + (encodingCtx.smallStrOpeCode() << 8) + (len & 0x00FF)));
-			} else if (length <= encodingCtx.largeStrLimit()) {
-				// 3 BYTES length
-				final int len = length - encodingCtx.smallStrLimit() - 1;
-				buffer.put((byte) encodingCtx.largeStrOpeCode());
-				buffer.put((byte) ((len & 0xFF0000) >> 16));
-				buffer.put((byte) ((len & 0x00FF00) >> 8));
-				buffer.put((byte) (len & 0x0000FF));
-			} else {
-				throw new IllegalStateException("not implemented chunked-strings");
+			if (length > encodingCtx.largeStrLimit()) {
+				encodeStreamedBinary(ctx, StreamedBinary.of(inputBuffers), buffer);
+				return;
 			}
+			encodeStringHeader(encodingCtx, length, buffer);
 			// encode the string
 			for (final ByteBuffer inBuff : inputBuffers) {
-				buffer.put(inBuff);
+				buffer.putStreamed(inBuff);
 			}
 		}
+	}
 
-		if (LOG.isTraceEnabled()) {
-			final int wrote = buffer.position() - pos;
-			if (wrote == byteSize) {
-				LOG.trace("wrote {} bytes", wrote);
-			} else {
-				LOG.error("BUG ! wrote {} bytes, on {} supposed", wrote, byteSize);
+	/**
+	 * Encode a streamed Binary as a chunked string in a given context. The value is read chunk by chunk directly in the
+	 * buffer, the length of each chunk is patched once it's read.
+	 */
+	private void encodeStreamedBinary(final BysantContext ctx, final StreamedBinary value, final EncoderBuffer buffer) {
+		LOG.trace("encode({},streamed binary:{})", ctx, value);
+
+		final Encoding enc = ctx.getEncoding();
+		if (!(enc instanceof StringEncoding)) {
+			throw new M3daCodecServiceRuntimeException("cannot encode a binary/string in the context " + ctx);
+		}
+		buffer.put((byte) ((StringEncoding) enc).chunkedStrOpeCode());
+		try {
+			int length = MAX_STRING_CHUNK;
+			while (length == MAX_STRING_CHUNK) {
+				// reserve the chunk length
+				final int start = buffer.position();
+				buffer.putShort((short) 0);
+				length = buffer.putFrom(value, MAX_STRING_CHUNK);
+				if (length == 0) {
+					// the previous chunk was the last one
+					buffer.position(start);
+					break;
+				}
+				final int end = buffer.position();
+				buffer.position(start);
+				buffer.putShort((short) length);
+				buffer.position(end);
+				buffer.flushChunks();
 			}
+		} catch (final IOException e) {
+			throw new M3daCodecServiceRuntimeException("cannot read the streamed binary", e);
 		}
+		// end of the chunked string
+		buffer.putShort((short) 0);
 	}
 }
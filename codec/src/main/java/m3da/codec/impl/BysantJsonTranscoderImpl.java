@@ -0,0 +1,451 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+import m3da.codec.BysantJsonTranscoder;
+import m3da.codec.BysantReader;
+import m3da.codec.BysantReader.Token;
+import m3da.codec.DecoderException;
+import m3da.codec.DecoderPolicy;
+import m3da.codec.EncoderOutput;
+import m3da.codec.impl.encoding.ListEncoding;
+import m3da.codec.impl.encoding.MapEncoding;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * The bysant/JSON transcoder, walking the bysant stream with a {@link BysantReaderImpl} and writing the bysant values
+ * with the {@link BysantEncoderImpl}, in the buffer of the calling thread. State-less and thread safe.
+ */
+public class BysantJsonTranscoderImpl implements BysantJsonTranscoder {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final BysantEncoderImpl encoder = new BysantEncoderImpl();
+
+    /** the limits of the transcoded bysant streams, also applied to the size of the expanded vectors */
+    private final DecoderPolicy policy;
+
+    public BysantJsonTranscoderImpl() {
+        this(DecoderPolicy.DEFAULT);
+    }
+
+    /**
+     * @param policy the limits of the transcoded bysant streams : size of the top level values, nesting, size of the
+     *        containers and of the expanded vectors
+     */
+    public BysantJsonTranscoderImpl(final DecoderPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void toJson(final ByteBuffer bysant, final JsonGenerator json) throws DecoderException, IOException {
+        writeStream(bysant, json, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void toJson(final ByteBuffer bysant, final Writer json) throws DecoderException, IOException {
+        final JsonGenerator generator = jsonFactory.createJsonGenerator(json);
+        writeStream(bysant, generator, 0);
+        generator.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void toBysant(final JsonParser json, final EncoderOutput output) throws IOException {
+        final EncoderBuffer buffer = EncoderBuffer.acquire(output, BysantEncoderImpl.DEFAULT_CHUNK_SIZE);
+        try {
+            writeStream(json, buffer);
+            buffer.flushAll();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer toBysant(final Reader json) throws IOException {
+        final JsonParser parser = jsonFactory.createJsonParser(json);
+        final EncoderBuffer buffer = EncoderBuffer.acquire();
+        try {
+            writeStream(parser, buffer);
+            return buffer.toByteBuffer();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void toBysantMessage(final String path, final Long ticketId, final JsonParser body,
+            final EncoderOutput output) throws IOException {
+        final EncoderBuffer buffer = EncoderBuffer.acquire(output, BysantEncoderImpl.DEFAULT_CHUNK_SIZE);
+        try {
+            final JsonToken token = next(body);
+            if (token != JsonToken.START_OBJECT) {
+                throw new JsonParseException("the body of a message must be a JSON object, not " + token,
+                        body.getCurrentLocation());
+            }
+            encoder.encodeMessageHeader(BysantContext.GLOBAL, path, ticketId, buffer);
+            writeValue(body, token, BysantContext.LIST_AND_MAPS, buffer);
+            buffer.flushAll();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    // bysant to JSON
+
+    /**
+     * write the values of a bysant stream as a JSON array
+     *
+     * @param depth the number of containers enclosing the stream (for an envelope payload)
+     */
+    private void writeStream(final ByteBuffer bysant, final JsonGenerator json, final int depth)
+            throws DecoderException, IOException {
+        final BysantReader reader = new BysantReaderImpl(BysantContext.GLOBAL, true, policy);
+        reader.setInput(bysant.duplicate());
+        json.writeStartArray();
+        for (Token token = reader.nextToken(); token != Token.NEED_MORE_INPUT; token = reader.nextToken()) {
+            writeValue(reader, token, json, depth);
+        }
+        reader.finish();
+        json.writeEndArray();
+    }
+
+    /** the next token of a complete stream */
+    private static Token next(final BysantReader reader) throws DecoderException {
+        final Token token = reader.nextToken();
+        if (token == Token.NEED_MORE_INPUT) {
+            throw new DecoderException("truncated bysant stream");
+        }
+        return token;
+    }
+
+    private static void expect(final BysantReader reader, final Token expected) throws DecoderException {
+        final Token token = next(reader);
+        if (token != expected) {
+            throw new DecoderException("expected " + expected + " but was " + token);
+        }
+    }
+
+    /**
+     * write the value started by the current token
+     *
+     * @param depth the number of containers enclosing the value, across the nested envelope payloads
+     */
+    private void writeValue(final BysantReader reader, final Token token, final JsonGenerator json, final int depth)
+            throws DecoderException, IOException {
+        switch (token) {
+        case NULL:
+            json.writeNull();
+            break;
+        case BOOLEAN:
+            json.writeBoolean(reader.readBoolean());
+            break;
+        case INTEGER:
+            json.writeNumber(reader.readLong());
+            break;
+        case FLOAT:
+            final Number number = reader.readNumber();
+            if (number instanceof Float) {
+                // keep the shortest representation of the 32 bits float
+                json.writeNumber(number.floatValue());
+            } else {
+                json.writeNumber(number.doubleValue());
+            }
+            break;
+        case STRING:
+            json.writeString(reader.readString());
+            break;
+        case START_LIST:
+            checkDepth(depth);
+            json.writeStartArray();
+            for (Token element = next(reader); element != Token.END_LIST; element = next(reader)) {
+                writeValue(reader, element, json, depth + 1);
+            }
+            json.writeEndArray();
+            break;
+        case START_MAP:
+            checkDepth(depth);
+            json.writeStartObject();
+            for (Token key = next(reader); key != Token.END_MAP; key = next(reader)) {
+                if (key == Token.STRING) {
+                    json.writeFieldName(reader.readString());
+                } else if (key == Token.INTEGER) {
+                    json.writeFieldName(Long.toString(reader.readLong()));
+                } else {
+                    throw new DecoderException("invalid map key : " + key);
+                }
+                writeValue(reader, next(reader), json, depth + 1);
+            }
+            json.writeEndObject();
+            break;
+        case START_MESSAGE:
+            checkDepth(depth);
+            json.writeStartObject();
+            writeField("path", reader, json, depth + 1);
+            writeField("ticketId", reader, json, depth + 1);
+            writeField("body", reader, json, depth + 1);
+            expect(reader, Token.END_OBJECT);
+            json.writeEndObject();
+            break;
+        case START_RESPONSE:
+            checkDepth(depth);
+            json.writeStartObject();
+            writeField("ticketId", reader, json, depth + 1);
+            writeField("status", reader, json, depth + 1);
+            writeField("message", reader, json, depth + 1);
+            expect(reader, Token.END_OBJECT);
+            json.writeEndObject();
+            break;
+        case START_ENVELOPE:
+            checkDepth(depth);
+            json.writeStartObject();
+            writeField("header", reader, json, depth + 1);
+            json.writeFieldName("payload");
+            final Token payload = next(reader);
+            if (payload == Token.STRING) {
+                // a new reader for the payload : its depth is checked here
+                writeStream(reader.readStringSlice(), json, depth + 1);
+            } else {
+                writeValue(reader, payload, json, depth + 1);
+            }
+            writeField("footer", reader, json, depth + 1);
+            expect(reader, Token.END_OBJECT);
+            json.writeEndObject();
+            break;
+        case START_DELTAS_VECTOR:
+            writeDeltasVector(reader, json);
+            break;
+        case START_QUASI_PERIODIC_VECTOR:
+            writeQuasiPeriodicVector(reader, json);
+            break;
+        default:
+            throw new DecoderException("unexpected token : " + token);
+        }
+    }
+
+    private void writeField(final String name, final BysantReader reader, final JsonGenerator json, final int depth)
+            throws DecoderException, IOException {
+        json.writeFieldName(name);
+        writeValue(reader, next(reader), json, depth);
+    }
+
+    /** reject a container nested in more than the maximum depth of the policy */
+    private void checkDepth(final int depth) throws DecoderException {
+        if (depth >= policy.getMaxDepth()) {
+            throw new DecoderException("too many nested containers, more than " + policy.getMaxDepth());
+        }
+    }
+
+    /**
+     * Expand a deltas vector (factor, start and list of deltas), with the arithmetic of
+     * {@link m3da.codec.dto.M3daDeltasVector#flatIterator()}.
+     */
+    private void writeDeltasVector(final BysantReader reader, final JsonGenerator json) throws DecoderException,
+            IOException {
+        final Token factor = next(reader);
+        checkNumber(factor);
+        final long longFactor = reader.readLong();
+        final double doubleFactor = reader.readDouble();
+        final Token start = next(reader);
+        checkNumber(start);
+
+        final VectorWriter values = new VectorWriter(json, start == Token.FLOAT);
+        json.writeStartArray();
+        values.write(longFactor * reader.readLong(), doubleFactor * reader.readDouble());
+        expect(reader, Token.START_LIST);
+        for (Token delta = next(reader); delta != Token.END_LIST; delta = next(reader)) {
+            checkNumber(delta);
+            values.floating |= delta == Token.FLOAT;
+            values.write(reader.readLong() * longFactor + values.lastLong, reader.readDouble() * doubleFactor
+                    + values.lastDouble);
+        }
+        expect(reader, Token.END_OBJECT);
+        json.writeEndArray();
+    }
+
+    /**
+     * Expand a quasi periodic vector (period, start and list of shifts), with the arithmetic of
+     * {@link m3da.codec.dto.M3daQuasiPeriodicVector#flatIterator()} : the shifts are pairs of (number of exact
+     * periods, shift of the next period), followed by the number of exact periods up to the end.
+     */
+    private void writeQuasiPeriodicVector(final BysantReader reader, final JsonGenerator json)
+            throws DecoderException, IOException {
+        final Token period = next(reader);
+        checkNumber(period);
+        final long longPeriod = reader.readLong();
+        final double doublePeriod = reader.readDouble();
+        final Token start = next(reader);
+        checkNumber(start);
+
+        final VectorWriter values = new VectorWriter(json, start == Token.FLOAT);
+        json.writeStartArray();
+        values.write(reader.readLong(), reader.readDouble());
+        expect(reader, Token.START_LIST);
+        boolean repeat = true;
+        for (Token shift = next(reader); shift != Token.END_LIST; shift = next(reader)) {
+            checkNumber(shift);
+            if (repeat) {
+                final long count = reader.readLong();
+                for (long i = 0; i < count; i++) {
+                    values.write(values.lastLong + longPeriod, values.lastDouble + doublePeriod);
+                }
+            } else {
+                values.floating |= shift == Token.FLOAT;
+                values.write(values.lastLong + longPeriod + reader.readLong(), values.lastDouble + doublePeriod
+                        + reader.readDouble());
+            }
+            repeat = !repeat;
+        }
+        expect(reader, Token.END_OBJECT);
+        json.writeEndArray();
+    }
+
+    private static void checkNumber(final Token token) throws DecoderException {
+        if (token != Token.INTEGER && token != Token.FLOAT) {
+            throw new DecoderException("expected a number in a vector but was " + token);
+        }
+    }
+
+    /**
+     * The values of an expanded vector, computed in both long and double arithmetic since the type of the values is
+     * only known once a floating point delta is read.
+     */
+    private final class VectorWriter {
+
+        private final JsonGenerator json;
+
+        private boolean floating;
+
+        private long lastLong;
+
+        private double lastDouble;
+
+        private int size = 0;
+
+        VectorWriter(final JsonGenerator json, final boolean floating) {
+            this.json = json;
+            this.floating = floating;
+        }
+
+        void write(final long longValue, final double doubleValue) throws DecoderException, IOException {
+            if (++size > policy.getMaxCollectionLength()) {
+                throw new DecoderException("expanded vector longer than " + policy.getMaxCollectionLength());
+            }
+            lastLong = longValue;
+            lastDouble = doubleValue;
+            if (floating) {
+                json.writeNumber(doubleValue);
+            } else {
+                json.writeNumber(longValue);
+            }
+        }
+    }
+
+    // JSON to bysant
+
+    /** write the elements of a top level array as the values of the stream, or any other value */
+    private void writeStream(final JsonParser json, final EncoderBuffer buffer) throws IOException {
+        final JsonToken token = next(json);
+        if (token == JsonToken.START_ARRAY) {
+            for (JsonToken element = next(json); element != JsonToken.END_ARRAY; element = next(json)) {
+                writeValue(json, element, BysantContext.GLOBAL, buffer);
+            }
+        } else {
+            writeValue(json, token, BysantContext.GLOBAL, buffer);
+        }
+    }
+
+    /** the next token of a complete JSON value */
+    private static JsonToken next(final JsonParser json) throws IOException {
+        final JsonToken token = json.nextToken();
+        if (token == null) {
+            throw new JsonParseException("unexpected end of JSON input", json.getCurrentLocation());
+        }
+        return token;
+    }
+
+    /** write the JSON value started by the current token */
+    private void writeValue(final JsonParser json, final JsonToken token, final BysantContext ctx,
+            final EncoderBuffer buffer) throws IOException {
+        switch (token) {
+        case START_OBJECT:
+            buffer.flushChunks();
+            buffer.put((byte) ((MapEncoding) ctx.getEncoding()).nullTerminatedUntypedMapOpCode());
+            for (JsonToken field = next(json); field != JsonToken.END_OBJECT; field = next(json)) {
+                encoder.encodeValue(BysantContext.UINTS_AND_STRS, json.getCurrentName(), buffer);
+                writeValue(json, next(json), BysantContext.GLOBAL, buffer);
+            }
+            buffer.put((byte) BysantEncoderImpl.NULL);
+            break;
+        case START_ARRAY:
+            buffer.flushChunks();
+            buffer.put((byte) ((ListEncoding) ctx.getEncoding()).nullTerminatedUntypedListOpCode());
+            for (JsonToken element = next(json); element != JsonToken.END_ARRAY; element = next(json)) {
+                if (element == JsonToken.VALUE_NULL) {
+                    throw new JsonParseException("null array element : the null value terminates a bysant list",
+                            json.getCurrentLocation());
+                }
+                writeValue(json, element, BysantContext.GLOBAL, buffer);
+            }
+            buffer.put((byte) BysantEncoderImpl.NULL);
+            break;
+        case VALUE_STRING:
+            encoder.encodeValue(ctx, json.getText(), buffer);
+            break;
+        case VALUE_NUMBER_INT:
+            if (json.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                // out of the 64 bits range
+                encoder.encodeValue(ctx, json.getDoubleValue(), buffer);
+            } else {
+                encoder.encodeValue(ctx, json.getLongValue(), buffer);
+            }
+            break;
+        case VALUE_NUMBER_FLOAT:
+            encoder.encodeValue(ctx, json.getDoubleValue(), buffer);
+            break;
+        case VALUE_TRUE:
+            encoder.encodeValue(ctx, Boolean.TRUE, buffer);
+            break;
+        case VALUE_FALSE:
+            encoder.encodeValue(ctx, Boolean.FALSE, buffer);
+            break;
+        case VALUE_NULL:
+            encoder.encodeValue(ctx, null, buffer);
+            break;
+        default:
+            throw new JsonParseException("unexpected JSON token : " + token, json.getCurrentLocation());
+        }
+    }
+}
@@ -0,0 +1,1145 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import m3da.codec.BysantReader;
+import m3da.codec.ByteBuffers;
+import m3da.codec.ChunkedStringSink;
+import m3da.codec.DecoderException;
+import m3da.codec.DecoderPolicy;
+import m3da.codec.impl.encoding.FixedWidthEncoding;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The bysant pull parser, also used by {@link BysantDecoderImpl} for building the decoded objects. <br>
+ * WARNING : NOT THREAD SAFE.<br>
+ * The reader is a resumable state machine : when a token is split across several input buffers, the parsing state
+ * (stack of the opened containers, partially read number or string) is kept until the next buffer is pushed, so each
+ * received byte is decoded only once and the input buffers are never concatenated.
+ * <p>
+ * A slicing reader returns the strings contiguous in an input buffer as slices of it, else the strings are copied in
+ * buffers owning their content.
+ */
+public class BysantReaderImpl implements BysantReader {
+
+    private static final long FOUR_BYTES_MASK = 0xFFFFFFFFL;
+
+    private static final int ONE_BYTE_MASK = 0xFF;
+
+    private static final Logger LOG = LoggerFactory.getLogger(BysantReaderImpl.class);
+
+    // states of the token being decoded
+
+    /** waiting for the opcode of the next value */
+    private static final int READ_OPCODE = 0;
+
+    /** waiting for the bytes following a number opcode */
+    private static final int READ_NUMBER = 1;
+
+    /** waiting for the length bytes following a string opcode */
+    private static final int READ_STRING_LENGTH = 2;
+
+    /** filling the content of a string */
+    private static final int READ_STRING = 3;
+
+    /** waiting for the length of the next chunk of a chunked string */
+    private static final int READ_CHUNK_LENGTH = 4;
+
+    /** filling the content of a chunk of a chunked string */
+    private static final int READ_CHUNK = 5;
+
+    /** any kind of value is accepted */
+    private static final int ANY = -1;
+
+    /** return slices of the input buffers instead of copying the strings */
+    private final boolean sliceStrings;
+
+    /** the limits of the decoded stream */
+    private final DecoderPolicy policy;
+
+    /** bytes consumed since the start of the current top level value */
+    private long valueBytes = 0;
+
+    /** the context used for the top level objects of the stream */
+    private BysantContext rootContext;
+
+    /** the buffer currently decoded */
+    private ByteBuffer input;
+
+    /** stack of the containers currently decoded, the frames are reused */
+    private Frame[] stack = new Frame[8];
+
+    /** number of opened containers */
+    private int depth = 0;
+
+    /** number of containers to close for finishing the current skip */
+    private int skipDepth = 0;
+
+    /** state of the token currently decoded */
+    private int state = READ_OPCODE;
+
+    /** decoding routine of the value currently decoded */
+    private byte routine;
+
+    /** base value of the opcode currently decoded */
+    private int base;
+
+    /** number of bytes needed for finishing the number or length currently decoded */
+    private int needed;
+
+    /** the bytes of a number or length split between two buffers */
+    private final byte[] scratch = new byte[8];
+
+    /** number of bytes in the scratch buffer */
+    private int scratchLength = 0;
+
+    /** the big endian value of the last read bytes */
+    private long raw;
+
+    /** content of the string (or string chunk) currently copied, <code>null</code> if skipped */
+    private byte[] str;
+
+    /** length of the string (or string chunk) currently copied or skipped */
+    private int strLength;
+
+    /** number of bytes already copied (or skipped) in the current string */
+    private int strPosition;
+
+    /** already decoded chunks of the current chunked string */
+    private List<ByteBuffer> chunks;
+
+    /** receives the content of the chunked strings, <code>null</code> for accumulating them */
+    private ChunkedStringSink chunkSink;
+
+    /** the current chunked string is written to the sink */
+    private boolean streaming = false;
+
+    /** the current string token is a chunked string written to the sink */
+    private boolean streamed = false;
+
+    /** the value returned by the sink for the current string token */
+    private Object streamedValue;
+
+    // the current token
+
+    private Token token = null;
+
+    /** decoding routine of the current number token */
+    private byte numberRoutine;
+
+    private long longValue;
+
+    private double doubleValue;
+
+    private boolean booleanValue;
+
+    private ByteBuffer stringValue;
+
+    /** size of the container started by the current token */
+    private int containerSize;
+
+    /**
+     * Create a slicing reader for a stream of objects encoded in the global context.
+     */
+    public BysantReaderImpl() {
+        this(BysantContext.GLOBAL, true);
+    }
+
+    /**
+     * Create a reader.
+     *
+     * @param rootContext the context used for decoding the top level objects of the stream
+     * @param sliceStrings if <code>true</code> the strings are slices of the input buffers
+     */
+    public BysantReaderImpl(final BysantContext rootContext, final boolean sliceStrings) {
+        this(rootContext, sliceStrings, DecoderPolicy.DEFAULT);
+    }
+
+    /**
+     * Create a reader.
+     *
+     * @param rootContext the context used for decoding the top level objects of the stream
+     * @param sliceStrings if <code>true</code> the strings are slices of the input buffers
+     * @param policy the limits of the stream : size of the top level values, nesting, size of the containers
+     */
+    public BysantReaderImpl(final BysantContext rootContext, final boolean sliceStrings, final DecoderPolicy policy) {
+        this.rootContext = rootContext;
+        this.sliceStrings = sliceStrings;
+        this.policy = policy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setChunkedStringSink(final ChunkedStringSink sink) {
+        this.chunkSink = sink;
+    }
+
+    /**
+     * Change the context used for decoding the top level objects of the stream.
+     */
+    public void setRootContext(final BysantContext context) {
+        this.rootContext = context;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setInput(final ByteBuffer buffer) {
+        this.input = buffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Token nextToken() throws DecoderException {
+        if (skipDepth > 0 && !skip()) {
+            token = Token.NEED_MORE_INPUT;
+            return token;
+        }
+        stringValue = null;
+        token = advance();
+        return token;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Token currentToken() {
+        return token;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readLong() {
+        if (token == Token.FLOAT) {
+            return (long) doubleValue;
+        }
+        checkToken(Token.INTEGER);
+        return longValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double readDouble() {
+        if (token == Token.INTEGER) {
+            return longValue;
+        }
+        checkToken(Token.FLOAT);
+        return doubleValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Number readNumber() {
+        switch (numberRoutine) {
+        case OpCodeTable.INT64:
+        case OpCodeTable.UINT32:
+            checkToken(Token.INTEGER);
+            return Long.valueOf(longValue);
+        case OpCodeTable.FLOAT32:
+            checkToken(Token.FLOAT);
+            return Float.valueOf((float) doubleValue);
+        case OpCodeTable.FLOAT64:
+            checkToken(Token.FLOAT);
+            return Double.valueOf(doubleValue);
+        default:
+            checkToken(Token.INTEGER);
+            return Integer.valueOf((int) longValue);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean readBoolean() {
+        checkToken(Token.BOOLEAN);
+        return booleanValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer readStringSlice() {
+        checkToken(Token.STRING);
+        if (stringValue == null) {
+            return null;
+        }
+        return sliceStrings ? stringValue.asReadOnlyBuffer() : stringValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isStreamedString() {
+        checkToken(Token.STRING);
+        return streamed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object readStreamedString() {
+        checkToken(Token.STRING);
+        return streamedValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String readString() {
+        checkToken(Token.STRING);
+        return toString(stringValue);
+    }
+
+    /**
+     * @return the content of the current string token, a writable slice when the reader is slicing
+     */
+    ByteBuffer stringValue() {
+        return stringValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int enterMap() {
+        checkToken(Token.START_MAP);
+        return containerSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int enterList() {
+        checkToken(Token.START_LIST);
+        return containerSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean skipValue() throws DecoderException {
+        if (token == null) {
+            throw new IllegalStateException("no current token");
+        }
+        switch (token) {
+        case START_LIST:
+        case START_MAP:
+        case START_ENVELOPE:
+        case START_MESSAGE:
+        case START_RESPONSE:
+        case START_DELTAS_VECTOR:
+        case START_QUASI_PERIODIC_VECTOR:
+            skipDepth = 1;
+            return skip();
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void finish() throws DecoderException {
+        if (state != READ_OPCODE || depth > 0 || skipDepth > 0) {
+            throw new DecoderException("trailling bytes in the bysant accumulator : uncomplete transmition ?");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        input = null;
+        depth = 0;
+        skipDepth = 0;
+        state = READ_OPCODE;
+        scratchLength = 0;
+        str = null;
+        chunks = null;
+        streaming = false;
+        streamed = false;
+        streamedValue = null;
+        token = null;
+        stringValue = null;
+        valueBytes = 0;
+    }
+
+    /** @return the number of opened containers */
+    int depth() {
+        return depth;
+    }
+
+    private void checkToken(final Token expected) {
+        if (token != expected) {
+            throw new IllegalStateException("current token is " + token + ", not " + expected);
+        }
+    }
+
+    /** consume the tokens until the end of the skipped value, return <code>false</code> if we need more input */
+    private boolean skip() throws DecoderException {
+        while (skipDepth > 0) {
+            final Token skipped = advance();
+            switch (skipped) {
+            case NEED_MORE_INPUT:
+                return false;
+            case START_LIST:
+            case START_MAP:
+            case START_ENVELOPE:
+            case START_MESSAGE:
+            case START_RESPONSE:
+            case START_DELTAS_VECTOR:
+            case START_QUASI_PERIODIC_VECTOR:
+                skipDepth++;
+                break;
+            case END_LIST:
+            case END_MAP:
+            case END_OBJECT:
+                skipDepth--;
+                token = skipped;
+                break;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    /** decode the input up to the end of the next token, counting the consumed bytes */
+    private Token advance() throws DecoderException {
+        final int before = input == null ? 0 : input.position();
+        final Token next = advanceToken();
+        if (input != null) {
+            valueBytes += input.position() - before;
+            if (valueBytes > policy.getMaxEnvelopeSize()) {
+                throw new DecoderException("value too large, more than " + policy.getMaxEnvelopeSize() + " bytes");
+            }
+        }
+        if (depth == 0 && next != Token.NEED_MORE_INPUT) {
+            // a top level value is complete
+            valueBytes = 0;
+        }
+        return next;
+    }
+
+    /** decode the input up to the end of the next token */
+    private Token advanceToken() throws DecoderException {
+        for (;;) {
+            switch (state) {
+            case READ_OPCODE:
+                Frame frame = null;
+                if (depth > 0) {
+                    frame = stack[depth - 1];
+                    if (frame.isComplete()) {
+                        depth--;
+                        return frame.endToken();
+                    }
+                    if (frame.phase == Frame.PHASE_CONTEXT) {
+                        if (input == null || !input.hasRemaining()) {
+                            return Token.NEED_MORE_INPUT;
+                        }
+                        frame.setElementContext(input.get() & ONE_BYTE_MASK);
+                        return startToken(frame);
+                    }
+                }
+                if (input == null || !input.hasRemaining()) {
+                    return Token.NEED_MORE_INPUT;
+                }
+                final BysantContext context = frame == null ? rootContext : frame.nextContext();
+                if (context.getOpCodes() == null) {
+                    // fixed width number, without OPCODE
+                    startFixedWidth(context, frame);
+                    break;
+                }
+                final Token started;
+                if (frame == null) {
+                    started = startValue(input.get() & ONE_BYTE_MASK, context, ANY, null);
+                } else {
+                    started = startValue(input.get() & ONE_BYTE_MASK, context, frame.nextKind(), frame);
+                }
+                if (started != null) {
+                    return started;
+                }
+                break;
+            case READ_NUMBER:
+                if (!readRaw()) {
+                    return Token.NEED_MORE_INPUT;
+                }
+                state = READ_OPCODE;
+                final Token number = numberDecoded(raw);
+                if (number != null) {
+                    return number;
+                }
+                break;
+            case READ_STRING_LENGTH:
+                if (!readRaw()) {
+                    return Token.NEED_MORE_INPUT;
+                }
+                if (startStringContent(base + (int) raw, false)) {
+                    return Token.STRING;
+                }
+                break;
+            case READ_STRING:
+                if (!fillString()) {
+                    return Token.NEED_MORE_INPUT;
+                }
+                stringDecoded(str == null ? null : ByteBuffer.wrap(str), false);
+                return Token.STRING;
+            case READ_CHUNK_LENGTH:
+                if (!readRaw()) {
+                    return Token.NEED_MORE_INPUT;
+                }
+                LOG.trace("chunk size : {}", raw);
+                if (raw == 0) {
+                    state = READ_OPCODE;
+                    if (streaming) {
+                        streaming = false;
+                        streamed = true;
+                        stringValue = null;
+                        streamedValue = chunkSink.end();
+                    } else {
+                        streamed = false;
+                        stringValue = concatChunks();
+                    }
+                    return Token.STRING;
+                }
+                startStringContent((int) raw, true);
+                break;
+            case READ_CHUNK:
+                if (!fillString()) {
+                    return Token.NEED_MORE_INPUT;
+                }
+                stringDecoded(str == null ? null : ByteBuffer.wrap(str), true);
+                break;
+            default:
+                throw new IllegalStateException("unknown reader state : " + state);
+            }
+        }
+    }
+
+    /**
+     * Start decoding the value introduced by the given opcode
+     *
+     * @param code the opcode
+     * @param context the context in which the opcode must be interpreted
+     * @param expected the kind of value wanted by the enclosing container
+     * @param parent the enclosing container, <code>null</code> for a top level value
+     * @return the token if it's already complete, or <code>null</code> if we need to continue decoding
+     */
+    private Token startValue(final int code, final BysantContext context, final int expected, final Frame parent)
+            throws DecoderException {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("OPCODE : 0x{}", Integer.toHexString(code));
+        }
+
+        final OpCodeTable table = context.getOpCodes();
+        if (table == null) {
+            throw new DecoderException("not implemented : decoding in the context " + context);
+        }
+        final byte codeRoutine = table.routines[code];
+        if (codeRoutine == OpCodeTable.INVALID) {
+            throw new DecoderException("can't decode, no suitable encoding found for OPECODE : " + code);
+        }
+        if (expected != ANY && codeRoutine != OpCodeTable.NULL && table.kinds[code] != expected) {
+            throw new DecoderException("unexpected OPCODE : " + code + " in context " + context);
+        }
+        this.routine = codeRoutine;
+        this.base = table.bases[code];
+
+        if (parent != null) {
+            if (parent.phase == Frame.PHASE_SIZE) {
+                if (codeRoutine == OpCodeTable.NULL) {
+                    throw new DecoderException("null size for a large container");
+                }
+            } else if (codeRoutine == OpCodeTable.NULL && parent.isTerminator()) {
+                // end of a null terminated container
+                depth--;
+                return parent.endToken();
+            } else {
+                parent.elementStarted();
+                if (parent.count > policy.getMaxCollectionLength()) {
+                    throw new DecoderException("too many elements in a container, more than "
+                            + policy.getMaxCollectionLength());
+                }
+            }
+        }
+
+        switch (codeRoutine) {
+        case OpCodeTable.NULL:
+            return Token.NULL;
+        case OpCodeTable.TRUE:
+            booleanValue = true;
+            return Token.BOOLEAN;
+        case OpCodeTable.FALSE:
+            booleanValue = false;
+            return Token.BOOLEAN;
+        case OpCodeTable.POSITIVE:
+        case OpCodeTable.NEGATIVE:
+        case OpCodeTable.INT32:
+        case OpCodeTable.INT64:
+        case OpCodeTable.FLOAT32:
+        case OpCodeTable.FLOAT64:
+        case OpCodeTable.UINT32:
+            needed = table.sizes[code];
+            if (needed == 0) {
+                return numberDecoded(0);
+            }
+            state = READ_NUMBER;
+            return null;
+        case OpCodeTable.STRING:
+            needed = table.sizes[code];
+            if (needed == 0) {
+                return startStringContent(base, false) ? Token.STRING : null;
+            }
+            state = READ_STRING_LENGTH;
+            return null;
+        case OpCodeTable.CHUNKED_STRING:
+            LOG.trace("chunkedString");
+            if (chunkSink != null && skipDepth == 0) {
+                // the content goes to the sink as it's received
+                streaming = true;
+                chunkSink.start();
+            } else {
+                // chunked string : be careful this one can eat babies and all your memory
+                chunks = new ArrayList<ByteBuffer>();
+            }
+            needed = 2;
+            state = READ_CHUNK_LENGTH;
+            return null;
+        case OpCodeTable.EMPTY_LIST:
+            return startToken(push().startList(0, BysantContext.GLOBAL));
+        case OpCodeTable.LIST:
+            return startToken(push().startList(base, BysantContext.GLOBAL));
+        case OpCodeTable.LARGE_LIST:
+            push().startSizedList(base, false);
+            return null;
+        case OpCodeTable.NULL_TERMINATED_LIST:
+            return startToken(push().startList(-1, BysantContext.GLOBAL));
+        case OpCodeTable.TYPED_LIST:
+            push().startList(base, null);
+            return null;
+        case OpCodeTable.LARGE_TYPED_LIST:
+            push().startSizedList(base, true);
+            return null;
+        case OpCodeTable.NULL_TERMINATED_TYPED_LIST:
+            push().startList(-1, null);
+            return null;
+        case OpCodeTable.EMPTY_MAP:
+            return startToken(push().startMap(0, BysantContext.GLOBAL));
+        case OpCodeTable.MAP:
+            return startToken(push().startMap(base, BysantContext.GLOBAL));
+        case OpCodeTable.LARGE_MAP:
+            push().startSizedMap(base, false);
+            return null;
+        case OpCodeTable.NULL_TERMINATED_MAP:
+            return startToken(push().startMap(-1, BysantContext.GLOBAL));
+        case OpCodeTable.TYPED_MAP:
+            push().startMap(base, null);
+            return null;
+        case OpCodeTable.LARGE_TYPED_MAP:
+            push().startSizedMap(base, true);
+            return null;
+        case OpCodeTable.NULL_TERMINATED_TYPED_MAP:
+            push().startMap(-1, null);
+            return null;
+        case OpCodeTable.ENVELOPE:
+            return startToken(push().startObject(Frame.ENVELOPE));
+        case OpCodeTable.MESSAGE:
+            return startToken(push().startObject(Frame.MESSAGE));
+        case OpCodeTable.RESPONSE:
+            return startToken(push().startObject(Frame.RESPONSE));
+        case OpCodeTable.DELTAS_VECTOR:
+            return startToken(push().startObject(Frame.DELTAS_VECTOR));
+        case OpCodeTable.QUASI_PERIODIC_VECTOR:
+            return startToken(push().startObject(Frame.QUASI_PERIODIC_VECTOR));
+        default:
+            throw new IllegalStateException("unknown decoding routine : " + codeRoutine);
+        }
+    }
+
+    /**
+     * Start decoding a number of the SIGNED_INTS32, FLOATS32 or DOUBLES64 contexts : the value is written on a fixed
+     * number of bytes, without OPCODE.
+     */
+    private void startFixedWidth(final BysantContext context, final Frame parent) {
+        final FixedWidthEncoding enc = (FixedWidthEncoding) context.getEncoding();
+        if (parent != null) {
+            parent.elementStarted();
+        }
+        if (!enc.isFloatingPoint()) {
+            routine = OpCodeTable.INT32;
+        } else if (enc.width() == 4) {
+            routine = OpCodeTable.FLOAT32;
+        } else {
+            routine = OpCodeTable.FLOAT64;
+        }
+        base = 0;
+        needed = enc.width();
+        state = READ_NUMBER;
+    }
+
+    /** the container content begins */
+    private Token startToken(final Frame frame) {
+        containerSize = frame.remaining;
+        return frame.startToken();
+    }
+
+    /**
+     * a number was decoded : it's the current token, or the size of the enclosing large container
+     *
+     * @return the number token, or <code>null</code> if the number was the size of a container
+     */
+    private Token numberDecoded(final long bytes) throws DecoderException {
+        if (depth > 0) {
+            final Frame frame = stack[depth - 1];
+            if (frame.phase == Frame.PHASE_SIZE) {
+                final long size = base + bytes + frame.sizeOffset;
+                if (size > policy.getMaxCollectionLength()) {
+                    throw new DecoderException("container too large : " + size + " elements, more than "
+                            + policy.getMaxCollectionLength());
+                }
+                frame.setSize(base + (int) bytes);
+                LOG.trace("large container of {} elements", frame.remaining);
+                return frame.phase == Frame.PHASE_CONTENT ? startToken(frame) : null;
+            }
+        }
+        numberRoutine = routine;
+        switch (routine) {
+        case OpCodeTable.POSITIVE:
+            longValue = base + (int) bytes;
+            return Token.INTEGER;
+        case OpCodeTable.NEGATIVE:
+            longValue = base - (int) bytes;
+            return Token.INTEGER;
+        case OpCodeTable.INT32:
+            longValue = (int) bytes;
+            return Token.INTEGER;
+        case OpCodeTable.INT64:
+            longValue = bytes;
+            return Token.INTEGER;
+        case OpCodeTable.UINT32:
+            longValue = bytes & FOUR_BYTES_MASK;
+            return Token.INTEGER;
+        case OpCodeTable.FLOAT32:
+            doubleValue = Float.intBitsToFloat((int) bytes);
+            return Token.FLOAT;
+        case OpCodeTable.FLOAT64:
+            doubleValue = Double.longBitsToDouble(bytes);
+            return Token.FLOAT;
+        default:
+            throw new IllegalStateException("not a number decoding routine : " + routine);
+        }
+    }
+
+    /**
+     * Read the {@link #needed} next bytes as a big endian value in {@link #raw}. The bytes can be split between
+     * several buffers.
+     *
+     * @return <code>true</code> if all the bytes were read, <code>false</code> if we need more bytes
+     */
+    private boolean readRaw() {
+        final ByteBuffer in = input;
+        if (in == null) {
+            return false;
+        }
+        if (scratchLength == 0 && in.remaining() >= needed) {
+            // fast path : all the bytes are in the buffer
+            long value = 0;
+            for (int i = 0; i < needed; i++) {
+                value = value << 8 | (in.get() & ONE_BYTE_MASK);
+            }
+            raw = value;
+            return true;
+        }
+        while (scratchLength < needed && in.hasRemaining()) {
+            scratch[scratchLength++] = in.get();
+        }
+        if (scratchLength < needed) {
+            LOG.trace("buffer underflow ! we need more bytes !");
+            return false;
+        }
+        long value = 0;
+        for (int i = 0; i < needed; i++) {
+            value = value << 8 | (scratch[i] & ONE_BYTE_MASK);
+        }
+        scratchLength = 0;
+        raw = value;
+        return true;
+    }
+
+    /** copy (or skip) the available bytes of the current string, return <code>true</code> if the string is complete */
+    private boolean fillString() {
+        if (input == null) {
+            return false;
+        }
+        final int count = Math.min(input.remaining(), strLength - strPosition);
+        if (streaming && state == READ_CHUNK) {
+            if (count > 0) {
+                final ByteBuffer slice = input.slice();
+                slice.limit(count);
+                input.position(input.position() + count);
+                chunkSink.write(slice.asReadOnlyBuffer());
+            }
+        } else if (str == null) {
+            input.position(input.position() + count);
+        } else {
+            input.get(str, strPosition, count);
+        }
+        strPosition += count;
+        return strPosition == strLength;
+    }
+
+    /**
+     * Start reading the content of a string (or of a string chunk). If we are skipping, the content will be ignored.
+     * If slicing is enabled and the whole content is available we slice it, else we allocate the content and the
+     * bytes will be copied directly in it as they are received.
+     *
+     * @return <code>true</code> if the content is already complete
+     */
+    private boolean startStringContent(final int size, final boolean chunk) {
+        if (chunk && streaming) {
+            // no copy : the bytes are written to the sink as they are received
+            str = null;
+            strLength = size;
+            strPosition = 0;
+            state = READ_CHUNK;
+            return false;
+        }
+        if (sliceStrings && skipDepth == 0 && input.remaining() >= size) {
+            final ByteBuffer slice = input.slice();
+            slice.limit(size);
+            input.position(input.position() + size);
+            stringDecoded(slice, chunk);
+            return !chunk;
+        }
+        str = skipDepth > 0 ? null : new byte[size];
+        strLength = size;
+        strPosition = 0;
+        state = chunk ? READ_CHUNK : READ_STRING;
+        return false;
+    }
+
+    /** the content of a string (or of a string chunk) is complete */
+    private void stringDecoded(final ByteBuffer content, final boolean chunk) {
+        str = null;
+        if (chunk) {
+            if (content != null) {
+                chunks.add(content);
+            }
+            needed = 2;
+            state = READ_CHUNK_LENGTH;
+        } else {
+            state = READ_OPCODE;
+            streamed = false;
+            stringValue = content;
+        }
+    }
+
+    /** concatenate the chunks into a big one */
+    private ByteBuffer concatChunks() {
+        final List<ByteBuffer> list = chunks;
+        chunks = null;
+        if (list.size() == 1) {
+            return list.get(0);
+        }
+        int totalSize = 0;
+        for (final ByteBuffer chunk : list) {
+            totalSize += chunk.remaining();
+        }
+        LOG.trace("total size : {}", totalSize);
+        final ByteBuffer res = ByteBuffer.allocate(totalSize);
+        for (final ByteBuffer chunk : list) {
+            res.put(chunk);
+        }
+        res.flip();
+        return res;
+    }
+
+    /** open a new container, reusing a previously allocated frame if possible */
+    private Frame push() throws DecoderException {
+        if (depth >= policy.getMaxDepth()) {
+            throw new DecoderException("too many nested containers, more than " + policy.getMaxDepth());
+        }
+        if (depth == stack.length) {
+            final Frame[] newStack = new Frame[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = newStack;
+        }
+        Frame frame = stack[depth];
+        if (frame == null) {
+            frame = new Frame();
+            stack[depth] = frame;
+        }
+        depth++;
+        return frame;
+    }
+
+    /**
+     * @return the context of the elements of the list (or of the values of the map) started by the current token
+     */
+    BysantContext containerContext() {
+        return stack[depth - 1].elementContext;
+    }
+
+    /**
+     * Decode a string value as an UTF-8 string.
+     */
+    static String toString(final ByteBuffer value) {
+        return ByteBuffers.toUtf8String(value);
+    }
+
+    /**
+     * One level of the parse stack : the structure of a list, a map or a M3DA object being read.
+     */
+    private static final class Frame {
+
+        // container types
+        static final int LIST = 0;
+        static final int MAP = 1;
+        static final int ENVELOPE = 2;
+        static final int MESSAGE = 3;
+        static final int RESPONSE = 4;
+        static final int DELTAS_VECTOR = 5;
+        static final int QUASI_PERIODIC_VECTOR = 6;
+
+        // decoding phases
+        /** waiting for the container size */
+        static final int PHASE_SIZE = 0;
+        /** waiting for the context identifier of a typed container */
+        static final int PHASE_CONTEXT = 1;
+        /** decoding the container elements */
+        static final int PHASE_CONTENT = 2;
+
+        /** number of fields of the M3DA objects */
+        private static final int FIELD_COUNT = 3;
+
+        /** context of each field of the M3DA objects */
+        private static final BysantContext[][] FIELD_CONTEXTS = new BysantContext[][] {
+                                null,
+                                null,
+                                { BysantContext.LIST_AND_MAPS, BysantContext.UINTS_AND_STRS,
+                                                        BysantContext.LIST_AND_MAPS },
+                                { BysantContext.UINTS_AND_STRS, BysantContext.UINTS_AND_STRS,
+                                                        BysantContext.LIST_AND_MAPS },
+                                { BysantContext.UINTS_AND_STRS, BysantContext.NUMBERS, BysantContext.UINTS_AND_STRS },
+                                { BysantContext.NUMBERS, BysantContext.NUMBERS, BysantContext.LIST_AND_MAPS },
+                                { BysantContext.NUMBERS, BysantContext.NUMBERS, BysantContext.LIST_AND_MAPS } };
+
+        /** kind of each field of the M3DA objects */
+        private static final int[][] FIELD_KINDS = new int[][] { null, null,
+                                { OpCodeTable.KIND_MAP, OpCodeTable.KIND_STRING, OpCodeTable.KIND_MAP },
+                                { OpCodeTable.KIND_STRING, OpCodeTable.KIND_UINT, OpCodeTable.KIND_MAP },
+                                { OpCodeTable.KIND_UINT, OpCodeTable.KIND_NUMBER, OpCodeTable.KIND_STRING },
+                                { OpCodeTable.KIND_NUMBER, OpCodeTable.KIND_NUMBER, OpCodeTable.KIND_LIST },
+                                { OpCodeTable.KIND_NUMBER, OpCodeTable.KIND_NUMBER, OpCodeTable.KIND_LIST } };
+
+        /** start token of each container type */
+        private static final Token[] START_TOKENS = new Token[] { Token.START_LIST, Token.START_MAP,
+                                Token.START_ENVELOPE, Token.START_MESSAGE, Token.START_RESPONSE,
+                                Token.START_DELTAS_VECTOR, Token.START_QUASI_PERIODIC_VECTOR };
+
+        int type;
+
+        int phase;
+
+        /** context of the list elements or of the map values */
+        BysantContext elementContext;
+
+        /** remaining elements (or map entries) to decode, -1 for null terminated containers */
+        int remaining;
+
+        /** added to the decoded size of large containers */
+        int sizeOffset;
+
+        /** is the context identifier following the size */
+        boolean typed;
+
+        /** for maps : is the next value a key */
+        boolean waitingKey;
+
+        /** for M3DA objects : index of the next field */
+        int field;
+
+        /** number of started elements (or map entries) */
+        int count;
+
+        Frame startList(final int size, final BysantContext context) {
+            type = LIST;
+            count = 0;
+            remaining = size;
+            elementContext = context;
+            phase = context == null ? PHASE_CONTEXT : PHASE_CONTENT;
+            return this;
+        }
+
+        void startSizedList(final int offset, final boolean isTyped) {
+            type = LIST;
+            count = 0;
+            sizeOffset = offset;
+            typed = isTyped;
+            elementContext = isTyped ? null : BysantContext.GLOBAL;
+            phase = PHASE_SIZE;
+        }
+
+        Frame startMap(final int size, final BysantContext context) {
+            type = MAP;
+            count = 0;
+            remaining = size;
+            elementContext = context;
+            phase = context == null ? PHASE_CONTEXT : PHASE_CONTENT;
+            waitingKey = true;
+            return this;
+        }
+
+        void startSizedMap(final int offset, final boolean isTyped) {
+            type = MAP;
+            count = 0;
+            sizeOffset = offset;
+            typed = isTyped;
+            elementContext = isTyped ? null : BysantContext.GLOBAL;
+            waitingKey = true;
+            phase = PHASE_SIZE;
+        }
+
+        Frame startObject(final int objectType) {
+            type = objectType;
+            phase = PHASE_CONTENT;
+            remaining = FIELD_COUNT;
+            field = 0;
+            return this;
+        }
+
+        void setSize(final int size) {
+            remaining = size + sizeOffset;
+            phase = typed ? PHASE_CONTEXT : PHASE_CONTENT;
+        }
+
+        void setElementContext(final int ctxId) throws DecoderException {
+            final BysantContext subCtx = BysantContext.findById(ctxId);
+            if (subCtx == null) {
+                throw new DecoderException("unsupported context id : " + ctxId);
+            }
+            if (type == LIST && remaining == -1 && subCtx.getOpCodes() == null) {
+                // no null value to terminate the list
+                throw new DecoderException("null terminated list in the context " + subCtx);
+            }
+            elementContext = subCtx;
+            phase = PHASE_CONTENT;
+        }
+
+        Token startToken() {
+            return START_TOKENS[type];
+        }
+
+        Token endToken() {
+            switch (type) {
+            case LIST:
+                return Token.END_LIST;
+            case MAP:
+                return Token.END_MAP;
+            default:
+                return Token.END_OBJECT;
+            }
+        }
+
+        /** context of the next value of this container */
+        BysantContext nextContext() {
+            if (phase == PHASE_SIZE) {
+                return BysantContext.UINTS_AND_STRS;
+            }
+            switch (type) {
+            case LIST:
+                return elementContext;
+            case MAP:
+                return waitingKey ? BysantContext.UINTS_AND_STRS : elementContext;
+            default:
+                return FIELD_CONTEXTS[type][field];
+            }
+        }
+
+        /** kind of the next value of this container */
+        int nextKind() {
+            if (phase == PHASE_SIZE) {
+                return OpCodeTable.KIND_UINT;
+            }
+            if (type == LIST || type == MAP) {
+                return ANY;
+            }
+            return FIELD_KINDS[type][field];
+        }
+
+        /** is a null value at this position the end of a null terminated container */
+        boolean isTerminator() {
+            return remaining == -1 && (type == LIST || (type == MAP && waitingKey));
+        }
+
+        /** a new element of this container starts */
+        void elementStarted() {
+            switch (type) {
+            case LIST:
+                count++;
+                if (remaining > 0) {
+                    remaining--;
+                }
+                break;
+            case MAP:
+                if (waitingKey) {
+                    count++;
+                } else if (remaining > 0) {
+                    remaining--;
+                }
+                waitingKey = !waitingKey;
+                break;
+            default:
+                field++;
+                break;
+            }
+        }
+
+        /** are all the elements of this container decoded */
+        boolean isComplete() {
+            switch (type) {
+            case LIST:
+                return phase == PHASE_CONTENT && remaining == 0;
+            case MAP:
+                return phase == PHASE_CONTENT && remaining == 0 && waitingKey;
+            default:
+                return field == FIELD_COUNT;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import m3da.codec.CipherKey;
+import m3da.codec.dto.CipherAlgorithm;
+
+/**
+ * A derived cipher key, with its initial vector (the MD5 of the nonce).
+ */
+final class CipherKeyImpl implements CipherKey {
+
+    private final CipherAlgorithm algorithm;
+
+    private final SecretKey key;
+
+    private final IvParameterSpec initialVector;
+
+    CipherKeyImpl(final CipherAlgorithm algorithm, final SecretKey key, final IvParameterSpec initialVector) {
+        this.algorithm = algorithm;
+        this.key = key;
+        this.initialVector = initialVector;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CipherAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    SecretKey getKey() {
+        return key;
+    }
+
+    IvParameterSpec getInitialVector() {
+        return initialVector;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "CipherKey [algorithm=" + algorithm + "]";
+    }
+}
@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import m3da.codec.EncoderOutput;
+import m3da.codec.dto.StreamedBinary;
+
+/**
+ * A growable big endian byte buffer used by the {@link BysantEncoderImpl} for encoding in a single pass, without
+ * computing the size of the encoded objects first. The written bytes can be patched afterward, for the length prefixes
+ * only known once the content is written.
+ * <p>
+ * Each thread reuses its own buffer (see {@link #acquire()}) : the encoding doesn't allocate anything but the returned
+ * {@link ByteBuffer}, unless the buffer must grow.
+ * <p>
+ * When streaming to an {@link EncoderOutput} (see {@link #acquire(EncoderOutput, int)}), the encoder calls
+ * {@link #flushChunks()} between two values : the complete chunks are written to the output and the buffer only keeps
+ * the bytes of the last incomplete chunk.
+ */
+final class EncoderBuffer {
+
+	/** initial capacity of the pooled buffers */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** the buffers larger than this are not kept in the pool, for not retaining the memory of a huge message */
+	static final int MAX_POOLED_CAPACITY = 128 * 1024;
+
+	private static final ThreadLocal<EncoderBuffer> POOL = new ThreadLocal<EncoderBuffer>() {
+		@Override
+		protected EncoderBuffer initialValue() {
+			return new EncoderBuffer(INITIAL_CAPACITY);
+		}
+	};
+
+	private byte[] bytes;
+
+	private int position = 0;
+
+	/** the buffer of the pool is used by an encoding in progress on this thread */
+	private boolean inUse = false;
+
+	/** where the chunks are written when streaming, <code>null</code> otherwise */
+	private EncoderOutput output;
+
+	/** size of the chunks written to the output */
+	private int chunkSize;
+
+	EncoderBuffer(final int capacity) {
+		bytes = new byte[capacity];
+	}
+
+	/**
+	 * @return the empty buffer of the calling thread, to be given back with {@link #release()}
+	 */
+	static EncoderBuffer acquire() {
+		EncoderBuffer buffer = POOL.get();
+		if (buffer.inUse) {
+			// an encoding started by an output callback of this thread : don't share the pooled buffer
+			buffer = new EncoderBuffer(INITIAL_CAPACITY);
+		}
+		buffer.inUse = true;
+		buffer.position = 0;
+		return buffer;
+	}
+
+	/**
+	 * @return the empty buffer of the calling thread, writing chunks of the given size to the output
+	 */
+	static EncoderBuffer acquire(final EncoderOutput output, final int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("invalid chunk size : " + chunkSize);
+		}
+		final EncoderBuffer buffer = acquire();
+		buffer.output = output;
+		buffer.chunkSize = chunkSize;
+		return buffer;
+	}
+
+	/** give back the buffer to the pool of the calling thread, or drop it if it grew too much */
+	void release() {
+		inUse = false;
+		output = null;
+		if (bytes.length > MAX_POOLED_CAPACITY && POOL.get() == this) {
+			POOL.remove();
+		}
+	}
+
+	int position() {
+		return position;
+	}
+
+	/** move the writing position, backward for patching some already written bytes */
+	void position(final int newPosition) {
+		position = newPosition;
+	}
+
+	/** make room for n more bytes */
+	void ensure(final int n) {
+		final int needed = position + n;
+		if (needed > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+		}
+	}
+
+	void put(final byte b) {
+		ensure(1);
+		bytes[position++] = b;
+	}
+
+	void putShort(final short value) {
+		ensure(2);
+		bytes[position++] = (byte) (value >> 8);
+		bytes[position++] = (byte) value;
+	}
+
+	void putInt(final int value) {
+		ensure(4);
+		bytes[position++] = (byte) (value >> 24);
+		bytes[position++] = (byte) (value >> 16);
+		bytes[position++] = (byte) (value >> 8);
+		bytes[position++] = (byte) value;
+	}
+
+	void putLong(final long value) {
+		putInt((int) (value >> 32));
+		putInt((int) value);
+	}
+
+	void putFloat(final float value) {
+		putInt(Float.floatToRawIntBits(value));
+	}
+
+	void putDouble(final double value) {
+		putLong(Double.doubleToRawLongBits(value));
+	}
+
+	void put(final byte[] src, final int offset, final int length) {
+		ensure(length);
+		System.arraycopy(src, offset, bytes, position, length);
+		position += length;
+	}
+
+	/** copy the remaining bytes of a buffer, without moving its position */
+	void put(final ByteBuffer src) {
+		final int length = src.remaining();
+		ensure(length);
+		if (src.hasArray()) {
+			System.arraycopy(src.array(), src.arrayOffset() + src.position(), bytes, position, length);
+		} else {
+			src.duplicate().get(bytes, position, length);
+		}
+		position += length;
+	}
+
+	/**
+	 * Copy some bytes, writing the complete chunks to the output on the way when streaming : a large binary is not
+	 * held in memory. Must not be called while a written length prefix is waiting to be patched.
+	 */
+	void putStreamed(final byte[] src, final int offset, final int length) {
+		if (output == null) {
+			put(src, offset, length);
+			return;
+		}
+		int done = 0;
+		while (done < length) {
+			final int n = Math.min(length - done, chunkSize);
+			put(src, offset + done, n);
+			flushChunks();
+			done += n;
+		}
+	}
+
+	/**
+	 * Copy the remaining bytes of a buffer without moving its position, writing the complete chunks to the output on
+	 * the way when streaming (see {@link #putStreamed(byte[], int, int)}).
+	 */
+	void putStreamed(final ByteBuffer src) {
+		if (output == null || src.remaining() <= chunkSize) {
+			put(src);
+			flushChunks();
+			return;
+		}
+		final ByteBuffer slice = src.duplicate();
+		final int end = slice.limit();
+		while (slice.position() < end) {
+			slice.limit(Math.min(end, slice.position() + chunkSize));
+			put(slice);
+			flushChunks();
+			slice.position(slice.limit());
+		}
+	}
+
+	/**
+	 * Read some bytes from a streamed binary, until the given length or the end of the binary.
+	 *
+	 * @return the number of read bytes, less than length only at the end of the binary
+	 */
+	int putFrom(final StreamedBinary src, final int length) throws IOException {
+		ensure(length);
+		int total = 0;
+		while (total < length) {
+			final int n = src.read(bytes, position + total, length - total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		position += total;
+		return total;
+	}
+
+	/** move length bytes written at from to the position to (for shrinking a reserved prefix) */
+	void move(final int from, final int to, final int length) {
+		System.arraycopy(bytes, from, bytes, to, length);
+	}
+
+	/**
+	 * Write a string in UTF-8, like {@link String#getBytes(String)} : the unpaired surrogates are replaced by '?'.
+	 *
+	 * @return the number of written bytes
+	 */
+	int putUtf8(final String value) {
+		final int length = value.length();
+		// at most 3 bytes per char (a 4 bytes sequence is a surrogate pair)
+		ensure(length * 3);
+		final byte[] dst = bytes;
+		final int start = position;
+		int pos = start;
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (c < 0x80) {
+				dst[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				dst[pos++] = (byte) (0xC0 | (c >> 6));
+				dst[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+					dst[pos++] = (byte) (0xF0 | (codePoint >> 18));
+					dst[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					dst[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					dst[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+				} else {
+					dst[pos++] = (byte) '?';
+				}
+			} else {
+				dst[pos++] = (byte) (0xE0 | (c >> 12));
+				dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				dst[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		position = pos;
+		return pos - start;
+	}
+
+	/**
+	 * @return the number of bytes of a string encoded in UTF-8, computed without encoding it
+	 */
+	static int utf8Length(final String value) {
+		final int length = value.length();
+		int size = length;
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					size += 1;
+				} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+						// 4 bytes for 2 chars
+						size += 2;
+						i++;
+					}
+				} else {
+					size += 2;
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Write the complete chunks to the output, if streaming. Must not be called while a written length prefix is waiting
+	 * to be patched.
+	 */
+	void flushChunks() {
+		if (output == null || position < chunkSize) {
+			return;
+		}
+		int offset = 0;
+		while (position - offset >= chunkSize) {
+			output.write(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + chunkSize)));
+			offset += chunkSize;
+		}
+		// keep the incomplete chunk
+		System.arraycopy(bytes, offset, bytes, 0, position - offset);
+		position -= offset;
+	}
+
+	/**
+	 * Write all the remaining bytes to the output : the last chunk may be smaller than the chunk size.
+	 */
+	void flushAll() {
+		flushChunks();
+		if (position > 0) {
+			output.write(ByteBuffer.wrap(Arrays.copyOf(bytes, position)));
+			position = 0;
+		}
+	}
+
+	/**
+	 * @return a new heap {@link ByteBuffer} holding a copy of the written bytes, ready to be read
+	 */
+	ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(Arrays.copyOf(bytes, position));
+	}
+}
@@ -16,6 +16,7 @@ import java.util.List;
 
 import m3da.codec.BysantDecoder;
 import m3da.codec.DecoderException;
+import m3da.codec.DecoderPolicy;
 import m3da.codec.DecoderOutput;
 import m3da.codec.EnvelopeDecoder;
 import m3da.codec.dto.M3daEnvelope;
@@ -33,7 +34,7 @@ public class EnvelopeDecoderImpl implements EnvelopeDecoder {
 
     private static final Logger LOG = LoggerFactory.getLogger(EnvelopeDecoderImpl.class);
 
-    private final BysantDecoder enveloppeDecoder = new BysantDecoderImpl();
+    private final BysantDecoder enveloppeDecoder;
 
     private List<M3daEnvelope> decodedEnvelope = new ArrayList<M3daEnvelope>(2);
 
@@ -41,6 +42,34 @@ public class EnvelopeDecoderImpl implements EnvelopeDecoder {
 
     private Object parasite = null;
 
+    /**
+     * Create an envelope decoder copying the payloads.
+     */
+    public EnvelopeDecoderImpl() {
+        this(false);
+    }
+
+    /**
+     * Create an envelope decoder.
+     * 
+     * @param sliceStrings if <code>true</code> the strings of the envelope headers and footers are read-only slices of
+     *        the input buffers (see {@link BysantDecoderImpl#BysantDecoderImpl(boolean)}).
+     */
+    public EnvelopeDecoderImpl(final boolean sliceStrings) {
+        this(sliceStrings, DecoderPolicy.DEFAULT);
+    }
+
+    /**
+     * Create an envelope decoder.
+     * 
+     * @param sliceStrings if <code>true</code> the strings of the envelope headers and footers are read-only slices of
+     *        the input buffers (see {@link BysantDecoderImpl#BysantDecoderImpl(boolean)}).
+     * @param policy the limits of the received envelopes
+     */
+    public EnvelopeDecoderImpl(final boolean sliceStrings, final DecoderPolicy policy) {
+        enveloppeDecoder = new BysantDecoderImpl(sliceStrings, new SymbolTable(), policy);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -99,4 +128,15 @@ public class EnvelopeDecoderImpl implements EnvelopeDecoder {
             throw new DecoderException("trailling data : " + parasite);
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        enveloppeDecoder.reset();
+        decodedEnvelope = new ArrayList<M3daEnvelope>(2);
+        someParasite = false;
+        parasite = null;
+    }
 }
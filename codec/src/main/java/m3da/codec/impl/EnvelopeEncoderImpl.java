@@ -12,7 +12,7 @@ package m3da.codec.impl;
 
 import java.nio.ByteBuffer;
 
-import m3da.codec.BysantEncoder;
+import m3da.codec.EncoderOutput;
 import m3da.codec.EnvelopeEncoder;
 import m3da.codec.dto.M3daEnvelope;
 
@@ -20,20 +20,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Implementation of {@link EnvelopeEncoder}. Stateless : encode one {@link M3daEnvelope} into a big {@link ByteBuffer}
+ * Implementation of {@link EnvelopeEncoder}. Stateless : encode one {@link M3daEnvelope} into a big {@link ByteBuffer}. A single instance can be
+ * shared by all the threads.
  */
 public class EnvelopeEncoderImpl implements EnvelopeEncoder {
 
 	private static final Logger LOG = LoggerFactory.getLogger(EnvelopeEncoderImpl.class);
 
+	/** for encoding the envelope elements, stateless too */
+	private final BysantEncoderImpl encoder = new BysantEncoderImpl();
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public ByteBuffer encode(M3daEnvelope envelope) {
 		LOG.debug("encode(envelope = {})", envelope);
-		// for encoding the envelope elements
-		BysantEncoder encoder = new BysantEncoderImpl();
 		return encoder.encode(envelope);
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(final M3daEnvelope envelope, final EncoderOutput output) {
+		LOG.debug("encode(envelope = {}, output = {})", envelope, output);
+		encoder.encode(output, envelope);
+	}
 }
@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.nio.ByteBuffer;
+
+import m3da.codec.DecoderException;
+import m3da.codec.DecoderPolicy;
+import m3da.codec.EnvelopeScanner;
+import m3da.codec.impl.encoding.FixedWidthEncoding;
+
+/**
+ * An implementation of {@link EnvelopeScanner}, walking the bysant structure of the envelope with the
+ * {@link OpCodeTable} of each context. The string contents are skipped without being read. Not thread safe : use one
+ * scanner per session.
+ * <p>
+ * The scan is resumable : each OPCODE is consumed with its following bytes (size, number value...) only once they are
+ * all available, so the next call restarts exactly where the previous one stopped.
+ */
+public class EnvelopeScannerImpl implements EnvelopeScanner {
+
+    /** maximum nesting of the containers inside an envelope, whatever the policy */
+    static final int MAX_DEPTH = 256;
+
+    // frame types
+    private static final byte LIST = 0;
+    private static final byte MAP = 1;
+    /** M3DA object (envelope, message...) : 3 fields of fixed contexts */
+    private static final byte OBJECT = 2;
+
+    // frame phases
+    /** waiting for the container size */
+    private static final byte PHASE_SIZE = 0;
+    /** waiting for the context identifier of a typed container */
+    private static final byte PHASE_CONTEXT = 1;
+    /** walking the container elements */
+    private static final byte PHASE_CONTENT = 2;
+
+    /** context of each field of the M3DA objects, indexed by OPCODE routine */
+    private static final BysantContext[][] FIELD_CONTEXTS = new BysantContext[OpCodeTable.QUASI_PERIODIC_VECTOR + 1][];
+    static {
+        FIELD_CONTEXTS[OpCodeTable.ENVELOPE] = new BysantContext[] { BysantContext.LIST_AND_MAPS,
+                                BysantContext.UINTS_AND_STRS, BysantContext.LIST_AND_MAPS };
+        FIELD_CONTEXTS[OpCodeTable.MESSAGE] = new BysantContext[] { BysantContext.UINTS_AND_STRS,
+                                BysantContext.UINTS_AND_STRS, BysantContext.LIST_AND_MAPS };
+        FIELD_CONTEXTS[OpCodeTable.RESPONSE] = new BysantContext[] { BysantContext.UINTS_AND_STRS,
+                                BysantContext.NUMBERS, BysantContext.UINTS_AND_STRS };
+        FIELD_CONTEXTS[OpCodeTable.DELTAS_VECTOR] = new BysantContext[] { BysantContext.NUMBERS,
+                                BysantContext.NUMBERS, BysantContext.LIST_AND_MAPS };
+        FIELD_CONTEXTS[OpCodeTable.QUASI_PERIODIC_VECTOR] = FIELD_CONTEXTS[OpCodeTable.DELTAS_VECTOR];
+    }
+
+    private final int maxEnvelopeSize;
+
+    private final int maxDepth;
+
+    private final int maxCollectionLength;
+
+    // the parse stack, one entry per opened container
+
+    private final byte[] types;
+
+    private final byte[] phases;
+
+    /** remaining elements (map entries, object fields), -1 for the null terminated containers */
+    private final long[] remaining;
+
+    /** added to the size of the large containers */
+    private final int[] sizeOffsets;
+
+    private final boolean[] typed;
+
+    /** for the maps : is the next value a key */
+    private final boolean[] waitingKey;
+
+    /** context of the list elements or of the map values */
+    private final BysantContext[] elementContexts;
+
+    /** for the M3DA objects : the contexts of their fields */
+    private final BysantContext[][] fieldContexts;
+
+    private int depth = 0;
+
+    /** the envelope OPCODE was read */
+    private boolean started = false;
+
+    /** bytes of the current envelope already scanned */
+    private long scanned = 0;
+
+    /** bytes of a string content still to skip */
+    private long skip = 0;
+
+    /** in a chunked string, waiting for the length of the next chunk */
+    private boolean inChunkedString = false;
+
+    /**
+     * Create a scanner.
+     *
+     * @param policy the limits of the envelopes : the larger envelopes are rejected as soon as their size is known to
+     *        exceed the maximum, the nesting and the size of the containers are checked too
+     */
+    public EnvelopeScannerImpl(final DecoderPolicy policy) {
+        this.maxEnvelopeSize = policy.getMaxEnvelopeSize();
+        this.maxDepth = Math.min(policy.getMaxDepth(), MAX_DEPTH);
+        this.maxCollectionLength = policy.getMaxCollectionLength();
+        types = new byte[maxDepth];
+        phases = new byte[maxDepth];
+        remaining = new long[maxDepth];
+        sizeOffsets = new int[maxDepth];
+        typed = new boolean[maxDepth];
+        waitingKey = new boolean[maxDepth];
+        elementContexts = new BysantContext[maxDepth];
+        fieldContexts = new BysantContext[maxDepth][];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int scan(final ByteBuffer buffer) throws DecoderException {
+        final int start = buffer.position();
+        final int available = buffer.remaining();
+        while (true) {
+            if (skip > 0) {
+                final long n = Math.min(skip, available - scanned);
+                scanned += n;
+                skip -= n;
+                if (skip > 0) {
+                    return 0;
+                }
+                continue;
+            }
+            if (inChunkedString) {
+                if (available - scanned < 2) {
+                    return 0;
+                }
+                final int chunkLength = readUnsigned(buffer, start, 2);
+                consume(2);
+                if (chunkLength == 0) {
+                    inChunkedString = false;
+                } else {
+                    startSkip(chunkLength);
+                }
+                continue;
+            }
+            // close the completed containers
+            while (depth > 0 && remaining[depth - 1] == 0 && phases[depth - 1] == PHASE_CONTENT) {
+                pop();
+            }
+            if (started && depth == 0) {
+                // the envelope is complete
+                final int length = (int) scanned;
+                reset();
+                return length;
+            }
+            if (available - scanned < 1) {
+                return 0;
+            }
+
+            if (!started) {
+                final int opCode = buffer.get(start + (int) scanned) & 0xFF;
+                if (BysantContext.GLOBAL.getOpCodes().routines[opCode] != OpCodeTable.ENVELOPE) {
+                    throw new DecoderException("no envelope found, unexpected OPCODE : " + opCode);
+                }
+                consume(1);
+                started = true;
+                push(OBJECT, PHASE_CONTENT, 3, null);
+                fieldContexts[depth - 1] = FIELD_CONTEXTS[OpCodeTable.ENVELOPE];
+                continue;
+            }
+
+            final int top = depth - 1;
+            if (phases[top] == PHASE_SIZE) {
+                if (!scanSize(buffer, start, available, top)) {
+                    return 0;
+                }
+                continue;
+            }
+            if (phases[top] == PHASE_CONTEXT) {
+                final int ctxId = buffer.get(start + (int) scanned) & 0xFF;
+                final BysantContext ctx = BysantContext.findById(ctxId);
+                if (ctx == null) {
+                    throw new DecoderException("unsupported context id : " + ctxId);
+                }
+                if (types[top] == LIST && remaining[top] == -1 && ctx.getOpCodes() == null) {
+                    throw new DecoderException("null terminated list in the context " + ctx);
+                }
+                consume(1);
+                elementContexts[top] = ctx;
+                phases[top] = PHASE_CONTENT;
+                continue;
+            }
+            if (!scanValue(buffer, start, available, top)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        depth = 0;
+        started = false;
+        scanned = 0;
+        skip = 0;
+        inChunkedString = false;
+    }
+
+    /** read the size of a large container, in the UINTS_AND_STRS context */
+    private boolean scanSize(final ByteBuffer buffer, final int start, final int available, final int top)
+            throws DecoderException {
+        final OpCodeTable table = BysantContext.UINTS_AND_STRS.getOpCodes();
+        final int opCode = buffer.get(start + (int) scanned) & 0xFF;
+        if (table.kinds[opCode] != OpCodeTable.KIND_UINT) {
+            throw new DecoderException("invalid container size OPCODE : " + opCode);
+        }
+        final int size = table.sizes[opCode];
+        if (available - scanned < 1 + size) {
+            return false;
+        }
+        final long value = table.bases[opCode] + readUnsignedLong(buffer, start + 1, size);
+        if (value + sizeOffsets[top] > maxCollectionLength) {
+            throw new DecoderException("container too large : " + (value + sizeOffsets[top])
+                    + " elements, more than " + maxCollectionLength);
+        }
+        consume(1 + size);
+        remaining[top] = value + sizeOffsets[top];
+        phases[top] = typed[top] ? PHASE_CONTEXT : PHASE_CONTENT;
+        return true;
+    }
+
+    /** walk the next value of the current container, return false if more bytes are needed */
+    private boolean scanValue(final ByteBuffer buffer, final int start, final int available, final int top)
+            throws DecoderException {
+        final BysantContext ctx = nextContext(top);
+        final OpCodeTable table = ctx.getOpCodes();
+        if (table == null) {
+            // fixed width number, without OPCODE
+            final int width = ((FixedWidthEncoding) ctx.getEncoding()).width();
+            if (available - scanned < width) {
+                return false;
+            }
+            consume(width);
+            valueDone(top);
+            return true;
+        }
+        final int opCode = buffer.get(start + (int) scanned) & 0xFF;
+        final byte routine = table.routines[opCode];
+        final int size = table.sizes[opCode];
+        if (available - scanned < 1 + size) {
+            return false;
+        }
+        switch (routine) {
+        case OpCodeTable.INVALID:
+            throw new DecoderException("invalid OPCODE " + opCode + " in the context " + ctx);
+        case OpCodeTable.NULL:
+            consume(1);
+            if (remaining[top] == -1 && (types[top] == LIST || (types[top] == MAP && waitingKey[top]))) {
+                // end of a null terminated container
+                pop();
+            } else {
+                valueDone(top);
+            }
+            break;
+        case OpCodeTable.STRING:
+            final long length = table.bases[opCode] + readUnsignedLong(buffer, start + 1, size);
+            consume(1 + size);
+            valueDone(top);
+            startSkip(length);
+            break;
+        case OpCodeTable.CHUNKED_STRING:
+            consume(1);
+            valueDone(top);
+            inChunkedString = true;
+            break;
+        case OpCodeTable.EMPTY_LIST:
+        case OpCodeTable.EMPTY_MAP:
+            consume(1);
+            valueDone(top);
+            break;
+        case OpCodeTable.LIST:
+            consume(1);
+            push(LIST, PHASE_CONTENT, table.bases[opCode], BysantContext.GLOBAL);
+            break;
+        case OpCodeTable.LARGE_LIST:
+            consume(1);
+            pushSized(LIST, table.bases[opCode], false);
+            break;
+        case OpCodeTable.NULL_TERMINATED_LIST:
+            consume(1);
+            push(LIST, PHASE_CONTENT, -1, BysantContext.GLOBAL);
+            break;
+        case OpCodeTable.TYPED_LIST:
+            consume(1);
+            push(LIST, PHASE_CONTEXT, table.bases[opCode], null);
+            break;
+        case OpCodeTable.LARGE_TYPED_LIST:
+            consume(1);
+            pushSized(LIST, table.bases[opCode], true);
+            break;
+        case OpCodeTable.NULL_TERMINATED_TYPED_LIST:
+            consume(1);
+            push(LIST, PHASE_CONTEXT, -1, null);
+            break;
+        case OpCodeTable.MAP:
+            consume(1);
+            push(MAP, PHASE_CONTENT, table.bases[opCode], BysantContext.GLOBAL);
+            break;
+        case OpCodeTable.LARGE_MAP:
+            consume(1);
+            pushSized(MAP, table.bases[opCode], false);
+            break;
+        case OpCodeTable.NULL_TERMINATED_MAP:
+            consume(1);
+            push(MAP, PHASE_CONTENT, -1, BysantContext.GLOBAL);
+            break;
+        case OpCodeTable.TYPED_MAP:
+            consume(1);
+            push(MAP, PHASE_CONTEXT, table.bases[opCode], null);
+            break;
+        case OpCodeTable.LARGE_TYPED_MAP:
+            consume(1);
+            pushSized(MAP, table.bases[opCode], true);
+            break;
+        case OpCodeTable.NULL_TERMINATED_TYPED_MAP:
+            consume(1);
+            push(MAP, PHASE_CONTEXT, -1, null);
+            break;
+        case OpCodeTable.ENVELOPE:
+            throw new DecoderException("an envelope can't contain another envelope");
+        case OpCodeTable.MESSAGE:
+        case OpCodeTable.RESPONSE:
+        case OpCodeTable.DELTAS_VECTOR:
+        case OpCodeTable.QUASI_PERIODIC_VECTOR:
+            consume(1);
+            push(OBJECT, PHASE_CONTENT, 3, null);
+            fieldContexts[depth - 1] = FIELD_CONTEXTS[routine];
+            break;
+        default:
+            // numbers and booleans : the OPCODE and its following bytes
+            consume(1 + size);
+            valueDone(top);
+        }
+        return true;
+    }
+
+    /** context of the next value of a container */
+    private BysantContext nextContext(final int top) {
+        switch (types[top]) {
+        case OBJECT:
+            return fieldContexts[top][(int) (3 - remaining[top])];
+        case MAP:
+            return waitingKey[top] ? BysantContext.UINTS_AND_STRS : elementContexts[top];
+        default:
+            return elementContexts[top];
+        }
+    }
+
+    /** a value of the container at the given level was walked */
+    private void valueDone(final int top) {
+        if (types[top] == MAP) {
+            waitingKey[top] = !waitingKey[top];
+            if (waitingKey[top] && remaining[top] > 0) {
+                remaining[top]--;
+            }
+        } else if (remaining[top] > 0) {
+            remaining[top]--;
+        }
+    }
+
+    private void push(final byte type, final byte phase, final long size, final BysantContext elementCtx)
+            throws DecoderException {
+        if (depth == maxDepth) {
+            throw new DecoderException("too many nested containers, more than " + maxDepth);
+        }
+        types[depth] = type;
+        phases[depth] = phase;
+        remaining[depth] = size;
+        sizeOffsets[depth] = 0;
+        typed[depth] = phase == PHASE_CONTEXT;
+        waitingKey[depth] = true;
+        elementContexts[depth] = elementCtx;
+        depth++;
+    }
+
+    private void pushSized(final byte type, final int sizeOffset, final boolean isTyped) throws DecoderException {
+        push(type, PHASE_SIZE, 0, isTyped ? null : BysantContext.GLOBAL);
+        sizeOffsets[depth - 1] = sizeOffset;
+        typed[depth - 1] = isTyped;
+    }
+
+    /** close the current container : it's a complete value of its parent */
+    private void pop() {
+        depth--;
+        if (depth > 0) {
+            valueDone(depth - 1);
+        }
+    }
+
+    private void consume(final int n) throws DecoderException {
+        scanned += n;
+        checkSize(scanned);
+    }
+
+    private void startSkip(final long length) throws DecoderException {
+        // reject the oversized envelope before waiting for its content
+        checkSize(scanned + length);
+        skip = length;
+    }
+
+    private void checkSize(final long size) throws DecoderException {
+        if (size > maxEnvelopeSize) {
+            throw new DecoderException("envelope too large, more than " + maxEnvelopeSize + " bytes");
+        }
+    }
+
+    /** read a big endian unsigned integer of the given width, at an offset from the scanned bytes */
+    private int readUnsigned(final ByteBuffer buffer, final int start, final int width) {
+        return (int) readUnsignedLong(buffer, start, width);
+    }
+
+    private long readUnsignedLong(final ByteBuffer buffer, final int start, final int width) {
+        long value = 0;
+        final int from = start + (int) scanned;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (buffer.get(from + i) & 0xFF);
+        }
+        return value;
+    }
+}
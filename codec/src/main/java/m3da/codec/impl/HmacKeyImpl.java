@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.security.MessageDigest;
+
+import m3da.codec.HmacKey;
+import m3da.codec.dto.HmacType;
+
+/**
+ * A derived HMAC key K, with the inner and outer digest states already absorbing the padded key (see
+ * {@link SecurityUtils#hmacStates(String, byte[])}). The digest states are only cloned, never updated.
+ */
+final class HmacKeyImpl implements HmacKey {
+
+    private final HmacType algorithm;
+
+    /** K, used when the digest states can't be cloned */
+    private final byte[] key;
+
+    /** the digest state after (K ⊕ ipad), <code>null</code> if the digest implementation is not cloneable */
+    private final MessageDigest inner;
+
+    /** the digest state after (K ⊕ opad), <code>null</code> if the digest implementation is not cloneable */
+    private final MessageDigest outer;
+
+    HmacKeyImpl(final HmacType algorithm, final byte[] key, final MessageDigest inner, final MessageDigest outer) {
+        this.algorithm = algorithm;
+        this.key = key;
+        this.inner = inner;
+        this.outer = outer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HmacType getAlgorithm() {
+        return algorithm;
+    }
+
+    byte[] getKey() {
+        return key;
+    }
+
+    MessageDigest getInner() {
+        return inner;
+    }
+
+    MessageDigest getOuter() {
+        return outer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "HmacKey [algorithm=" + algorithm + "]";
+    }
+}
@@ -13,16 +13,26 @@ package m3da.codec.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import m3da.codec.BysantDecoder;
 import m3da.codec.BysantEncoder;
+import m3da.codec.BysantJsonTranscoder;
+import m3da.codec.BysantReader;
+import m3da.codec.CipherKey;
+import m3da.codec.DecoderPolicy;
 import m3da.codec.EnvelopeDecoder;
 import m3da.codec.EnvelopeEncoder;
+import m3da.codec.EnvelopeScanner;
 import m3da.codec.Hex;
+import m3da.codec.HmacKey;
 import m3da.codec.M3daCodecService;
 import m3da.codec.M3daCodecServiceRuntimeException;
 import m3da.codec.dto.CipherAlgorithm;
@@ -40,12 +50,80 @@ public class M3daCodecServiceImpl implements M3daCodecService {
 
     private SecurityUtils securityUtils = new SecurityUtils();
 
+    /** the limits of the decoded streams */
+    private final DecoderPolicy decoderPolicy;
+
+    /** the encoders are stateless, so they are shared */
+    private final EnvelopeEncoder envelopeEncoder = new EnvelopeEncoderImpl();
+
+    private final BysantEncoder bodyEncoder = new BysantEncoderImpl();
+
+    private final BysantEncoder compactBodyEncoder = new BysantEncoderImpl(BysantEncoderImpl.DEFAULT_CHUNK_SIZE, true);
+
+    /** one reusable envelope decoder per thread */
+    private final ThreadLocal<EnvelopeDecoder> envelopeDecoders = new ThreadLocal<EnvelopeDecoder>() {
+        @Override
+        protected EnvelopeDecoder initialValue() {
+            return new EnvelopeDecoderImpl(false, decoderPolicy);
+        }
+    };
+
+    /** one reusable body decoder per thread */
+    private final ThreadLocal<BysantDecoder> bodyDecoders = new ThreadLocal<BysantDecoder>() {
+        @Override
+        protected BysantDecoder initialValue() {
+            return new BysantDecoderImpl(false, new SymbolTable(), decoderPolicy);
+        }
+    };
+
+    /**
+     * Create a codec service with the default decoder limits.
+     */
+    public M3daCodecServiceImpl() {
+        this(DecoderPolicy.DEFAULT);
+    }
+
+    /**
+     * Create a codec service.
+     * 
+     * @param decoderPolicy the limits applied by the decoders and the envelope scanners
+     */
+    public M3daCodecServiceImpl(final DecoderPolicy decoderPolicy) {
+        this.decoderPolicy = decoderPolicy;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public EnvelopeDecoder createEnvelopeDecoder() {
-        return new EnvelopeDecoderImpl();
+        return new EnvelopeDecoderImpl(false, decoderPolicy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EnvelopeDecoder borrowEnvelopeDecoder() {
+        final EnvelopeDecoder decoder = envelopeDecoders.get();
+        decoder.reset();
+        return decoder;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EnvelopeScanner createEnvelopeScanner() {
+        return new EnvelopeScannerImpl(decoderPolicy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DecoderPolicy getDecoderPolicy() {
+        return decoderPolicy;
     }
 
     /**
@@ -53,7 +131,7 @@ public class M3daCodecServiceImpl implements M3daCodecService {
      */
     @Override
     public EnvelopeEncoder createEnvelopeEncoder() {
-        return new EnvelopeEncoderImpl();
+        return envelopeEncoder;
     }
 
     /**
@@ -61,7 +139,17 @@ public class M3daCodecServiceImpl implements M3daCodecService {
      */
     @Override
     public BysantDecoder createBodyDecoder() {
-        return new BysantDecoderImpl();
+        return new BysantDecoderImpl(false, new SymbolTable(), decoderPolicy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BysantDecoder borrowBodyDecoder() {
+        final BysantDecoder decoder = bodyDecoders.get();
+        decoder.reset();
+        return decoder;
     }
 
     /**
@@ -69,7 +157,31 @@ public class M3daCodecServiceImpl implements M3daCodecService {
      */
     @Override
     public BysantEncoder createBodyEncoder() {
-        return new BysantEncoderImpl();
+        return bodyEncoder;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BysantEncoder createCompactBodyEncoder() {
+        return compactBodyEncoder;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BysantReader createBodyReader() {
+        return new BysantReaderImpl(BysantContext.GLOBAL, true, decoderPolicy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BysantJsonTranscoder createJsonTranscoder() {
+        return new BysantJsonTranscoderImpl(decoderPolicy);
     }
 
     /**
@@ -86,15 +198,11 @@ public class M3daCodecServiceImpl implements M3daCodecService {
                                             Hex.encodeHexString(salt), Hex.encodeHexString(messageBody) });
         }
 
-        // K = HMD5(username | HMD5(password))
-        byte[] md5Pwd = md5(password);
-        final byte[] k = md5(concat(username, md5Pwd));
-
         // m = protectedEnveloppe | nonce
         final byte[] m = concat(messageBody, salt);
 
         try {
-            return securityUtils.hmac(algorithm.getDigest(), k, m);
+            return securityUtils.hmac(algorithm.getDigest(), hmacKey(username, password), m);
         } catch (NoSuchAlgorithmException e) {
             // should never happen (only if you use a really broken JVM implementation
             throw new IllegalStateException("missing MD5 or SHA-1 in the JVM", e);
@@ -105,38 +213,94 @@ public class M3daCodecServiceImpl implements M3daCodecService {
      * {@inheritDoc}
      */
     @Override
-    public void cipher(final CipherMode cipherMode, final CipherAlgorithm algorithm, final byte[] password,
-            final byte[] nonce, InputStream content, OutputStream result) {
+    public byte[] hmac(final HmacType algorithm, final byte[] username, final byte[] password, final byte[] salt,
+            final ByteBuffer messageBody) {
 
         if (LOG.isDebugEnabled()) {
-            LOG.debug("cipher [cipherMode={}, algorithm={}, password={}, nonce={}", new Object[] { cipherMode,
-                                    algorithm, Hex.encodeHexString(password), Hex.encodeHexString(nonce) });
+            LOG.debug(
+                    "HMAC [algorithm={}, username={}, password={}, nonce={}, body={} bytes]",
+                    new Object[] { algorithm, Hex.encodeHexString(username), Hex.encodeHexString(password),
+                                            Hex.encodeHexString(salt), messageBody.remaining() });
         }
 
+        // m = protectedEnveloppe | nonce, without concatenation
         try {
-            byte[] k = md5(password);
-            byte[] m = nonce;
-            byte[] key = securityUtils.hmac(HmacType.HMAC_MD5.getDigest(), k, m);
+            return securityUtils.hmac(algorithm.getDigest(), hmacKey(username, password), messageBody,
+                    ByteBuffer.wrap(salt));
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen (only if you use a really broken JVM implementation
+            throw new IllegalStateException("missing MD5 or SHA-1 in the JVM", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HmacKey createHmacKey(final HmacType algorithm, final byte[] username, final byte[] password) {
+        final byte[] key = hmacKey(username, password);
+        try {
+            final MessageDigest[] states = securityUtils.hmacStates(algorithm.getDigest(), key);
+            try {
+                // check once that the states can be reused
+                states[0].clone();
+            } catch (final CloneNotSupportedException e) {
+                LOG.warn("{} digest not cloneable, the HMAC key blocks will be hashed for each message", algorithm);
+                return new HmacKeyImpl(algorithm, key, null, null);
+            }
+            return new HmacKeyImpl(algorithm, key, states[0], states[1]);
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen (only if you use a really broken JVM implementation
+            throw new IllegalStateException("missing MD5 or SHA-1 in the JVM", e);
+        }
+    }
 
-            int expectedKeyLength = algorithm.getKeyLength();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] hmac(final HmacKey key, final byte[] salt, final ByteBuffer messageBody) {
+        if (!(key instanceof HmacKeyImpl)) {
+            throw new IllegalArgumentException("not a key created by this service : " + key);
+        }
+        final HmacKeyImpl hmacKey = (HmacKeyImpl) key;
 
-            if (key.length < expectedKeyLength) {
-                LOG.trace("extending cipher key, expected length : {}, actual length : {}", expectedKeyLength,
-                        key.length);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("HMAC [algorithm={}, nonce={}, body={} bytes]", new Object[] { key.getAlgorithm(),
+                                    Hex.encodeHexString(salt), messageBody.remaining() });
+        }
 
-                // another hash is concatenated to extend the key length
-                byte[] key2 = securityUtils.hmac(HmacType.HMAC_MD5.getDigest(), k, concat(m, m));
-                key = concat(key, key2);
+        // m = protectedEnveloppe | nonce, without concatenation
+        try {
+            if (hmacKey.getInner() != null) {
+                return securityUtils.hmac(hmacKey.getInner(), hmacKey.getOuter(), messageBody, ByteBuffer.wrap(salt));
             }
+            return securityUtils.hmac(key.getAlgorithm().getDigest(), hmacKey.getKey(), messageBody,
+                    ByteBuffer.wrap(salt));
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("the HMAC digest states were cloneable", e);
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen (only if you use a really broken JVM implementation
+            throw new IllegalStateException("missing MD5 or SHA-1 in the JVM", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cipher(final CipherMode cipherMode, final CipherAlgorithm algorithm, final byte[] password,
+            final byte[] nonce, InputStream content, OutputStream result) {
 
-            // truncate the key to the expected length
-            byte[] finalKey = Arrays.copyOf(key, expectedKeyLength);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("cipher [cipherMode={}, algorithm={}, password={}, nonce={}", new Object[] { cipherMode,
+                                    algorithm, Hex.encodeHexString(password), Hex.encodeHexString(nonce) });
+        }
 
+        try {
             // the initial vector is set equal to the hash of the current nonce.
-            byte[] initialVector = md5(nonce);
-
             securityUtils.cipher(cipherMode.equals(CipherMode.ENCRYPTION), algorithm.getAlgorithm(),
-                    algorithm.getTransformation(), finalKey, initialVector, content, result);
+                    algorithm.getTransformation(), cipherKey(algorithm, password, nonce), md5(nonce), content, result);
         } catch (NoSuchAlgorithmException e) {
             throw new M3daCodecServiceRuntimeException("unexpected error while ciphering a m3da content", e);
         } catch (GeneralSecurityException e) {
@@ -146,11 +310,89 @@ public class M3daCodecServiceImpl implements M3daCodecService {
         }
     }
 
-    private byte[] md5(byte[] data) {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer cipher(final CipherMode cipherMode, final CipherAlgorithm algorithm, final byte[] password,
+            final byte[] nonce, final ByteBuffer content) {
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("cipher [cipherMode={}, algorithm={}, password={}, nonce={}", new Object[] { cipherMode,
+                                    algorithm, Hex.encodeHexString(password), Hex.encodeHexString(nonce) });
+        }
+
+        return cipher(cipherMode, createCipherKey(algorithm, password, nonce), content, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CipherKey createCipherKey(final CipherAlgorithm algorithm, final byte[] password, final byte[] nonce) {
         try {
-            MessageDigest digest = MessageDigest.getInstance("MD5");
+            // the initial vector is set equal to the hash of the current nonce.
+            return new CipherKeyImpl(algorithm, new SecretKeySpec(cipherKey(algorithm, password, nonce),
+                    algorithm.getAlgorithm()), new IvParameterSpec(md5(nonce)));
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen (only if you use a really broken JVM implementation
+            throw new IllegalStateException("missing MD5 in the JVM", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer cipher(final CipherMode cipherMode, final CipherKey key, final ByteBuffer content,
+            final boolean inPlace) {
+        if (!(key instanceof CipherKeyImpl)) {
+            throw new IllegalArgumentException("not a key created by this service : " + key);
+        }
+        final CipherKeyImpl cipherKey = (CipherKeyImpl) key;
 
-            return digest.digest(data);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("cipher [cipherMode={}, algorithm={}, content={} bytes, inPlace={}]", new Object[] { cipherMode,
+                                    key.getAlgorithm(), content.remaining(), inPlace });
+        }
+
+        try {
+            return securityUtils.cipher(cipherMode.equals(CipherMode.ENCRYPTION), key.getAlgorithm()
+                    .getTransformation(), cipherKey.getKey(), cipherKey.getInitialVector(), content, inPlace);
+        } catch (GeneralSecurityException e) {
+            throw new M3daCodecServiceRuntimeException("unexpected security error while ciphering a m3da content", e);
+        }
+    }
+
+    /** K = HMD5(username | HMD5(password)) */
+    private byte[] hmacKey(final byte[] username, final byte[] password) {
+        return md5(concat(username, md5(password)));
+    }
+
+    /** the cipher key, derived from the password and the nonce */
+    private byte[] cipherKey(final CipherAlgorithm algorithm, final byte[] password, final byte[] nonce)
+            throws NoSuchAlgorithmException {
+        byte[] k = md5(password);
+        byte[] m = nonce;
+        byte[] key = securityUtils.hmac(HmacType.HMAC_MD5.getDigest(), k, m);
+
+        int expectedKeyLength = algorithm.getKeyLength();
+
+        if (key.length < expectedKeyLength) {
+            LOG.trace("extending cipher key, expected length : {}, actual length : {}", expectedKeyLength, key.length);
+
+            // another hash is concatenated to extend the key length
+            byte[] key2 = securityUtils.hmac(HmacType.HMAC_MD5.getDigest(), k, concat(m, m));
+            key = concat(key, key2);
+        }
+
+        // truncate the key to the expected length
+        return Arrays.copyOf(key, expectedKeyLength);
+    }
+
+    private byte[] md5(byte[] data) {
+        try {
+            return SecurityUtils.digest("MD5").digest(data);
 
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalStateException("no MD5 provider in the JVM");
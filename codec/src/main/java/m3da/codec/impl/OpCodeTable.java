@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import m3da.codec.impl.encoding.BooleanEncoding;
+import m3da.codec.impl.encoding.Encoding;
+import m3da.codec.impl.encoding.ListEncoding;
+import m3da.codec.impl.encoding.M3daEncoding;
+import m3da.codec.impl.encoding.MapEncoding;
+import m3da.codec.impl.encoding.NumberEncoding;
+import m3da.codec.impl.encoding.StringEncoding;
+import m3da.codec.impl.encoding.UintEncoding;
+
+/**
+ * The decoding table of a {@link BysantContext}, built once from its {@link Encoding}. For each of the 256 OPCODEs it
+ * gives the decoding routine, the number of bytes following the OPCODE and a base value, so the decoder finds how to
+ * decode a value with a single array lookup instead of testing the OPCODE ranges of each encoding.
+ */
+final class OpCodeTable {
+
+	// decoding routines
+
+	/** not a valid OPCODE in this context */
+	static final byte INVALID = 0;
+	static final byte NULL = 1;
+	static final byte TRUE = 2;
+	static final byte FALSE = 3;
+	/** integer : base + the following bytes */
+	static final byte POSITIVE = 4;
+	/** integer : base - the following bytes */
+	static final byte NEGATIVE = 5;
+	static final byte INT32 = 6;
+	static final byte INT64 = 7;
+	static final byte FLOAT32 = 8;
+	static final byte FLOAT64 = 9;
+	static final byte UINT32 = 10;
+	/** string of (base + the following bytes) length */
+	static final byte STRING = 11;
+	static final byte CHUNKED_STRING = 12;
+	static final byte EMPTY_LIST = 13;
+	/** list of base elements */
+	static final byte LIST = 14;
+	/** list of (base + the following unsigned integer) elements */
+	static final byte LARGE_LIST = 15;
+	static final byte NULL_TERMINATED_LIST = 16;
+	static final byte TYPED_LIST = 17;
+	static final byte LARGE_TYPED_LIST = 18;
+	static final byte NULL_TERMINATED_TYPED_LIST = 19;
+	static final byte EMPTY_MAP = 20;
+	/** map of base entries */
+	static final byte MAP = 21;
+	/** map of (base + the following unsigned integer) entries */
+	static final byte LARGE_MAP = 22;
+	static final byte NULL_TERMINATED_MAP = 23;
+	static final byte TYPED_MAP = 24;
+	static final byte LARGE_TYPED_MAP = 25;
+	static final byte NULL_TERMINATED_TYPED_MAP = 26;
+	static final byte ENVELOPE = 27;
+	static final byte MESSAGE = 28;
+	static final byte RESPONSE = 29;
+	static final byte DELTAS_VECTOR = 30;
+	static final byte QUASI_PERIODIC_VECTOR = 31;
+
+	// kind of decoded values
+
+	static final byte KIND_OTHER = 0;
+	static final byte KIND_STRING = 1;
+	static final byte KIND_UINT = 2;
+	static final byte KIND_NUMBER = 3;
+	static final byte KIND_LIST = 4;
+	static final byte KIND_MAP = 5;
+
+	/** decoding routine of each OPCODE */
+	final byte[] routines = new byte[256];
+
+	/** kind of value introduced by each OPCODE */
+	final byte[] kinds = new byte[256];
+
+	/** number of bytes following each OPCODE */
+	final byte[] sizes = new byte[256];
+
+	/** base value of each OPCODE */
+	final int[] bases = new int[256];
+
+	OpCodeTable(final Encoding encoding) {
+		set(0x00, NULL, KIND_OTHER, 0, 0);
+		if (encoding instanceof StringEncoding) {
+			initStrings((StringEncoding) encoding);
+		}
+		if (encoding instanceof NumberEncoding) {
+			initNumbers((NumberEncoding) encoding);
+		}
+		if (encoding instanceof UintEncoding) {
+			initUints((UintEncoding) encoding);
+		}
+		if (encoding instanceof MapEncoding) {
+			initMaps((MapEncoding) encoding);
+		}
+		if (encoding instanceof ListEncoding) {
+			initLists((ListEncoding) encoding);
+		}
+		if (encoding instanceof M3daEncoding) {
+			final M3daEncoding enc = (M3daEncoding) encoding;
+			set(enc.getEnvelopeOpCode(), ENVELOPE, KIND_OTHER, 0, 0);
+			set(enc.getMessageOpCode(), MESSAGE, KIND_OTHER, 0, 0);
+			set(enc.getResponseOpCode(), RESPONSE, KIND_OTHER, 0, 0);
+			set(enc.getDeltaVectorOpCode(), DELTAS_VECTOR, KIND_OTHER, 0, 0);
+			set(enc.getQuasiPeriodicVectorOpCode(), QUASI_PERIODIC_VECTOR, KIND_OTHER, 0, 0);
+		}
+		if (encoding instanceof BooleanEncoding) {
+			final BooleanEncoding enc = (BooleanEncoding) encoding;
+			set(enc.getTrueOpCode(), TRUE, KIND_OTHER, 0, 0);
+			set(enc.getFalseOpCode(), FALSE, KIND_OTHER, 0, 0);
+		}
+	}
+
+	private void initStrings(final StringEncoding enc) {
+		for (int op = enc.tinyStrOpeCode(); op < enc.smallStrOpeCode(); op++) {
+			set(op, STRING, KIND_STRING, 0, op - enc.tinyStrOpeCode());
+		}
+		for (int op = enc.smallStrOpeCode(); op < enc.largeStrOpeCode(); op++) {
+			set(op, STRING, KIND_STRING, 1, enc.tinyStrLimit() + 1 + (op - enc.smallStrOpeCode()) * 256);
+		}
+		set(enc.largeStrOpeCode(), STRING, KIND_STRING, 2, enc.smallStrLimit() + 1);
+		set(enc.chunkedStrOpeCode(), CHUNKED_STRING, KIND_STRING, 0, 0);
+	}
+
+	private void initNumbers(final NumberEncoding enc) {
+		for (int op = enc.tinyOpCode(); op < enc.smallPositiveOpCode(); op++) {
+			set(op, POSITIVE, KIND_NUMBER, 0, op - enc.tinyOpCode() + enc.tinyMin());
+		}
+		for (int op = enc.smallPositiveOpCode(); op < enc.smallNegativeOpCode(); op++) {
+			set(op, POSITIVE, KIND_NUMBER, 1, ((op - enc.smallPositiveOpCode()) << 8) + enc.tinyMax() + 1);
+		}
+		for (int op = enc.smallNegativeOpCode(); op < enc.mediumPositiveOpCode(); op++) {
+			set(op, NEGATIVE, KIND_NUMBER, 1, -((op - enc.smallNegativeOpCode()) << 8) + enc.tinyMin() - 1);
+		}
+		for (int op = enc.mediumPositiveOpCode(); op < enc.mediumNegativeOpCode(); op++) {
+			set(op, POSITIVE, KIND_NUMBER, 2, ((op - enc.mediumPositiveOpCode()) << 16) + enc.smallMax() + 1);
+		}
+		for (int op = enc.mediumNegativeOpCode(); op < enc.largePositiveOpCode(); op++) {
+			set(op, NEGATIVE, KIND_NUMBER, 2, -((op - enc.mediumNegativeOpCode()) << 16) + enc.smallMin() - 1);
+		}
+		for (int op = enc.largePositiveOpCode(); op < enc.largeNegativeOpCode(); op++) {
+			set(op, POSITIVE, KIND_NUMBER, 3, ((op - enc.largePositiveOpCode()) << 24) + enc.mediumMax() + 1);
+		}
+		for (int op = enc.largeNegativeOpCode(); op < enc.int32OpCode(); op++) {
+			set(op, NEGATIVE, KIND_NUMBER, 3, -((op - enc.largeNegativeOpCode()) << 24) + enc.mediumMin() - 1);
+		}
+		set(enc.int32OpCode(), INT32, KIND_NUMBER, 4, 0);
+		set(enc.int64OpCode(), INT64, KIND_NUMBER, 8, 0);
+		set(enc.float32opCode(), FLOAT32, KIND_NUMBER, 4, 0);
+		set(enc.float64opCode(), FLOAT64, KIND_NUMBER, 8, 0);
+	}
+
+	private void initUints(final UintEncoding enc) {
+		for (int op = enc.tinyOpeCode(); op < enc.smallOpeCode(); op++) {
+			set(op, POSITIVE, KIND_UINT, 0, op - enc.tinyOpeCode());
+		}
+		for (int op = enc.smallOpeCode(); op < enc.mediumOpeCode(); op++) {
+			set(op, POSITIVE, KIND_UINT, 1, enc.tinyMax() + 1 + (op - enc.smallOpeCode()) * 256);
+		}
+		for (int op = enc.mediumOpeCode(); op < enc.largeOpeCode(); op++) {
+			set(op, POSITIVE, KIND_UINT, 2, enc.smallMax() + 1 + (op - enc.mediumOpeCode()) * 65536);
+		}
+		for (int op = enc.largeOpeCode(); op < enc.uint32OpeCode(); op++) {
+			set(op, POSITIVE, KIND_UINT, 3, enc.mediumMax() + 1 + (op - enc.largeOpeCode()) * (1 << 24));
+		}
+		set(enc.uint32OpeCode(), UINT32, KIND_UINT, 4, 0);
+	}
+
+	private void initLists(final ListEncoding enc) {
+		set(enc.emptyListOpCode(), EMPTY_LIST, KIND_LIST, 0, 0);
+		for (int op = enc.tinyUntypedListOpCode(); op < enc.largeUntypedListOpCode(); op++) {
+			set(op, LIST, KIND_LIST, 0, op - enc.tinyUntypedListOpCode() + 1);
+		}
+		set(enc.largeUntypedListOpCode(), LARGE_LIST, KIND_LIST, 0, enc.tinyListLimit() + 1);
+		set(enc.nullTerminatedUntypedListOpCode(), NULL_TERMINATED_LIST, KIND_LIST, 0, 0);
+		for (int op = enc.tinyTypedListOpCode(); op < enc.largeTypedListOpCode(); op++) {
+			set(op, TYPED_LIST, KIND_LIST, 0, op - enc.tinyTypedListOpCode() + 1);
+		}
+		set(enc.largeTypedListOpCode(), LARGE_TYPED_LIST, KIND_LIST, 0, enc.tinyListLimit() + 1);
+		set(enc.nullTerminatedTypedListOpCode(), NULL_TERMINATED_TYPED_LIST, KIND_LIST, 0, 0);
+	}
+
+	private void initMaps(final MapEncoding enc) {
+		set(enc.emptyMapOpCode(), EMPTY_MAP, KIND_MAP, 0, 0);
+		for (int op = enc.tinyUntypedMapOpCode(); op < enc.tinyUntypedMapOpCode() + enc.tinyMapLimit(); op++) {
+			set(op, MAP, KIND_MAP, 0, op - enc.tinyUntypedMapOpCode() + 1);
+		}
+		set(enc.largeUntypedMapOpCode(), LARGE_MAP, KIND_MAP, 0, enc.tinyMapLimit() + 1);
+		set(enc.nullTerminatedUntypedMapOpCode(), NULL_TERMINATED_MAP, KIND_MAP, 0, 0);
+		for (int op = enc.tinyTypedMapOpCode(); op < enc.tinyTypedMapOpCode() + enc.tinyMapLimit(); op++) {
+			set(op, TYPED_MAP, KIND_MAP, 0, op - enc.tinyTypedMapOpCode() + 1);
+		}
+		set(enc.largeTypedMapOpCode(), LARGE_TYPED_MAP, KIND_MAP, 0, enc.tinyMapLimit() + 1);
+		set(enc.nullTerminatedTypedMapOpCode(), NULL_TERMINATED_TYPED_MAP, KIND_MAP, 0, 0);
+	}
+
+	private void set(final int opCode, final byte routine, final byte kind, final int size, final int base) {
+		routines[opCode] = routine;
+		kinds[opCode] = kind;
+		sizes[opCode] = (byte) size;
+		bases[opCode] = base;
+	}
+}
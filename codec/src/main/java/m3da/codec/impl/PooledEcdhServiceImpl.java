@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m3da.codec.EcdhService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * {@link EcdhService} handing out pre-generated key pairs : the P-521 key pairs are generated in the background by
+ * dedicated threads, and kept in a bounded pool until a password negotiation needs one. When the pool is empty (e.g.
+ * registration of a large batch of devices), the key pair is generated by the caller.
+ * <p>
+ * A key pair is used for a single negotiation, never handed out twice. Thread safe.
+ */
+public class PooledEcdhServiceImpl implements EcdhService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledEcdhServiceImpl.class);
+
+    /** default number of pre-generated key pairs */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** for the operations not using the pool, and for generating the key pairs when the pool is empty */
+    private final EcdhService delegate = new EcdhServiceImpl();
+
+    /** the pre-generated key pairs */
+    private final BlockingQueue<KeyPair> pool;
+
+    private final ExecutorService refillers;
+
+    /** key pairs generated by the refill threads */
+    private final AtomicLong generated = new AtomicLong();
+
+    /** key pairs taken from the pool */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** key pairs generated by the caller because the pool was empty */
+    private final AtomicLong misses = new AtomicLong();
+
+    public PooledEcdhServiceImpl() {
+        this(DEFAULT_CAPACITY, 1);
+    }
+
+    /**
+     * @param capacity the maximum number of pre-generated key pairs
+     * @param refillThreads the number of threads generating the key pairs, in the background
+     */
+    public PooledEcdhServiceImpl(final int capacity, final int refillThreads) {
+        if (capacity <= 0 || refillThreads <= 0) {
+            throw new IllegalArgumentException("invalid key pair pool : capacity " + capacity + ", " + refillThreads
+                    + " threads");
+        }
+        this.pool = new ArrayBlockingQueue<KeyPair>(capacity);
+        this.refillers = Executors.newFixedThreadPool(refillThreads, new ThreadFactoryBuilder()
+                .setNameFormat("m3da-ecdh-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+        for (int i = 0; i < refillThreads; i++) {
+            refillers.execute(new Refill());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A pre-generated key pair if available, else a key pair generated by the caller.
+     */
+    @Override
+    public KeyPair generateEcdhKeyPair() {
+        final KeyPair keyPair = pool.poll();
+        if (keyPair != null) {
+            hits.incrementAndGet();
+            return keyPair;
+        }
+        misses.incrementAndGet();
+        LOG.debug("no pre-generated ECDH key pair, generating one");
+        synchronized (delegate) {
+            return delegate.generateEcdhKeyPair();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getPublicKeyCertificate(final KeyPair aKeyPair) {
+        return delegate.getPublicKeyCertificate(aKeyPair);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] computeSharedSecret(final KeyPair yourKeyPair, final byte[] x963Cert) {
+        return delegate.computeSharedSecret(yourKeyPair, x963Cert);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] cipherWithSecret(final byte[] secret, final byte[] payload) {
+        return delegate.cipherWithSecret(secret, payload);
+    }
+
+    /**
+     * Stop the refill threads.
+     */
+    public void shutdown() {
+        refillers.shutdownNow();
+    }
+
+    /**
+     * @return the number of key pairs ready in the pool
+     */
+    public int getAvailable() {
+        return pool.size();
+    }
+
+    /**
+     * @return the number of key pairs generated by the refill threads
+     */
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     * @return the number of key pairs taken from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of key pairs generated by the caller because the pool was empty
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** generate key pairs while the pool is not full, with a key pair generator owned by the thread */
+    private final class Refill implements Runnable {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            final EcdhService generator = new EcdhServiceImpl();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final KeyPair keyPair = generator.generateEcdhKeyPair();
+                    generated.incrementAndGet();
+                    // wait for a free slot
+                    pool.put(keyPair);
+                }
+            } catch (final InterruptedException e) {
+                LOG.debug("ECDH key pair refill stopped");
+            }
+        }
+    }
+}
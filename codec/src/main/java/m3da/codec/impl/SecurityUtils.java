@@ -13,11 +13,14 @@ package m3da.codec.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
@@ -63,6 +66,25 @@ public class SecurityUtils {
     /** Block size (in bytes) when using SHA-1 or MD5 hash functions */
     private static final int BLOCK_SIZE = 64;
 
+    /** the digests of each thread, by algorithm : the digests are reset, never shared between threads */
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = new ThreadLocal<Map<String, MessageDigest>>() {
+        @Override
+        protected Map<String, MessageDigest> initialValue() {
+            return new HashMap<String, MessageDigest>(4);
+        }
+    };
+
+    /** the ciphers of each thread, by transformation : a cipher is initialized for each content, never shared */
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = new ThreadLocal<Map<String, Cipher>>() {
+        @Override
+        protected Map<String, Cipher> initialValue() {
+            return new HashMap<String, Cipher>(4);
+        }
+    };
+
+    /** the provider registration is checked only once per class loader */
+    private static boolean providerRegistered = false;
+
     public SecurityUtils() {
 
         opad = new byte[BLOCK_SIZE];
@@ -73,7 +95,7 @@ public class SecurityUtils {
             ipad[i] = 0x36;
         }
 
-        this.registerSecurityProvider();
+        registerSecurityProvider();
     }
 
     /**
@@ -86,26 +108,106 @@ public class SecurityUtils {
      * @throws NoSuchAlgorithmException
      */
     public byte[] hmac(final String algorithm, final byte[] k, final byte[] m) throws NoSuchAlgorithmException {
+        return hmac(algorithm, k, ByteBuffer.wrap(m));
+    }
+
+    /**
+     * HMAC(k, m) = H((k ⊕ opad) | H((k ⊕ ipad) | m)), the message being the concatenation of the given buffers. The
+     * buffers are not consumed.
+     * 
+     * @param algorithm the digest algorithm
+     * @param k the key
+     * @param m the parts of the message
+     * @return the resulting hash value
+     * @throws NoSuchAlgorithmException
+     */
+    public byte[] hmac(final String algorithm, final byte[] k, final ByteBuffer... m) throws NoSuchAlgorithmException {
 
         if (LOG.isTraceEnabled()) {
-            LOG.trace("HMAC [digestAlgorithm={}, key={}, message={}]", new Object[] { algorithm,
-                                    Hex.encodeHexString(k), Hex.encodeHexString(m) });
+            LOG.trace("HMAC [digestAlgorithm={}, key={}, message parts={}]", new Object[] { algorithm,
+                                    Hex.encodeHexString(k), m.length });
         }
 
         // the key should have the block size. padded with 0 if needed.
-        byte[] key = Arrays.copyOf(k, BLOCK_SIZE);
+        final byte[] key = Arrays.copyOf(k, BLOCK_SIZE);
 
-        final MessageDigest digest = MessageDigest.getInstance(algorithm);
+        final MessageDigest digest = digest(algorithm);
 
-        digest.update(xor(key, ipad));
-        digest.update(m);
+        xor(key, ipad);
+        digest.update(key);
+        for (final ByteBuffer part : m) {
+            digest.update(part.duplicate());
+        }
         final byte[] rightPart = digest.digest();
-        digest.reset();
 
-        digest.update(xor(key, opad));
+        // k ⊕ opad = (k ⊕ ipad) ⊕ ipad ⊕ opad
+        xor(key, ipad);
+        xor(key, opad);
+        digest.update(key);
         return digest.digest(rightPart);
     }
 
+    /**
+     * Prepare the HMAC of a key : the returned inner and outer digests already absorbed (k ⊕ ipad) and (k ⊕ opad), so
+     * the HMAC of a message is computed by {@link #hmac(MessageDigest, MessageDigest, ByteBuffer...)} without hashing
+     * the key blocks again.
+     * 
+     * @param algorithm the digest algorithm
+     * @param k the key
+     * @return the inner and the outer digests, never updated afterward
+     * @throws NoSuchAlgorithmException
+     */
+    public MessageDigest[] hmacStates(final String algorithm, final byte[] k) throws NoSuchAlgorithmException {
+        final byte[] key = Arrays.copyOf(k, BLOCK_SIZE);
+
+        final MessageDigest inner = MessageDigest.getInstance(algorithm);
+        xor(key, ipad);
+        inner.update(key);
+
+        final MessageDigest outer = MessageDigest.getInstance(algorithm);
+        xor(key, ipad);
+        xor(key, opad);
+        outer.update(key);
+        return new MessageDigest[] { inner, outer };
+    }
+
+    /**
+     * HMAC(k, m) using the digest states prepared by {@link #hmacStates(String, byte[])}, which are cloned and not
+     * modified. The buffers are not consumed.
+     * 
+     * @param inner the digest state after (k ⊕ ipad)
+     * @param outer the digest state after (k ⊕ opad)
+     * @param m the parts of the message
+     * @return the resulting hash value
+     * @throws CloneNotSupportedException if the digest implementation can't be cloned
+     */
+    public byte[] hmac(final MessageDigest inner, final MessageDigest outer, final ByteBuffer... m)
+            throws CloneNotSupportedException {
+        final MessageDigest digest = (MessageDigest) inner.clone();
+        for (final ByteBuffer part : m) {
+            digest.update(part.duplicate());
+        }
+        final byte[] rightPart = digest.digest();
+        return ((MessageDigest) outer.clone()).digest(rightPart);
+    }
+
+    /**
+     * @param algorithm the digest algorithm
+     * @return the digest of the calling thread for this algorithm, reset
+     * @throws NoSuchAlgorithmException
+     */
+    public static MessageDigest digest(final String algorithm) throws NoSuchAlgorithmException {
+        final Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, digest);
+        } else {
+            digest.reset();
+        }
+        return digest;
+    }
+
     /**
      * Perform encryption or decryption on the data from a stream to another one.
      * 
@@ -149,8 +251,62 @@ public class SecurityUtils {
         }
     }
 
+    /**
+     * Perform encryption or decryption on the data of a buffer with the cipher of the calling thread. The result is
+     * written over the data when <code>inPlace</code> is set and the buffer is writable, and the result is not longer
+     * than the data (decryption, or encryption without padding) : nothing is written after the limit of the buffer.
+     * The input buffer is not consumed.
+     * 
+     * @param encryptionMode <code>true</code> for encryption and <code>false</code> for decryption
+     * @param transformation (e.g. <i>"AES/CBC/NoPadding"</i>)
+     * @param key the cipher key
+     * @param initialVector the initial vector
+     * @param content the data to cipher/decipher
+     * @param inPlace <code>true</code> if the data may be overwritten by the result
+     * @return the resulting data, ready to be read : a view of the content buffer when ciphered in place, else a new
+     *         buffer
+     */
+    public ByteBuffer cipher(boolean encryptionMode, String transformation, SecretKey key,
+            IvParameterSpec initialVector, ByteBuffer content, boolean inPlace) throws GeneralSecurityException {
+
+        final Cipher cipher = cipher(transformation);
+        cipher.init(encryptionMode ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, initialVector);
+
+        final int outputSize = cipher.getOutputSize(content.remaining());
+        final ByteBuffer result;
+        if (inPlace && !content.isReadOnly() && outputSize <= content.remaining()) {
+            // Cipher.doFinal(ByteBuffer, ByteBuffer) is copy-safe for overlapping buffers
+            result = content.duplicate();
+        } else {
+            result = ByteBuffer.allocate(outputSize);
+        }
+        final int start = result.position();
+        cipher.doFinal(content.duplicate(), result);
+        result.limit(result.position());
+        result.position(start);
+        return result;
+    }
+
+    /**
+     * @param transformation the cipher transformation
+     * @return the cipher of the calling thread for this transformation, to be initialized
+     * @throws GeneralSecurityException
+     */
+    private static Cipher cipher(final String transformation) throws GeneralSecurityException {
+        final Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, BOUNCY_CASTLE);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
     /** Register BouncyCastle as JCE provider */
-    private void registerSecurityProvider() {
+    private static synchronized void registerSecurityProvider() {
+        if (providerRegistered) {
+            return;
+        }
         try {
             if (Security.getProvider(BOUNCY_CASTLE) == null) {
                 Security.addProvider(new BouncyCastleProvider());
@@ -158,22 +314,20 @@ public class SecurityUtils {
             } else {
                 LOG.warn("BouncyCastle already registered as a JCE provider");
             }
+            providerRegistered = true;
         } catch (Throwable t) {
             throw new M3daCodecServiceRuntimeException("Failed to register BouncyCastle as JCE provider", t);
         }
     }
 
-    /** xor two array of the same size into a new one */
-    private byte[] xor(final byte[] a, final byte[] b) {
+    /** xor an array with another one of the same size, in place */
+    private static void xor(final byte[] a, final byte[] b) {
         if (a.length != b.length) {
             throw new IllegalArgumentException("cannot XOR arrays of different lengths");
         }
-        final byte[] res = new byte[a.length];
-
         for (int i = 0; i < a.length; i++) {
-            res[i] = (byte) (a[i] ^ b[i]);
+            a[i] = (byte) (a[i] ^ b[i]);
         }
-        return res;
     }
 
 }
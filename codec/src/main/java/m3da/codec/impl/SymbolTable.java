@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A table of the strings already decoded, used for the map keys and the message paths : the same keys are received
+ * in each message, so instead of decoding them again the UTF-8 bytes are matched (by hash and length, then content)
+ * against the known symbols, and the same String instance is returned.
+ * <p>
+ * The memory used by the table is bounded : the long strings are never kept, and the table is cleared when the
+ * estimated size of its symbols reaches the limit.
+ * <p>
+ * Not thread safe : a table must be used by a single decoder.
+ */
+public class SymbolTable {
+
+    /** default memory limit, in bytes */
+    public static final int DEFAULT_MAX_MEMORY = 16 * 1024;
+
+    /** default length limit of the kept symbols, in bytes */
+    public static final int DEFAULT_MAX_SYMBOL_LENGTH = 128;
+
+    /** estimated memory used by an entry, in addition to its content */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxMemory;
+
+    private final int maxSymbolLength;
+
+    /** UTF-8 bytes of the symbols, open addressing with linear probing */
+    private byte[][] keys = new byte[INITIAL_CAPACITY][];
+
+    private String[] values = new String[INITIAL_CAPACITY];
+
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    private int memory = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long clears = 0;
+
+    /**
+     * Create a symbol table with the default limits.
+     */
+    public SymbolTable() {
+        this(DEFAULT_MAX_MEMORY, DEFAULT_MAX_SYMBOL_LENGTH);
+    }
+
+    /**
+     * Create a symbol table.
+     *
+     * @param maxMemory the estimated memory (in bytes) above which the table is cleared
+     * @param maxSymbolLength the longest symbol (in UTF-8 bytes) to keep
+     */
+    public SymbolTable(final int maxMemory, final int maxSymbolLength) {
+        this.maxMemory = maxMemory;
+        this.maxSymbolLength = maxSymbolLength;
+    }
+
+    /**
+     * Decode the UTF-8 bytes of a symbol, reusing the String of a previous decoding if possible. The buffer position is
+     * not modified.
+     *
+     * @param utf8 the UTF-8 bytes
+     * @return the decoded string
+     */
+    public String intern(final ByteBuffer utf8) {
+        final int length = utf8.remaining();
+        if (length > maxSymbolLength) {
+            misses++;
+            return BysantReaderImpl.toString(utf8);
+        }
+        final int hash = hash(utf8);
+        final int mask = keys.length - 1;
+        int index = hash & mask;
+        byte[] key;
+        while ((key = keys[index]) != null) {
+            if (hashes[index] == hash && key.length == length && sameBytes(key, utf8)) {
+                hits++;
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        misses++;
+        final String value = BysantReaderImpl.toString(utf8);
+        final int entryMemory = ENTRY_OVERHEAD + length + value.length() * 2;
+        if (memory + entryMemory > maxMemory) {
+            clear();
+            clears++;
+            if (entryMemory > maxMemory) {
+                return value;
+            }
+            index = hash & (keys.length - 1);
+        } else if ((size + 1) * 2 > keys.length) {
+            grow();
+            index = hash & (keys.length - 1);
+            while (keys[index] != null) {
+                index = (index + 1) & (keys.length - 1);
+            }
+        }
+        final byte[] bytes = new byte[length];
+        utf8.duplicate().get(bytes);
+        keys[index] = bytes;
+        values[index] = value;
+        hashes[index] = hash;
+        size++;
+        memory += entryMemory;
+        return value;
+    }
+
+    /**
+     * Forget all the symbols. The counters are not reset.
+     */
+    public void clear() {
+        if (keys.length > INITIAL_CAPACITY) {
+            keys = new byte[INITIAL_CAPACITY][];
+            values = new String[INITIAL_CAPACITY];
+            hashes = new int[INITIAL_CAPACITY];
+        } else {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = null;
+                values[i] = null;
+            }
+        }
+        size = 0;
+        memory = 0;
+    }
+
+    /**
+     * @return the number of symbols found in the table
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of strings decoded because they were not in the table
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of times the table was cleared because it reached its memory limit
+     */
+    public long getClears() {
+        return clears;
+    }
+
+    /**
+     * @return the number of symbols in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the estimated memory used by the symbols, in bytes
+     */
+    public int getMemory() {
+        return memory;
+    }
+
+    private void grow() {
+        final byte[][] oldKeys = keys;
+        final String[] oldValues = values;
+        final int[] oldHashes = hashes;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = oldHashes[i] & mask;
+                while (keys[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+                hashes[index] = oldHashes[i];
+            }
+        }
+    }
+
+    private static int hash(final ByteBuffer utf8) {
+        int hash = 0;
+        for (int i = utf8.position(); i < utf8.limit(); i++) {
+            hash = 31 * hash + utf8.get(i);
+        }
+        // spread the low bits, the table index is masked
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameBytes(final byte[] key, final ByteBuffer utf8) {
+        final int position = utf8.position();
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != utf8.get(position + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "SymbolTable [size=" + size + ", memory=" + memory + ", hits=" + hits + ", misses=" + misses
+                + ", clears=" + clears + "]";
+    }
+}
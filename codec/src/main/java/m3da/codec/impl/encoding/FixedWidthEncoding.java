@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl.encoding;
+
+/**
+ * a Bysant context where the values are fixed width numbers, written without OPCODE. Such a context can't encode a
+ * null value.
+ */
+public interface FixedWidthEncoding {
+
+	/**
+	 * @return the number of bytes of each value
+	 */
+	int width();
+
+	/**
+	 * @return <code>true</code> for IEEE 754 floating point numbers, <code>false</code> for signed integers
+	 */
+	boolean isFloatingPoint();
+
+}
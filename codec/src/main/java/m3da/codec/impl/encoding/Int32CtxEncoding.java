@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl.encoding;
+
+/**
+ * the SIGNED_INTS32 context : 32 bits signed integers
+ */
+public class Int32CtxEncoding implements FixedWidthEncoding, Encoding {
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int width() {
+		return 4;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isFloatingPoint() {
+		return false;
+	}
+
+}
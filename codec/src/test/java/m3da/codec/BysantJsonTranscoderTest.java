@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import m3da.codec.dto.M3daDeltasVector;
+import m3da.codec.dto.M3daEnvelope;
+import m3da.codec.dto.M3daMessage;
+import m3da.codec.dto.M3daQuasiPeriodicVector;
+import m3da.codec.impl.BysantContext;
+import m3da.codec.impl.BysantDecoderImpl;
+import m3da.codec.impl.BysantEncoderImpl;
+import m3da.codec.impl.BysantJsonTranscoderImpl;
+import m3da.codec.impl.EnvelopeEncoderImpl;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Unit tests for {@link BysantJsonTranscoderImpl}
+ */
+public class BysantJsonTranscoderTest {
+
+    private final BysantJsonTranscoder transcoder = new BysantJsonTranscoderImpl();
+
+    private String toJson(final ByteBuffer bysant) throws DecoderException, IOException {
+        final StringWriter json = new StringWriter();
+        transcoder.toJson(bysant, json);
+        return json.toString();
+    }
+
+    @Test
+    public void message_to_json() throws DecoderException, IOException {
+        final Map<Object, Object> body = Maps.newLinkedHashMap();
+        body.put("temp", Lists.newArrayList(1, 2.5d, "été", true, null));
+        body.put(12, new HashMap<Object, Object>());
+        final ByteBuffer bysant = new BysantEncoderImpl().encode(new M3daMessage("@sys.greenhouse", 3L, body));
+
+        Assert.assertEquals("[{\"path\":\"@sys.greenhouse\",\"ticketId\":3,\"body\":"
+                + "{\"temp\":[1,2.5,\"été\",true,null],\"12\":{}}}]", toJson(bysant));
+        // not consumed
+        Assert.assertTrue(bysant.hasRemaining());
+    }
+
+    @Test
+    public void expand_the_vectors() throws DecoderException, IOException {
+        final M3daDeltasVector deltas = new M3daDeltasVector(5, 10, new long[] { 1, -2, 0, 3 });
+        final M3daQuasiPeriodicVector periodic = new M3daQuasiPeriodicVector(10, 100, new long[] { 2, 1, 0, -3, 3 });
+        final M3daDeltasVector floating = new M3daDeltasVector(2, 1, Arrays.<Number> asList(1, 0.5d));
+        final ByteBuffer bysant = new BysantEncoderImpl().encode(BysantContext.GLOBAL, new Object[] { deltas,
+                                periodic, floating });
+
+        Assert.assertEquals("[" + Arrays.toString(deltas.toLongArray()).replace(" ", "") + ","
+                + Arrays.toString(periodic.toLongArray()).replace(" ", "") + ",[2,4.0,5.0]]", toJson(bysant));
+    }
+
+    @Test(expected = DecoderException.class)
+    public void limit_the_expanded_vectors() throws DecoderException, IOException {
+        final M3daQuasiPeriodicVector periodic = new M3daQuasiPeriodicVector(1, 0, new long[] { Long.MAX_VALUE });
+        final ByteBuffer bysant = new BysantEncoderImpl().encode(BysantContext.GLOBAL, new Object[] { periodic });
+        new BysantJsonTranscoderImpl(new DecoderPolicy(1024, 8, 100, 1024)).toJson(bysant, new StringWriter());
+    }
+
+    @Test
+    public void envelope_to_json() throws DecoderException, IOException {
+        final Map<Object, Object> header = new HashMap<Object, Object>();
+        header.put("id", "client");
+        final ByteBuffer payload = new BysantEncoderImpl().encode(new M3daMessage("a", null,
+                new HashMap<Object, Object>()));
+        final ByteBuffer bysant = new BysantEncoderImpl().encode(new M3daEnvelope(header, payload,
+                new HashMap<Object, Object>()));
+
+        Assert.assertEquals("[{\"header\":{\"id\":\"client\"},\"payload\":[{\"path\":\"a\",\"ticketId\":null,"
+                + "\"body\":{}}],\"footer\":{}}]", toJson(bysant));
+    }
+
+    @Test
+    public void limit_the_nested_envelopes() throws IOException {
+        // each payload is transcoded with its own reader : the depth is counted across the payloads
+        ByteBuffer bysant = new BysantEncoderImpl().encode(new M3daMessage("a", null, new HashMap<Object, Object>()));
+        for (int i = 0; i < 5000; i++) {
+            bysant = new EnvelopeEncoderImpl().encode(new M3daEnvelope(new HashMap<Object, Object>(), bysant,
+                    new HashMap<Object, Object>()));
+        }
+        try {
+            toJson(bysant);
+            Assert.fail("too deep");
+        } catch (final DecoderException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("nested"));
+        }
+    }
+
+    @Test
+    public void json_to_bysant() throws DecoderException, IOException {
+        final String json = "[{\"a\":[1,2.5,\"x\",true],\"b\":{},\"c\":null},-70000,\"€\"]";
+        final ByteBuffer bysant = transcoder.toBysant(new StringReader(json));
+
+        final List<Object> decoded = Lists.newArrayList();
+        new BysantDecoderImpl().decodeAndAccumulate(bysant.duplicate(), new DecoderOutput<Object>() {
+            @Override
+            public void decoded(final Object pdu) {
+                decoded.add(pdu);
+            }
+        }, BysantContext.GLOBAL);
+        Assert.assertEquals(3, decoded.size());
+        Assert.assertEquals(-70000, ((Number) decoded.get(1)).intValue());
+
+        // and back
+        Assert.assertEquals(json, toJson(bysant));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void reject_null_array_elements() throws IOException {
+        // the null value is the terminator of the bysant list
+        transcoder.toBysant(new StringReader("[[1,null,2]]"));
+    }
+
+    @Test
+    public void json_to_bysant_message() throws DecoderException, IOException {
+        final List<ByteBuffer> chunks = Lists.newArrayList();
+        transcoder.toBysantMessage("@sys.greenhouse", 7L,
+                new JsonFactory().createJsonParser("{\"light\":{\"on\":true}}"), new EncoderOutput() {
+                    @Override
+                    public void write(final ByteBuffer encodedBuffer) {
+                        chunks.add(encodedBuffer);
+                    }
+                });
+        Assert.assertEquals(1, chunks.size());
+
+        final List<Object> decoded = Lists.newArrayList();
+        new BysantDecoderImpl().decodeAndAccumulate(chunks.get(0), new DecoderOutput<Object>() {
+            @Override
+            public void decoded(final Object pdu) {
+                decoded.add(pdu);
+            }
+        }, BysantContext.GLOBAL);
+        final M3daMessage message = (M3daMessage) decoded.get(0);
+        Assert.assertEquals("@sys.greenhouse", message.getPath());
+        Assert.assertEquals(Long.valueOf(7L), message.getTicketId());
+        Assert.assertEquals(Boolean.TRUE, ((Map<?, ?>) message.getBody().get("light")).get("on"));
+    }
+}
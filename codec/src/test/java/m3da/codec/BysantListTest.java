@@ -19,6 +19,7 @@ import m3da.codec.impl.BysantContext;
 import m3da.codec.impl.BysantDecoderImpl;
 import m3da.codec.impl.BysantEncoderImpl;
 
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -50,6 +51,11 @@ public class BysantListTest {
                 "33066f6e650674776fa2a3a4a5a6a7a8");
         globalSamples.put(Lists.newArrayList(toBB("one"), toBB("two"), 3, 4, 5, 6, 7, 8, 9, toBB("ten")),
                 "343b066f6e650674776fa2a3a4a5a6a7a80674656e");
+        // typed lists
+        globalSamples.put(Lists.newArrayList(1.5f, 2.5f, -3.25f), "38043fc0000040200000c0500000");
+        globalSamples.put(Lists.newArrayList(100000000, -100000000, 2000000000), "380305f5e100fa0a1f0077359400");
+        globalSamples.put(Lists.newArrayList(toBB(StringUtils.repeat("a", 40)), toBB(StringUtils.repeat("b", 40))),
+                "370129" + StringUtils.repeat("61", 40) + "29" + StringUtils.repeat("62", 40));
     }
 
     private final Map<List<?>, String> listAndMapSamples = Maps.newLinkedHashMap();
@@ -102,6 +108,22 @@ public class BysantListTest {
         testDecode(listAndMapSamples, BysantContext.LIST_AND_MAPS);
     }
 
+    @Test
+    public void decode_null_terminated_typed_list() throws DecoderException {
+        final ListDecoder output = new ListDecoder();
+        // two numbers (3) in the NUMBERS context
+        new BysantDecoderImpl().decodeAndAccumulate(ByteBuffer.wrap(Hex.decodeHex("4002656500")), output,
+                BysantContext.GLOBAL);
+        Assert.assertEquals(1, output.list.size());
+        Assert.assertEquals(Lists.newArrayList(3, 3), output.list.get(0));
+    }
+
+    @Test(expected = DecoderException.class)
+    public void decode_null_terminated_fixed_width_list() throws DecoderException {
+        new BysantDecoderImpl().decodeAndAccumulate(ByteBuffer.wrap(Hex.decodeHex("4003000000")), new ListDecoder(),
+                BysantContext.GLOBAL);
+    }
+
     private void testDecode(final Map<List<?>, String> samples, final BysantContext ctx) throws DecoderException {
         for (final Map.Entry<List<?>, String> entry : samples.entrySet()) {
             final BysantDecoderImpl decoder = new BysantDecoderImpl();
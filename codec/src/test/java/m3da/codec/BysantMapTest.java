@@ -12,6 +12,7 @@ package m3da.codec;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -51,6 +52,11 @@ public class BysantMapTest {
                 .put(build_map("1", 1, "2", 2, "3", 3, "4", 4, "5", 5, "6", 6, "7", 7, "8", 8, "9", 9, "10", 10, "11",
                         11, "12", 12, "13", 13, "14", 14, "15", 15, "16", 16, "17", 17, "18", 18, "19", 19, 20, 20),
                         "4b450231a00232a10233a20234a30235a40236a50237a60238a70239a8033130a9033131aa033132ab033133ac033134ad033135ae033136af033137b0033138b1033139b24fb3");
+        // the largest tiny map
+        globalSamples.put(build_map("1", 1, "2", 2, "3", 3, "4", 4, "5", 5, "6", 6, "7", 7, "8", 8, "9", 9),
+                "4a0231a00232a10233a20234a30235a40236a50237a60238a70239a8");
+        // typed map
+        globalSamples.put(build_map("a", 1.5d, "b", 2.5d), "4e0502613ff800000000000002624004000000000000");
     }
 
     private final Map<Map<?, ?>, String> mapAndListSamples = Maps.newLinkedHashMap();
@@ -117,6 +123,41 @@ public class BysantMapTest {
         testDecode(mapAndListSamples, BysantContext.LIST_AND_MAPS);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void decode_small_maps_as_compact_maps() throws DecoderException {
+        final BysantDecoderImpl decoder = new BysantDecoderImpl();
+        decoder.setCompactMapMaxSize(2);
+        final ListDecoder output = new ListDecoder();
+
+        // a tiny map, a null terminated map with a duplicated key, a null terminated map too large for a compact map
+        decoder.decodeAndAccumulate(ByteBuffer.wrap(Hex.decodeHex("430231a00232a1" + "4c0231a00231a100"
+                + "4c0231a00232a10233a200")), output, BysantContext.GLOBAL);
+        decoder.finishDecode();
+        Assert.assertEquals(3, output.list.size());
+
+        final Map<Object, Object> tiny = (Map<Object, Object>) output.list.get(0);
+        Assert.assertFalse(tiny instanceof HashMap);
+        Assert.assertEquals(build_map("1", 1, "2", 2), tiny);
+        Assert.assertEquals(build_map("1", 1, "2", 2).hashCode(), tiny.hashCode());
+        Assert.assertEquals(2, tiny.get("2"));
+        Assert.assertNull(tiny.get("3"));
+        try {
+            tiny.put("3", 3);
+            Assert.fail("immutable");
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+
+        final Map<Object, Object> duplicated = (Map<Object, Object>) output.list.get(1);
+        Assert.assertFalse(duplicated instanceof HashMap);
+        Assert.assertEquals(build_map("1", 2), duplicated);
+
+        final Map<Object, Object> large = (Map<Object, Object>) output.list.get(2);
+        Assert.assertTrue(large instanceof HashMap);
+        Assert.assertEquals(build_map("1", 1, "2", 2, "3", 3), large);
+    }
+
     private void testDecode(final Map<Map<?, ?>, String> samples, final BysantContext ctx) throws DecoderException {
         for (final Map.Entry<Map<?, ?>, String> entry : samples.entrySet()) {
             final BysantDecoderImpl decoder = new BysantDecoderImpl();
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import m3da.codec.BysantReader.Token;
+import m3da.codec.impl.BysantReaderImpl;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link BysantReaderImpl}
+ */
+public class BysantReaderTest {
+
+    /**
+     * a message "myAsset.somewhere", ticket 12, with a body { "A.B...ridiculouslylongpath" : [ "string", 12, -50000,
+     * 450000000, ["A","B",123]] }
+     */
+    private static final String MESSAGE = "61126d7941737365742e736f6d65776865726547843148412e422e432e442e452e462e472e482e492e4a2e4b2e4c2e4d2e4f2e502e512e522e532e542e552e562e572e582e592e5a2e412e422e432e442e452e462e472e482e492e4a2e4b2e4c2e4d2e4f2e502e512e522e532e542e552e562e572e582e592e5a2e7269646963756c6f75736c796c6f6e67706174682f09737472696e67abf4bb30fc1ad274802d04410442e03a";
+
+    @Test
+    public void walk_a_message() throws DecoderException {
+        final BysantReader reader = new BysantReaderImpl();
+        reader.setInput(ByteBuffer.wrap(Hex.decodeHex(MESSAGE)));
+
+        assertEquals(Token.START_MESSAGE, reader.nextToken());
+        assertEquals(Token.STRING, reader.nextToken());
+        assertEquals("myAsset.somewhere", reader.readString());
+        assertEquals(Token.INTEGER, reader.nextToken());
+        assertEquals(12L, reader.readLong());
+
+        assertEquals(Token.START_MAP, reader.nextToken());
+        assertEquals(1, reader.enterMap());
+        assertEquals(Token.STRING, reader.nextToken());
+        assertTrue(reader.readString().endsWith("ridiculouslylongpath"));
+        assertEquals(Token.START_LIST, reader.nextToken());
+        assertEquals(5, reader.enterList());
+        assertEquals(Token.STRING, reader.nextToken());
+        assertTrue(reader.readStringSlice().isReadOnly());
+        assertEquals(ByteBuffer.wrap("string".getBytes()), reader.readStringSlice());
+        assertEquals(Token.INTEGER, reader.nextToken());
+        assertEquals(12L, reader.readLong());
+        assertEquals(Token.INTEGER, reader.nextToken());
+        assertEquals(-50000L, reader.readLong());
+        assertEquals(Token.INTEGER, reader.nextToken());
+        assertEquals(450000000d, reader.readDouble(), 0d);
+        assertEquals(Token.START_LIST, reader.nextToken());
+        assertTrue(reader.skipValue());
+        assertEquals(Token.END_LIST, reader.currentToken());
+        assertEquals(Token.END_LIST, reader.nextToken());
+        assertEquals(Token.END_MAP, reader.nextToken());
+        assertEquals(Token.END_OBJECT, reader.nextToken());
+        assertEquals(Token.NEED_MORE_INPUT, reader.nextToken());
+        reader.finish();
+    }
+
+    @Test
+    public void skip_a_message_received_byte_per_byte() throws DecoderException {
+        final byte[] data = Hex.decodeHex(MESSAGE + "610361623b83");
+        final BysantReader reader = new BysantReaderImpl();
+
+        int i = 0;
+        reader.setInput(ByteBuffer.wrap(data, i++, 1));
+        Token token = reader.nextToken();
+        while (token == Token.NEED_MORE_INPUT) {
+            reader.setInput(ByteBuffer.wrap(data, i++, 1));
+            token = reader.nextToken();
+        }
+        assertEquals(Token.START_MESSAGE, token);
+
+        // skip the whole first message, the skipping continues with the next calls to nextToken
+        assertFalse(reader.skipValue());
+        token = Token.NEED_MORE_INPUT;
+        while (token == Token.NEED_MORE_INPUT) {
+            reader.setInput(ByteBuffer.wrap(data, i++, 1));
+            token = reader.nextToken();
+        }
+
+        // read the second one
+        final StringBuilder tokens = new StringBuilder();
+        for (;;) {
+            while (token != Token.NEED_MORE_INPUT) {
+                tokens.append(token).append(' ');
+                if (token == Token.STRING) {
+                    tokens.append(reader.readString()).append(' ');
+                } else if (token == Token.INTEGER) {
+                    tokens.append(reader.readLong()).append(' ');
+                }
+                token = reader.nextToken();
+            }
+            if (i == data.length) {
+                break;
+            }
+            reader.setInput(ByteBuffer.wrap(data, i++, 1));
+            token = reader.nextToken();
+        }
+        reader.finish();
+        assertEquals("START_MESSAGE STRING ab INTEGER 0 START_MAP END_MAP END_OBJECT ", tokens.toString());
+    }
+
+    @Test(expected = DecoderException.class)
+    public void finish_an_incomplete_stream() throws DecoderException {
+        final BysantReader reader = new BysantReaderImpl();
+        reader.setInput(ByteBuffer.wrap(Hex.decodeHex(MESSAGE.substring(0, 20))));
+        assertEquals(Token.START_MESSAGE, reader.nextToken());
+        assertEquals(Token.NEED_MORE_INPUT, reader.nextToken());
+        reader.finish();
+    }
+}
@@ -10,6 +10,8 @@
  ******************************************************************************/
 package m3da.codec;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +19,7 @@ import java.util.Map;
 import m3da.codec.impl.BysantContext;
 import m3da.codec.impl.BysantDecoderImpl;
 import m3da.codec.impl.BysantEncoderImpl;
+import m3da.codec.dto.StreamedBinary;
 
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Assert;
@@ -111,6 +114,156 @@ public class BysantStringTest {
         }
     }
 
+    @Test
+    public void decode_global_string_as_slices() throws DecoderException {
+        for (final Map.Entry<String, String> entry : globalStrings.entrySet()) {
+            final ListDecoder output = new ListDecoder();
+            final BysantDecoderImpl decoder = new BysantDecoderImpl(true);
+            final ByteBuffer input = ByteBuffer.wrap(Hex.decodeHex(entry.getValue()));
+
+            decoder.decodeAndAccumulate(input, output, BysantContext.GLOBAL);
+
+            Assert.assertEquals(1, output.list.size());
+            final ByteBuffer res = (ByteBuffer) output.list.get(0);
+            Assert.assertTrue(res.isReadOnly());
+            Assert.assertEquals(ByteBuffer.wrap(entry.getKey().getBytes(Charsets.UTF_8)), res);
+        }
+    }
+
+    @Test
+    public void slices_share_the_input_buffer() throws DecoderException {
+        final ListDecoder output = new ListDecoder();
+        final BysantDecoderImpl decoder = new BysantDecoderImpl(true);
+        final byte[] input = Hex.decodeHex("04616263");
+
+        decoder.decodeAndAccumulate(ByteBuffer.wrap(input), output, BysantContext.UINTS_AND_STRS);
+        // modify the input buffer after decoding
+        input[1] = 'z';
+
+        final ByteBuffer res = (ByteBuffer) output.list.get(0);
+        Assert.assertEquals(ByteBuffer.wrap("zbc".getBytes(Charsets.UTF_8)), res);
+    }
+
+    @Test
+    public void encode_non_ascii_strings() {
+        final BysantEncoderImpl encoder = new BysantEncoderImpl();
+        // the length prefix is reserved for 3 bytes per char then shrunk (tiny, small and large strings)
+        final String[] samples = new String[] { StringUtils.repeat("\u00e9", 12), StringUtils.repeat("\u00e9", 20),
+                                StringUtils.repeat("\u00e9", 400), StringUtils.repeat("\u20ac", 400),
+                                StringUtils.repeat("\ud83d\ude00", 5), "a\ud800b", "\udc00" };
+        for (final String sample : samples) {
+            for (final BysantContext ctx : new BysantContext[] { BysantContext.GLOBAL, BysantContext.UINTS_AND_STRS }) {
+                // same bytes as the String.getBytes conversion
+                final ByteBuffer expected = encoder.encode(ctx, new Object[] { sample.getBytes(Charsets.UTF_8) });
+                Assert.assertEquals(expected, encoder.encode(ctx, new Object[] { sample }));
+            }
+        }
+    }
+
+    @Test
+    public void utf8_slices() {
+        final String[] samples = new String[] { "", "abc", StringUtils.repeat("\u00e9", 20), "\ud83d\ude00" };
+        final BysantEncoderImpl encoder = new BysantEncoderImpl();
+        for (final String sample : samples) {
+            final Utf8Slice slice = Utf8Slice.of(ByteBuffer.wrap(sample.getBytes(Charsets.UTF_8)));
+            Assert.assertEquals(sample, slice.toString());
+            Assert.assertEquals(Utf8Slice.of(sample), slice);
+            Assert.assertEquals(Utf8Slice.of(sample).hashCode(), slice.hashCode());
+
+            // encoded as the string
+            Assert.assertEquals(encoder.encode(BysantContext.GLOBAL, new Object[] { sample }),
+                    encoder.encode(BysantContext.GLOBAL, new Object[] { slice }));
+        }
+        Assert.assertFalse(Utf8Slice.of("abc").equals(Utf8Slice.of("abd")));
+        Assert.assertNull(Utf8Slice.of((ByteBuffer) null));
+    }
+
+    @Test
+    public void encode_large_binary() throws DecoderException {
+        final BysantEncoderImpl encoder = new BysantEncoderImpl();
+        final ByteBuffer binary = ByteBuffer.wrap(StringUtils.repeat("b", 2000).getBytes(Charsets.UTF_8));
+
+        final ByteBuffer res = encoder.encode(BysantContext.GLOBAL, new Object[] { binary });
+        Assert.assertEquals("2803af", Hex.encodeHexString(res.array()).substring(0, 6));
+        // the encoded buffer is not consumed
+        Assert.assertEquals(2000, binary.remaining());
+
+        final ListDecoder output = new ListDecoder();
+        new BysantDecoderImpl().decodeAndAccumulate(res, output, BysantContext.GLOBAL);
+        Assert.assertEquals(binary, output.list.get(0));
+    }
+
+    @Test
+    public void encode_chunked_binary() throws DecoderException {
+        final BysantEncoderImpl encoder = new BysantEncoderImpl();
+        final byte[] binary = new byte[70000];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) i;
+        }
+
+        final ByteBuffer res = encoder.encode(BysantContext.GLOBAL, new Object[] { binary });
+        final String hex = Hex.encodeHexString(res.array());
+        // 65535 bytes chunk, 4465 bytes chunk, end of string
+        Assert.assertEquals("29ffff", hex.substring(0, 6));
+        Assert.assertEquals("1171", hex.substring(6 + 65535 * 2, 6 + 65535 * 2 + 4));
+        Assert.assertTrue(hex.endsWith("0000"));
+
+        // same encoding for the streamed values
+        Assert.assertEquals(res, encoder.encode(BysantContext.GLOBAL,
+                new Object[] { StreamedBinary.of(new ByteArrayInputStream(binary)) }));
+        Assert.assertEquals(res, encoder.encode(BysantContext.GLOBAL, new Object[] { StreamedBinary.of(
+                ByteBuffer.wrap(binary, 0, 1000), ByteBuffer.wrap(binary, 1000, 69000)) }));
+
+        final ListDecoder output = new ListDecoder();
+        new BysantDecoderImpl().decodeAndAccumulate(res, output, BysantContext.GLOBAL);
+        Assert.assertEquals(ByteBuffer.wrap(binary), output.list.get(0));
+    }
+
+    @Test
+    public void decode_chunked_string_to_a_sink() throws DecoderException {
+        final byte[] binary = StringUtils.repeat("0123456789", 7000).getBytes(Charsets.UTF_8);
+        final byte[] encoded = new BysantEncoderImpl().encode(BysantContext.GLOBAL,
+                new Object[] { Lists.newArrayList("a", binary) }).array();
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final int[] writes = new int[1];
+        final BysantDecoderImpl decoder = new BysantDecoderImpl();
+        decoder.setChunkedStringSink(new ChunkedStringSink() {
+            @Override
+            public void start() {
+                received.reset();
+            }
+
+            @Override
+            public void write(final ByteBuffer bytes) {
+                Assert.assertTrue(bytes.isReadOnly());
+                final byte[] copy = new byte[bytes.remaining()];
+                bytes.get(copy);
+                received.write(copy, 0, copy.length);
+                writes[0]++;
+            }
+
+            @Override
+            public Object end() {
+                return "stored";
+            }
+        });
+
+        // received in 1000 bytes packets
+        final ListDecoder output = new ListDecoder();
+        for (int i = 0; i < encoded.length; i += 1000) {
+            decoder.decodeAndAccumulate(ByteBuffer.wrap(encoded, i, Math.min(1000, encoded.length - i)), output,
+                    BysantContext.GLOBAL);
+        }
+        decoder.finishDecode();
+
+        Assert.assertEquals(Lists.newArrayList(ByteBuffer.wrap("a".getBytes(Charsets.UTF_8)), "stored"),
+                output.list.get(0));
+        Assert.assertArrayEquals(binary, received.toByteArray());
+        // the content is given as it's received
+        Assert.assertTrue(writes[0] > 60);
+    }
+
     private void testDecode(final Map<String, String> samples, final BysantContext ctx) throws DecoderException {
         for (final Map.Entry<String, String> entry : samples.entrySet()) {
             final ListDecoder output = new ListDecoder();
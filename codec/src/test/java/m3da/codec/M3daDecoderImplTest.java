@@ -22,8 +22,11 @@ import java.util.Map;
 import m3da.codec.dto.M3daEnvelope;
 import m3da.codec.dto.M3daMessage;
 import m3da.codec.dto.M3daPdu;
+import m3da.codec.impl.BysantContext;
 import m3da.codec.impl.BysantDecoderImpl;
+import m3da.codec.impl.BysantEncoderImpl;
 import m3da.codec.impl.EnvelopeDecoderImpl;
+import m3da.codec.impl.SymbolTable;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -117,6 +120,131 @@ public class M3daDecoderImplTest {
         assertEquals(msgOrigin, msgDecoded);
     }
 
+    @Test
+    public void decode_a_message_received_byte_per_byte() throws Exception {
+        // prepare
+        final byte[] data = Hex
+                .decodeHex("6085036964f1d9ff0464657612313233343536373839414243444546317761126d7941737365742e736f6d65776865726547843148412e422e432e442e452e462e472e482e492e4a2e4b2e4c2e4d2e4f2e502e512e522e532e542e552e562e572e582e592e5a2e412e422e432e442e452e462e472e482e492e4a2e4b2e4c2e4d2e4f2e502e512e522e532e542e552e562e572e582e592e5a2e7269646963756c6f75736c796c6f6e67706174682f09737472696e67abf4bb30fc1ad274802d04410442e03a83");
+
+        final EnvelopeDecoder decoder = new EnvelopeDecoderImpl();
+        final List<M3daEnvelope> list = new ArrayList<M3daEnvelope>();
+        final DecoderOutput<M3daEnvelope> output = new DecoderOutput<M3daEnvelope>() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void decoded(final M3daEnvelope pdu) {
+                list.add(pdu);
+            }
+        };
+
+        // run
+        for (int i = 0; i < data.length; i++) {
+            decoder.decodeAndAccumulate(ByteBuffer.wrap(data, i, 1), output);
+            if (i < data.length - 1) {
+                assertEquals(0, list.size());
+            }
+        }
+        decoder.finishDecode();
+
+        // verify
+        assertEquals(1, list.size());
+
+        final List<Object> bodyList = new ArrayList<Object>();
+        final BysantDecoder bysantDecoder = new BysantDecoderImpl();
+        final byte[] payload = list.get(0).getPayload();
+        for (int i = 0; i < payload.length; i++) {
+            bysantDecoder.decodeAndAccumulate(ByteBuffer.wrap(payload, i, 1), new DecoderOutput<M3daPdu>() {
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void decoded(final M3daPdu pdu) {
+                    bodyList.add(pdu);
+                }
+            });
+        }
+        bysantDecoder.finishDecode();
+
+        assertEquals(1, bodyList.size());
+        final M3daMessage msg = (M3daMessage) bodyList.get(0);
+        assertEquals("myAsset.somewhere", msg.getPath());
+        assertEquals(Long.valueOf(12L), msg.getTicketId());
+        assertEquals(1, msg.getBody().size());
+    }
+
+    @Test
+    public void decode_direct_and_sliced_buffers() throws Exception {
+        final byte[] data = Hex
+                .decodeHex("6085036964f1d9ff0464657612313233343536373839414243444546317761126d7941737365742e736f6d65776865726547843148412e422e432e442e452e462e472e482e492e4a2e4b2e4c2e4d2e4f2e502e512e522e532e542e552e562e572e582e592e5a2e412e422e432e442e452e462e472e482e492e4a2e4b2e4c2e4d2e4f2e502e512e522e532e542e552e562e572e582e592e5a2e7269646963756c6f75736c796c6f6e67706174682f09737472696e67abf4bb30fc1ad274802d04410442e03a83");
+
+        // a direct buffer
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+
+        // a slice of a larger heap buffer : non zero array offset
+        final byte[] larger = new byte[data.length + 20];
+        System.arraycopy(data, 0, larger, 10, data.length);
+        final ByteBuffer sliced = ByteBuffer.wrap(larger, 10, data.length).slice();
+
+        for (final ByteBuffer input : Lists.newArrayList(direct, sliced)) {
+            // the strings are slices of the input buffer
+            final EnvelopeDecoder decoder = new EnvelopeDecoderImpl(true);
+            final List<M3daEnvelope> list = new ArrayList<M3daEnvelope>();
+            decoder.decodeAndAccumulate(input, new DecoderOutput<M3daEnvelope>() {
+                @Override
+                public void decoded(final M3daEnvelope pdu) {
+                    list.add(pdu);
+                }
+            });
+            assertEquals(1, list.size());
+            final M3daEnvelope env = list.get(0);
+            assertEquals("123456789ABCDEF", ByteBuffers.toUtf8String((ByteBuffer) env.getHeader().get("dev")));
+            assertEquals(toBB("123456789ABCDEF"), env.getHeader().get("dev"));
+            assertTrue(env.toString().contains("'123456789ABCDEF'"));
+            assertEquals(167, env.getPayload().length);
+        }
+    }
+
+    @Test
+    public void decoded_keys_and_paths_are_shared() throws Exception {
+        final Map<Object, Object> body = Maps.newHashMap();
+        body.put("temperature", 12);
+        final ByteBuffer encoded = new BysantEncoderImpl().encode(new M3daMessage("@sys.sensors", 1L, body),
+                new M3daMessage("@sys.sensors", 2L, body));
+
+        final BysantDecoderImpl decoder = new BysantDecoderImpl();
+        final List<M3daMessage> messages = new ArrayList<M3daMessage>();
+        decoder.decodeAndAccumulate(encoded, new DecoderOutput<M3daPdu>() {
+            @Override
+            public void decoded(final M3daPdu pdu) {
+                messages.add((M3daMessage) pdu);
+            }
+        });
+        decoder.finishDecode();
+
+        assertEquals(2, messages.size());
+        assertEquals("@sys.sensors", messages.get(0).getPath());
+        assertSame(messages.get(0).getPath(), messages.get(1).getPath());
+        assertSame(messages.get(0).getBody().keySet().iterator().next(), messages.get(1).getBody().keySet().iterator()
+                .next());
+        assertEquals(2, decoder.getSymbolTable().getHits());
+        assertEquals(2, decoder.getSymbolTable().getMisses());
+    }
+
+    @Test
+    public void symbol_table_memory_is_bounded() {
+        final SymbolTable symbols = new SymbolTable(1024, 16);
+        assertSame(symbols.intern(toBB("timestamp")), symbols.intern(toBB("timestamp")));
+        assertNotSame(symbols.intern(toBB("a.very.long.sensor.name")), symbols.intern(toBB("a.very.long.sensor.name")));
+        for (int i = 0; i < 100; i++) {
+            symbols.intern(toBB("sensor" + i));
+            assertTrue(symbols.getMemory() <= 1024);
+        }
+        assertTrue(symbols.getClears() > 0);
+        assertEquals(1, symbols.getHits());
+    }
+
     @Test
     public void exception_on_trailling_null_objects() throws DecoderException, m3da.codec.DecoderException {
         final String toDecode = "6084036964123232323030303232323030303232321f610540737973b684ff4e16c30e1374657374206465206465636f6461676583000000";
@@ -251,4 +379,105 @@ public class M3daDecoderImplTest {
         final long stopTime = System.currentTimeMillis();
         System.err.println("duration : " + (stopTime - startTime));
     }
+
+    @Test
+    public void reject_the_streams_exceeding_the_policy() throws DecoderException {
+        final DecoderPolicy policy = new DecoderPolicy(1000, 4, 100, 1000);
+        final BysantEncoderImpl encoder = new BysantEncoderImpl();
+        final List<Object> output = new ArrayList<Object>();
+        final DecoderOutput<Object> collect = new DecoderOutput<Object>() {
+            @Override
+            public void decoded(final Object pdu) {
+                output.add(pdu);
+            }
+        };
+
+        // within the limits
+        final List<Object> nested = Collections.<Object> singletonList(Collections.singletonList(Lists.newArrayList(1, 2)));
+        new BysantDecoderImpl(false, null, policy).decodeAndAccumulate(
+                encoder.encode(BysantContext.GLOBAL, new Object[] { nested }), collect, BysantContext.GLOBAL);
+        assertEquals(nested, output.get(0));
+
+        // too deep
+        Object tooDeep = nested;
+        for (int i = 0; i < 2; i++) {
+            tooDeep = Collections.singletonList(tooDeep);
+        }
+        assertRejected(policy, encoder.encode(BysantContext.GLOBAL, new Object[] { tooDeep }), "nested");
+
+        // too many elements : the size is read before the elements
+        final List<Object> large = new ArrayList<Object>();
+        for (int i = 0; i < 101; i++) {
+            large.add("a");
+        }
+        final ByteBuffer encodedLarge = encoder.encode(BysantContext.GLOBAL, new Object[] { large });
+        encodedLarge.limit(3);
+        assertRejected(policy, encodedLarge, "container too large");
+
+        // null terminated list : the elements are counted
+        final StringBuilder terminated = new StringBuilder("35");
+        for (int i = 0; i < 101; i++) {
+            terminated.append("80");
+        }
+        assertRejected(policy, ByteBuffer.wrap(Hex.decodeHex(terminated.toString())), "too many elements");
+
+        // too large value
+        assertRejected(policy, encoder.encode(BysantContext.GLOBAL,
+                new Object[] { Lists.newArrayList(new byte[600], new byte[600]) }), "too large");
+    }
+
+    @Test
+    public void fixed_width_lists_grow_with_the_received_elements() throws DecoderException {
+        final List<Object> doubles = new ArrayList<Object>();
+        for (int i = 0; i < 3000; i++) {
+            doubles.add(i + 0.1d);
+        }
+        final ByteBuffer encoded = new BysantEncoderImpl().encode(BysantContext.GLOBAL, new Object[] { doubles });
+        final List<Object> output = new ArrayList<Object>();
+        final DecoderOutput<Object> collect = new DecoderOutput<Object>() {
+            @Override
+            public void decoded(final Object pdu) {
+                output.add(pdu);
+            }
+        };
+
+        // a large declared size with a short body : nothing allocated for the missing elements
+        final BysantDecoderImpl decoder = new BysantDecoderImpl(false, null, DecoderPolicy.DEFAULT);
+        final ByteBuffer head = encoded.duplicate();
+        head.limit(20);
+        decoder.decodeAndAccumulate(head, collect, BysantContext.GLOBAL);
+        assertTrue(output.isEmpty());
+        try {
+            decoder.finishDecode();
+            fail("truncated list");
+        } catch (final DecoderException e) {
+            // expected
+        }
+
+        // the complete list, received in small chunks
+        decoder.reset();
+        final ByteBuffer chunks = encoded.duplicate();
+        while (chunks.hasRemaining()) {
+            final ByteBuffer chunk = chunks.slice();
+            chunk.limit(Math.min(7, chunk.remaining()));
+            chunks.position(chunks.position() + chunk.limit());
+            decoder.decodeAndAccumulate(chunk, collect, BysantContext.GLOBAL);
+        }
+        decoder.finishDecode();
+        assertEquals(doubles, output.get(0));
+    }
+
+    private void assertRejected(final DecoderPolicy policy, final ByteBuffer encoded, final String reason) {
+        try {
+            new BysantDecoderImpl(false, null, policy).decodeAndAccumulate(encoded, new DecoderOutput<Object>() {
+                @Override
+                public void decoded(final Object pdu) {
+                    fail("decoded : " + pdu);
+                }
+            }, BysantContext.GLOBAL);
+            fail("should be rejected : " + reason);
+        } catch (final DecoderException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
 }
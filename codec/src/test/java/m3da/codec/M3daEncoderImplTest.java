@@ -11,13 +11,16 @@
 package m3da.codec;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import m3da.codec.dto.M3daEnvelope;
 import m3da.codec.dto.M3daMessage;
+import m3da.codec.impl.BysantEncoderImpl;
 import m3da.codec.impl.EnvelopeEncoderImpl;
 import m3da.codec.impl.M3daCodecServiceImpl;
 
@@ -66,4 +69,46 @@ public class M3daEncoderImplTest {
                 Hex.encodeHexString(buffer.array()));
     }
 
+
+    @Test
+    public void encode_an_envelope_in_chunks() {
+        final Map<Object, Object> body = Maps.newHashMap();
+        body.put("values", Lists.newArrayList("a string", 12, -50000, 3.14d, Lists.newArrayList("A", "B", 123)));
+        body.put("path", "some.very.long.path.in.the.asset.tree");
+        final byte[] payload = new BysantEncoderImpl().encode(new M3daMessage("myAsset.somewhere", 12L, body)).array();
+        // a payload larger than a chunk
+        final byte[] bigPayload = new byte[100];
+        for (int i = 0; i < bigPayload.length; i++) {
+            bigPayload[i] = (byte) i;
+        }
+
+        for (final byte[] p : new byte[][] { payload, bigPayload }) {
+            final Map<Object, Object> header = Maps.newHashMap();
+            header.put("id", "123456789ABCDEF");
+            final M3daEnvelope envelope = new M3daEnvelope(header, p, Collections.emptyMap());
+            final ByteBuffer expected = service.createEnvelopeEncoder().encode(envelope);
+
+            final List<ByteBuffer> chunks = Lists.newArrayList();
+            new BysantEncoderImpl(16).encode(new EncoderOutput() {
+                @Override
+                public void write(final ByteBuffer encodedBuffer) {
+                    chunks.add(encodedBuffer);
+                }
+            }, envelope);
+
+            // fixed size chunks, but the last one
+            final ByteBuffer all = ByteBuffer.allocate(expected.remaining());
+            for (int i = 0; i < chunks.size(); i++) {
+                final ByteBuffer chunk = chunks.get(i);
+                if (i < chunks.size() - 1) {
+                    assertEquals(16, chunk.remaining());
+                } else {
+                    assertTrue(chunk.remaining() > 0 && chunk.remaining() <= 16);
+                }
+                all.put(chunk);
+            }
+            all.flip();
+            assertEquals(expected, all);
+        }
+    }
 }
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import m3da.codec.dto.M3daDeltasVector;
+import m3da.codec.dto.M3daQuasiPeriodicVector;
+import m3da.codec.dto.NumberIterator;
+import m3da.codec.impl.BysantContext;
+import m3da.codec.impl.BysantDecoderImpl;
+import m3da.codec.impl.BysantEncoderImpl;
+
+import org.junit.Test;
+
+/**
+ * Unit test of the deltas and quasi periodic vectors
+ */
+public class M3daVectorsTest {
+
+    @Test
+    public void expand_a_deltas_vector() {
+        final M3daDeltasVector vector = new M3daDeltasVector(10, 5, new long[] { 1, -2, 3 });
+
+        assertFalse(vector.isFloating());
+        assertArrayEquals(new long[] { 50, 60, 40, 70 }, vector.toLongArray());
+        assertEquals(Arrays.asList(50L, 60L, 40L, 70L), vector.asFlatList());
+        assertEquals(Arrays.<Number> asList(1L, -2L, 3L), vector.getDeltas());
+
+        final NumberIterator it = vector.flatIterator();
+        assertEquals(50d, it.nextDouble(), 0d);
+        assertEquals(60L, it.nextLong());
+        assertEquals(40L, it.nextLong());
+        assertTrue(it.hasNext());
+        assertEquals(70L, it.nextLong());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void expand_a_floating_deltas_vector() {
+        final List<Number> deltas = new ArrayList<Number>();
+        deltas.add(1);
+        deltas.add(0.5f);
+        final M3daDeltasVector vector = new M3daDeltasVector(2, 1, deltas);
+
+        assertTrue(vector.isFloating());
+        assertArrayEquals(new double[] { 2d, 4d, 5d }, vector.toDoubleArray(), 0d);
+        assertEquals(Arrays.asList(2d, 4d, 5d), vector.asFlatList());
+        assertEquals(vector, new M3daDeltasVector(2, 1, new double[] { 1d, 0.5d }));
+    }
+
+    @Test
+    public void expand_a_quasi_periodic_vector() {
+        // 2 periods, a period shifted by 3, 1 period, a period shifted by -1, then 2 periods
+        final M3daQuasiPeriodicVector vector = new M3daQuasiPeriodicVector(10, 100, new long[] { 2, 3, 1, -1, 2 });
+
+        final long[] expected = new long[] { 100, 110, 120, 133, 143, 152, 162, 172 };
+        assertEquals(expected.length, vector.flatSize());
+        assertArrayEquals(expected, vector.toLongArray());
+
+        final NumberIterator it = vector.flatIterator();
+        int i = 0;
+        while (it.hasNext()) {
+            assertEquals(expected[i++], it.nextLong());
+        }
+        assertEquals(expected.length, i);
+
+        final M3daQuasiPeriodicVector floating = new M3daQuasiPeriodicVector(10, 100.5d, new long[] { 1, 3, 0 });
+        assertArrayEquals(new double[] { 100.5d, 110.5d, 123.5d }, floating.toDoubleArray(), 0d);
+        assertEquals(Arrays.asList(100.5d, 110.5d, 123.5d), floating.asFlatList());
+    }
+
+    @Test
+    public void encode_and_decode_vectors() throws DecoderException {
+        final M3daDeltasVector deltas = new M3daDeltasVector(1, 1000, new long[] { 1, 2, 70000 });
+        final M3daQuasiPeriodicVector shifts = new M3daQuasiPeriodicVector(60, 0, new double[] { 3, 1.5d, 2 });
+
+        final ByteBuffer encoded = new BysantEncoderImpl().encode(BysantContext.GLOBAL, new Object[] { deltas, shifts });
+
+        final List<Object> decoded = new ArrayList<Object>();
+        new BysantDecoderImpl().decodeAndAccumulate(encoded, new DecoderOutput<Object>() {
+            @Override
+            public void decoded(final Object pdu) {
+                decoded.add(pdu);
+            }
+        }, BysantContext.GLOBAL);
+
+        assertEquals(2, decoded.size());
+        assertEquals(deltas, decoded.get(0));
+        final M3daQuasiPeriodicVector decodedShifts = (M3daQuasiPeriodicVector) decoded.get(1);
+        assertArrayEquals(shifts.toDoubleArray(), decodedShifts.toDoubleArray(), 0d);
+    }
+
+    @Test
+    public void compact_encoding_of_number_lists() throws DecoderException {
+        final BysantEncoderImpl plain = new BysantEncoderImpl();
+        final BysantEncoderImpl compact = new BysantEncoderImpl(BysantEncoderImpl.DEFAULT_CHUNK_SIZE, true);
+
+        // timestamps every minute, with some jitter
+        final List<Long> timestamps = new ArrayList<Long>();
+        for (int i = 0; i < 50; i++) {
+            timestamps.add(1360000000000L + i * 60000L + (i % 10 == 0 ? 1000L : 0L));
+        }
+        // counters incremented by multiples of 500
+        final List<Integer> counters = Arrays.asList(100000, 101500, 102000, 104500, 110000, 111000, 113500);
+        final List<Integer> small = Arrays.asList(1, 7, 3, 42);
+
+        for (final List<?> list : Arrays.<List<?>> asList(timestamps, counters, small)) {
+            final ByteBuffer compactEncoded = compact.encode(BysantContext.GLOBAL, new Object[] { list });
+            final ByteBuffer plainEncoded = plain.encode(BysantContext.GLOBAL, new Object[] { list });
+            assertTrue(compactEncoded.remaining() <= plainEncoded.remaining());
+
+            final Object decoded = decode(compactEncoded);
+            final List<? extends Number> values;
+            if (decoded instanceof M3daQuasiPeriodicVector) {
+                values = ((M3daQuasiPeriodicVector) decoded).asFlatList();
+            } else if (decoded instanceof M3daDeltasVector) {
+                values = ((M3daDeltasVector) decoded).asFlatList();
+            } else {
+                values = (List<? extends Number>) decoded;
+            }
+            assertEquals(list.size(), values.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertEquals(((Number) list.get(i)).longValue(), values.get(i).longValue());
+            }
+        }
+
+        assertTrue(decode(compact.encode(BysantContext.GLOBAL, new Object[] { timestamps })) instanceof M3daQuasiPeriodicVector);
+        final Object deltas = decode(compact.encode(BysantContext.GLOBAL, new Object[] { counters }));
+        assertEquals(500L, ((M3daDeltasVector) deltas).getFactor().longValue());
+        assertTrue(decode(compact.encode(BysantContext.GLOBAL, new Object[] { small })) instanceof List);
+    }
+
+    @Test
+    public void compact_encoding_of_doubles() throws DecoderException {
+        final BysantEncoderImpl compact = new BysantEncoderImpl(BysantEncoderImpl.DEFAULT_CHUNK_SIZE, true);
+
+        // exact in 32 bits : float opcode + 4 bytes
+        assertEquals(5, compact.encode(BysantContext.GLOBAL, new Object[] { 1.5d }).remaining());
+        assertEquals(1.5f, decode(compact.encode(BysantContext.GLOBAL, new Object[] { 1.5d })));
+        // would lose precision
+        assertEquals(9, compact.encode(BysantContext.GLOBAL, new Object[] { 0.1d }).remaining());
+        assertEquals(0.1d, decode(compact.encode(BysantContext.GLOBAL, new Object[] { 0.1d })));
+
+        // list of exact doubles : typed list of 32 bits floats
+        final ByteBuffer encoded = compact.encode(BysantContext.GLOBAL,
+                new Object[] { Arrays.asList(0.5d, 1.25d, -3d, 1024d) });
+        assertEquals(1 + 1 + 4 * 4, encoded.remaining());
+        assertEquals(Arrays.asList(0.5f, 1.25f, -3f, 1024f), decode(encoded));
+    }
+
+    private Object decode(final ByteBuffer encoded) throws DecoderException {
+        final List<Object> decoded = new ArrayList<Object>();
+        new BysantDecoderImpl().decodeAndAccumulate(encoded, new DecoderOutput<Object>() {
+            @Override
+            public void decoded(final Object pdu) {
+                decoded.add(pdu);
+            }
+        }, BysantContext.GLOBAL);
+        assertEquals(1, decoded.size());
+        return decoded.get(0);
+    }
+}
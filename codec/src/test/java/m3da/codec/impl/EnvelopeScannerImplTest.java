@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import m3da.codec.DecoderException;
+import m3da.codec.DecoderPolicy;
+import m3da.codec.Hex;
+import m3da.codec.dto.M3daEnvelope;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link EnvelopeScannerImpl}
+ */
+public class EnvelopeScannerImplTest {
+
+    private static final DecoderPolicy POLICY = new DecoderPolicy(1024 * 1024, 32, 1024, 1024 * 1024);
+
+    private static final DecoderPolicy SMALL_POLICY = new DecoderPolicy(4096, 32, 1024, 4096);
+
+    private final EnvelopeEncoderImpl encoder = new EnvelopeEncoderImpl();
+
+    private byte[] envelope(final int payloadSize) {
+        final Map<Object, Object> header = new HashMap<Object, Object>();
+        header.put("id", "device-1");
+        header.put("nested", Arrays.asList(1, -70000, 2.5d, Arrays.asList("a", null, true), new HashMap<Object, Object>()));
+        header.put("floats", Arrays.asList(1.5f, 2.5f, 3.5f));
+        final Map<Object, Object> footer = new HashMap<Object, Object>();
+        footer.put("mac", new byte[16]);
+        final byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 7);
+        final ByteBuffer encoded = encoder.encode(new M3daEnvelope(header, payload, footer));
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void find_the_envelopes_boundaries() throws DecoderException {
+        final byte[] first = envelope(10);
+        // a chunked payload
+        final byte[] second = envelope(100000);
+        final byte[] stream = new byte[first.length + second.length];
+        System.arraycopy(first, 0, stream, 0, first.length);
+        System.arraycopy(second, 0, stream, first.length, second.length);
+
+        final EnvelopeScannerImpl scanner = new EnvelopeScannerImpl(POLICY);
+        final ByteBuffer all = ByteBuffer.wrap(stream);
+        assertEquals(first.length, scanner.scan(all));
+        all.position(first.length);
+        assertEquals(second.length, scanner.scan(all));
+    }
+
+    @Test
+    public void resume_the_scan_as_the_bytes_are_received() throws DecoderException {
+        final byte[] bytes = envelope(70000);
+        final EnvelopeScannerImpl scanner = new EnvelopeScannerImpl(POLICY);
+
+        // one more byte at each call
+        for (int received = 0; received < bytes.length; received++) {
+            assertEquals(0, scanner.scan(ByteBuffer.wrap(bytes, 0, received)));
+            if (received > 200) {
+                // skip ahead in the payload
+                received += 997;
+                if (received >= bytes.length) {
+                    received = bytes.length - 1;
+                }
+            }
+        }
+        assertEquals(bytes.length, scanner.scan(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    public void reject_an_oversized_envelope_before_receiving_it() throws DecoderException {
+        final byte[] bytes = envelope(5000);
+        final EnvelopeScannerImpl scanner = new EnvelopeScannerImpl(SMALL_POLICY);
+        try {
+            // the payload length is known : no need to wait for the payload
+            scanner.scan(ByteBuffer.wrap(bytes, 0, 200));
+            fail("too large");
+        } catch (final DecoderException e) {
+            assertTrue(e.getMessage().contains("too large"));
+        }
+    }
+
+    @Test
+    public void reject_garbage() {
+        final EnvelopeScannerImpl scanner = new EnvelopeScannerImpl(SMALL_POLICY);
+        try {
+            scanner.scan(ByteBuffer.wrap(Hex.decodeHex("3f0102")));
+            fail("not an envelope");
+        } catch (final DecoderException e) {
+            assertTrue(e.getMessage().contains("no envelope"));
+        }
+    }
+
+    @Test
+    public void reject_too_many_nested_containers() {
+        final Map<Object, Object> header = new HashMap<Object, Object>();
+        Object nested = "deep";
+        for (int i = 0; i < 40; i++) {
+            nested = Arrays.asList(nested);
+        }
+        header.put("nested", nested);
+        final ByteBuffer encoded = encoder.encode(new M3daEnvelope(header, new byte[0], new HashMap<Object, Object>()));
+        try {
+            new EnvelopeScannerImpl(POLICY).scan(encoded);
+            fail("too deep");
+        } catch (final DecoderException e) {
+            assertTrue(e.getMessage().contains("nested"));
+        }
+    }
+}
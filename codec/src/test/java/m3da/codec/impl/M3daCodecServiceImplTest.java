@@ -16,15 +16,25 @@ import static org.mockito.Mockito.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import m3da.codec.CipherKey;
+import m3da.codec.DecoderOutput;
+import m3da.codec.EnvelopeDecoder;
 import m3da.codec.Hex;
+import m3da.codec.HmacKey;
 import m3da.codec.M3daCodecService;
 import m3da.codec.M3daCodecService.CipherMode;
 import m3da.codec.dto.CipherAlgorithm;
 import m3da.codec.dto.HmacType;
+import m3da.codec.dto.M3daEnvelope;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.Before;
@@ -212,6 +222,140 @@ public class M3daCodecServiceImplTest {
         assertEquals("799d4f0bec27aff89de30b35e3ca4332", Hex.encodeHexString(ivCaptor.getValue()));
     }
 
+    @Test
+    public void encoders_are_shared() {
+        assertSame(service.createEnvelopeEncoder(), service.createEnvelopeEncoder());
+        assertSame(service.createBodyEncoder(), service.createBodyEncoder());
+    }
+
+    @Test
+    public void borrowed_envelope_decoder_is_reset() throws Exception {
+        final Map<Object, Object> header = new HashMap<Object, Object>();
+        header.put("id", "my-device");
+        final byte[] encoded = service.createEnvelopeEncoder()
+                .encode(new M3daEnvelope(header, new byte[] { 1, 2, 3 }, new HashMap<Object, Object>())).array();
+
+        final List<M3daEnvelope> decoded = new ArrayList<M3daEnvelope>();
+        final DecoderOutput<M3daEnvelope> output = new DecoderOutput<M3daEnvelope>() {
+            @Override
+            public void decoded(M3daEnvelope pdu) {
+                decoded.add(pdu);
+            }
+        };
+
+        // an aborted decoding : only the first half of the envelope
+        final EnvelopeDecoder decoder = service.borrowEnvelopeDecoder();
+        decoder.decodeAndAccumulate(ByteBuffer.wrap(encoded, 0, encoded.length / 2), output);
+        assertTrue(decoded.isEmpty());
+
+        // the same decoder is reused, without the bytes accumulated by the previous decoding
+        assertSame(decoder, service.borrowEnvelopeDecoder());
+        decoder.decodeAndAccumulate(ByteBuffer.wrap(encoded), output);
+        decoder.finishDecode();
+
+        assertEquals(1, decoded.size());
+        assertEquals(ByteBuffer.wrap("my-device".getBytes()), decoded.get(0).getHeader().get("id"));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, decoded.get(0).getPayload()));
+    }
+
+    @Test
+    public void payload_buffers_give_the_same_results_as_arrays() throws Exception {
+        final M3daCodecService realService = new M3daCodecServiceImpl();
+        final byte[] password = "password".getBytes();
+        final byte[] nonce = Hex.decodeHex("1234567890ABCDEF");
+        final byte[] body = "the message body".getBytes();
+
+        // a slice of a larger buffer, not consumed
+        final ByteBuffer sliced = ByteBuffer.wrap(ArrayUtils.addAll(new byte[] { 9, 9 }, body), 2, body.length).slice();
+
+        assertTrue(Arrays.equals(realService.hmac(HmacType.HMAC_SHA1, "user".getBytes(), password, nonce, body),
+                realService.hmac(HmacType.HMAC_SHA1, "user".getBytes(), password, nonce, sliced)));
+        assertEquals(body.length, sliced.remaining());
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        realService.cipher(CipherMode.ENCRYPTION, CipherAlgorithm.AES_CBC_128, password, nonce,
+                new ByteArrayInputStream(body), os);
+        final ByteBuffer ciphered = realService.cipher(CipherMode.ENCRYPTION, CipherAlgorithm.AES_CBC_128, password,
+                nonce, sliced);
+        assertEquals(ByteBuffer.wrap(os.toByteArray()), ciphered);
+
+        final ByteBuffer deciphered = realService.cipher(CipherMode.DECRYPTION, CipherAlgorithm.AES_CBC_128,
+                password, nonce, ciphered);
+        assertEquals(sliced, deciphered);
+    }
+
+    @Test
+    public void cached_hmac_key_gives_the_same_results() throws Exception {
+        final M3daCodecService realService = new M3daCodecServiceImpl();
+        final byte[] nonce = Hex.decodeHex("1234567890ABCDEF");
+        final byte[] body = "the message body".getBytes();
+
+        for (final HmacType type : HmacType.values()) {
+            final HmacKey key = realService.createHmacKey(type, "user".getBytes(), "password".getBytes());
+            assertEquals(type, key.getAlgorithm());
+            final byte[] expected = realService.hmac(type, "user".getBytes(), "password".getBytes(), nonce, body);
+            // the key states are not modified by the computation
+            for (int i = 0; i < 3; i++) {
+                assertTrue(Arrays.equals(expected, realService.hmac(key, nonce, ByteBuffer.wrap(body))));
+            }
+        }
+    }
+
+    @Test
+    public void cached_cipher_key_ciphers_in_place() throws Exception {
+        final M3daCodecService realService = new M3daCodecServiceImpl();
+        final byte[] password = "password".getBytes();
+        final byte[] nonce = Hex.decodeHex("1234567890ABCDEF");
+        final byte[] body = "the message body, longer than a block".getBytes();
+
+        for (final CipherAlgorithm algorithm : CipherAlgorithm.values()) {
+            final CipherKey key = realService.createCipherKey(algorithm, password, nonce);
+            assertEquals(algorithm, key.getAlgorithm());
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            realService.cipher(CipherMode.ENCRYPTION, algorithm, password, nonce, new ByteArrayInputStream(body),
+                    expected);
+
+            final ByteBuffer content = ByteBuffer.wrap(body.clone());
+            final ByteBuffer ciphered = realService.cipher(CipherMode.ENCRYPTION, key, content, true);
+            assertEquals(ByteBuffer.wrap(expected.toByteArray()), ciphered);
+            // only the ciphers without padding have the room to encrypt in place
+            assertEquals(ciphered.remaining() == body.length, ciphered.array() == content.array());
+
+            final ByteBuffer deciphered = realService.cipher(CipherMode.DECRYPTION, key, ciphered, true);
+            assertSame(ciphered.array(), deciphered.array());
+            assertEquals(ByteBuffer.wrap(body), deciphered);
+        }
+    }
+
+    @Test
+    public void read_only_content_is_not_ciphered_in_place() throws Exception {
+        final M3daCodecService realService = new M3daCodecServiceImpl();
+        final CipherKey key = realService.createCipherKey(CipherAlgorithm.AES_CTR_128, "password".getBytes(),
+                Hex.decodeHex("1234567890ABCDEF"));
+        final byte[] body = "the message body".getBytes();
+
+        final ByteBuffer ciphered = realService.cipher(CipherMode.ENCRYPTION, key, ByteBuffer.wrap(body)
+                .asReadOnlyBuffer(), true);
+        assertTrue(Arrays.equals("the message body".getBytes(), body));
+        assertEquals(ByteBuffer.wrap(body), realService.cipher(CipherMode.DECRYPTION, key, ciphered, false));
+    }
+
+    @Test
+    public void envelope_payload_is_not_copied() {
+        final ByteBuffer payload = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3, 4 }, 1, 3);
+        final M3daEnvelope env = new M3daEnvelope(new HashMap<Object, Object>(), payload,
+                new HashMap<Object, Object>());
+
+        assertEquals(3, env.getPayloadSize());
+        assertSame(payload.array(), env.getPayloadBuffer().array());
+        assertEquals(new M3daEnvelope(new HashMap<Object, Object>(), new byte[] { 1, 2, 3 },
+                new HashMap<Object, Object>()), env);
+
+        // the legacy array is created once
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, env.getPayload()));
+        assertSame(env.getPayload(), env.getPayload());
+    }
+
     private byte[] md5(byte[] data) {
         try {
             MessageDigest digest = MessageDigest.getInstance("MD5");
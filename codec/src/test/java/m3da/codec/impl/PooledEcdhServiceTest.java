@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.codec.impl;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link PooledEcdhServiceImpl}
+ */
+public class PooledEcdhServiceTest {
+
+    private final PooledEcdhServiceImpl pool = new PooledEcdhServiceImpl(2, 1);
+
+    @After
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void hand_out_pre_generated_key_pairs() throws InterruptedException {
+        // filled in the background
+        for (int i = 0; i < 500 && pool.getAvailable() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, pool.getAvailable());
+
+        final KeyPair a = pool.generateEcdhKeyPair();
+        final KeyPair b = pool.generateEcdhKeyPair();
+        Assert.assertNotSame(a, b);
+        Assert.assertEquals(2, pool.getHits());
+        Assert.assertTrue(pool.getGenerated() >= 2);
+
+        // the pooled key pairs are usable for a negotiation
+        Assert.assertTrue(Arrays.equals(pool.computeSharedSecret(a, pool.getPublicKeyCertificate(b)),
+                pool.computeSharedSecret(b, pool.getPublicKeyCertificate(a))));
+    }
+
+    @Test
+    public void generate_a_key_pair_when_the_pool_is_empty() {
+        final PooledEcdhServiceImpl empty = new PooledEcdhServiceImpl(1, 1);
+        empty.shutdown();
+        empty.generateEcdhKeyPair();
+        Assert.assertEquals(1, empty.getHits() + empty.getMisses());
+    }
+}
@@ -15,6 +15,7 @@ import m3da.server.services.clients.JClientsService;
 import m3da.server.services.data.JDataService;
 import m3da.server.servlet.ClientsServlet;
 import m3da.server.servlet.DataServlet;
+import m3da.server.store.impl.CachingSecurityStore;
 import m3da.server.store.impl.InMemoryStore;
 import m3da.server.tcp.M3daTcpServer;
 
@@ -53,9 +54,14 @@ public class Main {
         InMemoryStore storeService = new InMemoryStore(10);
         Store2JsonDataMapper store2jsonMapper = new Store2JsonDataMapper();
         ObjectMapper jacksonMapper = new ObjectMapper();
+        // the security information updates go through the cache, for invalidating it
+        CachingSecurityStore securityStore = new CachingSecurityStore(storeService);
 
         JDataService dataService = new JDataService(storeService, store2jsonMapper);
-        JClientsService clientsService = new JClientsService(storeService, storeService);
+        M3daTcpServer tcpServer = new M3daTcpServer(2, 30, 44900, 4, 8, storeService, securityStore);
+        tcpServer.setPooledDirectBuffers(Boolean.parseBoolean(System.getenv("M3DA_DIRECT_BUFFERS")));
+        // written through the TCP server store, for invalidating the keys derived from the credentials
+        JClientsService clientsService = new JClientsService(storeService, tcpServer.getSecurityStore());
 
         ServletHolder dataServletHolder = new ServletHolder(new DataServlet(dataService, jacksonMapper));
         root.addServlet(dataServletHolder, "/data/*");
@@ -70,7 +76,6 @@ public class Main {
 
         storeService.start();
 
-        M3daTcpServer tcpServer = new M3daTcpServer(2, 30, 44900, 4, 8, storeService, storeService);
         tcpServer.start();
         server.join();
 
@@ -23,6 +23,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import m3da.codec.ByteBuffers;
+import m3da.codec.Utf8Slice;
 import m3da.server.api.json.JSystemReadData;
 import m3da.server.api.json.JSystemWriteData;
 import m3da.server.api.json.JSystemWriteSettings;
@@ -111,7 +113,8 @@ public class Store2JsonDataMapper {
     }
 
     /**
-     * "Strings" from m3da are actually ByteBuffers ; we will assume all of them are utf-8 string.
+     * "Strings" from m3da are actually ByteBuffers (or {@link Utf8Slice} once stored) ; we will assume all of them are
+     * utf-8 string.
      * 
      * @param values
      * @return the list of values, with ByteBuffers converted to utf-8 strings
@@ -123,8 +126,10 @@ public class Store2JsonDataMapper {
         for (DataValue<?> dataValue : values) {
         	Object o = dataValue.getValue();
             if (o instanceof ByteBuffer) {
-                String str = new String(((ByteBuffer) o).array(), Charset.forName("utf-8"));
+                String str = ByteBuffers.toUtf8String((ByteBuffer) o);
                 res.add(str);
+            } else if (o instanceof Utf8Slice) {
+                res.add(o.toString());
             } else {
                 res.add(o);
             }
@@ -136,8 +141,10 @@ public class Store2JsonDataMapper {
     private List<Object> byteBuffer2String(Object o) {
     	List<Object> res = new ArrayList<Object>();
     	if (o instanceof ByteBuffer) {
-            String str = new String(((ByteBuffer) o).array(), Charset.forName("utf-8"));
+            String str = ByteBuffers.toUtf8String((ByteBuffer) o);
             res.add(str);
+        } else if (o instanceof Utf8Slice) {
+            res.add(o.toString());
         } else {
             res.add(o);
         }
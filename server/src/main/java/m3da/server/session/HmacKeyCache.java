@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import m3da.codec.HmacKey;
+import m3da.server.store.SecurityStore;
+
+/**
+ * Server-side cache of the HMAC keys derived from the credential of the clients, shared by all their connections.
+ * <p>
+ * The keys of a client are returned only for the credential and the security type they were derived from, whatever
+ * {@link M3daSecurityInfo} instance the security store returns. The entry of a client is invalidated by the writes of
+ * its password or of its security information through the store returned by {@link #invalidating(SecurityStore)}.
+ * <p>
+ * Thread safe.
+ */
+public class HmacKeyCache {
+
+    /** the keys by communication id */
+    private final ConcurrentMap<String, Keys> keys = new ConcurrentHashMap<String, Keys>();
+
+    /**
+     * @param communicationId the communication id of the client
+     * @param credential the current credential of the client
+     * @param securityType the current security type of the client
+     * @param server <code>true</code> for the key of the server, <code>false</code> for the key of the device
+     * @return the cached key if it was derived from this credential for this security type, else <code>null</code>
+     */
+    public HmacKey get(String communicationId, String credential, M3daAuthentication securityType, boolean server) {
+        final Keys cached = keys.get(communicationId);
+        if (cached == null || cached.securityType != securityType || !cached.credential.equals(credential)) {
+            return null;
+        }
+        return server ? cached.serverKey : cached.deviceKey;
+    }
+
+    /**
+     * Cache the keys derived from the credential of a client.
+     * 
+     * @param communicationId the communication id of the client
+     * @param credential the credential the keys were derived from
+     * @param securityType the security type the keys were derived for
+     * @param deviceKey the HMAC key of the device
+     * @param serverKey the HMAC key of the server
+     */
+    public void put(String communicationId, String credential, M3daAuthentication securityType, HmacKey deviceKey,
+            HmacKey serverKey) {
+        keys.put(communicationId, new Keys(credential, securityType, deviceKey, serverKey));
+    }
+
+    /**
+     * Forget the keys of a client.
+     * 
+     * @param communicationId the communication id of the client
+     */
+    public void invalidate(String communicationId) {
+        keys.remove(communicationId);
+    }
+
+    /**
+     * @return the number of clients with cached keys
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @param store the security store
+     * @return a view of the store invalidating the keys of a client when its password or its security information is
+     *         written
+     */
+    public SecurityStore invalidating(final SecurityStore store) {
+        return new SecurityStore() {
+
+            @Override
+            public M3daSecurityInfo getSecurityInfo(String clientId) {
+                return store.getSecurityInfo(clientId);
+            }
+
+            @Override
+            public void storeNonce(String clientId, String newNonce) {
+                // the keys don't depend on the nonce
+                store.storeNonce(clientId, newNonce);
+            }
+
+            @Override
+            public void storeNewPassword(String clientId, String password) {
+                store.storeNewPassword(clientId, password);
+                invalidate(clientId);
+            }
+
+            @Override
+            public void addSecurityInfo(M3daSecurityInfo securityInfo) {
+                store.addSecurityInfo(securityInfo);
+                invalidate(securityInfo.getM3daCommId());
+            }
+        };
+    }
+
+    /** the keys derived from a credential */
+    private static final class Keys {
+
+        private final String credential;
+
+        private final M3daAuthentication securityType;
+
+        private final HmacKey deviceKey;
+
+        private final HmacKey serverKey;
+
+        Keys(String credential, M3daAuthentication securityType, HmacKey deviceKey, HmacKey serverKey) {
+            this.credential = credential;
+            this.securityType = securityType;
+            this.deviceKey = deviceKey;
+            this.serverKey = serverKey;
+        }
+    }
+}
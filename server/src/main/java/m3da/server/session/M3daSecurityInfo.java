@@ -12,6 +12,8 @@ package m3da.server.session;
 
 import java.io.Serializable;
 
+import m3da.codec.Hex;
+
 public class M3daSecurityInfo implements Serializable {
 
     /**
@@ -25,9 +27,12 @@ public class M3daSecurityInfo implements Serializable {
     /** M3DA : security type */
     private M3daAuthentication m3daSecurityType = M3daAuthentication.NONE;
 
-    /** M3DA : the server nonce for salting the hashes */
+    /** M3DA : the server nonce for salting the hashes, hex encoded (the persisted form) */
     private String m3daNonce;
 
+    /** the nonce decoded, not serialized : decoded on the first use after a {@link #setM3daNonce(String)} */
+    private transient volatile byte[] m3daNonceBytes;
+
     /** M3DA : the server cipher to be used for communication */
     private M3daCipher m3daCipher = M3daCipher.NONE;
 
@@ -45,8 +50,20 @@ public class M3daSecurityInfo implements Serializable {
         this.m3daSecurityType = m3daSecurityType;
     }
 
+    /**
+     * @param m3daNonce the nonce, hex encoded (e.g. read from the security store)
+     */
     public void setM3daNonce(String m3daNonce) {
         this.m3daNonce = m3daNonce;
+        this.m3daNonceBytes = null;
+    }
+
+    /**
+     * @param m3daNonce the nonce, not copied : the array must not be modified afterwards
+     */
+    public void setM3daNonceBytes(byte[] m3daNonce) {
+        this.m3daNonce = m3daNonce == null ? null : Hex.encodeHexString(m3daNonce);
+        this.m3daNonceBytes = m3daNonce;
     }
 
     public void setM3daCipher(M3daCipher m3daCipher) {
@@ -69,10 +86,25 @@ public class M3daSecurityInfo implements Serializable {
         return m3daSecurityType;
     }
 
+    /**
+     * @return the nonce, hex encoded (e.g. for the security store)
+     */
     public String getM3daNonce() {
         return m3daNonce;
     }
 
+    /**
+     * @return the nonce, not copied : the array must not be modified
+     */
+    public byte[] getM3daNonceBytes() {
+        byte[] bytes = m3daNonceBytes;
+        if (bytes == null && m3daNonce != null) {
+            bytes = Hex.decodeHex(m3daNonce);
+            m3daNonceBytes = bytes;
+        }
+        return bytes;
+    }
+
     public M3daCipher getM3daCipher() {
         return m3daCipher;
     }
@@ -12,6 +12,9 @@ package m3da.server.session;
 
 import java.util.Arrays;
 
+import m3da.codec.CipherKey;
+import m3da.codec.Utf8Slice;
+import m3da.codec.dto.CipherAlgorithm;
 import m3da.codec.dto.M3daEnvelope;
 import m3da.server.tcp.security.PasswordNegoState;
 
@@ -22,7 +25,8 @@ import m3da.server.tcp.security.PasswordNegoState;
  */
 public class M3daSession {
 
-    private String communicationId;
+    /** the communication id, decoded to a String only once */
+    private Utf8Slice communicationId;
 
     /** Return the security informations stored in this session. */
     private M3daSecurityInfo communicationInfo;
@@ -42,11 +46,26 @@ public class M3daSession {
 
     private String newPassword;
 
+    /** the last derived cipher key, reused while the credential and the nonce don't change */
+    private CipherKey cipherKey;
+
+    private String cipherKeyCredential;
+
+    private byte[] cipherKeyNonce;
+
     public String getCommunicationId() {
+        return communicationId == null ? null : communicationId.toString();
+    }
+
+    public Utf8Slice getCommunicationIdBytes() {
         return communicationId;
     }
 
     public void setCommunicationId(String communicationId) {
+        this.communicationId = Utf8Slice.of(communicationId);
+    }
+
+    public void setCommunicationId(Utf8Slice communicationId) {
         this.communicationId = communicationId;
     }
 
@@ -106,6 +125,33 @@ public class M3daSession {
         this.newPassword = newPassword;
     }
 
+    /**
+     * @param algorithm the cipher algorithm
+     * @param credential the password
+     * @param nonce the nonce
+     * @return the cached cipher key if it was derived from this password and this nonce, else <code>null</code>
+     */
+    public CipherKey getCipherKey(CipherAlgorithm algorithm, String credential, byte[] nonce) {
+        if (cipherKey != null && cipherKey.getAlgorithm() == algorithm && credential.equals(cipherKeyCredential)
+                && Arrays.equals(nonce, cipherKeyNonce)) {
+            return cipherKey;
+        }
+        return null;
+    }
+
+    /**
+     * Cache a cipher key for the next envelopes of the session.
+     * 
+     * @param cipherKey the cipher key
+     * @param credential the password the key was derived from
+     * @param nonce the nonce the key was derived from, not modified afterwards
+     */
+    public void setCipherKey(CipherKey cipherKey, String credential, byte[] nonce) {
+        this.cipherKey = cipherKey;
+        this.cipherKeyCredential = credential;
+        this.cipherKeyNonce = nonce;
+    }
+
     /**
      * {@inheritDoc}
      */
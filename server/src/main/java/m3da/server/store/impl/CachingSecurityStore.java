@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.store.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m3da.server.session.M3daSecurityInfo;
+import m3da.server.store.SecurityStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-through cache in front of a {@link SecurityStore}, for the lookups done when the devices connect.
+ * <ul>
+ * <li>the security information is cached for a TTL, and the unknown clients (no security information) for a shorter
+ * TTL</li>
+ * <li>the concurrent lookups of the same client wait for a single store lookup</li>
+ * <li>the entry of a client is invalidated by the writes of its security information (through this cache)</li>
+ * <li>the number of entries is bounded : when the bound is exceeded, the expired entries, then arbitrary entries, are
+ * evicted by a single thread down to 90% of the bound</li>
+ * </ul>
+ * <p>
+ * The cached {@link M3daSecurityInfo} is the instance returned by the store, shared by the sessions of the client.
+ * Thread safe.
+ */
+public class CachingSecurityStore implements SecurityStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingSecurityStore.class);
+
+    /** default maximum number of cached clients */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    /** default time to live of the security information, in milliseconds */
+    public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    /** default time to live of the unknown clients, in milliseconds */
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(30);
+
+    private final SecurityStore delegate;
+
+    private final int maxEntries;
+
+    /** the size after an eviction, so that the next misses don't scan the entries again */
+    private final int evictedSize;
+
+    private final long ttlNanos;
+
+    private final long negativeTtlNanos;
+
+    /** the lookups, done or in progress, by client id */
+    private final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    /** lookups answered by the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** lookups answered by the store */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** lookups which waited for the store lookup of another thread */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /** entries evicted because the cache was full */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** is a thread evicting the entries */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public CachingSecurityStore(final SecurityStore delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /**
+     * @param delegate the cached store
+     * @param maxEntries the maximum number of cached clients
+     * @param ttl the time to live of the security information, in milliseconds
+     * @param negativeTtl the time to live of the unknown clients, in milliseconds
+     */
+    public CachingSecurityStore(final SecurityStore delegate, final int maxEntries, final long ttl,
+            final long negativeTtl) {
+        if (maxEntries <= 0 || ttl < 0 || negativeTtl < 0) {
+            throw new IllegalArgumentException("invalid cache : " + maxEntries + " entries, TTL " + ttl
+                    + " ms, negative TTL " + negativeTtl + " ms");
+        }
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.evictedSize = maxEntries - Math.max(1, maxEntries / 10);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public M3daSecurityInfo getSecurityInfo(final String clientId) {
+        final long now = System.nanoTime();
+        Lookup lookup = lookups.get(clientId);
+        if (lookup != null && lookup.isExpired(now)) {
+            lookups.remove(clientId, lookup);
+            lookup = null;
+        }
+        if (lookup == null) {
+            final Lookup mine = new Lookup();
+            lookup = lookups.putIfAbsent(clientId, mine);
+            if (lookup == null) {
+                misses.incrementAndGet();
+                return load(clientId, mine);
+            }
+        }
+        if (lookup.isDone()) {
+            hits.incrementAndGet();
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return lookup.await();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void storeNonce(final String clientId, final String newNonce) {
+        delegate.storeNonce(clientId, newNonce);
+        lookups.remove(clientId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void storeNewPassword(final String clientId, final String password) {
+        delegate.storeNewPassword(clientId, password);
+        lookups.remove(clientId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addSecurityInfo(final M3daSecurityInfo securityInfo) {
+        delegate.addSecurityInfo(securityInfo);
+        lookups.remove(securityInfo.getM3daCommId());
+    }
+
+    /**
+     * @return the number of lookups answered by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups answered by the store
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of lookups which waited for the same store lookup of another thread
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the ratio of the lookups not going to the store (hits and coalesced lookups), 0 without lookups
+     */
+    public double getHitRate() {
+        final long cached = hits.get() + coalesced.get();
+        final long total = cached + misses.get();
+        return total == 0 ? 0d : (double) cached / total;
+    }
+
+    /**
+     * @return the number of entries evicted because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of cached clients, including the lookups in progress
+     */
+    public int getSize() {
+        return lookups.size();
+    }
+
+    /** lookup the store, and publish the result to the waiting threads */
+    private M3daSecurityInfo load(final String clientId, final Lookup lookup) {
+        final M3daSecurityInfo info;
+        try {
+            info = delegate.getSecurityInfo(clientId);
+        } catch (final RuntimeException e) {
+            // not cached : the next lookup tries again
+            lookups.remove(clientId, lookup);
+            lookup.fail(e);
+            throw e;
+        }
+        lookup.complete(info, System.nanoTime() + (info == null ? negativeTtlNanos : ttlNanos));
+        if (lookups.size() > maxEntries && evicting.compareAndSet(false, true)) {
+            // the other threads don't wait for the eviction
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }
+        return info;
+    }
+
+    /** remove the expired entries, then arbitrary ones, until 90% of the bound */
+    private void evict() {
+        final long now = System.nanoTime();
+        for (final Iterator<Lookup> it = lookups.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+        for (final Iterator<Map.Entry<String, Lookup>> it = lookups.entrySet().iterator(); it.hasNext()
+                && lookups.size() > evictedSize;) {
+            final Map.Entry<String, Lookup> entry = it.next();
+            if (entry.getValue().isDone()) {
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        LOG.debug("security information cache full, {} entries evicted so far", evictions.get());
+    }
+
+    /** a store lookup, in progress until completed by the loading thread */
+    private static final class Lookup {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile M3daSecurityInfo info;
+
+        private volatile RuntimeException failure;
+
+        /** expiration date (nanos), set once done */
+        private volatile long expiresAt;
+
+        void complete(final M3daSecurityInfo info, final long expiresAt) {
+            this.info = info;
+            this.expiresAt = expiresAt;
+            done.countDown();
+        }
+
+        void fail(final RuntimeException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        boolean isExpired(final long now) {
+            return isDone() && (failure != null || now - expiresAt >= 0);
+        }
+
+        /** the looked up information, waiting for the loading thread if needed */
+        M3daSecurityInfo await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return info;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package m3da.server.tcp;
 import java.nio.ByteBuffer;
 
 import m3da.codec.HeaderKey;
+import m3da.codec.Utf8Slice;
 import m3da.codec.dto.M3daEnvelope;
 import m3da.server.session.M3daSecurityInfo;
 import m3da.server.session.M3daSession;
@@ -44,7 +45,8 @@ public class ComInfoFilter extends IoFilterAdapter {
                 session.close(true);
             } else {
 
-                final String communicationId = new String(((ByteBuffer) objComId).array(), "UTF-8");
+                // decoded as a String only if needed
+                final Utf8Slice communicationId = Utf8Slice.of((ByteBuffer) objComId);
 
                 M3daSession m3daSession = getSession(session, communicationId);
 
@@ -53,7 +55,13 @@ public class ComInfoFilter extends IoFilterAdapter {
                 if (secInfo == null) {
                     LOG.debug("loading communication info for system {}", communicationId);
 
-                    secInfo = securityStore.getSecurityInfo(communicationId);
+                    secInfo = securityStore.getSecurityInfo(communicationId.toString());
+                    if (secInfo == null) {
+                        // unknown client : no second lookup by the security handler
+                        secInfo = new M3daSecurityInfo();
+                        secInfo.setM3daCommId(communicationId.toString());
+                        LOG.debug("no security information for this client {}", communicationId);
+                    }
 
                     m3daSession.setCommunicationInfo(secInfo);
                     m3daSession.setCommunicationId(communicationId);
@@ -68,7 +76,7 @@ public class ComInfoFilter extends IoFilterAdapter {
     }
 
     /** create the M3daSession from the MINA IoSession attribute */
-    private M3daSession getSession(IoSession ioSession, String communicationId) {
+    private M3daSession getSession(IoSession ioSession, Utf8Slice communicationId) {
         M3daSession session = (M3daSession) ioSession.getAttribute(M3DA_SESSION);
         if (session == null) {
             session = new M3daSession();
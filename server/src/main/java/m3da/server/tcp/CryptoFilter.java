@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.tcp;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m3da.codec.dto.M3daEnvelope;
+import m3da.server.session.M3daAuthentication;
+import m3da.server.session.M3daSecurityInfo;
+import m3da.server.session.M3daSession;
+import m3da.server.tcp.security.AuthenticationResult;
+import m3da.server.tcp.security.PasswordNegoHandler;
+import m3da.server.tcp.security.SecurityHandler;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterEvent;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.filter.executor.IoEventQueueHandler;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The crypto stage of the M3DA server : the envelopes of the authenticated sessions are checked (HMAC) and deciphered,
+ * and their responses ciphered and signed, by a dedicated thread pool sized to the cores, instead of the I/O
+ * processors or the threads accessing the store.
+ * <p>
+ * The received envelopes are passed to the next filter as {@link AuthenticationResult}s. The handler writes the
+ * responses to sign as {@link UnsignedResponse}s. The public key exchange of a password negotiation (ECDH) is also
+ * done by the crypto threads, which write the negotiation response directly. The envelopes of the sessions without
+ * authentication, or at the other steps of a password negotiation, are passed directly : they never wait behind the
+ * crypto work.
+ * <p>
+ * The events of a session are processed in order (see {@link OrderedThreadPoolExecutor}), the sessions in parallel.
+ * When more than <code>maxQueueDepth</code> events are waiting, the sessions offering new events are suspended for
+ * reading until the queue is half drained.
+ */
+public class CryptoFilter extends IoFilterAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CryptoFilter.class);
+
+    /** default number of events waiting for the crypto threads before suspending the reads */
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 1024;
+
+    /** set on the sessions which already used the crypto stage : their next events keep the same order */
+    private static final String CRYPTO_SESSION_KEY = "M3daCryptoSession";
+
+    private final SecurityHandler securityHandler;
+
+    private final PasswordNegoHandler passNego;
+
+    private final int maxQueueDepth;
+
+    private final OrderedThreadPoolExecutor executor;
+
+    /** events waiting for a crypto thread */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /** highest number of waiting events */
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    /** envelopes authenticated, responses signed and public keys exchanged */
+    private final AtomicLong processed = new AtomicLong();
+
+    /** number of times a session was suspended because the queue was full */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /** the sessions suspended for reading until the queue is drained */
+    private final Set<IoSession> suspended = Collections.newSetFromMap(new ConcurrentHashMap<IoSession, Boolean>());
+
+    /**
+     * @param securityHandler authenticates the envelopes and signs the responses
+     * @param passNego exchanges the public keys of the password negotiations
+     * @param threads the number of crypto threads, usually the number of cores
+     * @param maxQueueDepth the number of waiting events above which the sessions are suspended for reading
+     */
+    public CryptoFilter(final SecurityHandler securityHandler, final PasswordNegoHandler passNego, final int threads,
+            final int maxQueueDepth) {
+        if (threads <= 0 || maxQueueDepth <= 0) {
+            throw new IllegalArgumentException("invalid crypto stage : " + threads + " threads, " + maxQueueDepth
+                    + " queued events");
+        }
+        this.securityHandler = securityHandler;
+        this.passNego = passNego;
+        this.maxQueueDepth = maxQueueDepth;
+        this.executor = new OrderedThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ThreadFactoryBuilder().setNameFormat("m3da-crypto-%d").build(), new QueueMonitor());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageReceived(final NextFilter nextFilter, final IoSession session, final Object message)
+            throws Exception {
+        if (message instanceof M3daEnvelope
+                && (session.containsAttribute(CRYPTO_SESSION_KEY) || isCryptoWork(getM3daSession(session)))) {
+            session.setAttribute(CRYPTO_SESSION_KEY, Boolean.TRUE);
+            dispatch(new CryptoEvent(nextFilter, IoEventType.MESSAGE_RECEIVED, session, message));
+        } else {
+            nextFilter.messageReceived(session, message);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void filterWrite(final NextFilter nextFilter, final IoSession session, final WriteRequest writeRequest)
+            throws Exception {
+        if (writeRequest.getMessage() instanceof UnsignedResponse) {
+            dispatch(new CryptoEvent(nextFilter, IoEventType.WRITE, session, writeRequest));
+        } else {
+            nextFilter.filterWrite(session, writeRequest);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sessionClosed(final NextFilter nextFilter, final IoSession session) throws Exception {
+        suspended.remove(session);
+        if (session.containsAttribute(CRYPTO_SESSION_KEY)) {
+            // after the pending envelopes of the session
+            dispatch(new IoFilterEvent(nextFilter, IoEventType.SESSION_CLOSED, session, null));
+        } else {
+            nextFilter.sessionClosed(session);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy() throws Exception {
+        shutdown();
+    }
+
+    /**
+     * Stop the crypto threads, the waiting events are not processed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of events waiting for a crypto thread
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return the highest number of events waiting for a crypto thread
+     */
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * @return the number of crypto threads currently processing an event
+     */
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of envelopes authenticated, responses signed and public keys exchanged
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return the number of times a session was suspended for reading because the queue was full
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * Queue an event for the crypto threads. The event is counted before being queued : the executor notifies the
+     * queued events after they can be polled.
+     */
+    private void dispatch(final IoEvent event) {
+        final int depth = queueDepth.incrementAndGet();
+        int peak = peakQueueDepth.get();
+        while (depth > peak && !peakQueueDepth.compareAndSet(peak, depth)) {
+            peak = peakQueueDepth.get();
+        }
+        if (depth > maxQueueDepth && event.getType() == IoEventType.MESSAGE_RECEIVED) {
+            final IoSession session = event.getSession();
+            if (suspended.add(session)) {
+                LOG.debug("crypto queue full ({} events), suspending the reads of {}", depth, session);
+                throttled.incrementAndGet();
+                session.suspendRead();
+            }
+        }
+        try {
+            executor.execute(event);
+        } catch (final RejectedExecutionException e) {
+            queueDepth.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /** the envelopes to process on the crypto threads */
+    private boolean isCryptoWork(final M3daSession m3daSession) {
+        return m3daSession != null && (isAuthenticated(m3daSession) || PasswordNegoHandler.isKeyExchange(m3daSession));
+    }
+
+    /** the sessions authenticated with a known credential : the others are not ciphered, or negotiate a password */
+    private boolean isAuthenticated(final M3daSession m3daSession) {
+        if (m3daSession == null) {
+            return false;
+        }
+        final M3daSecurityInfo secInfo = m3daSession.getCommunicationInfo();
+        return secInfo != null && !M3daAuthentication.NONE.equals(secInfo.getM3daSecurityType())
+                && StringUtils.isNotBlank(secInfo.getM3daCredential());
+    }
+
+    private static M3daSession getM3daSession(final IoSession session) {
+        return (M3daSession) session.getAttribute(ComInfoFilter.M3DA_SESSION);
+    }
+
+    /**
+     * A response to sign (and cipher) by the crypto stage before being encoded.
+     */
+    public static final class UnsignedResponse {
+
+        private final M3daEnvelope envelope;
+
+        public UnsignedResponse(final M3daEnvelope envelope) {
+            this.envelope = envelope;
+        }
+
+        public M3daEnvelope getEnvelope() {
+            return envelope;
+        }
+    }
+
+    /** an event processed by a crypto thread, then passed to the next filter */
+    private final class CryptoEvent extends IoFilterEvent {
+
+        CryptoEvent(final NextFilter nextFilter, final IoEventType type, final IoSession session,
+                final Object parameter) {
+            super(nextFilter, type, session, parameter);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void fire() {
+            final IoSession session = getSession();
+            final M3daSession m3daSession = getM3daSession(session);
+            if (getType() == IoEventType.WRITE) {
+                final WriteRequest writeRequest = (WriteRequest) getParameter();
+                final M3daEnvelope response = ((UnsignedResponse) writeRequest.getMessage()).getEnvelope();
+                final M3daEnvelope signed;
+                try {
+                    signed = securityHandler.signResponse(response, m3daSession);
+                } catch (final Exception e) {
+                    writeRequest.getFuture().setException(e);
+                    getNextFilter().exceptionCaught(session, e);
+                    return;
+                }
+                processed.incrementAndGet();
+                getNextFilter().filterWrite(session,
+                        new DefaultWriteRequest(signed, writeRequest.getFuture(), writeRequest.getDestination()));
+
+            } else {
+                final M3daEnvelope env = (M3daEnvelope) getParameter();
+                if (isAuthenticated(m3daSession)) {
+                    final AuthenticationResult result;
+                    try {
+                        result = securityHandler.authenticate(env, m3daSession);
+                    } catch (final Exception e) {
+                        getNextFilter().exceptionCaught(session, e);
+                        return;
+                    }
+                    processed.incrementAndGet();
+                    getNextFilter().messageReceived(session, result);
+
+                } else if (PasswordNegoHandler.isKeyExchange(m3daSession)) {
+                    final M3daEnvelope response;
+                    try {
+                        response = passNego.handle(env, m3daSession);
+                    } catch (final Exception e) {
+                        getNextFilter().exceptionCaught(session, e);
+                        return;
+                    }
+                    processed.incrementAndGet();
+                    session.write(response);
+
+                } else {
+                    // no crypto work for this step (plain text, or other negotiation steps)
+                    getNextFilter().messageReceived(session, env);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the polled events, and resume the suspended sessions once the queue is half drained.
+     */
+    private final class QueueMonitor implements IoEventQueueHandler {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept(final Object source, final IoEvent event) {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void offered(final Object source, final IoEvent event) {
+            // counted by dispatch()
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void polled(final Object source, final IoEvent event) {
+            final int depth = queueDepth.decrementAndGet();
+            if (depth <= maxQueueDepth / 2 && !suspended.isEmpty()) {
+                for (final IoSession session : suspended) {
+                    if (suspended.remove(session)) {
+                        session.resumeRead();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -14,9 +14,10 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import m3da.codec.DecoderException;
 import m3da.codec.DecoderOutput;
-import m3da.codec.EnvelopeDecoder;
 import m3da.codec.EnvelopeEncoder;
+import m3da.codec.EnvelopeScanner;
 import m3da.codec.M3daCodecService;
 import m3da.codec.dto.M3daEnvelope;
 
@@ -24,27 +25,46 @@ import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.filterchain.IoFilter;
 import org.apache.mina.core.filterchain.IoFilterAdapter;
 import org.apache.mina.core.session.IoSession;
-import org.apache.mina.core.write.DefaultWriteRequest;
 import org.apache.mina.core.write.WriteRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * {@link IoFilter} in charge of decoding the M3DA envelopes. It decodes received {@link ByteBuffer} into {@link M3daEnvelope} (with accumulation). It
- * encodes sent {@link M3daEnvelope} into {@link ByteBuffer}.
+ * encodes sent {@link M3daEnvelope} into {@link IoBuffer} chunks.
+ * <p>
+ * The received bytes are first walked by an {@link EnvelopeScanner} : an envelope is decoded only once it's complete,
+ * and the malformed or oversized envelopes are rejected before being decoded (see {@link M3daCodecService#getDecoderPolicy()}).
+ * Only the bytes of an incomplete envelope are copied for accumulation, within the limit of the session and of the
+ * server-wide {@link PartialEnvelopeBudget}.
  */
 public class EnvelopeFilter extends IoFilterAdapter {
 
 	private static final Logger LOG = LoggerFactory.getLogger(EnvelopeFilter.class);
 
 	private static final String ENCODER_KEY = "AwtDa3EncoderKey";
-	private static final String DECODER_KEY = "AwtDa3DecoderKey";
+	private static final String SCANNER_KEY = "AwtDa3ScannerKey";
+	private static final String PENDING_KEY = "AwtDa3PendingKey";
 
 	/** for encoding/decoding envelopes */
 	private M3daCodecService codec;
 
+	/** the bytes of partial envelopes accumulated by all the sessions */
+	private final PartialEnvelopeBudget budget;
+
 	public EnvelopeFilter(M3daCodecService codec) {
+		this(codec, new PartialEnvelopeBudget());
+	}
+
+	/**
+	 * @param codec
+	 *            for encoding/decoding envelopes
+	 * @param budget
+	 *            the server-wide budget of partial envelopes
+	 */
+	public EnvelopeFilter(M3daCodecService codec, PartialEnvelopeBudget budget) {
 		this.codec = codec;
+		this.budget = budget;
 	}
 
 	/**
@@ -55,7 +75,7 @@ public class EnvelopeFilter extends IoFilterAdapter {
 
 		// create the needed AWT-DA 3 decoder and encoder
 		session.setAttribute(ENCODER_KEY, codec.createEnvelopeEncoder());
-		session.setAttribute(DECODER_KEY, codec.createEnvelopeDecoder());
+		session.setAttribute(SCANNER_KEY, codec.createEnvelopeScanner());
 		nextFilter.sessionCreated(session);
 	}
 
@@ -65,19 +85,11 @@ public class EnvelopeFilter extends IoFilterAdapter {
 	@Override
 	public void messageReceived(final NextFilter nextFilter, final IoSession session, final Object message) throws Exception {
 		if (message instanceof IoBuffer) {
-			// accumulate that buffer
-			final EnvelopeOutput decoderOutput = new EnvelopeOutput();
-			 
-			((EnvelopeDecoder) session.getAttribute(DECODER_KEY)).decodeAndAccumulate(((IoBuffer) message).buf(), decoderOutput);
-			final List<M3daEnvelope> envelopes = decoderOutput.getEnvelope();
-                        if (envelopes != null) {
-				// write the envelope to the next filter
-                                for (M3daEnvelope e : envelopes) {
-                                    LOG.debug("decoded one envelope : {}", e);
-                                    nextFilter.messageReceived(session, e);
-                                }
-			} else {
-				LOG.debug("no envelope decoded, we need to accumulate more bytes");
+			try {
+				scanAndDecode(nextFilter, session, (IoBuffer) message);
+			} finally {
+				// the decoded envelopes don't share the received bytes : a pooled buffer can be reused
+				((IoBuffer) message).free();
 			}
 		} else {
 			LOG.error("We should receive IoBuffer, not {}", message.getClass().getCanonicalName());
@@ -85,6 +97,88 @@ public class EnvelopeFilter extends IoFilterAdapter {
 		}
 	}
 
+	/**
+	 * Decode the complete envelopes of the received bytes, and keep the incomplete one.
+	 */
+	private void scanAndDecode(final NextFilter nextFilter, final IoSession session, final IoBuffer received) throws Exception {
+		final EnvelopeScanner scanner = (EnvelopeScanner) session.getAttribute(SCANNER_KEY);
+		IoBuffer pending = (IoBuffer) session.getAttribute(PENDING_KEY);
+
+		// scan the received buffer directly, unless an incomplete envelope was accumulated
+		final ByteBuffer input;
+		if (pending == null) {
+			input = received.buf();
+		} else {
+			pending.put(received);
+			pending.flip();
+			input = pending.buf();
+		}
+
+		try {
+			int length;
+			while ((length = scanner.scan(input)) > 0) {
+				final ByteBuffer frame = input.duplicate();
+				frame.limit(frame.position() + length);
+				input.position(input.position() + length);
+				decodeFrame(nextFilter, session, frame);
+			}
+		} catch (final DecoderException e) {
+			scanner.reset();
+			releasePending(session);
+			throw e;
+		}
+
+		if (input.hasRemaining()) {
+			LOG.debug("incomplete envelope, we need to accumulate more bytes");
+			final int maxAccumulated = codec.getDecoderPolicy().getMaxAccumulatedBytes();
+			if (input.remaining() > maxAccumulated) {
+				scanner.reset();
+				releasePending(session);
+				throw new DecoderException("more than " + maxAccumulated + " bytes accumulated for an incomplete envelope");
+			}
+			budget.update(session, input.remaining());
+			if (pending == null) {
+				pending = IoBuffer.allocate(Math.max(input.remaining() * 2, 1024)).setAutoExpand(true);
+				pending.put(input);
+				session.setAttribute(PENDING_KEY, pending);
+			} else {
+				pending.compact();
+			}
+		} else if (pending != null) {
+			releasePending(session);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sessionClosed(final NextFilter nextFilter, final IoSession session) throws Exception {
+		releasePending(session);
+		nextFilter.sessionClosed(session);
+	}
+
+	/** forget the incomplete envelope of a session */
+	private void releasePending(final IoSession session) {
+		final IoBuffer pending = (IoBuffer) session.removeAttribute(PENDING_KEY);
+		if (pending != null) {
+			pending.free();
+		}
+		budget.release(session);
+	}
+
+	/**
+	 * Decode a complete envelope found by the scanner and push it to the next filter.
+	 */
+	private void decodeFrame(final NextFilter nextFilter, final IoSession session, final ByteBuffer frame) throws DecoderException {
+		final EnvelopeOutput decoderOutput = new EnvelopeOutput();
+		codec.borrowEnvelopeDecoder().decodeAndAccumulate(frame, decoderOutput);
+		for (M3daEnvelope e : decoderOutput.getEnvelope()) {
+			LOG.debug("decoded one envelope : {}", e);
+			nextFilter.messageReceived(session, e);
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -96,25 +190,25 @@ public class EnvelopeFilter extends IoFilterAdapter {
 
 			LOG.debug("encoding response : {}", response);
 
-			final ByteBuffer encodedBuffer = ((EnvelopeEncoder) session.getAttribute(ENCODER_KEY)).encode(response);
-
-			nextFilter.filterWrite(session,
-					new DefaultWriteRequest(IoBuffer.wrap(encodedBuffer), writeRequest.getFuture(), writeRequest.getDestination()));
+			// the encoded chunks are sent while encoding
+			final IoBufferEncoderOutput output = new IoBufferEncoderOutput(nextFilter, session, writeRequest);
+			((EnvelopeEncoder) session.getAttribute(ENCODER_KEY)).encode(response, output);
+			output.finish();
 		} else {
-		        LOG.error("We should send M3daEnvelope, not {}", writeRequest.getMessage().getClass().getCanonicalName());
+			LOG.error("We should send M3daEnvelope, not {}", writeRequest.getMessage().getClass().getCanonicalName());
 			nextFilter.filterWrite(session, writeRequest);
 		}
 	}
 
 	private class EnvelopeOutput implements DecoderOutput<M3daEnvelope> {
-	        private List<M3daEnvelope> envelopes = new ArrayList<M3daEnvelope>(2);
-		
+		private List<M3daEnvelope> envelopes = new ArrayList<M3daEnvelope>(2);
+
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
 		public void decoded(final M3daEnvelope pdu) {
-		    envelopes.add(pdu);
+			envelopes.add(pdu);
 		}
 
 		public List<M3daEnvelope> getEnvelope() {
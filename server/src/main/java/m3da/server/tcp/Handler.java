@@ -11,9 +11,7 @@
 package m3da.server.tcp;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -26,6 +24,7 @@ import m3da.codec.DecoderException;
 import m3da.codec.DecoderOutput;
 import m3da.codec.HeaderKey;
 import m3da.codec.M3daCodecService;
+import m3da.codec.Utf8Slice;
 import m3da.codec.dto.M3daDeltasVector;
 import m3da.codec.dto.M3daEnvelope;
 import m3da.codec.dto.M3daMessage;
@@ -68,10 +67,14 @@ public class Handler extends IoHandlerAdapter {
     private final SecurityHandler securityHandler;
 
     public Handler(Store store, SecurityStore securityStore, M3daCodecService codec) {
+        this(store, codec, new SecurityHandler(securityStore, codec), new PasswordNegoHandler(securityStore, codec));
+    }
+
+    public Handler(Store store, M3daCodecService codec, SecurityHandler securityHandler, PasswordNegoHandler passNego) {
         this.store = store;
         this.codec = codec;
-        this.passNego = new PasswordNegoHandler(securityStore);
-        this.securityHandler = new SecurityHandler(securityStore);
+        this.passNego = passNego;
+        this.securityHandler = securityHandler;
     }
 
     @Override
@@ -84,7 +87,7 @@ public class Handler extends IoHandlerAdapter {
     public void sessionOpened(IoSession session) throws Exception {
 
         session.setAttribute("decoder", codec.createBodyDecoder());
-        session.setAttribute("encoder", codec.createBodyEncoder());
+        session.setAttribute("encoder", codec.createCompactBodyEncoder());
     }
 
     @Override
@@ -109,6 +112,10 @@ public class Handler extends IoHandlerAdapter {
                 respond(session, env);
             }
 
+        } else if (message instanceof AuthenticationResult) {
+            // already authenticated by the crypto stage, which also signs the response
+            reply(session, getSession(session).getCommunicationId(), (AuthenticationResult) message, true);
+
         } else {
             LOG.error("should be M3daEnvelope, not {}", message.getClass().getCanonicalName());
             // die die buggy client
@@ -117,11 +124,19 @@ public class Handler extends IoHandlerAdapter {
     }
 
     private void respond(final IoSession session, M3daEnvelope env) throws Exception {
-        final String comId = new String(((ByteBuffer) env.getHeader().get(HeaderKey.ID)).array(),
-                Charset.forName("UTF8"));
+        final String comId = communicationId(env, getSession(session));
         LOG.info("client communication identifier : {}", comId);
 
-        AuthenticationResult result = securityHandler.authenticate(env, getSession(session));
+        reply(session, comId, securityHandler.authenticate(env, getSession(session)), false);
+    }
+
+    /**
+     * Process an authenticated envelope and write the response, or write the authentication error.
+     * 
+     * @param signedByCryptoStage <code>true</code> if the response is signed by the {@link CryptoFilter}
+     */
+    private void reply(final IoSession session, final String comId, final AuthenticationResult result,
+            final boolean signedByCryptoStage) throws Exception {
         if (result.isSuccess()) {
             // handle this message
             final M3daEnvelope response = createResponse(comId, result.getEnvelope(), session);
@@ -131,10 +146,14 @@ public class Handler extends IoHandlerAdapter {
                 session.close(true);
             } else {
                 // apply security if needed
-                session.write(securityHandler.signResponse(response, getSession(session)));
+                if (signedByCryptoStage) {
+                    session.write(new CryptoFilter.UnsignedResponse(response));
+                } else {
+                    session.write(securityHandler.signResponse(response, getSession(session)));
+                }
             }
         } else {
-            // send the error message to the device
+            // send the error message to the device, signed here : the session may be closed once written
             session.write(securityHandler.signResponse(result.getEnvelope(), getSession(session)));
             if (result.getEndSession()) {
                 session.close(false);
@@ -144,12 +163,12 @@ public class Handler extends IoHandlerAdapter {
     }
 
     private M3daEnvelope createResponse(String comId, M3daEnvelope env, IoSession session) throws DecoderException {
-        if (env.getPayload().length > 0) {
+        if (env.getPayloadSize() > 0) {
             long now = System.currentTimeMillis();
 
             BysantDecoder decoder = (BysantDecoder) session.getAttribute("decoder");
             ListDecoder out = new ListDecoder();
-            decoder.decodeAndAccumulate(ByteBuffer.wrap(env.getPayload()), out);
+            decoder.decodeAndAccumulate(env.getPayloadBuffer(), out);
             List<Object> decoded = out.list;
             List<Message> data = new ArrayList<Message>(decoded.size());
 
@@ -176,7 +195,7 @@ public class Handler extends IoHandlerAdapter {
                             List<DataValue<?>> dataValues = new ArrayList<DataValue<?>>(values.size());
 
                             for (Object v : values) {
-                                dataValues.add(new DataValue<Object>(now, v));
+                                dataValues.add(new DataValue<Object>(now, storedValue(v)));
                             }
 
                             bodyData.put(e.getKey().toString(), dataValues);
@@ -222,7 +241,7 @@ public class Handler extends IoHandlerAdapter {
         BysantEncoder encoder = (BysantEncoder) session.getAttribute("encoder");
 
         // encode the message to be sent
-        byte[] binaryPayload = encoder.encode(pdus).array();
+        ByteBuffer binaryPayload = encoder.encode(pdus);
         // enqueue for socket writing
         Map<Object, Object> header = new HashMap<Object, Object>();
         header.put(HeaderKey.STATUS, 200);
@@ -264,12 +283,12 @@ public class Handler extends IoHandlerAdapter {
         final Map<Object, Object> body = msg.getBody();
 
         // correlated data with timestamp
-        List<?> ts = null;
+        long[] ts = null;
         if (body.containsKey("timestamp") || body.containsKey("timestamps")) {
             if (body.containsKey("timestamp")) {
-                ts = asFlatList(body.get("timestamp"));
+                ts = toTimestamps(body.get("timestamp"));
             } else {
-                ts = asFlatList(body.get("timestamps"));
+                ts = toTimestamps(body.get("timestamps"));
             }
         }
         for (final Map.Entry<Object, Object> e : msg.getBody().entrySet()) {
@@ -280,16 +299,10 @@ public class Handler extends IoHandlerAdapter {
             int index = 0;
             long lastDate = System.currentTimeMillis();
             List<DataValue<?>> valuesForKey = new ArrayList<DataValue<?>>();
-            for (Object value : extractList(e.getValue())) {
-                if (value instanceof ByteBuffer) {
-                    try {
-                        value = new String(((ByteBuffer) value).array(), "UTF-8");
-                    } catch (UnsupportedEncodingException e1) {
-                        throw new IllegalStateException("no UTF-8 codec in the JVM");
-                    }
-                }
-                if (index < ts.size()) {
-                    final long date = Long.valueOf(ts.get(index).toString()) * 1000L;
+            for (Object encodedValue : extractList(e.getValue())) {
+                final Object value = storedValue(encodedValue);
+                if (index < ts.length) {
+                    final long date = ts[index] * 1000L;
                     valuesForKey.add(new DataValue<Object>(date, value));
                     lastDate = date;
                 } else {
@@ -314,12 +327,24 @@ public class Handler extends IoHandlerAdapter {
 
             List<DataValue<?>> values = new ArrayList<DataValue<?>>();
             for (Object o : extractList(e.getValue())) {
-                values.add(new DataValue<Object>(now, o));
+                values.add(new DataValue<Object>(now, storedValue(o)));
             }
             bodyData.put(e.getKey().toString(), values);
         }
     }
 
+    /**
+     * The communication id of an envelope, decoded only if it's not the one of the session
+     */
+    private String communicationId(final M3daEnvelope env, final M3daSession m3daSession) {
+        final Utf8Slice envId = Utf8Slice.of((ByteBuffer) env.getHeader().get(HeaderKey.ID));
+        final Utf8Slice sessionId = m3daSession.getCommunicationIdBytes();
+        if (sessionId != null && sessionId.equals(envId)) {
+            return sessionId.toString();
+        }
+        return envId == null ? null : envId.toString();
+    }
+
     /**
      * Extract a list of value following the M3DA convention : extract QuasiPeriodic and Delta vectors. Convert non list
      * item to list with one element
@@ -332,24 +357,41 @@ public class Handler extends IoHandlerAdapter {
             valueList = ((M3daDeltasVector) v).asFlatList();
         } else if (v instanceof M3daQuasiPeriodicVector) {
             valueList = ((M3daQuasiPeriodicVector) v).asFlatList();
-        } else if (v instanceof ByteBuffer) {
-            // as String (TODO : handle binary data)
-            valueList = Collections.singletonList(new String(((ByteBuffer) v).array(), Charset.forName("UTF8")));
         } else {
             valueList = Collections.singletonList(v);
         }
         return valueList;
     }
 
-    private List<?> asFlatList(Object encodedTs) {
+    /**
+     * The value to store for a decoded value : the strings are stored as {@link Utf8Slice}, decoded to a String only
+     * when needed
+     */
+    private Object storedValue(final Object decoded) {
+        if (decoded instanceof ByteBuffer) {
+            return Utf8Slice.of((ByteBuffer) decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * Extract the timestamps (in seconds) of correlated data, the vectors are expanded without boxing
+     */
+    private long[] toTimestamps(final Object encodedTs) {
         if (encodedTs instanceof List) {
-            return (List<?>) encodedTs;
+            final List<?> list = (List<?>) encodedTs;
+            final long[] ts = new long[list.size()];
+            for (int i = 0; i < ts.length; i++) {
+                final Object t = list.get(i);
+                ts[i] = t instanceof Number ? ((Number) t).longValue() : Long.valueOf(t.toString());
+            }
+            return ts;
         } else if (encodedTs instanceof M3daQuasiPeriodicVector) {
-            return ((M3daQuasiPeriodicVector) encodedTs).asFlatList();
+            return ((M3daQuasiPeriodicVector) encodedTs).toLongArray();
         } else if (encodedTs instanceof M3daDeltasVector) {
-            return ((M3daDeltasVector) encodedTs).asFlatList();
+            return ((M3daDeltasVector) encodedTs).toLongArray();
         } else {
-            return null;
+            return new long[0];
         }
     }
 
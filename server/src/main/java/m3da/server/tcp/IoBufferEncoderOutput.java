@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.tcp;
+
+import java.nio.ByteBuffer;
+
+import m3da.codec.EncoderOutput;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+
+/**
+ * {@link EncoderOutput} pushing each encoded chunk to the next filter as an {@link IoBuffer}, so the first chunks of a
+ * large response go out on the socket while the rest is still encoded.
+ * <p>
+ * The last chunk carries the future of the original write request : it's notified once the whole response is
+ * written. Call {@link #finish()} once the encoding is done.
+ */
+class IoBufferEncoderOutput implements EncoderOutput {
+
+    private final NextFilter nextFilter;
+
+    private final IoSession session;
+
+    private final WriteRequest writeRequest;
+
+    /** the last received chunk, held until we know if it's the last one */
+    private IoBuffer pending = null;
+
+    IoBufferEncoderOutput(final NextFilter nextFilter, final IoSession session, final WriteRequest writeRequest) {
+        this.nextFilter = nextFilter;
+        this.session = session;
+        this.writeRequest = writeRequest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final ByteBuffer encodedBuffer) {
+        if (pending != null) {
+            nextFilter.filterWrite(session, new DefaultWriteRequest(pending, new DefaultWriteFuture(session),
+                    writeRequest.getDestination()));
+        }
+        pending = IoBuffer.wrap(encodedBuffer);
+    }
+
+    /**
+     * Push the last chunk, with the future of the original write request.
+     */
+    void finish() {
+        final IoBuffer last = pending == null ? IoBuffer.allocate(0) : pending;
+        pending = null;
+        nextFilter.filterWrite(session,
+                new DefaultWriteRequest(last, writeRequest.getFuture(), writeRequest.getDestination()));
+    }
+}
@@ -13,11 +13,18 @@ package m3da.server.tcp;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
+import m3da.codec.DecoderPolicy;
 import m3da.codec.M3daCodecService;
 import m3da.codec.impl.M3daCodecServiceImpl;
+import m3da.codec.impl.PooledEcdhServiceImpl;
+import m3da.server.session.HmacKeyCache;
 import m3da.server.store.SecurityStore;
 import m3da.server.store.Store;
+import m3da.server.tcp.security.PasswordNegoHandler;
+import m3da.server.tcp.security.SecurityHandler;
 
+import org.apache.mina.core.buffer.CachedBufferAllocator;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.filter.logging.LogLevel;
 import org.apache.mina.filter.logging.LoggingFilter;
@@ -37,28 +44,121 @@ public class M3daTcpServer {
     private final int executorCoreSize;
     private final int executorMaxSize;
 
-    private final M3daCodecService codec = new M3daCodecServiceImpl();
+    /** the codec service shared by the filters and the handlers */
+    private final M3daCodecService codec;
+
+    /** bytes of the partially received envelopes of all the sessions */
+    private final PartialEnvelopeBudget partialEnvelopeBudget;
 
     private final NioSocketAcceptor acceptor;
 
     private final Handler handler;
 
+    private final SecurityHandler securityHandler;
+
+    private final PasswordNegoHandler passNego;
+
+    /** pre-generated ECDH key pairs for the password negotiations */
+    private final PooledEcdhServiceImpl ecdh;
+
+    /** the security store, invalidating the HMAC keys of the clients on their password changes */
     private final SecurityStore securityStore;
 
+    /** the HMAC keys derived from the credentials of the clients */
+    private final HmacKeyCache hmacKeys = new HmacKeyCache();
+
+    /** use pooled direct buffers for the socket reads and writes */
+    private boolean pooledDirectBuffers = false;
+
+    /** threads of the crypto stage */
+    private int cryptoThreads = Runtime.getRuntime().availableProcessors();
+
+    /** events waiting for the crypto stage before suspending the reads */
+    private int maxCryptoQueueDepth = CryptoFilter.DEFAULT_MAX_QUEUE_DEPTH;
+
+    /** the crypto stage, created when the server starts */
+    private CryptoFilter cryptoFilter;
+
     public M3daTcpServer(int processorCount, int idleTimeInSec, int port, int executorCoreSize, int executorMaxSize,
             Store store, SecurityStore securityStore) {
+        this(processorCount, idleTimeInSec, port, executorCoreSize, executorMaxSize, store, securityStore,
+                DecoderPolicy.DEFAULT, PartialEnvelopeBudget.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param decoderPolicy the limits of the envelopes received from each device
+     * @param maxPartialEnvelopeBytes the bytes of partially received envelopes accumulated by all the sessions, above
+     *        which the slowest senders are disconnected
+     */
+    public M3daTcpServer(int processorCount, int idleTimeInSec, int port, int executorCoreSize, int executorMaxSize,
+            Store store, SecurityStore securityStore, DecoderPolicy decoderPolicy, long maxPartialEnvelopeBytes) {
         super();
+        this.codec = new M3daCodecServiceImpl(decoderPolicy);
+        this.partialEnvelopeBudget = new PartialEnvelopeBudget(maxPartialEnvelopeBytes);
         this.idleTimeInSec = idleTimeInSec;
         this.port = port;
         this.executorCoreSize = executorCoreSize;
         this.executorMaxSize = executorMaxSize;
         this.acceptor = new NioSocketAcceptor(processorCount);
-        this.handler = new Handler(store, securityStore, codec);
-        this.securityStore = securityStore;
+        this.ecdh = new PooledEcdhServiceImpl(PooledEcdhServiceImpl.DEFAULT_CAPACITY, Math.max(1, Runtime
+                .getRuntime().availableProcessors() / 2));
+        this.securityStore = hmacKeys.invalidating(securityStore);
+        this.securityHandler = new SecurityHandler(this.securityStore, codec, hmacKeys);
+        this.passNego = new PasswordNegoHandler(this.securityStore, codec, ecdh);
+        this.handler = new Handler(store, codec, securityHandler, passNego);
+    }
+
+    /**
+     * Use pooled direct {@link IoBuffer}s instead of heap buffers : the socket reads and writes don't need an extra
+     * copy between the heap and the native memory. Must be called before {@link #start()}.
+     * <p>
+     * The MINA buffer allocator is global : it applies to all the MINA services of the JVM.
+     */
+    public void setPooledDirectBuffers(final boolean pooledDirectBuffers) {
+        this.pooledDirectBuffers = pooledDirectBuffers;
+    }
+
+    /**
+     * Size the crypto stage (see {@link CryptoFilter}). Must be called before {@link #start()}.
+     * 
+     * @param threads the number of crypto threads, the number of cores by default
+     * @param maxQueueDepth the number of waiting events above which the sessions are suspended for reading
+     */
+    public void setCryptoStage(final int threads, final int maxQueueDepth) {
+        this.cryptoThreads = threads;
+        this.maxCryptoQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * @return the pool of pre-generated ECDH key pairs, for its refill metrics
+     */
+    /**
+     * @return the security store used by the server : the security information of the clients must be written through
+     *         it for invalidating their cached HMAC keys
+     */
+    public SecurityStore getSecurityStore() {
+        return securityStore;
+    }
+
+    public PooledEcdhServiceImpl getEcdhKeyPairPool() {
+        return ecdh;
+    }
+
+    /**
+     * @return the crypto stage, for its queue metrics, <code>null</code> if the server is not started
+     */
+    public CryptoFilter getCryptoFilter() {
+        return cryptoFilter;
     }
 
     public void start() {
 
+        if (pooledDirectBuffers) {
+            LOG.info("using pooled direct buffers");
+            IoBuffer.setUseDirectBuffer(true);
+            IoBuffer.setAllocator(new CachedBufferAllocator());
+        }
+
         acceptor.getSessionConfig().setBothIdleTime(idleTimeInSec);
         acceptor.getSessionConfig().setReuseAddress(true);
         acceptor.getSessionConfig().setTcpNoDelay(true);
@@ -77,11 +177,15 @@ public class M3daTcpServer {
         acceptor.getFilterChain().addFirst("LOGGER", firstLogger);
 
         // filter for encoding/decoding the AWTDA3 envelopes
-        acceptor.getFilterChain().addLast("ENVCODEC", new EnvelopeFilter(codec));
+        acceptor.getFilterChain().addLast("ENVCODEC", new EnvelopeFilter(codec, partialEnvelopeBudget));
 
         // load the security information for the communicating client
         acceptor.getFilterChain().addLast("COMINFO", new ComInfoFilter(securityStore));
 
+        // authentication and deciphering on a dedicated thread pool, for the sessions with security
+        cryptoFilter = new CryptoFilter(securityHandler, passNego, cryptoThreads, maxCryptoQueueDepth);
+        acceptor.getFilterChain().addLast("CRYPTO", cryptoFilter);
+
         // thread pool for long lasting API calls after the decoding
         acceptor.getFilterChain().addLast("EXECUTOR", new ExecutorFilter(executorCoreSize, executorMaxSize));
 
@@ -102,6 +206,10 @@ public class M3daTcpServer {
     public void stop() {
         acceptor.unbind();
         acceptor.dispose();
+        if (cryptoFilter != null) {
+            cryptoFilter.shutdown();
+        }
+        ecdh.shutdown();
     }
 
 }
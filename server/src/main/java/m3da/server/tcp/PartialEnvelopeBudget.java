@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.tcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-wide budget for the bytes of the partially received envelopes, accumulated by all the sessions while waiting
+ * for the rest of their envelope. When the budget is exceeded, the slowest senders (the lowest bytes per second since
+ * their envelope started) are disconnected until the accumulated bytes fit in the budget again.
+ * <p>
+ * Thread safe : updated by all the IO processors.
+ */
+public class PartialEnvelopeBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartialEnvelopeBudget.class);
+
+    /** default budget for all the sessions */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private final long maxBytes;
+
+    /** bytes accumulated by all the sessions */
+    private final AtomicLong total = new AtomicLong();
+
+    /** the sessions with a partial envelope, by session id */
+    private final ConcurrentMap<Long, Partial> partials = new ConcurrentHashMap<Long, Partial>();
+
+    /** number of sessions disconnected for exceeding the budget */
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PartialEnvelopeBudget() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the maximum bytes of partial envelopes accumulated by all the sessions
+     */
+    public PartialEnvelopeBudget(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("invalid budget : " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Update the number of bytes accumulated by a session for its partial envelope. If the budget is exceeded, the
+     * slowest senders are disconnected.
+     *
+     * @param session the session accumulating the bytes
+     * @param pendingBytes the bytes of its partial envelope, 0 once the envelope is complete
+     */
+    public void update(final IoSession session, final long pendingBytes) {
+        if (pendingBytes <= 0) {
+            release(session);
+            return;
+        }
+        Partial partial = partials.get(session.getId());
+        if (partial == null) {
+            partial = new Partial(session, System.currentTimeMillis());
+            final Partial existing = partials.putIfAbsent(session.getId(), partial);
+            if (existing != null) {
+                partial = existing;
+            }
+        }
+        final long accumulated;
+        synchronized (partial) {
+            if (partial.released) {
+                // evicted by another thread meanwhile : the session is being closed
+                return;
+            }
+            accumulated = total.addAndGet(pendingBytes - partial.bytes);
+            partial.bytes = pendingBytes;
+        }
+        if (accumulated > maxBytes) {
+            evictSlowest();
+        }
+    }
+
+    /**
+     * Forget the partial envelope of a session (envelope complete, or session closed).
+     */
+    public void release(final IoSession session) {
+        final Partial partial = partials.remove(session.getId());
+        if (partial != null) {
+            synchronized (partial) {
+                total.addAndGet(-partial.bytes);
+                partial.bytes = 0;
+                partial.released = true;
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of partial envelopes currently accumulated by all the sessions
+     */
+    public long getPartialBytes() {
+        return total.get();
+    }
+
+    /**
+     * @return the number of sessions disconnected because the budget was exceeded
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** disconnect the slowest senders until the budget is respected */
+    private synchronized void evictSlowest() {
+        if (total.get() <= maxBytes) {
+            // already done by another thread
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final List<Partial> candidates = new ArrayList<Partial>(partials.values());
+        Collections.sort(candidates, new Comparator<Partial>() {
+            @Override
+            public int compare(final Partial p1, final Partial p2) {
+                return Double.compare(p1.rate(now), p2.rate(now));
+            }
+        });
+        for (final Partial partial : candidates) {
+            if (total.get() <= maxBytes) {
+                break;
+            }
+            LOG.warn("partial envelopes budget of {} bytes exceeded, closing the slowest session : {}", maxBytes,
+                    partial.session);
+            release(partial.session);
+            partial.session.close(true);
+            evictions.incrementAndGet();
+        }
+    }
+
+    /** the partial envelope of a session */
+    private static final class Partial {
+
+        private final IoSession session;
+
+        /** when the session started to accumulate */
+        private final long since;
+
+        private long bytes = 0;
+
+        /** removed from the budget, its bytes are not accounted anymore */
+        private boolean released = false;
+
+        Partial(final IoSession session, final long since) {
+            this.session = session;
+            this.since = since;
+        }
+
+        /** bytes per millisecond received since the envelope started */
+        synchronized double rate(final long now) {
+            return (double) bytes / Math.max(1L, now - since);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.tcp.security;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the random nonces and salts of the M3DA security, with a {@link SecureRandom} owned by each thread : the
+ * threads don't contend on a shared generator, and the bytes are produced directly into the nonce array.
+ * <p>
+ * Thread safe.
+ */
+public class NonceService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NonceService.class);
+
+    /** length of a nonce, 128 bits */
+    public static final int NONCE_LENGTH = 16;
+
+    /** the generators of each thread, seeded once per thread */
+    private static final ThreadLocal<SecureRandom> RANDOMS = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                // a self-contained generator : the native one shares a lock between all its instances
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (final NoSuchAlgorithmException e) {
+                LOG.warn("no SHA1PRNG secure random, using the default one");
+                return new SecureRandom();
+            }
+        }
+    };
+
+    /**
+     * @return a new random nonce of {@link #NONCE_LENGTH} bytes
+     */
+    public byte[] nextNonce() {
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Fill an array with random bytes, e.g. for reusing the array of a salt.
+     * 
+     * @param bytes the array to fill
+     */
+    public void nextBytes(final byte[] bytes) {
+        RANDOMS.get().nextBytes(bytes);
+    }
+}
@@ -10,8 +10,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
+import m3da.codec.ByteBuffers;
 import m3da.codec.DecoderException;
 import m3da.codec.DecoderOutput;
 import m3da.codec.EcdhService;
@@ -22,7 +22,6 @@ import m3da.codec.StatusCode;
 import m3da.codec.dto.HmacType;
 import m3da.codec.dto.M3daEnvelope;
 import m3da.codec.impl.EcdhServiceImpl;
-import m3da.codec.impl.M3daCodecServiceImpl;
 import m3da.server.session.M3daSecurityInfo;
 import m3da.server.session.M3daSession;
 import m3da.server.store.SecurityStore;
@@ -51,19 +50,38 @@ public class PasswordNegoHandler {
     private static final Logger LOG = LoggerFactory.getLogger(PasswordNegoHandler.class);
 
     /** encoding decoding M3DA messages */
-    private M3daCodecService codec = new M3daCodecServiceImpl();
+    private final M3daCodecService codec;
 
     /** for Elliptic Curve based Diffie Hellman */
-    private EcdhService eccdh = new EcdhServiceImpl();
+    private final EcdhService eccdh;
 
     /** for generating random salt */
-    private Random rng = new Random();
+    private final NonceService nonces = new NonceService();
 
     /** for storing generated password */
     private final SecurityStore securityStore;
 
-    public PasswordNegoHandler(SecurityStore securityStore) {
+    public PasswordNegoHandler(SecurityStore securityStore, M3daCodecService codec) {
+        this(securityStore, codec, new EcdhServiceImpl());
+    }
+
+    /**
+     * @param eccdh the ECDH service, e.g. a {@link m3da.codec.impl.PooledEcdhServiceImpl} for pre-generated key pairs
+     */
+    public PasswordNegoHandler(SecurityStore securityStore, M3daCodecService codec, EcdhService eccdh) {
         this.securityStore = securityStore;
+        this.codec = codec;
+        this.eccdh = eccdh;
+    }
+
+    /**
+     * @return <code>true</code> if the next envelope of the session is the public key exchange, the expensive step of
+     *         the negotiation (ECDH shared secret)
+     */
+    public static boolean isKeyExchange(M3daSession session) {
+        final M3daSecurityInfo secInfo = session.getCommunicationInfo();
+        return secInfo != null && StringUtils.isBlank(secInfo.getM3daCredential())
+                && session.getPassNegoState() == PasswordNegoState.WAIT_PUB_KEY;
     }
 
     /**
@@ -102,10 +120,9 @@ public class PasswordNegoHandler {
                 throw new PasswordNegotiationException("negotiation not allowed : no registration password");
             }
 
-            session.setPassNegoClientSalt(salt.array());
+            session.setPassNegoClientSalt(ByteBuffers.toBytes(salt));
 
-            byte[] serverSalt = new byte[16];
-            rng.nextBytes(serverSalt);
+            byte[] serverSalt = nonces.nextNonce();
             session.setPassNegoServerSalt(serverSalt);
 
             Map<Object, Object> header = new HashMap<Object, Object>();
@@ -133,7 +150,7 @@ public class PasswordNegoHandler {
         }
 
         KeyPair keyPair = eccdh.generateEcdhKeyPair();
-        byte[] sharedSecret = eccdh.computeSharedSecret(keyPair, pubKey.array());
+        byte[] sharedSecret = eccdh.computeSharedSecret(keyPair, ByteBuffers.toBytes(pubKey));
 
         // generate new password
         String newPassword = RandomStringUtils.random(50, true, true);
@@ -152,8 +169,8 @@ public class PasswordNegoHandler {
         header.put(HeaderKey.AUTOREG_CTEXT, eccdh.cipherWithSecret(sharedSecret, md5Password));
 
         // encode the envelope to secure
-        byte[] payload = codec.createEnvelopeEncoder()
-                .encode(new M3daEnvelope(header, new byte[] {}, new HashMap<Object, Object>())).array();
+        ByteBuffer payload = codec.createEnvelopeEncoder().encode(
+                new M3daEnvelope(header, new byte[] {}, new HashMap<Object, Object>()));
 
         // compute the signature
         Map<Object, Object> footer = new HashMap<Object, Object>();
@@ -194,7 +211,7 @@ public class PasswordNegoHandler {
         // decode the secured envelope
         try {
             final List<M3daEnvelope> decoded = new ArrayList<M3daEnvelope>();
-            codec.createEnvelopeDecoder().decodeAndAccumulate(ByteBuffer.wrap(env.getPayload()),
+            codec.borrowEnvelopeDecoder().decodeAndAccumulate(env.getPayloadBuffer(),
                     new DecoderOutput<M3daEnvelope>() {
                         @Override
                         public void decoded(M3daEnvelope pdu) {
@@ -213,13 +230,13 @@ public class PasswordNegoHandler {
         byte[] wantedMac;
         wantedMac = codec.hmac(HmacType.HMAC_MD5, session.getCommunicationId().getBytes(Charsets.UTF_8), session
                 .getCommunicationInfo().getM3daSharedKey().getBytes(Charsets.UTF_8), session.getPassNegoServerSalt(),
-                env.getPayload());
+                env.getPayloadBuffer());
         ByteBuffer receivedMac = (ByteBuffer) env.getFooter().get(HeaderKey.AUTOREG_MAC);
         if (receivedMac == null) {
             throw new PasswordNegotiationException("no MAC in the message footer");
         }
 
-        if (!Arrays.areEqual(wantedMac, receivedMac.array())) {
+        if (!Arrays.areEqual(wantedMac, ByteBuffers.toBytes(receivedMac))) {
             throw new PasswordNegotiationException("invalid MAC");
         }
     }
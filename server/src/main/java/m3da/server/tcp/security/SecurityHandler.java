@@ -1,40 +1,36 @@
 package m3da.server.tcp.security;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import m3da.codec.BysantEncoder;
+import m3da.codec.ByteBuffers;
+import m3da.codec.CipherKey;
 import m3da.codec.DecoderException;
 import m3da.codec.DecoderOutput;
 import m3da.codec.EnvelopeDecoder;
 import m3da.codec.HeaderKey;
 import m3da.codec.Hex;
+import m3da.codec.HmacKey;
 import m3da.codec.M3daCodecService;
 import m3da.codec.M3daCodecService.CipherMode;
 import m3da.codec.StatusCode;
 import m3da.codec.dto.CipherAlgorithm;
 import m3da.codec.dto.HmacType;
 import m3da.codec.dto.M3daEnvelope;
-import m3da.codec.impl.M3daCodecServiceImpl;
+import m3da.server.session.HmacKeyCache;
 import m3da.server.session.M3daAuthentication;
 import m3da.server.session.M3daCipher;
 import m3da.server.session.M3daSecurityInfo;
 import m3da.server.session.M3daSession;
 import m3da.server.store.SecurityStore;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,7 +41,8 @@ public class SecurityHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(SecurityHandler.class);
 
-    private final M3daCodecService codec = new M3daCodecServiceImpl();
+    /** shared codec service */
+    private final M3daCodecService codec;
 
     /** for reading and storing client information */
     private final SecurityStore securityStore;
@@ -55,8 +52,26 @@ public class SecurityHandler {
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    public SecurityHandler(SecurityStore securityStore) {
+    /** for generating the server nonces */
+    private final NonceService nonces = new NonceService();
+
+    /** the HMAC keys derived from the credentials */
+    private final HmacKeyCache hmacKeys;
+
+    public SecurityHandler(SecurityStore securityStore, M3daCodecService codec) {
+        this(securityStore, codec, new HmacKeyCache());
+    }
+
+    /**
+     * @param securityStore the security store, invalidating the HMAC keys when a password changes (see
+     *            {@link HmacKeyCache#invalidating(SecurityStore)})
+     * @param codec the codec service
+     * @param hmacKeys the HMAC keys cache
+     */
+    public SecurityHandler(SecurityStore securityStore, M3daCodecService codec, HmacKeyCache hmacKeys) {
         this.securityStore = securityStore;
+        this.codec = codec;
+        this.hmacKeys = hmacKeys;
     }
 
     /**
@@ -82,20 +97,10 @@ public class SecurityHandler {
             throw new IllegalArgumentException("received communication without any system communication identifier");
         }
 
-        final String communicationId = bbToStr((ByteBuffer) env.getHeader().get(HeaderKey.ID));
-
-        // is the security info already loaded in the session ?
-        M3daSecurityInfo secInfo = session.getCommunicationInfo();
+        // loaded in the session by the ComInfoFilter, with a default for the unknown clients
+        final M3daSecurityInfo secInfo = session.getCommunicationInfo();
         if (secInfo == null) {
-            secInfo = securityStore.getSecurityInfo(communicationId);
-            if (secInfo == null) {
-                secInfo = new M3daSecurityInfo();
-                secInfo.setM3daCommId(communicationId);
-                LOG.warn("no security information for this client {}", communicationId);
-            }
-
-            session.setCommunicationInfo(secInfo);
-            session.setCommunicationId(communicationId);
+            throw new IllegalStateException("no security information in the session, correct filter chain setup ?");
         }
 
         LOG.debug("security information : {}", secInfo);
@@ -126,11 +131,12 @@ public class SecurityHandler {
             final String chal = bbToStr((ByteBuffer) env.getHeader().get(HeaderKey.CHALLENGE));
             if (chal != null) {
                 // it's a challenge, so we should have a nonce
-                final byte[] newNonce = ((ByteBuffer) env.getHeader().get(HeaderKey.NONCE)).array();
-                final String newNonceHex = Hex.encodeHexString(newNonce);
-                LOG.debug("received challenge nonce : {}", newNonceHex);
+                final byte[] newNonce = ByteBuffers.toBytes((ByteBuffer) env.getHeader().get(HeaderKey.NONCE));
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("received challenge nonce : {}", Hex.encodeHexString(newNonce));
+                }
 
-                secInfo.setM3daNonce(newNonceHex);
+                secInfo.setM3daNonceBytes(newNonce);
 
                 M3daEnvelope lastResponse = session.getLastServerResponse();
                 if (lastResponse == null) {
@@ -147,21 +153,15 @@ public class SecurityHandler {
         } else {
             final String communicationId = session.getCommunicationId();
 
-            final byte[] receivedMac = ((ByteBuffer) env.getFooter().get(HeaderKey.MAC)).array();
+            final byte[] receivedMac = ByteBuffers.toBytes((ByteBuffer) env.getFooter().get(HeaderKey.MAC));
 
-            // same credential for both client and server
-            final byte[] password = secInfo.getM3daCredential().getBytes(UTF_8);
-            String hexNonce = secInfo.getM3daNonce();
-            if (hexNonce == null) {
-                // random nonce to force a challenge
-                hexNonce = "";
+            byte[] serverNonce = secInfo.getM3daNonceBytes();
+            if (serverNonce == null) {
+                // empty nonce to force a challenge
+                serverNonce = new byte[0];
             }
 
-            byte[] serverNonce = Hex.decodeHex(hexNonce);
-            final byte[] clientUsername = communicationId.getBytes(UTF_8);
-
-            byte[] computedMac = codec.hmac(HmacType.getHmacType(secInfo.getM3daSecurityType().getDescription()),
-                    clientUsername, password, serverNonce, env.getPayload());
+            byte[] computedMac = codec.hmac(hmacKey(secInfo, session, false), serverNonce, env.getPayloadBuffer());
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug("computed HMAC : {} - received HMAC : {}", Hex.encodeHexString(computedMac),
@@ -173,30 +173,21 @@ public class SecurityHandler {
                 // reset the number of authentication attempt
                 session.setClientAuthenticationAttemptCount(0);
 
-                // decipher the payload if needed
-                byte[] content = env.getPayload();
+                // decipher the payload if needed, in place : the MAC is checked and the ciphered payload is not
+                // used anymore
+                ByteBuffer content = env.getPayloadBuffer();
                 if (!M3daCipher.NONE.equals(secInfo.getM3daCipher())) {
                     // deciphering
-                    CipherAlgorithm cipherAlgo = CipherAlgorithm.getCipher(secInfo.getM3daCipher().getDescription());
                     LOG.debug("deciphering content");
 
-                    ByteArrayOutputStream deciphered = new ByteArrayOutputStream();
-                    codec.cipher(CipherMode.DECRYPTION, cipherAlgo, password, serverNonce,
-                            new ByteArrayInputStream(env.getPayload()), deciphered);
-
-                    content = deciphered.toByteArray();
-
-                    try {
-                        deciphered.close();
-                    } catch (Exception e) {
-                        // quiet..
-                    }
+                    content = codec.cipher(CipherMode.DECRYPTION, cipherKey(secInfo, session, serverNonce), content,
+                            true);
                 }
 
                 // extract the contained protected envelope and send it to the next filter
-                final EnvelopeDecoder envDec = codec.createEnvelopeDecoder();
+                final EnvelopeDecoder envDec = codec.borrowEnvelopeDecoder();
                 final List<M3daEnvelope> decodedEnvs = new ArrayList<M3daEnvelope>();
-                envDec.decodeAndAccumulate(ByteBuffer.wrap(content), new DecoderOutput<M3daEnvelope>() {
+                envDec.decodeAndAccumulate(content, new DecoderOutput<M3daEnvelope>() {
                     @Override
                     public void decoded(final M3daEnvelope pdu) {
                         decodedEnvs.add(pdu);
@@ -212,16 +203,16 @@ public class SecurityHandler {
                 final M3daEnvelope protectedEnv = decodedEnvs.get(0);
                 // add the communication ID
                 final Map<Object, Object> header = new HashMap<Object, Object>(protectedEnv.getHeader());
-                header.put(HeaderKey.ID, ByteBuffer.wrap(communicationId.getBytes(UTF_8)));
+                header.put(HeaderKey.ID, session.getCommunicationIdBytes().toByteBuffer());
 
                 // store the new nonce if any
                 final ByteBuffer nonce = (ByteBuffer) protectedEnv.getHeader().get(HeaderKey.NONCE);
                 if (nonce != null) {
-                    secInfo.setM3daNonce(Hex.encodeHexString(nonce.array()));
+                    secInfo.setM3daNonceBytes(ByteBuffers.toBytes(nonce));
                 }
 
                 // process the request (only the inner envelope)
-                return AuthenticationResult.success(new M3daEnvelope(header, protectedEnv.getPayload(), protectedEnv
+                return AuthenticationResult.success(new M3daEnvelope(header, protectedEnv.getPayloadBuffer(), protectedEnv
                         .getFooter()));
             } else {
                 LOG.debug("HMAC not matching");
@@ -231,6 +222,43 @@ public class SecurityHandler {
         }
     }
 
+    /**
+     * The cipher key of the credential and of the nonce, derived once and cached in the session while they don't
+     * change.
+     */
+    private CipherKey cipherKey(final M3daSecurityInfo secInfo, final M3daSession session, final byte[] nonce) {
+        final CipherAlgorithm cipherAlgo = CipherAlgorithm.getCipher(secInfo.getM3daCipher().getDescription());
+        // same credential for both client and server
+        final String credential = secInfo.getM3daCredential();
+        CipherKey key = session.getCipherKey(cipherAlgo, credential, nonce);
+        if (key == null) {
+            key = codec.createCipherKey(cipherAlgo, credential.getBytes(UTF_8), nonce);
+            session.setCipherKey(key, credential, nonce);
+        }
+        return key;
+    }
+
+    /**
+     * The HMAC key of the device or of the server, derived once from the credential and cached until the credential
+     * changes.
+     */
+    private HmacKey hmacKey(final M3daSecurityInfo secInfo, final M3daSession session, final boolean server) {
+        final String communicationId = session.getCommunicationId();
+        final String credential = secInfo.getM3daCredential();
+        final M3daAuthentication securityType = secInfo.getM3daSecurityType();
+        final HmacKey cached = hmacKeys.get(communicationId, credential, securityType, server);
+        if (cached != null) {
+            return cached;
+        }
+        final HmacType hmacType = HmacType.getHmacType(securityType.getDescription());
+        final byte[] password = credential.getBytes(UTF_8);
+
+        final HmacKey deviceKey = codec.createHmacKey(hmacType, communicationId.getBytes(UTF_8), password);
+        final HmacKey serverKey = codec.createHmacKey(hmacType, M3daCodecService.SERVER_NAME.getBytes(UTF_8), password);
+        hmacKeys.put(communicationId, credential, securityType, deviceKey, serverKey);
+        return server ? serverKey : deviceKey;
+    }
+
     /**
      * Send a new challenge or an error if the maximum number of retry is exceeded
      */
@@ -267,16 +295,17 @@ public class SecurityHandler {
             return response;
 
         } else {
-            final byte[] nextNonce = generateNonce();
-            final String nextHexNonce = Hex.encodeHexString(nextNonce);
-            LOG.debug("generated new nonce : {}", nextHexNonce);
+            final byte[] nextNonce = nonces.nextNonce();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("generated new nonce : {}", Hex.encodeHexString(nextNonce));
+            }
             response.getHeader().put(HeaderKey.NONCE, nextNonce);
 
             // is it a challenge ? don't sign the message
             if (response.getHeader().containsKey(HeaderKey.CHALLENGE)) {
                 LOG.debug("server challenge, not signed");
                 // save the nonce
-                secInfo.setM3daNonce(nextHexNonce);
+                secInfo.setM3daNonceBytes(nextNonce);
                 // push the challenge envelope
                 return response;
 
@@ -285,7 +314,7 @@ public class SecurityHandler {
                 session.setLastServerResponse(response);
 
                 final Map<Object, Object> header = new HashMap<Object, Object>();
-                header.put(HeaderKey.ID, ByteBuffer.wrap(session.getCommunicationId().getBytes(UTF_8)));
+                header.put(HeaderKey.ID, session.getCommunicationIdBytes().toByteBuffer());
 
                 // copy error code if security error. not sure about this...
                 Object status = response.getHeader().get(HeaderKey.STATUS);
@@ -293,33 +322,20 @@ public class SecurityHandler {
                     header.put(HeaderKey.STATUS, status);
                 }
 
-                byte[] payload = codec.createEnvelopeEncoder().encode(response).array();
+                ByteBuffer payload = codec.createEnvelopeEncoder().encode(response);
 
-                // same password for both client and server
-                final byte[] password = secInfo.getM3daCredential().getBytes(UTF_8);
-                byte[] serverNonce = Hex.decodeHex(secInfo.getM3daNonce());
+                final byte[] serverNonce = secInfo.getM3daNonceBytes();
 
                 if (!secInfo.getM3daCipher().equals(M3daCipher.NONE)) {
-                    // ciphering
-                    CipherAlgorithm cipherAlgo = CipherAlgorithm.getCipher(secInfo.getM3daCipher().getDescription());
-
-                    LOG.debug("ciphering payload with algo : {}", cipherAlgo);
+                    // ciphering, in place when there is no padding : the encoded payload is not shared
+                    LOG.debug("ciphering payload with algo : {}", secInfo.getM3daCipher());
 
-                    ByteArrayOutputStream cipherOut = new ByteArrayOutputStream();
-                    codec.cipher(CipherMode.ENCRYPTION, cipherAlgo, password, serverNonce, new ByteArrayInputStream(
-                            payload), cipherOut);
-
-                    payload = cipherOut.toByteArray();
-                    try {
-                        cipherOut.close();
-                    } catch (Exception e) {
-                        // quiet
-                    }
+                    payload = codec.cipher(CipherMode.ENCRYPTION, cipherKey(secInfo, session, serverNonce), payload,
+                            true);
                 }
 
                 // compute HMAC
-                byte[] computedMac = codec.hmac(HmacType.getHmacType(secInfo.getM3daSecurityType().getDescription()),
-                        M3daCodecService.SERVER_NAME.getBytes(UTF_8), password, serverNonce, payload);
+                byte[] computedMac = codec.hmac(hmacKey(secInfo, session, true), serverNonce, payload);
 
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("computed HMAC : {}", Hex.encodeHexString(computedMac));
@@ -329,7 +345,7 @@ public class SecurityHandler {
                 footer.put(HeaderKey.MAC, new ByteBuffer[] { ByteBuffer.wrap(computedMac) });
 
                 // store the generated nonce
-                secInfo.setM3daNonce(nextHexNonce);
+                secInfo.setM3daNonceBytes(nextNonce);
 
                 return new M3daEnvelope(header, payload, footer);
             }
@@ -350,7 +366,7 @@ public class SecurityHandler {
             if (communicationId == null) {
                 LOG.error("no communication saved on this session, but we have a security info : BUG ?");
 
-            } else if (StringUtils.isNotBlank(secInfo.getM3daNonce())) {
+            } else if (secInfo.getM3daNonceBytes() != null && secInfo.getM3daNonceBytes().length > 0) {
                 securityStore.storeNonce(communicationId, secInfo.getM3daNonce());
             }
         }
@@ -362,36 +378,11 @@ public class SecurityHandler {
         final BysantEncoder enc = codec.createBodyEncoder();
         final ByteBuffer buffer = enc.encode();
 
-        return new M3daEnvelope(header, buffer.array(), Collections.emptyMap());
-    }
-
-    private Random rng = new Random();
-
-    /** generate 128bit random nonce */
-    private byte[] generateNonce() {
-        try {
-            return md5((Double.toString(rng.nextDouble()) + Double.toString(rng.nextDouble())).getBytes("UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalStateException(e);
-        }
+        return new M3daEnvelope(header, buffer, Collections.emptyMap());
     }
 
     /** convert an UTF8 encoded ByteBuffer to java string */
     private String bbToStr(final ByteBuffer src) {
-        if (src == null) {
-            return null;
-        }
-        return new String(src.array(), UTF_8);
-    }
-
-    private byte[] md5(byte[] data) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-
-            return digest.digest(data);
-
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("no MD5 provider in the JVM");
-        }
+        return ByteBuffers.toUtf8String(src);
     }
 }
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.session;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import m3da.codec.HmacKey;
+import m3da.server.store.SecurityStore;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HmacKeyCache}
+ */
+public class HmacKeyCacheTest {
+
+    private final HmacKeyCache cache = new HmacKeyCache();
+
+    private final HmacKey device = mock(HmacKey.class);
+
+    private final HmacKey server = mock(HmacKey.class);
+
+    @Test
+    public void keys_are_returned_for_their_credential_only() {
+        cache.put("client", "secret", M3daAuthentication.HMAC_MD5, device, server);
+        assertSame(device, cache.get("client", "secret", M3daAuthentication.HMAC_MD5, false));
+        assertSame(server, cache.get("client", "secret", M3daAuthentication.HMAC_MD5, true));
+
+        // new password, other security type, other client
+        assertNull(cache.get("client", "newSecret", M3daAuthentication.HMAC_MD5, false));
+        assertNull(cache.get("client", "secret", M3daAuthentication.HMAC_SHA1, false));
+        assertNull(cache.get("other", "secret", M3daAuthentication.HMAC_MD5, false));
+    }
+
+    @Test
+    public void invalidated_by_the_store_writes() {
+        final SecurityStore delegate = mock(SecurityStore.class);
+        final SecurityStore store = cache.invalidating(delegate);
+        final M3daSecurityInfo info = new M3daSecurityInfo();
+        info.setM3daCommId("client");
+
+        cache.put("client", "secret", M3daAuthentication.HMAC_MD5, device, server);
+        store.storeNonce("client", "00ff");
+        assertEquals(1, cache.size());
+
+        store.storeNewPassword("client", "newSecret");
+        assertEquals(0, cache.size());
+
+        cache.put("client", "secret", M3daAuthentication.HMAC_MD5, device, server);
+        store.addSecurityInfo(info);
+        assertEquals(0, cache.size());
+
+        verify(delegate).storeNonce("client", "00ff");
+        verify(delegate).storeNewPassword("client", "newSecret");
+        verify(delegate).addSecurityInfo(info);
+    }
+}
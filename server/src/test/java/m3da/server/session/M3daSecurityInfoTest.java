@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.session;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import m3da.codec.Hex;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link M3daSecurityInfo}
+ */
+public class M3daSecurityInfoTest {
+
+    @Test
+    public void nonce_is_stored_as_bytes() {
+        final M3daSecurityInfo info = new M3daSecurityInfo();
+        assertNull(info.getM3daNonce());
+
+        final byte[] nonce = new byte[] { 0x12, (byte) 0xAB, 0 };
+        info.setM3daNonceBytes(nonce);
+        assertSame(nonce, info.getM3daNonceBytes());
+        assertEquals("12ab00", info.getM3daNonce());
+
+        // hex encoded by the security store
+        info.setM3daNonce("00ff");
+        assertArrayEquals(new byte[] { 0, (byte) 0xFF }, info.getM3daNonceBytes());
+    }
+
+    /** serialized by the former version of the class, the nonce being a String field (InMemoryStore security.ser) */
+    private static final String SERIALIZED_V1 = "aced0005737200246d3364612e7365727665722e73657373696f6e2e4d3364615365637572697479496e666f00000000"
+                + "000000010200064c000a6d3364614369706865727400204c6d3364612f7365727665722f73657373696f6e2f4d336461"
+                + "4369706865723b4c000a6d336461436f6d6d49647400124c6a6176612f6c616e672f537472696e673b4c000e6d336461"
+                + "43726564656e7469616c71007e00024c00096d3364614e6f6e636571007e00024c00106d336461536563757269747954"
+                + "7970657400284c6d3364612f7365727665722f73657373696f6e2f4d33646141757468656e7469636174696f6e3b4c00"
+                + "0d6d3364615368617265644b657971007e000278707e72001e6d3364612e7365727665722e73657373696f6e2e4d3364"
+                + "6143697068657200000000000000001200007872000e6a6176612e6c616e672e456e756d000000000000000012000078"
+                + "7074000b4145535f4342435f313238740006636c69656e74740006736563726574740010303132333435363738396162"
+                + "636465667e7200266d3364612e7365727665722e73657373696f6e2e4d33646141757468656e7469636174696f6e0000"
+                + "0000000000001200007871007e0006740009484d41435f5348413170";
+
+    private static M3daSecurityInfo deserialize(final byte[] serialized) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            return (M3daSecurityInfo) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void read_the_former_serialized_form() throws IOException, ClassNotFoundException {
+        final M3daSecurityInfo info = deserialize(Hex.decodeHex(SERIALIZED_V1));
+
+        assertEquals("client", info.getM3daCommId());
+        assertEquals(M3daAuthentication.HMAC_SHA1, info.getM3daSecurityType());
+        assertEquals(M3daCipher.AES_CBC_128, info.getM3daCipher());
+        assertEquals("secret", info.getM3daCredential());
+        assertEquals("0123456789abcdef", info.getM3daNonce());
+        assertArrayEquals(Hex.decodeHex("0123456789abcdef"), info.getM3daNonceBytes());
+    }
+
+    @Test
+    public void serialize_the_nonce_set_as_bytes() throws IOException, ClassNotFoundException {
+        final M3daSecurityInfo info = new M3daSecurityInfo();
+        info.setM3daNonceBytes(new byte[] { 0x12, (byte) 0xAB });
+
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(info);
+        out.close();
+
+        final M3daSecurityInfo read = deserialize(serialized.toByteArray());
+        assertEquals("12ab", read.getM3daNonce());
+        assertArrayEquals(new byte[] { 0x12, (byte) 0xAB }, read.getM3daNonceBytes());
+    }
+}
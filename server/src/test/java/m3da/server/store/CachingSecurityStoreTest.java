@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.store;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import m3da.server.session.M3daSecurityInfo;
+import m3da.server.store.impl.CachingSecurityStore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CachingSecurityStore}
+ */
+public class CachingSecurityStoreTest {
+
+    private SecurityStore delegate;
+
+    private CachingSecurityStore cache;
+
+    private M3daSecurityInfo info;
+
+    @Before
+    public void setup() {
+        delegate = mock(SecurityStore.class);
+        cache = new CachingSecurityStore(delegate, 2, 60000, 60000);
+        info = new M3daSecurityInfo();
+        info.setM3daCommId("client");
+        when(delegate.getSecurityInfo("client")).thenReturn(info);
+    }
+
+    @Test
+    public void cache_the_security_info() {
+        assertSame(info, cache.getSecurityInfo("client"));
+        assertSame(info, cache.getSecurityInfo("client"));
+
+        verify(delegate, times(1)).getSecurityInfo("client");
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5d, cache.getHitRate(), 0d);
+    }
+
+    @Test
+    public void cache_the_unknown_clients() {
+        assertNull(cache.getSecurityInfo("unknown"));
+        assertNull(cache.getSecurityInfo("unknown"));
+
+        verify(delegate, times(1)).getSecurityInfo("unknown");
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void invalidated_by_the_updates() {
+        cache.getSecurityInfo("client");
+        cache.storeNonce("client", "00ff");
+        cache.getSecurityInfo("client");
+        cache.storeNewPassword("client", "secret");
+        cache.getSecurityInfo("client");
+        cache.addSecurityInfo(info);
+        cache.getSecurityInfo("client");
+
+        verify(delegate).storeNonce("client", "00ff");
+        verify(delegate).storeNewPassword("client", "secret");
+        verify(delegate).addSecurityInfo(info);
+        verify(delegate, times(4)).getSecurityInfo("client");
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void expire_the_entries() {
+        cache = new CachingSecurityStore(delegate, 2, 0, 0);
+        cache.getSecurityInfo("client");
+        cache.getSecurityInfo("client");
+
+        verify(delegate, times(2)).getSecurityInfo("client");
+    }
+
+    @Test
+    public void bounded_size() {
+        cache = new CachingSecurityStore(delegate, 20, 60000, 60000);
+        for (int i = 0; i < 20; i++) {
+            cache.getSecurityInfo("client" + i);
+        }
+        assertEquals(20, cache.getSize());
+        assertEquals(0, cache.getEvictions());
+
+        // evicted in batch, down to 90% of the bound
+        cache.getSecurityInfo("client20");
+        assertEquals(18, cache.getSize());
+        assertEquals(3, cache.getEvictions());
+    }
+
+    @Test
+    public void failed_lookups_are_not_cached() {
+        when(delegate.getSecurityInfo("broken")).thenThrow(new IllegalStateException("store down"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getSecurityInfo("broken");
+                fail();
+            } catch (final IllegalStateException e) {
+                // expected
+            }
+        }
+        verify(delegate, times(2)).getSecurityInfo("broken");
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import m3da.codec.dto.M3daEnvelope;
+import m3da.server.session.M3daAuthentication;
+import m3da.server.session.M3daSecurityInfo;
+import m3da.server.session.M3daSession;
+import m3da.server.tcp.security.AuthenticationResult;
+import m3da.server.tcp.security.PasswordNegoHandler;
+import m3da.server.tcp.security.PasswordNegoState;
+import m3da.server.tcp.security.SecurityHandler;
+
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit tests for {@link CryptoFilter}
+ */
+public class CryptoFilterTest {
+
+    private final SecurityHandler securityHandler = mock(SecurityHandler.class);
+
+    private final PasswordNegoHandler passNego = mock(PasswordNegoHandler.class);
+
+    private final NextFilter nextFilter = mock(NextFilter.class);
+
+    private final M3daEnvelope envelope = new M3daEnvelope(new HashMap<Object, Object>(), new byte[0],
+            new HashMap<Object, Object>());
+
+    private CryptoFilter filter;
+
+    private DummySession session;
+
+    private M3daSecurityInfo secInfo;
+
+    private M3daSession m3daSession;
+
+    @Before
+    public void setup() {
+        filter = new CryptoFilter(securityHandler, passNego, 2, 10);
+        secInfo = new M3daSecurityInfo();
+        m3daSession = new M3daSession();
+        m3daSession.setCommunicationInfo(secInfo);
+        session = new DummySession();
+        session.setAttribute(ComInfoFilter.M3DA_SESSION, m3daSession);
+    }
+
+    @After
+    public void shutdown() {
+        filter.shutdown();
+    }
+
+    @Test
+    public void plain_text_envelopes_are_passed_directly() throws Exception {
+        secInfo.setM3daSecurityType(M3daAuthentication.NONE);
+
+        filter.messageReceived(nextFilter, session, envelope);
+
+        verify(nextFilter).messageReceived(session, envelope);
+        verifyZeroInteractions(securityHandler);
+        assertEquals(0, filter.getProcessed());
+    }
+
+    @Test
+    public void password_negotiation_is_passed_directly() throws Exception {
+        secInfo.setM3daSecurityType(M3daAuthentication.HMAC_MD5);
+
+        filter.messageReceived(nextFilter, session, envelope);
+
+        verify(nextFilter).messageReceived(session, envelope);
+        verifyZeroInteractions(securityHandler, passNego);
+    }
+
+    @Test
+    public void exchange_the_public_keys_on_a_crypto_thread() throws Exception {
+        secInfo.setM3daSecurityType(M3daAuthentication.HMAC_MD5);
+        m3daSession.setPassNegoState(PasswordNegoState.WAIT_PUB_KEY);
+        final M3daEnvelope response = new M3daEnvelope(new HashMap<Object, Object>(), new byte[] { 1 },
+                new HashMap<Object, Object>());
+        when(passNego.handle(envelope, m3daSession)).thenReturn(response);
+        final IoSession spySession = spy(session);
+
+        filter.messageReceived(nextFilter, spySession, envelope);
+
+        // the negotiation response is written by the crypto thread
+        verify(spySession, timeout(5000)).write(response);
+        verify(nextFilter, never()).messageReceived(any(IoSession.class), any());
+        assertEquals(1, filter.getProcessed());
+    }
+
+    @Test
+    public void authenticate_on_a_crypto_thread() throws Exception {
+        secInfo.setM3daSecurityType(M3daAuthentication.HMAC_MD5);
+        secInfo.setM3daCredential("secret");
+        final AuthenticationResult result = AuthenticationResult.success(envelope);
+        when(securityHandler.authenticate(same(envelope), any(M3daSession.class))).thenReturn(result);
+
+        filter.messageReceived(nextFilter, session, envelope);
+
+        verify(nextFilter, timeout(5000)).messageReceived(session, result);
+        assertEquals(1, filter.getProcessed());
+        assertEquals(0, filter.getQueueDepth());
+        assertEquals(1, filter.getPeakQueueDepth());
+    }
+
+    @Test
+    public void suspend_the_reads_when_the_queue_is_full() throws Exception {
+        secInfo.setM3daSecurityType(M3daAuthentication.HMAC_MD5);
+        secInfo.setM3daCredential("secret");
+        final CountDownLatch blocked = new CountDownLatch(1);
+        when(securityHandler.authenticate(same(envelope), any(M3daSession.class))).thenAnswer(
+                new Answer<AuthenticationResult>() {
+                    @Override
+                    public AuthenticationResult answer(final InvocationOnMock invocation) throws Throwable {
+                        blocked.await();
+                        return AuthenticationResult.success(envelope);
+                    }
+                });
+
+        // the events of a session are processed one by one : they wait behind the blocked one
+        for (int i = 0; i < 12; i++) {
+            filter.messageReceived(nextFilter, session, envelope);
+        }
+        assertTrue(session.isReadSuspended());
+        assertEquals(1, filter.getThrottled());
+
+        blocked.countDown();
+        verify(nextFilter, timeout(5000).times(12)).messageReceived(same(session), any(AuthenticationResult.class));
+        assertFalse(session.isReadSuspended());
+        assertEquals(0, filter.getQueueDepth());
+    }
+
+    @Test
+    public void sign_the_responses_on_a_crypto_thread() throws Exception {
+        final M3daEnvelope signed = new M3daEnvelope(new HashMap<Object, Object>(), new byte[] { 1 },
+                new HashMap<Object, Object>());
+        when(securityHandler.signResponse(same(envelope), any(M3daSession.class))).thenReturn(signed);
+        final WriteRequest write = new DefaultWriteRequest(new CryptoFilter.UnsignedResponse(envelope));
+
+        filter.filterWrite(nextFilter, session, write);
+
+        final ArgumentCaptor<WriteRequest> captor = ArgumentCaptor.forClass(WriteRequest.class);
+        verify(nextFilter, timeout(5000)).filterWrite(same(session), captor.capture());
+        assertSame(signed, captor.getValue().getMessage());
+        assertSame(write.getFuture(), captor.getValue().getFuture());
+    }
+
+    @Test
+    public void other_writes_are_passed_directly() throws Exception {
+        final WriteRequest write = new DefaultWriteRequest(envelope);
+
+        filter.filterWrite(nextFilter, session, write);
+
+        verify(nextFilter).filterWrite(session, write);
+        verifyZeroInteractions(securityHandler);
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sierra Wireless.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ ******************************************************************************/
+package m3da.server.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.apache.mina.core.session.IoSession;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PartialEnvelopeBudget}
+ */
+public class PartialEnvelopeBudgetTest {
+
+    private IoSession session(final long id) {
+        final IoSession session = mock(IoSession.class);
+        when(session.getId()).thenReturn(id);
+        return session;
+    }
+
+    @Test
+    public void account_the_partial_envelopes() {
+        final PartialEnvelopeBudget budget = new PartialEnvelopeBudget(1000);
+        final IoSession s1 = session(1);
+        final IoSession s2 = session(2);
+
+        budget.update(s1, 100);
+        budget.update(s2, 200);
+        budget.update(s1, 300);
+        assertEquals(500, budget.getPartialBytes());
+
+        // envelope complete
+        budget.update(s1, 0);
+        assertEquals(200, budget.getPartialBytes());
+
+        // session closed, twice
+        budget.release(s2);
+        budget.release(s2);
+        assertEquals(0, budget.getPartialBytes());
+        assertEquals(0, budget.getEvictions());
+    }
+
+    @Test
+    public void disconnect_the_slowest_sender_when_exceeded() throws InterruptedException {
+        final PartialEnvelopeBudget budget = new PartialEnvelopeBudget(1000);
+        final IoSession slow = session(1);
+        final IoSession fast = session(2);
+
+        budget.update(slow, 10);
+        Thread.sleep(20);
+        budget.update(fast, 500);
+        budget.update(slow, 20);
+
+        // over budget : the slow sender is dropped
+        budget.update(fast, 990);
+
+        verify(slow).close(true);
+        verify(fast, never()).close(anyBoolean());
+        assertEquals(990, budget.getPartialBytes());
+        assertEquals(1, budget.getEvictions());
+    }
+
+    @Test
+    public void no_bytes_leaked_by_concurrent_evictions() throws InterruptedException {
+        final PartialEnvelopeBudget budget = new PartialEnvelopeBudget(1000);
+        final IoSession[] sessions = new IoSession[4];
+        final Thread[] threads = new Thread[sessions.length];
+        for (int t = 0; t < threads.length; t++) {
+            final IoSession session = session(t);
+            sessions[t] = session;
+            // the sessions exceed the budget together, evicted while the other threads update them
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        budget.update(session, 100 + i % 400);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        for (final IoSession session : sessions) {
+            budget.release(session);
+        }
+        assertEquals(0, budget.getPartialBytes());
+    }
+}